@@ -35,16 +35,11 @@ public class MathmlEntityFixer
 	private static MathmlEntityFixer localFixer;
 
 	private Map<String, String> entityToChar = new HashMap<String, String>();
-	private Map<String, String> hexesToDesc = new HashMap<String, String>();
-
-	private int longestDescSequence;
+	private EntityNode entities = new EntityNode();
+	private DescriptionNode descriptions = new DescriptionNode();
 
 	private final static Pattern
-		REGEX_ENTITY = Pattern.compile("&([^#][^;]*);"),
-		REGEX_NUMERIC_ENTITY = Pattern.compile("&#([^;]*);"),
-		REGEX_HEX_ENTITIES = Pattern.compile("(?:&#x[^;]*;)+"),
-		REGEX_CDATA = Pattern.compile("<!\\[CDATA\\[.*?\\]\\]>", Pattern.DOTALL),
-		REGEX_COMMENT = Pattern.compile("<!--.*?-->", Pattern.DOTALL);
+		REGEX_NUMERIC_ENTITY = Pattern.compile("&#([^;]*);");
 
 	/**
 	 * Constructs and initialises the fixer, loading in all the data it needs.
@@ -77,6 +72,10 @@ public class MathmlEntityFixer
 		entityToChar.put("gt", "&gt;");
 		entityToChar.put("apos", "&apos;");
 		entityToChar.put("quot", "&quot;");
+		for(Map.Entry<String, String> entry : entityToChar.entrySet())
+		{
+			entities.add(entry.getKey(), entry.getValue());
+		}
 
 		readDescriptions(WebMathsEnglish.class.getResourceAsStream("mathml.descriptions.txt"));
 		readDescriptions(WebMathsEnglish.class.getResourceAsStream("override.descriptions.txt"));
@@ -116,7 +115,7 @@ public class MathmlEntityFixer
 				throw new IOException("Invalid line format (no equals): " + line);
 			}
 
-			// Store in map
+			// Store in trie
 			String hexes = line.substring(0, equals);
 			String desc = line.substring(equals+1).trim();
 			if(thisFile.containsKey(hexes) && !thisFile.get(hexes).equals(desc))
@@ -124,67 +123,306 @@ public class MathmlEntityFixer
 				throw new IOException("Duplicate hex value: " + hexes);
 			}
 			thisFile.put(hexes, desc);
-			hexesToDesc.put(hexes, desc);
-
-			// Work out which has the longest sequence of codepoints (= the number
-			// of commas plus one)
-			longestDescSequence = Math.max(longestDescSequence,
-				hexes.replaceAll("[^,]", "").length()+1);
-
+			DescriptionNode node = descriptions;
+			for(String hex : hexes.split(","))
+			{
+				try
+				{
+					node = node.add(Integer.parseInt(hex, 16));
+				}
+				catch(NumberFormatException e)
+				{
+					throw new IOException("Invalid hex value: " + hexes);
+				}
+			}
+			node.desc = desc;
 		}
 		reader.close();
 	}
 
 	/**
-	 * Fixes all the named entities in the source string.
+	 * Fixes all the named entities in the source string. CDATA sections and
+	 * comments are left unchanged. This is a single pass over the string, and
+	 * if there are no entities to fix, it returns the original string.
 	 * @param original Original string
 	 * @return Fixed string with entities replaced by direct characters
 	 * @throws IllegalArgumentException Any unknown entities
 	 */
 	public String fix(String original) throws IllegalArgumentException
 	{
-		StringBuffer out = new StringBuffer();
+		EntityScanner scanner = new EntityScanner(original, 0);
+		if(!scanner.next())
+		{
+			return original;
+		}
+		StringBuilder out = new StringBuilder(original.length());
+		int copied = 0;
+		do
+		{
+			out.append(original, copied, scanner.entityStart);
+			out.append(scanner.replacement);
+			copied = scanner.entityEnd;
+		}
+		while(scanner.next());
+		out.append(original, copied, original.length());
+		return out.toString();
+	}
+
+	/**
+	 * Gets a reader that returns the source string with all named entities
+	 * fixed, in the same way as {@link #fix(String)}. Entities are fixed as the
+	 * string is read, so it isn't copied.
+	 * @param original Original string
+	 * @param start Position in string to start reading from
+	 * @return Reader
+	 * @throws IllegalArgumentException (When reading) any unknown entities
+	 */
+	public Reader getReader(String original, int start)
+	{
+		return new FixingReader(original, start);
+	}
+
+	/**
+	 * Finds the named entities in a string, one at a time, skipping CDATA
+	 * sections and comments. The whole string is scanned only once.
+	 */
+	private class EntityScanner
+	{
+		private final String text;
+		private int pos;
+
+		/** Set once there are no more comment/CDATA ends, to avoid searching */
+		private boolean noCommentEnd, noCdataEnd;
+
+		/** Details of current entity (position of & and after ;) */
+		private int entityStart, entityEnd;
+		private String replacement;
+
+		/**
+		 * @param text Text to scan
+		 * @param start Position to start from
+		 */
+		EntityScanner(String text, int start)
+		{
+			this.text = text;
+			pos = start;
+		}
+
+		/**
+		 * Finds the next entity.
+		 * @return True if there is one, false if the end of string was reached
+		 * @throws IllegalArgumentException If the entity is unknown
+		 */
+		boolean next() throws IllegalArgumentException
+		{
+			int length = text.length();
+
+			// Position of & for an entity that hasn't reached its semicolon yet
+			int pending = -1;
+
+			for(; pos < length; pos++)
+			{
+				char c = text.charAt(pos);
+				if(c == '<')
+				{
+					// Skip CDATA and comments (only if they are closed)
+					int end = -1;
+					if(!noCdataEnd && text.startsWith("<![CDATA[", pos))
+					{
+						end = text.indexOf("]]>", pos + 9);
+						noCdataEnd = end == -1;
+					}
+					else if(!noCommentEnd && text.startsWith("<!--", pos))
+					{
+						end = text.indexOf("-->", pos + 4);
+						noCommentEnd = end == -1;
+					}
+					if(end != -1)
+					{
+						// An entity can't continue past one of these
+						pending = -1;
+						pos = end + 2;
+						continue;
+					}
+				}
+
+				if(pending == -1)
+				{
+					// Numeric entities are left alone
+					if(c == '&' && pos + 1 < length && text.charAt(pos + 1) != '#')
+					{
+						pending = pos;
+					}
+				}
+				else if(c == ';' && pos > pending + 1)
+				{
+					replacement = entities.find(text, pending + 1, pos);
+					if(replacement == null)
+					{
+						throw new IllegalArgumentException("Unknown entity "
+							+ text.substring(pending, pos + 1));
+					}
+					entityStart = pending;
+					entityEnd = ++pos;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Reader that fixes entities as it goes.
+	 */
+	private class FixingReader extends Reader
+	{
+		private final String text;
+		private final EntityScanner scanner;
+
+		/** Position of next character to read from text */
+		private int pos;
+
+		/** Position of next entity (or end of text) */
+		private int next;
+
+		/** Position within replacement text, or -1 if not in an entity */
+		private int replacementPos = -1;
+
+		/**
+		 * @param text Text to read
+		 * @param start Position to start from
+		 */
+		FixingReader(String text, int start)
+		{
+			this.text = text;
+			scanner = new EntityScanner(text, start);
+			pos = start;
+			findNext();
+		}
+
+		/**
+		 * Finds the next entity and sets {@link #next}.
+		 */
+		private void findNext()
+		{
+			next = scanner.next() ? scanner.entityStart : text.length();
+		}
 
-		// Do the same thing for cdata (first) then comment
-		for(Pattern ignoring : new Pattern[] { REGEX_CDATA, REGEX_COMMENT })
+		@Override
+		public int read(char[] buffer, int offset, int length)
 		{
-			// Find CDATA/comment, split that out and recurse
-			Matcher m = ignoring.matcher(original);
-			boolean gotIgnoring = false;
-			while(m.find())
+			int count = 0;
+			while(count < length)
 			{
-				String cdata = m.group();
-				StringBuffer temp = new StringBuffer();
-				m.appendReplacement(temp, "");
-				// Fix the bit before the match
-				out.append(fix(temp.toString()));
-				// Add the cdata unchanged
-				out.append(cdata);
-				gotIgnoring = true;
+				if(replacementPos != -1)
+				{
+					// Continue with entity replacement text
+					String replacement = scanner.replacement;
+					int chars = Math.min(length - count,
+						replacement.length() - replacementPos);
+					replacement.getChars(replacementPos, replacementPos + chars,
+						buffer, offset + count);
+					count += chars;
+					replacementPos += chars;
+					if(replacementPos == replacement.length())
+					{
+						replacementPos = -1;
+						pos = scanner.entityEnd;
+						findNext();
+					}
+				}
+				else if(pos < next)
+				{
+					// Text up to the next entity
+					int chars = Math.min(length - count, next - pos);
+					text.getChars(pos, pos + chars, buffer, offset + count);
+					count += chars;
+					pos += chars;
+				}
+				else if(next < text.length())
+				{
+					replacementPos = 0;
+				}
+				else
+				{
+					break;
+				}
 			}
-			// If there were any cdata/comment, recurse for last part and return result
-			if(gotIgnoring)
+			return count == 0 && length > 0 ? -1 : count;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * Trie of entity names, used to look up entities without creating strings.
+	 */
+	private static class EntityNode
+	{
+		/** Characters leading to child nodes (sorted), and the nodes */
+		private char[] keys = new char[0];
+		private EntityNode[] children = new EntityNode[0];
+
+		/** Replacement text, or null if no entity name ends here */
+		private String value;
+
+		/**
+		 * Adds an entity.
+		 * @param name Entity name
+		 * @param value Replacement text
+		 */
+		void add(String name, String value)
+		{
+			EntityNode node = this;
+			for(int i = 0; i < name.length(); i++)
 			{
-				StringBuffer temp = new StringBuffer();
-				m.appendTail(temp);
-				out.append(fix(temp.toString()));
-				return out.toString();
+				char c = name.charAt(i);
+				int index = Arrays.binarySearch(node.keys, c);
+				if(index < 0)
+				{
+					index = -index - 1;
+					char[] newKeys = new char[node.keys.length + 1];
+					EntityNode[] newChildren = new EntityNode[node.keys.length + 1];
+					System.arraycopy(node.keys, 0, newKeys, 0, index);
+					System.arraycopy(node.children, 0, newChildren, 0, index);
+					newKeys[index] = c;
+					newChildren[index] = new EntityNode();
+					System.arraycopy(node.keys, index, newKeys, index + 1,
+						node.keys.length - index);
+					System.arraycopy(node.children, index, newChildren, index + 1,
+						node.keys.length - index);
+					node.keys = newKeys;
+					node.children = newChildren;
+				}
+				node = node.children[index];
 			}
+			node.value = value;
 		}
 
-		// No cdata or comments, just do replace
-		Matcher m = REGEX_ENTITY.matcher(original);
-		while(m.find())
+		/**
+		 * Looks up an entity name.
+		 * @param text Text containing name
+		 * @param start Start of name
+		 * @param end End of name (exclusive)
+		 * @return Replacement text, or null if not an entity
+		 */
+		String find(String text, int start, int end)
 		{
-			String replacement = entityToChar.get(m.group(1));
-			if(replacement == null)
+			EntityNode node = this;
+			for(int i = start; i < end; i++)
 			{
-				throw new IllegalArgumentException("Unknown entity " + m.group(0));
+				int index = Arrays.binarySearch(node.keys, text.charAt(i));
+				if(index < 0)
+				{
+					return null;
+				}
+				node = node.children[index];
 			}
-			m.appendReplacement(out, replacement);
+			return node.value;
 		}
-		m.appendTail(out);
-		return out.toString();
 	}
 
 	/**
@@ -251,72 +489,188 @@ public class MathmlEntityFixer
 
 	/**
 	 * Converts special Unicode characters in the input text to their descriptions
-	 * for use in speech output. Also removes excess whitespace.
+	 * for use in speech output. Also removes excess whitespace. Numeric entities
+	 * in the text are treated like the characters they refer to.
 	 * @param text Input string
 	 * @return Result with special characters changed into ASCII text descriptions
 	 */
 	public String toSpeech(String text)
 	{
-		// Step 1: Change all non-ASCII characters to numeric hex entities.
-		text = getWithHexEntities(text);
-
-		// Step 2: Replace all entities with descriptions where there is one,
-		//   preferring longer sequences.
-		Matcher m = REGEX_HEX_ENTITIES.matcher(text);
-		StringBuffer out = new StringBuffer();
-		while(m.find())
+		StringBuilder out = new StringBuilder(text.length() + 16);
+		int length = text.length();
+		int[] end = new int[1];
+		for(int pos = 0; pos < length; )
 		{
-			StringBuilder replacement = new StringBuilder();
+			int codePoint = readSpeechChar(text, pos, end);
+			if(codePoint == -1)
+			{
+				// Ordinary ASCII character
+				out.append(text.charAt(pos++));
+				continue;
+			}
+			int next = end[0];
+
+			// Find the longest sequence starting here that has a description
+			String desc = null;
+			int descEnd = -1;
+			DescriptionNode node = descriptions.get(codePoint);
+			while(node != null)
+			{
+				if(node.desc != null)
+				{
+					desc = node.desc;
+					descEnd = end[0];
+				}
+				int following = end[0] < length ? readSpeechChar(text, end[0], end) : -1;
+				node = following == -1 ? null : node.get(following);
+			}
 
-			// Sequence of one or more hex entities
-			String entities = m.group(0);
+			if(desc != null)
+			{
+				out.append(desc);
+				pos = descEnd;
+			}
+			else
+			{
+				// No description so leave it as an entity
+				out.append("&#x").append(Integer.toHexString(codePoint)).append(';');
+				pos = next;
+			}
+		}
 
-			// Turn into an array; each entry will be normalised (no leading zeros,
-			// lower-case)
-			String[] hexes = entities.substring(3, entities.length()-1).split(";&#x");
+		return collapseWhitespace(out);
+	}
 
-			// Loop round handling all
-			entityLoop: for(int entity=0; entity<hexes.length; )
+	/**
+	 * Reads a character that might have a speech description: either a
+	 * non-ASCII character, or any numeric entity.
+	 * @param text Text
+	 * @param pos Position in text
+	 * @param end Set (index 0) to the position after the character
+	 * @return Code point, or -1 if there is an ordinary ASCII character at pos
+	 */
+	private static int readSpeechChar(String text, int pos, int[] end)
+	{
+		char c = text.charAt(pos);
+		if(c == '&')
+		{
+			int length = text.length();
+			int i = pos + 1;
+			if(i < length && text.charAt(i) == '#')
 			{
-				// Try max length first
-				for(int length=Math.min(longestDescSequence, hexes.length-entity);
-					length>0; length--)
+				i++;
+				int radix = 10;
+				if(i < length && (text.charAt(i) == 'x' || text.charAt(i) == 'X'))
 				{
-					// Build up string of this
-					StringBuilder combined = new StringBuilder();
-					for(int index=0; index<length; index++)
-					{
-						if(index!=0)
-						{
-							combined.append(',');
-						}
-						combined.append(hexes[entity + index]);
-					}
-
-					// Look in map
-					String desc = hexesToDesc.get(combined.toString());
-					if(desc != null)
+					radix = 16;
+					i++;
+				}
+				int digits = i, value = 0;
+				for(; i < length && value <= Character.MAX_CODE_POINT; i++)
+				{
+					char d = text.charAt(i);
+					int digit = d >= '0' && d <= '9' ? d - '0'
+						: radix == 16 && d >= 'a' && d <= 'f' ? d - 'a' + 10
+						: radix == 16 && d >= 'A' && d <= 'F' ? d - 'A' + 10 : -1;
+					if(digit == -1)
 					{
-						replacement.append(desc);
-						entity += length;
-						continue entityLoop;
+						break;
 					}
+					value = value * radix + digit;
+				}
+				if(i > digits && i < length && text.charAt(i) == ';' &&
+					value <= Character.MAX_CODE_POINT)
+				{
+					end[0] = i + 1;
+					return value;
 				}
-
-				// No match found so leave it as an entity and go onto next
-				replacement.append("&#x");
-				replacement.append(hexes[entity]);
-				replacement.append(";");
-				entity++;
 			}
+		}
+		if(c < 128)
+		{
+			return -1;
+		}
+		int codePoint = text.codePointAt(pos);
+		end[0] = pos + Character.charCount(codePoint);
+		return codePoint;
+	}
 
-			m.appendReplacement(out, replacement.toString());
+	/**
+	 * Trie of code point sequences that have speech descriptions.
+	 */
+	private static class DescriptionNode
+	{
+		/** Code points leading to child nodes (sorted), and the nodes */
+		private int[] keys = new int[0];
+		private DescriptionNode[] children = new DescriptionNode[0];
+
+		/** Description, or null if no sequence ends here */
+		private String desc;
+
+		/**
+		 * @param codePoint Code point
+		 * @return Child node, or null if none
+		 */
+		DescriptionNode get(int codePoint)
+		{
+			int index = Arrays.binarySearch(keys, codePoint);
+			return index >= 0 ? children[index] : null;
 		}
-		m.appendTail(out);
-		text = out.toString();
 
-		// Step 3: Tidy up whitespace and return
-		return text.replaceAll("\\s+", " ").trim();
+		/**
+		 * @param codePoint Code point
+		 * @return Child node, created if necessary
+		 */
+		DescriptionNode add(int codePoint)
+		{
+			int index = Arrays.binarySearch(keys, codePoint);
+			if(index >= 0)
+			{
+				return children[index];
+			}
+			index = -index - 1;
+			int[] newKeys = new int[keys.length + 1];
+			DescriptionNode[] newChildren = new DescriptionNode[keys.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			newKeys[index] = codePoint;
+			newChildren[index] = new DescriptionNode();
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1,
+				keys.length - index);
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[index];
+		}
+	}
+
+	/**
+	 * Replaces each run of whitespace with a single space, and removes it
+	 * entirely at the start and end, in one pass.
+	 * @param text Input text
+	 * @return Text with whitespace tidied
+	 */
+	static String collapseWhitespace(CharSequence text)
+	{
+		StringBuilder out = new StringBuilder(text.length());
+		boolean space = false;
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' ||
+				c == '\r')
+			{
+				space = true;
+				continue;
+			}
+			if(space && out.length() > 0)
+			{
+				out.append(' ');
+			}
+			space = false;
+			out.append(c);
+		}
+		return out.toString();
 	}
 
 	/**
@@ -28,6 +28,7 @@ import java.util.regex.*;
 import javax.servlet.ServletException;
 import javax.servlet.http.*;
 
+import uk.ac.open.lts.webmaths.imagetex.ProcessRunner;
 import uk.ac.open.lts.webmaths.mathjax.*;
 import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.Status;
 
@@ -154,6 +155,58 @@ public class StatusServlet extends HttpServlet
 			values.put("MATHJAXRECENT", out.toString());
 		}
 
+		// Fill LaTeX process stats (the runner can't be created if its servlet
+		// parameters are invalid).
+		ProcessRunner runner = null;
+		try
+		{
+			runner = ProcessRunner.get(getServletContext());
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+		StringBuilder processes = new StringBuilder("<ul>");
+		if(runner == null)
+		{
+			processes.append("<li>Not initialised</li>");
+		}
+		else
+		{
+			processes.append("<li>Running: <strong>" + runner.getRunning() + "</strong> of <strong>" +
+				runner.getProcesses() + "</strong> (waiting: <strong>" + runner.getWaiting() +
+				"</strong>)</li>");
+			for(Map.Entry<String, ProcessRunner.Stats> entry : runner.getStats().entrySet())
+			{
+				ProcessRunner.Stats stats = entry.getValue();
+				processes.append("<li>" + esc(entry.getKey()) + ": <strong>" + stats.getRuns() +
+					"</strong> runs, average <strong>" +
+					(stats.getRuns() == 0 ? 0 : stats.getRunTime() / stats.getRuns()) +
+					"</strong>ms (max " + stats.getMaxRunTime() + "ms), average wait <strong>" +
+					(stats.getRuns() == 0 ? 0 : stats.getWaitTime() / stats.getRuns()) +
+					"</strong>ms (max " + stats.getMaxWaitTime() + "ms), timeouts <strong>" +
+					stats.getTimeouts() + "</strong>, killed <strong>" + stats.getKills() +
+					"</strong></li>");
+			}
+		}
+		processes.append("</ul>");
+		values.put("LATEXPROCESSES", processes.toString());
+
+		// Fill XSL transformer pool stats.
+		StringBuilder pools = new StringBuilder("<ul>");
+		for(TransformerPool pool : TransformerPool.getPools(getServletContext()).values())
+		{
+			long borrows = pool.getBorrows();
+			pools.append("<li>" + esc(pool.getName()) + ": idle <strong>" + pool.getIdle() +
+				"</strong> of <strong>" + pool.getMaxIdle() + "</strong>, in use <strong>" +
+				pool.getInUse() + "</strong>, <strong>" + borrows + "</strong> uses, average wait <strong>" +
+				String.format("%.3f", borrows == 0 ? 0.0 : pool.getBorrowTime() / (borrows * 1000000.0)) +
+				"</strong>ms (max " + String.format("%.3f", pool.getMaxBorrowTime() / 1000000.0) +
+				"ms), created <strong>" + pool.getCreations() + "</strong> (discarded " +
+				pool.getDiscards() + " when full, " + pool.getTrims() + " when unused)</li>");
+		}
+		pools.append("</ul>");
+		values.put("XSLPOOLS", pools.toString());
+
 		template = fixTemplate(template, values);
 
 		// Write template.
@@ -20,111 +20,521 @@ package uk.ac.open.lts.webmaths;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.*;
 
+import javax.servlet.ServletContext;
 import javax.xml.transform.*;
+import javax.xml.transform.sax.*;
 import javax.xml.transform.stream.StreamSource;
 
 /**
  * Class that manages a pool of Transformer objects so we don't have to
  * construct one for every call. (Transformers are not thread-safe.)
+ * <p>
+ * Each XSL file is compiled only once into a {@link Templates} object, and
+ * there is one pool for each XSL file and TYPE parameter, shared within the
+ * servlet context. The pool does not lock: new transformers are created from
+ * the compiled XSL whenever the pool is empty, and the number kept idle is
+ * limited. Idle transformers that have not been used for a while are
+ * discarded.
  */
 public class TransformerPool
 {
-	private List<Transformer> transformerPool = new LinkedList<Transformer>();
-	private Class<?> refClass;
-	private String fileName, typeParam;
-	private MathmlEntityFixer fixer;
-	
+	/** Servlet parameter: maximum idle transformers per XSL file (optional) */
+	public final static String PARAM_XSLPOOLSIZE = "xsl-pool-size";
+
+	/** Servlet parameter: transformers to create when the pool starts (optional) */
+	public final static String PARAM_XSLPOOLPREWARM = "xsl-pool-prewarm";
+
+	/** Servlet parameter: time in ms before an unused transformer is discarded (optional) */
+	public final static String PARAM_XSLPOOLIDLE = "xsl-pool-idle";
+
+	/** Default time before unused transformers are discarded */
+	private final static int DEFAULT_IDLE = 300000;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.TransformerPool";
+
+	/** Factory for each thread, used to create handlers (factories are not thread-safe) */
+	private final static ThreadLocal<SAXTransformerFactory> SAX_FACTORY =
+		new ThreadLocal<SAXTransformerFactory>()
+	{
+		@Override
+		protected SAXTransformerFactory initialValue()
+		{
+			return (SAXTransformerFactory)TransformerFactory.newInstance();
+		}
+	};
+
+	/** Shared data used if not running in a servlet (testing only) */
+	private static Shared localShared;
+
+	private final String name;
+	private final Templates templates;
+	private final String typeParam;
+	private final int maxIdle;
+	private final long idleTime;
+
+	/** Idle transformers, most recently used first */
+	private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<Idle>();
+	private final AtomicInteger idleCount = new AtomicInteger(), inUse = new AtomicInteger();
+	private final AtomicLong borrows = new AtomicLong(), creations = new AtomicLong(),
+		discards = new AtomicLong(), trims = new AtomicLong(),
+		borrowTime = new AtomicLong(), maxBorrowTime = new AtomicLong();
+
 	/**
-	 * Constructs a transformer pool for returning instances of a certain
-	 * XSL file.
+	 * Compiled XSL and pools for a servlet context.
+	 */
+	private static class Shared
+	{
+		private final int maxIdle, prewarm;
+		private final long idleTime;
+		private final Map<String, Templates> templates = new HashMap<String, Templates>();
+		private final Map<String, TransformerPool> pools = new TreeMap<String, TransformerPool>();
+
+		private Shared(int maxIdle, int prewarm, long idleTime)
+		{
+			this.maxIdle = maxIdle;
+			this.prewarm = prewarm;
+			this.idleTime = idleTime;
+		}
+	}
+
+	/**
+	 * Transformer in the pool.
+	 */
+	private static class Idle
+	{
+		private final Transformer transformer;
+		private final long since;
+
+		private Idle(Transformer transformer, long since)
+		{
+			this.transformer = transformer;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * Gets the pool for an XSL file, creating it (and compiling the file) if
+	 * this is the first time it has been used in the servlet context. New
+	 * pools are filled with the configured number of transformers.
+	 * @param servletContext Servlet context (null if testing)
 	 * @param fixer Fixer used to replace entities in the XSL file
 	 * @param refClass Class that file is stored relative to
 	 * @param fileName Filename
-	 * @param typeParam Value of TYPE parameter in xsl
+	 * @param typeParam Value of TYPE parameter in xsl (null if none)
+	 * @return Pool
+	 * @throws IOException Error loading XSL
+	 * @throws TransformerConfigurationException Error compiling XSL
+	 * @throws IllegalArgumentException If a parameter value is invalid
 	 */
-	public TransformerPool(MathmlEntityFixer fixer,
-		Class<?> refClass, String fileName, String typeParam)
+	public static TransformerPool get(ServletContext servletContext,
+		MathmlEntityFixer fixer, Class<?> refClass, String fileName, String typeParam)
+		throws IOException, TransformerConfigurationException, IllegalArgumentException
 	{
-		this.refClass = refClass;
-		this.fileName = fileName;
-		this.typeParam = typeParam;
-		this.fixer = fixer;
+		Shared shared = getShared(servletContext);
+
+		// Compile while holding the lock so that each file is only compiled once
+		String fileKey = refClass.getName() + "/" + fileName;
+		String key = typeParam == null ? fileKey : fileKey + " (" + typeParam + ")";
+		synchronized(shared)
+		{
+			TransformerPool pool = shared.pools.get(key);
+			if(pool == null)
+			{
+				Templates templates = shared.templates.get(fileKey);
+				if(templates == null)
+				{
+					templates = compile(fixer, refClass, fileName);
+					shared.templates.put(fileKey, templates);
+				}
+				pool = new TransformerPool(key, templates, typeParam,
+					shared.maxIdle, shared.idleTime);
+				pool.prewarm(shared.prewarm);
+				shared.pools.put(key, pool);
+			}
+			return pool;
+		}
 	}
-	
+
+	/**
+	 * Gets all the pools that have been created.
+	 * @param servletContext Servlet context (null if testing)
+	 * @return Copy of map from pool name (reference class, XSL file and type) to pool
+	 */
+	public static Map<String, TransformerPool> getPools(ServletContext servletContext)
+	{
+		Shared shared = getShared(servletContext);
+		synchronized(shared)
+		{
+			return new TreeMap<String, TransformerPool>(shared.pools);
+		}
+	}
+
+	/**
+	 * Gets the shared data. It is stored in the servlet context if supplied, or
+	 * (for testing only) in a local static.
+	 * @param servletContext Servlet context (null if testing)
+	 * @return Shared data
+	 * @throws IllegalArgumentException If a parameter value is invalid
+	 */
+	private static Shared getShared(ServletContext servletContext)
+		throws IllegalArgumentException
+	{
+		if(servletContext != null)
+		{
+			synchronized(servletContext)
+			{
+				Shared shared = (Shared)servletContext.getAttribute(ATTRIBUTE_NAME);
+				if(shared == null)
+				{
+					shared = new Shared(
+						getIntParam(servletContext, PARAM_XSLPOOLSIZE,
+							Runtime.getRuntime().availableProcessors(), 0),
+						getIntParam(servletContext, PARAM_XSLPOOLPREWARM, 1, 0),
+						getIntParam(servletContext, PARAM_XSLPOOLIDLE, DEFAULT_IDLE, 0));
+					servletContext.setAttribute(ATTRIBUTE_NAME, shared);
+				}
+				return shared;
+			}
+		}
+		else
+		{
+			synchronized(TransformerPool.class)
+			{
+				if(localShared == null)
+				{
+					localShared = new Shared(
+						Runtime.getRuntime().availableProcessors(), 0, DEFAULT_IDLE);
+				}
+				return localShared;
+			}
+		}
+	}
+
+	/**
+	 * Gets an integer servlet parameter.
+	 * @param servletContext Servlet context
+	 * @param name Parameter name
+	 * @param defaultValue Value if not set
+	 * @param minimum Minimum allowed value
+	 * @return Value
+	 * @throws IllegalArgumentException If the value is not an integer or too low
+	 */
+	private static int getIntParam(ServletContext servletContext, String name,
+		int defaultValue, int minimum) throws IllegalArgumentException
+	{
+		String value = servletContext.getInitParameter(name);
+		if(value == null)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int result = Integer.parseInt(value);
+			if(result >= minimum)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Incorrect value of " + name +
+			" (must be integer, at least " + minimum + ")");
+	}
+
 	/**
 	 * Constructs a transformer pool for returning instances of a certain
-	 * XSL file.
+	 * XSL file, outside a servlet (testing only).
 	 * @param fixer Fixer used to replace entities in the XSL file
 	 * @param refClass Class that file is stored relative to
 	 * @param fileName Filename
+	 * @throws IOException Error loading XSL
+	 * @throws TransformerConfigurationException Error compiling XSL
 	 */
 	public TransformerPool(MathmlEntityFixer fixer,
 		Class<?> refClass, String fileName)
+		throws IOException, TransformerConfigurationException
+	{
+		this(fileName, compile(fixer, refClass, fileName), null,
+			Runtime.getRuntime().availableProcessors(), DEFAULT_IDLE);
+	}
+
+	/**
+	 * @param name Name for status display
+	 * @param templates Compiled XSL
+	 * @param typeParam Value of TYPE parameter in xsl (null if none)
+	 * @param maxIdle Maximum number of idle transformers to keep
+	 * @param idleTime Time (ms) after which an unused transformer is discarded
+	 *   (0 = never)
+	 */
+	TransformerPool(String name, Templates templates, String typeParam,
+		int maxIdle, long idleTime)
+	{
+		this.name = name;
+		this.templates = templates;
+		this.typeParam = typeParam;
+		this.maxIdle = maxIdle;
+		this.idleTime = idleTime;
+	}
+
+	/**
+	 * Fills the pool with new transformers.
+	 * @param count Number of transformers to create (limited to pool size)
+	 * @throws TransformerConfigurationException Error creating transformer
+	 */
+	void prewarm(int count) throws TransformerConfigurationException
 	{
-		this(fixer, refClass, fileName, null);
+		long now = System.currentTimeMillis();
+		for(int i = Math.min(count, maxIdle) - idleCount.get(); i > 0; i--)
+		{
+			Transformer t = templates.newTransformer();
+			creations.incrementAndGet();
+			idleCount.incrementAndGet();
+			idle.addLast(new Idle(t, now));
+		}
 	}
-	
+
+	/**
+	 * Loads and compiles an XSL file.
+	 * @param fixer Fixer used to replace entities in the XSL file
+	 * @param refClass Class that file is stored relative to
+	 * @param fileName Filename
+	 * @return Compiled XSL
+	 * @throws IOException Error loading XSL
+	 * @throws TransformerConfigurationException Error compiling XSL
+	 */
+	private static Templates compile(MathmlEntityFixer fixer, Class<?> refClass,
+		String fileName) throws IOException, TransformerConfigurationException
+	{
+		// Load to string
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			refClass.getResourceAsStream(fileName), "UTF-8"));
+		StringWriter writer = new StringWriter();
+		while(true)
+		{
+			String line = reader.readLine();
+			if(line == null)
+			{
+				break;
+			}
+			writer.write(line);
+			writer.write('\n');
+		}
+		reader.close();
+
+		// Get string and fix entities
+		String xml = fixer.fix(writer.toString());
+
+		// Compile
+		return TransformerFactory.newInstance().newTemplates(
+			new StreamSource(new StringReader(xml)));
+	}
+
 	/**
 	 * Reserves a Transformer object. After this returns you must call 
 	 * {@link #release(Transformer)}.
 	 * @return A Transformer object that you can use
-	 * @throws IOException Any error
 	 * @throws TransformerConfigurationException Error with transformer
 	 */
-	public synchronized Transformer reserve() throws IOException,
-		TransformerConfigurationException
+	public Transformer reserve() throws TransformerConfigurationException
 	{
-		if (transformerPool.isEmpty())
+		long start = System.nanoTime();
+		Transformer t;
+		Idle entry = idle.pollFirst();
+		if(entry == null)
 		{
-			// Load to string
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-				refClass.getResourceAsStream(fileName), "UTF-8"));
-			StringWriter writer = new StringWriter();
-			while(true)
-			{
-				String line = reader.readLine();
-				if(line == null)
-				{
-					break;
-				}
-				writer.write(line);
-				writer.write('\n');
-			}
-			reader.close();
-
-			// Get string and fix entities
-			String xml = fixer.fix(writer.toString());
-			
-			// Create transformer
-			Transformer t = TransformerFactory.newInstance().newTransformer(
-				new StreamSource(new StringReader(xml)));
-			if(typeParam != null)
-			{
-				t.setParameter("TYPE", typeParam);
-			}
-			return t;
+			t = templates.newTransformer();
+			creations.incrementAndGet();
 		}
 		else
 		{
-			Transformer t = transformerPool.remove(0);
+			idleCount.decrementAndGet();
+			t = entry.transformer;
 			// This reset does not seem to actually be needed, but may be a
 			// good idea anyway.
 			t.reset();
-			if(typeParam != null)
+		}
+		if(typeParam != null)
+		{
+			t.setParameter("TYPE", typeParam);
+		}
+		inUse.incrementAndGet();
+		borrows.incrementAndGet();
+		addBorrowTime(System.nanoTime() - start);
+		return t;
+	}
+
+	/**
+	 * Creates a TransformerHandler, for use as one stage of a SAX pipeline.
+	 * These are not kept in the pool because they can only be used once, but
+	 * they are cheap to create from the compiled XSL.
+	 * @return New handler
+	 * @throws TransformerConfigurationException Error with transformer
+	 */
+	public TransformerHandler newTransformerHandler()
+		throws TransformerConfigurationException
+	{
+		long start = System.nanoTime();
+		TransformerHandler handler = SAX_FACTORY.get().newTransformerHandler(templates);
+		if(typeParam != null)
+		{
+			handler.getTransformer().setParameter("TYPE", typeParam);
+		}
+		creations.incrementAndGet();
+		borrows.incrementAndGet();
+		addBorrowTime(System.nanoTime() - start);
+		return handler;
+	}
+
+	/**
+	 * Updates borrow time stats.
+	 * @param time Time taken (ns)
+	 */
+	private void addBorrowTime(long time)
+	{
+		borrowTime.addAndGet(time);
+		while(true)
+		{
+			long max = maxBorrowTime.get();
+			if(time <= max || maxBorrowTime.compareAndSet(max, time))
 			{
-				t.setParameter("TYPE", typeParam);
+				break;
 			}
-			return t;
 		}
 	}
-	
+
 	/**
-	 * Releases the transformer object, adding it back to the queue.
+	 * Releases the transformer object, adding it back to the pool unless
+	 * the pool is full.
 	 * @param t Transformer to release
 	 */
-	public synchronized void release(Transformer t)
+	public void release(Transformer t)
+	{
+		inUse.decrementAndGet();
+		long now = System.currentTimeMillis();
+		if(idleCount.incrementAndGet() > maxIdle)
+		{
+			idleCount.decrementAndGet();
+			discards.incrementAndGet();
+		}
+		else
+		{
+			idle.addFirst(new Idle(t, now));
+		}
+		trim(now);
+	}
+
+	/**
+	 * Discards transformers at the end of the pool that have not been used
+	 * for longer than the idle time.
+	 * @param now Current time
+	 */
+	private void trim(long now)
+	{
+		if(idleTime == 0)
+		{
+			return;
+		}
+		while(true)
+		{
+			Idle last = idle.peekLast();
+			if(last == null || now - last.since < idleTime)
+			{
+				return;
+			}
+			if(idle.removeLastOccurrence(last))
+			{
+				idleCount.decrementAndGet();
+				trims.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return Pool name (XSL file and type)
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return Maximum number of idle transformers kept
+	 */
+	public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+
+	/**
+	 * @return Number of idle transformers now
+	 */
+	public int getIdle()
+	{
+		trim(System.currentTimeMillis());
+		return idleCount.get();
+	}
+
+	/**
+	 * @return Number of transformers reserved now
+	 */
+	public int getInUse()
+	{
+		return inUse.get();
+	}
+
+	/**
+	 * @return Number of calls to {@link #reserve()} and
+	 *   {@link #newTransformerHandler()}
+	 */
+	public long getBorrows()
+	{
+		return borrows.get();
+	}
+
+	/**
+	 * @return Number of transformers created
+	 */
+	public long getCreations()
+	{
+		return creations.get();
+	}
+
+	/**
+	 * @return Number of transformers discarded on release because the pool
+	 *   was full
+	 */
+	public long getDiscards()
+	{
+		return discards.get();
+	}
+
+	/**
+	 * @return Number of transformers discarded because they were not used
+	 */
+	public long getTrims()
+	{
+		return trims.get();
+	}
+
+	/**
+	 * @return Total time spent in {@link #reserve()} and
+	 *   {@link #newTransformerHandler()} (ns)
+	 */
+	public long getBorrowTime()
+	{
+		return borrowTime.get();
+	}
+
+	/**
+	 * @return Longest single call to {@link #reserve()} or
+	 *   {@link #newTransformerHandler()} (ns)
+	 */
+	public long getMaxBorrowTime()
 	{
-		transformerPool.add(t);
+		return maxBorrowTime.get();
 	}
 }
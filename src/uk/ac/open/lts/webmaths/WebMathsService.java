@@ -19,7 +19,7 @@ Copyright 2011 The Open University
 package uk.ac.open.lts.webmaths;
 
 import java.io.*;
-import java.util.regex.Pattern;
+import java.util.regex.*;
 
 import javax.annotation.Resource;
 import javax.servlet.ServletContext;
@@ -54,14 +54,7 @@ public class WebMathsService
 	 */
 	public Document parseMathml(String xml) throws Exception
 	{
-		ServletContext servletContext = null;
-		if(context != null)
-		{
-			servletContext = (ServletContext)context.getMessageContext().get(
-				MessageContext.SERVLET_CONTEXT);
-		}
-		return parseMathml(servletContext, xml);
-
+		return parseMathml(getServletContext(), xml);
 	}
 
 	/**
@@ -74,12 +67,22 @@ public class WebMathsService
 	public static Document parseMathml(ServletContext context, String xml)
 		throws IOException
 	{
-		// Get rid of doctype if supplied.
-		xml = REGEX_DOCTYPE.matcher(xml).replaceFirst("");
-		// Fix entities.
-		xml = MathmlEntityFixer.getFixer(context).fix(xml);
-		// Parse.
-		return parseXml(context, xml);
+		// Skip doctype if supplied.
+		Matcher doctype = REGEX_DOCTYPE.matcher(xml);
+		int start = doctype.find() ? doctype.end() : 0;
+
+		// Parse, fixing entities as the parser reads.
+		MathmlEntityFixer fixer = MathmlEntityFixer.getFixer(context);
+		try
+		{
+			return parseXml(new InputSource(fixer.getReader(xml, start)));
+		}
+		catch(IOException e)
+		{
+			// Unknown entities are reported in preference to other errors
+			fixer.fix(xml.substring(start));
+			throw e;
+		}
 	}
 
 	/**
@@ -92,14 +95,24 @@ public class WebMathsService
 	public static Document parseXml(ServletContext context, String xml)
 		throws IOException
 	{
-  	// Parse final string
+		return parseXml(new InputSource(new StringReader(xml)));
+	}
+
+	/**
+	 * Parses an XML document
+	 * @param source Input source
+	 * @return XML document
+	 * @throws IOException Any error
+	 */
+	private static Document parseXml(InputSource source) throws IOException
+	{
 		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 		factory.setNamespaceAware(true);
 		DocumentBuilder builder;
 		try
 		{
 			builder = factory.newDocumentBuilder();
-			return builder.parse(new InputSource(new StringReader(xml)));
+			return builder.parse(source);
 		}
 		catch(ParserConfigurationException e)
 		{
@@ -116,12 +129,19 @@ public class WebMathsService
 	 */
 	protected MathmlEntityFixer getFixer()
 	{
-		ServletContext servletContext = null;
-		if(context != null)
+		return MathmlEntityFixer.getFixer(getServletContext());
+	}
+
+	/**
+	 * @return Servlet context, or null if not running in a servlet (testing)
+	 */
+	protected ServletContext getServletContext()
+	{
+		if(context == null)
 		{
-			servletContext = (ServletContext)context.getMessageContext().get(
-				MessageContext.SERVLET_CONTEXT);
+			return null;
 		}
-		return MathmlEntityFixer.getFixer(servletContext);
+		return (ServletContext)context.getMessageContext().get(
+			MessageContext.SERVLET_CONTEXT);
 	}
 }
\ No newline at end of file
@@ -2,7 +2,10 @@ package uk.ac.open.lts.webmaths;
 
 import javax.servlet.*;
 
+import uk.ac.open.lts.webmaths.image.JEuclidRenderer;
+import uk.ac.open.lts.webmaths.imagetex.*;
 import uk.ac.open.lts.webmaths.mathjax.MathJax;
+import uk.ac.open.lts.webmaths.tex.MathmlToLatex;
 
 /**
  * Receives events when the servlet context is destroyed.
@@ -13,10 +16,46 @@ public class WebMathsServletContextListener implements ServletContextListener
 	public void contextDestroyed(ServletContextEvent e)
 	{
 		MathJax.cleanup(e.getServletContext());
+		JEuclidRenderer.cleanup(e.getServletContext());
+		LatexWorkerPool.cleanup(e.getServletContext());
+		TempFolderPool.cleanup(e.getServletContext());
 	}
 
 	@Override
 	public void contextInitialized(ServletContextEvent e)
 	{
+		// Build the LaTeX format (if needed) in the background, so that it is
+		// ready before the first LaTeX request if possible.
+		final ServletContext servletContext = e.getServletContext();
+		Thread formatThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				WebMathsImageTex.getLatexFormat(servletContext);
+			}
+		}, "LaTeX format");
+		formatThread.setDaemon(true);
+		formatThread.start();
+
+		// Also compile the XSL and fill the transformer pools.
+		Thread xslThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					MathmlToLatex.prepareXsl(servletContext);
+				}
+				catch(Exception e)
+				{
+					// The same error will happen again on the first request
+					e.printStackTrace();
+				}
+			}
+		}, "XSL pools");
+		xslThread.setDaemon(true);
+		xslThread.start();
 	}
 }
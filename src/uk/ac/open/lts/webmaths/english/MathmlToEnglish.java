@@ -0,0 +1,1071 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.english;
+
+import static uk.ac.open.lts.webmaths.MapUtil.makeMap;
+import static uk.ac.open.lts.webmaths.WebMathsService.NS;
+
+import java.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Converts MathML to English text. This implements the rules that used to be
+ * in english.main.xsl (run after normalise.xsl), working directly on the
+ * parsed document instead of using XSL and intermediate documents.
+ * <p>
+ * The parts of the normalise step that make a difference to the English are
+ * applied as the document is visited: mfenced is expanded, msubsup becomes
+ * msub inside msup, and missing mtr/mtd elements are assumed inside tables.
+ * <p>
+ * The result still contains entities and excess whitespace, and needs to go
+ * through {@link uk.ac.open.lts.webmaths.MathmlEntityFixer#toSpeech(String)}.
+ */
+public class MathmlToEnglish
+{
+	/** Tables with more columns than this are rejected */
+	private final static int MAX_COLUMNS = 5000;
+
+	/** MathML elements that have their own rules */
+	private enum Type
+	{
+		MATH, ANNOTATION, MGLYPH, MS, MSPACE, MO, MI, MN, MTEXT, MFRAC, MSQRT,
+		MROOT, MERROR, MPHANTOM, MENCLOSE, MFENCED, MSUB, MSUP, MSUBSUP, MUNDER,
+		MOVER, MUNDEROVER, MMULTISCRIPTS, MTABLE, MTR, MLABELEDTR, MTD;
+	}
+
+	private final static Map<String, Type> TYPES = new HashMap<String, Type>();
+	static
+	{
+		for(Type type : Type.values())
+		{
+			TYPES.put(type.name().toLowerCase(), type);
+		}
+		TYPES.put("annotation-xml", Type.ANNOTATION);
+	}
+
+	/** Elements that get an mrow added (by normalise.xsl) unless one child */
+	private final static Set<String> IMPLIED_MROW = new HashSet<String>(
+		Arrays.asList("msqrt", "mstyle", "merror", "mpadded", "mphantom",
+			"menclose", "mtd", "math"));
+
+	/** Text for mathvariant values that aren't just written out as-is */
+	private final static Map<String, String> VARIANTS = makeMap(new String[]
+	{
+		"bold-fraktur", " bold fraktur ",
+		"bold-script", " bold script ",
+		"bold-sans-serif", " bold sans-serif ",
+		"sans-serif-italic", " italic sans-serif ",
+		"sans-serif-bold-italic", " bold italic sans-serif ",
+	});
+
+	/** Menclose sides, as bits in the index to {@link #MENCLOSE_SIDES} */
+	private final static int LEFT = 1, RIGHT = 2, TOP = 4, BOTTOM = 8;
+
+	/** Text for each combination of menclose sides */
+	private final static String[] MENCLOSE_SIDES = new String[16];
+	static
+	{
+		MENCLOSE_SIDES[LEFT | RIGHT | TOP | BOTTOM] = "box around ";
+		MENCLOSE_SIDES[LEFT | RIGHT | TOP] = "line around left, right and top ";
+		MENCLOSE_SIDES[LEFT | RIGHT | BOTTOM] = "line around left, right and bottom ";
+		MENCLOSE_SIDES[LEFT | TOP | BOTTOM] = "line around left, top and bottom ";
+		MENCLOSE_SIDES[RIGHT | TOP | BOTTOM] = "line around right, top and bottom ";
+		MENCLOSE_SIDES[LEFT | TOP] = "line around left and top ";
+		MENCLOSE_SIDES[LEFT | BOTTOM] = "line around left and bottom ";
+		MENCLOSE_SIDES[RIGHT | TOP] = "line around right and top ";
+		MENCLOSE_SIDES[RIGHT | BOTTOM] = "line around right and bottom ";
+		MENCLOSE_SIDES[LEFT | RIGHT] = "vertical lines to left and right ";
+		MENCLOSE_SIDES[TOP | BOTTOM] = "horizontal lines to top and bottom ";
+		MENCLOSE_SIDES[LEFT] = "line to left ";
+		MENCLOSE_SIDES[RIGHT] = "line to right ";
+		MENCLOSE_SIDES[TOP] = "line over ";
+		MENCLOSE_SIDES[BOTTOM] = "line under ";
+	}
+
+	/** Sides included in each menclose notation */
+	private final static Map<String, Integer> MENCLOSE_SIDE_NOTATIONS =
+		new HashMap<String, Integer>();
+	static
+	{
+		MENCLOSE_SIDE_NOTATIONS.put("left", LEFT);
+		MENCLOSE_SIDE_NOTATIONS.put("right", RIGHT);
+		MENCLOSE_SIDE_NOTATIONS.put("top", TOP);
+		MENCLOSE_SIDE_NOTATIONS.put("bottom", BOTTOM);
+		MENCLOSE_SIDE_NOTATIONS.put("box", LEFT | RIGHT | TOP | BOTTOM);
+		MENCLOSE_SIDE_NOTATIONS.put("actuarial", RIGHT | TOP);
+	}
+
+	/** Other menclose notations and their text, in output order */
+	private final static String[] MENCLOSE_NOTATIONS =
+	{
+		"longdiv", "long division sign around ",
+		"radical", "square root sign around ",
+		"roundedbox", "rounded box around ",
+		"circle", "circle around ",
+		"updiagonalstrike", "upward diagonal strike through ",
+		"downdiagonalstrike", "downward diagonal strike through ",
+		"verticalstrike", "vertical strike through ",
+		"horizontalstrike", "horizontal strike through ",
+	};
+
+	/**
+	 * Converts a MathML document to English.
+	 * @param mathml MathML document
+	 * @return English text (not yet tidied; see class comment)
+	 * @throws IllegalArgumentException If the document can't be converted
+	 */
+	public String convert(Document mathml) throws IllegalArgumentException
+	{
+		Element root = mathml.getDocumentElement();
+		if(getType(root) != Type.MATH)
+		{
+			throw new IllegalArgumentException(
+				"Root element must be <math> in the MathML namespace");
+		}
+		StringBuilder out = new StringBuilder();
+		convertChildren(root, out);
+		return out.toString();
+	}
+
+	/**
+	 * @param node Node
+	 * @return MathML element type, or null if not a MathML element with its
+	 *   own rules
+	 */
+	private static Type getType(Node node)
+	{
+		if(node == null || node.getNodeType() != Node.ELEMENT_NODE ||
+			!NS.equals(node.getNamespaceURI()))
+		{
+			return null;
+		}
+		return TYPES.get(node.getLocalName());
+	}
+
+	/**
+	 * Checks whether an element is inside a table where a mtr or mtd is missing
+	 * (normalise.xsl adds one). These are copied as-is, so mfenced and msubsup
+	 * are not expanded.
+	 * @param element Element
+	 * @return True if the element is inside an assumed mtr or mtd
+	 */
+	private static boolean isInAssumedCell(Element element)
+	{
+		Node parent = element.getParentNode();
+		Type parentType = getType(parent), type = getType(element);
+		if(parentType == Type.MTABLE)
+		{
+			return type != Type.MTR && type != Type.MLABELEDTR;
+		}
+		if(parentType == Type.MTR)
+		{
+			return type != Type.MTD;
+		}
+		if(parentType == Type.MLABELEDTR)
+		{
+			// The first child is the label
+			return type != Type.MTD && getChild(parent, 1) != element;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether an element was replaced by normalise.xsl (which loses its
+	 * attributes).
+	 * @param element Element
+	 * @return True if element is an expanded mfenced or msubsup
+	 */
+	private static boolean isExpanded(Element element)
+	{
+		Type type = getType(element);
+		return (type == Type.MFENCED || type == Type.MSUBSUP) &&
+			!isInAssumedCell(element);
+	}
+
+	/**
+	 * @param parent Parent node
+	 * @param index Index (1-based)
+	 * @return The index'th child element, or null if none
+	 */
+	private static Element getChild(Node parent, int index)
+	{
+		for(Node child = parent.getFirstChild(); child != null;
+			child = child.getNextSibling())
+		{
+			if(child.getNodeType() == Node.ELEMENT_NODE && --index == 0)
+			{
+				return (Element)child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param parent Parent node
+	 * @return All child elements
+	 */
+	private static List<Element> getChildren(Node parent)
+	{
+		List<Element> result = new ArrayList<Element>();
+		for(Node child = parent.getFirstChild(); child != null;
+			child = child.getNextSibling())
+		{
+			if(child.getNodeType() == Node.ELEMENT_NODE)
+			{
+				result.add((Element)child);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Converts all children of a node.
+	 * @param parent Parent node
+	 * @param out Output buffer
+	 */
+	private void convertChildren(Node parent, StringBuilder out)
+	{
+		for(Node child = parent.getFirstChild(); child != null;
+			child = child.getNextSibling())
+		{
+			convert(child, out);
+		}
+	}
+
+	/**
+	 * Converts a node.
+	 * @param node Node (may be null, in which case nothing happens)
+	 * @param out Output buffer
+	 */
+	private void convert(Node node, StringBuilder out)
+	{
+		if(node == null)
+		{
+			return;
+		}
+		switch(node.getNodeType())
+		{
+		case Node.TEXT_NODE:
+		case Node.CDATA_SECTION_NODE:
+			out.append(node.getNodeValue());
+			return;
+		case Node.ELEMENT_NODE:
+			break;
+		case Node.ENTITY_REFERENCE_NODE:
+			convertChildren(node, out);
+			return;
+		default:
+			return;
+		}
+
+		Element e = (Element)node;
+		Type type = getType(e);
+		if(type == null)
+		{
+			// Unknown elements (and mrow, mstyle, etc.) just output their content
+			convertChildren(e, out);
+			return;
+		}
+		switch(type)
+		{
+		case ANNOTATION:
+		case MPHANTOM:
+			break;
+
+		case MGLYPH:
+			convertVariant(e, out);
+			out.append(' ').append(e.getAttribute("alt")).append(' ');
+			break;
+
+		case MS:
+			out.append('"');
+			convertChildren(e, out);
+			out.append('"');
+			break;
+
+		case MSPACE:
+			out.append(' ');
+			break;
+
+		case MO:
+		case MI:
+			convertVariant(e, out);
+			out.append(' ');
+			appendText(e, out);
+			out.append(' ');
+			break;
+
+		case MN:
+		case MTEXT:
+			convertVariant(e, out);
+			appendText(e, out);
+			break;
+
+		case MFRAC:
+			out.append(" ( ");
+			convert(getChild(e, 1), out);
+			out.append(" over ");
+			convert(getChild(e, 2), out);
+			out.append(" ) ");
+			break;
+
+		case MSQRT:
+			out.append(" square root of ");
+			convertChildren(e, out);
+			break;
+
+		case MROOT:
+			convertRoot(e, out);
+			break;
+
+		case MERROR:
+			out.append(" ERROR [ ");
+			convertChildren(e, out);
+			out.append(" ] ");
+			break;
+
+		case MENCLOSE:
+			convertEnclose(e.getAttribute("notation"), out);
+			convertChildren(e, out);
+			break;
+
+		case MFENCED:
+			if(isInAssumedCell(e))
+			{
+				convertChildren(e, out);
+			}
+			else
+			{
+				convertFenced(e, out, false);
+			}
+			break;
+
+		case MSUB:
+			convert(getChild(e, 1), out);
+			out.append(" subscript ");
+			convert(getChild(e, 2), out);
+			break;
+
+		case MSUP:
+			convert(getChild(e, 1), out);
+			convertPower(getChild(e, 2), out);
+			break;
+
+		case MSUBSUP:
+			convertSubSup(e, out);
+			break;
+
+		case MUNDER:
+			convert(getChild(e, 2), out);
+			out.append(" below ");
+			convert(getChild(e, 1), out);
+			break;
+
+		case MOVER:
+			convertOver(e, out);
+			break;
+
+		case MUNDEROVER:
+			convert(getChild(e, 1), out);
+			if(getType(getChild(e, 1)) == Type.MO)
+			{
+				out.append(" from ");
+				convert(getChild(e, 2), out);
+				out.append(" to ");
+				convert(getChild(e, 3), out);
+			}
+			else
+			{
+				out.append(" (");
+				convert(getChild(e, 2), out);
+				out.append(" below, ");
+				convert(getChild(e, 3), out);
+				out.append(" above) ");
+			}
+			break;
+
+		case MMULTISCRIPTS:
+			// Note: This includes the base again and doesn't treat prescripts
+			// specially, as the XSL did
+			convert(getChild(e, 1), out);
+			out.append(" ( ");
+			int index = 0;
+			for(Element child : getChildren(e))
+			{
+				out.append((index++ % 2) == 1 ? " subscript " : " superscript ");
+				convert(child, out);
+			}
+			out.append(" } ");
+			break;
+
+		case MTABLE:
+			convertTable(e, out);
+			break;
+
+		default:
+			convertChildren(e, out);
+			break;
+		}
+	}
+
+	/**
+	 * Outputs the math variant (font style) if relevant.
+	 * @param e Token element
+	 * @param out Output buffer
+	 */
+	private void convertVariant(Element e, StringBuilder out)
+	{
+		// Work out current mathvariant
+		String variant = "";
+		for(Node n = e; n != null && n.getNodeType() == Node.ELEMENT_NODE;
+			n = n.getParentNode())
+		{
+			Element ancestor = (Element)n;
+			if(ancestor.hasAttribute("mathvariant") && !isExpanded(ancestor))
+			{
+				variant = ancestor.getAttribute("mathvariant");
+				break;
+			}
+		}
+		boolean defaultItalic = getType(e) == Type.MI &&
+			codePointLength(normalizeSpace(getText(e))) == 1;
+
+		// Render variant, except don't express italic for mi because they're
+		// italic by default
+		if(variant.equals("bold") || (defaultItalic && variant.equals("bold-italic")))
+		{
+			out.append(" bold ");
+		}
+		else if(variant.equals("italic") || variant.equals("bold-italic"))
+		{
+			if(!defaultItalic)
+			{
+				out.append(variant.equals("italic") ? " italic " : " bold italic ");
+			}
+		}
+		else if(!normalizeSpace(variant).isEmpty() && !variant.equals("normal"))
+		{
+			String text = VARIANTS.get(variant);
+			out.append(text != null ? text : " " + variant + " ");
+		}
+	}
+
+	/**
+	 * Outputs mroot.
+	 * @param e Element
+	 * @param out Output buffer
+	 */
+	private void convertRoot(Element e, StringBuilder out)
+	{
+		Element index = getChild(e, 2);
+		if(getType(index) == Type.MN)
+		{
+			String number = getText(index), normalised = normalizeSpace(number);
+			if(normalised.equals("2"))
+			{
+				out.append(" square root of ");
+			}
+			else if(normalised.equals("3"))
+			{
+				out.append(" cube root of ");
+			}
+			else
+			{
+				out.append(number).append("th root of ");
+			}
+		}
+		else
+		{
+			convert(index, out);
+			out.append(" -th root of ");
+		}
+		convert(getChild(e, 1), out);
+	}
+
+	/**
+	 * Outputs text based on the notation attribute of menclose. Supports all
+	 * values listed in the MathML 2 spec.
+	 * @param notation Notation attribute
+	 * @param out Output buffer
+	 */
+	private static void convertEnclose(String notation, StringBuilder out)
+	{
+		Set<String> notations = new HashSet<String>();
+		int sides = 0;
+		for(String value : splitSpace(notation))
+		{
+			notations.add(value);
+			Integer side = MENCLOSE_SIDE_NOTATIONS.get(value);
+			if(side != null)
+			{
+				sides |= side;
+			}
+		}
+		if(MENCLOSE_SIDES[sides] != null)
+		{
+			out.append(MENCLOSE_SIDES[sides]);
+		}
+		for(int i = 0; i < MENCLOSE_NOTATIONS.length; i += 2)
+		{
+			if(notations.contains(MENCLOSE_NOTATIONS[i]))
+			{
+				out.append(MENCLOSE_NOTATIONS[i + 1]);
+			}
+		}
+	}
+
+	/**
+	 * Outputs mfenced, expanded as in normalise.xsl. The brackets and
+	 * separators are plain text, not operators.
+	 * @param e Element
+	 * @param out Output buffer
+	 * @param textOnly True to output only the text content of children (as
+	 *   for string value), false to convert them
+	 */
+	private void convertFenced(Element e, StringBuilder out, boolean textOnly)
+	{
+		out.append(e.hasAttribute("open") ? e.getAttribute("open") : "(");
+		List<Element> children = getChildren(e);
+		String separators = removeSpace(e.hasAttribute("separators")
+			? e.getAttribute("separators") : ",");
+		int separatorCount = codePointLength(separators);
+		for(int i = 0; i < children.size(); i++)
+		{
+			if(i > 0 && separatorCount > 0)
+			{
+				int offset = separators.offsetByCodePoints(0,
+					Math.min(i, separatorCount) - 1);
+				out.appendCodePoint(separators.codePointAt(offset));
+			}
+			if(textOnly)
+			{
+				appendText(children.get(i), out);
+			}
+			else
+			{
+				convert(children.get(i), out);
+			}
+		}
+		out.append(e.hasAttribute("close") ? e.getAttribute("close") : ")");
+	}
+
+	/**
+	 * Outputs the exponent part of msup.
+	 * @param exponent Exponent element (may be null)
+	 * @param out Output buffer
+	 */
+	private void convertPower(Element exponent, StringBuilder out)
+	{
+		if(getType(exponent) == Type.MN)
+		{
+			String normalised = normalizeSpace(getText(exponent));
+			if(normalised.equals("2"))
+			{
+				out.append(" squared ");
+				return;
+			}
+			if(normalised.equals("3"))
+			{
+				out.append(" cubed ");
+				return;
+			}
+		}
+		out.append(" to the power ");
+		convert(exponent, out);
+	}
+
+	/**
+	 * Outputs msubsup.
+	 * @param e Element
+	 * @param out Output buffer
+	 */
+	private void convertSubSup(Element e, StringBuilder out)
+	{
+		Element base = getChild(e, 1);
+		convert(base, out);
+		if(!isInAssumedCell(e))
+		{
+			// Treated as msub inside msup, so that the usual 'squared' etc work
+			out.append(" subscript ");
+			convert(getChild(e, 2), out);
+			convertPower(getChild(e, 3), out);
+		}
+		else if(base != null && hasOperatorChild(base))
+		{
+			// Limits on integral etc.
+			out.append(" from ");
+			convert(getChild(e, 2), out);
+			out.append(" to ");
+			convert(getChild(e, 3), out);
+		}
+		else
+		{
+			out.append(" subscript ");
+			convert(getChild(e, 2), out);
+			out.append(" superscript ");
+			convert(getChild(e, 3), out);
+		}
+	}
+
+	/**
+	 * Outputs mover, with special cases for single-character accents.
+	 * @param e Element
+	 * @param out Output buffer
+	 */
+	private void convertOver(Element e, StringBuilder out)
+	{
+		Element base = getChild(e, 1), over = getChild(e, 2);
+		if(base != null && getType(over) == Type.MO)
+		{
+			String baseText = normalizeSpace(getText(base));
+			if(codePointLength(baseText) == 1)
+			{
+				String accent = getText(over), suffix = null;
+				if(accent.equals("~"))
+				{
+					suffix = "-tilde";
+				}
+				else if(e.getAttribute("accent").equals("true"))
+				{
+					if(accent.equals("^"))
+					{
+						suffix = "-hat";
+					}
+					else if(accent.equals("\u00af"))
+					{
+						suffix = "-bar";
+					}
+					else if(accent.equals("\u00a8"))
+					{
+						suffix = "-double-dot";
+					}
+				}
+				if(suffix != null)
+				{
+					out.append(' ').append(baseText).append(suffix).append(' ');
+					return;
+				}
+			}
+		}
+		out.append(' ');
+		convert(over, out);
+		out.append(" above ");
+		convert(base, out);
+	}
+
+	/**
+	 * Cell in a table.
+	 */
+	private static class Cell
+	{
+		/** Either an mtd, or an element that should be inside an mtd */
+		private final Element element;
+		/** 1-based column number */
+		private int column;
+
+		private Cell(Element element)
+		{
+			this.element = element;
+		}
+
+		private boolean isAssumed()
+		{
+			return getType(element) != Type.MTD;
+		}
+	}
+
+	/**
+	 * Row in a table.
+	 */
+	private static class Row
+	{
+		private final boolean labeled;
+		private Element label;
+		private final List<Cell> cells = new ArrayList<Cell>();
+
+		private Row(boolean labeled)
+		{
+			this.labeled = labeled;
+		}
+	}
+
+	/**
+	 * Outputs mtable.
+	 * @param mtable Table element
+	 * @param out Output buffer
+	 */
+	private void convertTable(Element mtable, StringBuilder out)
+	{
+		// Get rows and cells, adding any mtr or mtd that is missing
+		List<Row> rows = new ArrayList<Row>();
+		for(Element child : getChildren(mtable))
+		{
+			Type type = getType(child);
+			if(type == Type.MTR || type == Type.MLABELEDTR)
+			{
+				Row row = new Row(type == Type.MLABELEDTR);
+				for(Element grandchild : getChildren(child))
+				{
+					if(row.labeled && row.label == null)
+					{
+						row.label = grandchild;
+					}
+					else
+					{
+						row.cells.add(new Cell(grandchild));
+					}
+				}
+				rows.add(row);
+			}
+			else
+			{
+				Row row = new Row(false);
+				row.cells.add(new Cell(child));
+				rows.add(row);
+			}
+		}
+
+		int[] size = setColumns(rows);
+		int columns = size[0];
+		if(columns > MAX_COLUMNS)
+		{
+			throw new IllegalArgumentException("Table too large (" + columns
+				+ " columns)");
+		}
+
+		out.append(columns).append(" by ").append(size[1]).append(" grid. ");
+		for(int i = 0; i < rows.size(); i++)
+		{
+			Row row = rows.get(i);
+			out.append(" Row ").append(i + 1);
+			if(row.labeled)
+			{
+				out.append(' ');
+				convert(row.label, out);
+			}
+			out.append(" : ");
+
+			// Output cells, with blanks for any missing columns
+			int lastColumn = 0;
+			for(Cell cell : row.cells)
+			{
+				appendBlanks(cell.column - lastColumn - 1, out);
+				if(cell.isAssumed())
+				{
+					convert(cell.element, out);
+				}
+				else
+				{
+					convertChildren(cell.element, out);
+				}
+				lastColumn = cell.column;
+			}
+			appendBlanks(columns - lastColumn, out);
+		}
+	}
+
+	/**
+	 * Works out the column of each cell in a table.
+	 * <p>
+	 * This function will not behave correctly if colspan and rowspan are
+	 * specified in a manner that would overlap.
+	 * @param rows Table rows
+	 * @return Array of number of columns, number of rows
+	 * @throws NumberFormatException If colspan or rowspan are not integers
+	 */
+	private static int[] setColumns(List<Row> rows) throws NumberFormatException
+	{
+		int maxRows = 0, maxCols = 0;
+
+		// Lists reserved (rowspan) columns. Indexed by column index, 0-based.
+		// Data values are the number of rows that the column is reserved for
+		// (reduced each time around the loop) or 0 if not reserved.
+		int[] reserved = new int[0];
+
+		for(int row = 0; row < rows.size(); row++)
+		{
+			// Work out following row's reserved array
+			int[] nextReserved = new int[reserved.length];
+			for(int i = 0; i < reserved.length; i++)
+			{
+				nextReserved[i] = reserved[i] == 0 ? 0 : reserved[i] - 1;
+			}
+
+			int col = findFreeCol(reserved, 0);
+			for(Cell cell : rows.get(row).cells)
+			{
+				// Set this entry's position (1-based)
+				cell.column = col + 1;
+
+				// Get colspan and rowspan
+				Element mtd = cell.isAssumed() ? null : cell.element;
+				int colspan = mtd != null && mtd.hasAttribute("colspan")
+					? Integer.parseInt(mtd.getAttribute("colspan")) : 1;
+				int rowspan = mtd != null && mtd.hasAttribute("rowspan")
+					? Integer.parseInt(mtd.getAttribute("rowspan")) : 1;
+
+				// Update maximum counts
+				maxRows = Math.max(maxRows, row + rowspan);
+				maxCols = Math.max(maxCols, col + colspan);
+
+				// If rowspan, add to reserved list for next row
+				if(rowspan > 1)
+				{
+					// May need to make array bigger
+					int extent = row + rowspan;
+					if(nextReserved.length < extent)
+					{
+						nextReserved = Arrays.copyOf(nextReserved, extent);
+					}
+
+					// Put it in the array
+					for(int reserveCol = col; reserveCol < extent; reserveCol++)
+					{
+						// Take into account that we already did this row
+						nextReserved[reserveCol] = rowspan - 1;
+					}
+				}
+
+				// Go to next column
+				col += colspan;
+				col = findFreeCol(reserved, col);
+			}
+
+			reserved = nextReserved;
+		}
+
+		return new int[] { maxCols, maxRows };
+	}
+
+	/**
+	 * Finds the next free column based on the reserved array.
+	 * @param reserved Array indicating that certain columns (with >0 in the
+	 *   value) are reserved
+	 * @param start First position to look in (may be past the end of array)
+	 * @return First valid position
+	 */
+	private static int findFreeCol(int[] reserved, int start)
+	{
+		int col;
+		for(col = start; col < reserved.length && reserved[col] > 0; col++) ;
+		return col;
+	}
+
+	/**
+	 * @param count Number of blank table cells to output (may be negative)
+	 * @param out Output buffer
+	 */
+	private static void appendBlanks(int count, StringBuilder out)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			out.append(" blank ");
+		}
+	}
+
+	/**
+	 * Checks whether an msubsup base has an mo child after normalisation. That
+	 * wraps the children of elements such as msqrt in an mrow (unless there is
+	 * exactly one), and the children of table rows in mtd, and expands mfenced
+	 * and msubsup.
+	 * @param base Base element
+	 * @return True if base has an mo child
+	 */
+	private static boolean hasOperatorChild(Element base)
+	{
+		List<Element> children = getChildren(base);
+		if(isExpanded(base))
+		{
+			// mfenced keeps a single child as-is; msubsup becomes msup, with the
+			// third child as its second
+			int index = getType(base) == Type.MFENCED ? 1 : 3;
+			return (getType(base) == Type.MSUBSUP || children.size() == 1) &&
+				children.size() >= index && getType(children.get(index - 1)) == Type.MO;
+		}
+		if(NS.equals(base.getNamespaceURI()) &&
+			IMPLIED_MROW.contains(base.getLocalName()) && children.size() != 1)
+		{
+			return false;
+		}
+		for(Element child : children)
+		{
+			if(getType(child) == Type.MO && !isInAssumedCell(child))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the text content of a node (after normalisation, so that mfenced
+	 * includes its brackets).
+	 * @param node Node
+	 * @return Text content
+	 */
+	private String getText(Node node)
+	{
+		StringBuilder out = new StringBuilder();
+		appendText(node, out);
+		return out.toString();
+	}
+
+	/**
+	 * Adds the text content of a node (after normalisation).
+	 * @param node Node
+	 * @param out Output buffer
+	 */
+	private void appendText(Node node, StringBuilder out)
+	{
+		switch(node.getNodeType())
+		{
+		case Node.TEXT_NODE:
+		case Node.CDATA_SECTION_NODE:
+			out.append(node.getNodeValue());
+			return;
+		case Node.ELEMENT_NODE:
+			break;
+		case Node.ENTITY_REFERENCE_NODE:
+			break;
+		default:
+			return;
+		}
+
+		if(node.getNodeType() == Node.ELEMENT_NODE && isExpanded((Element)node))
+		{
+			Element e = (Element)node;
+			if(getType(e) == Type.MFENCED)
+			{
+				convertFenced(e, out, true);
+			}
+			else
+			{
+				// msubsup only keeps its first three children
+				for(int i = 1; i <= 3; i++)
+				{
+					Element child = getChild(e, i);
+					if(child != null)
+					{
+						appendText(child, out);
+					}
+				}
+			}
+			return;
+		}
+
+		for(Node child = node.getFirstChild(); child != null;
+			child = child.getNextSibling())
+		{
+			appendText(child, out);
+		}
+	}
+
+	/**
+	 * @param c Character
+	 * @return True if character is whitespace according to XML
+	 */
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	/**
+	 * Normalises whitespace as the XPath function normalize-space.
+	 * @param text Text
+	 * @return Text with whitespace trimmed and runs of whitespace replaced by a
+	 *   single space
+	 */
+	private static String normalizeSpace(String text)
+	{
+		StringBuilder out = new StringBuilder(text.length());
+		boolean space = false;
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(isSpace(c))
+			{
+				space = out.length() > 0;
+			}
+			else
+			{
+				if(space)
+				{
+					out.append(' ');
+					space = false;
+				}
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param text Text
+	 * @return Text with all whitespace removed
+	 */
+	private static String removeSpace(String text)
+	{
+		StringBuilder out = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(!isSpace(c))
+			{
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param text Text
+	 * @return Whitespace-separated values from text
+	 */
+	private static List<String> splitSpace(String text)
+	{
+		List<String> result = new ArrayList<String>();
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++)
+		{
+			if(i == text.length() || isSpace(text.charAt(i)))
+			{
+				if(start != -1)
+				{
+					result.add(text.substring(start, i));
+					start = -1;
+				}
+			}
+			else if(start == -1)
+			{
+				start = i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param text Text
+	 * @return Length in Unicode characters (as XPath string-length)
+	 */
+	private static int codePointLength(String text)
+	{
+		return text.codePointCount(0, text.length());
+	}
+}
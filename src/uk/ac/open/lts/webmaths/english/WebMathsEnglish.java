@@ -19,40 +19,21 @@ Copyright 2011 The Open University
 package uk.ac.open.lts.webmaths.english;
 
 import javax.jws.WebService;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.*;
-import javax.xml.transform.stream.StreamResult;
 
-import org.w3c.dom.*;
+import org.w3c.dom.Document;
 
-import uk.ac.open.lts.webmaths.*;
+import uk.ac.open.lts.webmaths.WebMathsService;
 
 @WebService(endpointInterface="uk.ac.open.lts.webmaths.english.MathsEnglishPort",
 	targetNamespace="http://ns.open.ac.uk/lts/vle/filter_maths/",
 	serviceName="MathsEnglish", portName="MathsEnglishPort")
 public class WebMathsEnglish extends WebMathsService implements MathsEnglishPort
 {
-	private TransformerPool normaliseXsl, mainXsl;
-	
-	/**
-	 * Initialises XSL data based on web service context if supplied.
-	 */
-	private void initXsl()
-	{
-		if(normaliseXsl == null)
-		{
-			MathmlEntityFixer fixer = getFixer();
-			normaliseXsl = new TransformerPool(fixer,
-				WebMathsService.class, "normalise.xsl", "english");
-			mainXsl = new TransformerPool(fixer, 
-				WebMathsEnglish.class, "english.main.xsl"); 
-		}
-	}
-	
+	private final static MathmlToEnglish CONVERTER = new MathmlToEnglish();
+
 	@Override
 	public MathsEnglishReturn getEnglish(MathsEnglishParams params)
 	{
-		initXsl();
 		MathsEnglishReturn result = new MathsEnglishReturn();
 		result.setOk(false);
 		result.setError("");
@@ -61,56 +42,13 @@ public class WebMathsEnglish extends WebMathsService implements MathsEnglishPort
 		{
 			// Parse input
 			Document doc = parseMathml(params.getMathml());
-			
-			// Normalise using XSL
-			DOMSource in = new DOMSource(doc);
-			DOMResult out = new DOMResult(); 
-			Transformer t = normaliseXsl.reserve();
-			try
-			{
-				t.transform(in, out);
-			}
-			finally
-			{
-				normaliseXsl.release(t);
-			}
 
-			// Add table column attributes
-			Document intermediate = (Document)out.getNode();
-			addTableAttributes(intermediate);
-			
-			// Do conversion to English
-			in = new DOMSource(intermediate);
-			out = new DOMResult();
-			t = mainXsl.reserve();
-			try
-			{
-				t.transform(in, out);
-			}
-			finally
-			{
-				mainXsl.release(t);
-			}
-			Document after = (Document)out.getNode();
-			StringBuilder text = new StringBuilder();
-			for(Node child = after.getDocumentElement().getFirstChild();
-				child != null; child = child.getNextSibling())
-			{
-				if(child instanceof Text)
-				{
-					text.append(child.getNodeValue());
-				}
-			}
-			
+			// Convert to English
+			String speech = CONVERTER.convert(doc);
+
 			// Remove outer brackets if any
-			String speech = text.toString();
-			String last = "";
-			while(!speech.equals(last))
-			{
-				last = speech;
-				speech = speech.replaceAll("^\\s*\\(((X|[^X])*)\\)\\s*$", "$1");
-			}
-			
+			speech = stripOuterBrackets(speech);
+
 			// Fix entities and whitespace
 			speech = getFixer().toSpeech(speech);
 			
@@ -128,144 +66,76 @@ public class WebMathsEnglish extends WebMathsService implements MathsEnglishPort
 	}
 
 	/**
-	 * Adds information about table columns, as x_* attributes, to all tables in
-	 * given document.
-	 * @param doc Document to modify
+	 * Removes brackets that surround the whole text, repeatedly, along with
+	 * whitespace at either end. Brackets are only removed if they match each
+	 * other, so "(a) + (b)" is unchanged. This takes linear time.
+	 * @param text Text
+	 * @return Text without outer brackets
 	 */
-	private void addTableAttributes(Document doc)
+	static String stripOuterBrackets(String text)
 	{
-		NodeList tables = doc.getElementsByTagNameNS(
-			"http://www.w3.org/1998/Math/MathML", "mtable");
-		for(int i=0; i<tables.getLength(); i++)
+		int start = skipSpace(text, 0), end = text.length();
+		if(start == end || text.charAt(start) != '(')
 		{
-			addTableAttributes((Element)tables.item(i));
+			return text;
 		}
-	}
-	
-	/**
-	 * Adds information about table columns, as x_* attributes, to the specified
-	 * element (which should be an <mtable>).
-	 * <p>
-	 * This function will not behave correctly if colspan and rowspan are
-	 * specified in a manner that would overlap.
-	 * @param mtable Table element
-	 */
-	private void addTableAttributes(Element mtable)
-	{
-		int maxRows=0, maxCols=0;
-		
-		// Lists reserved (rowspan) columns. Indexed by column index, 0-based.
-		// Data values are the number of rows that the column is reserved for
-		// (reduced each time around the loop) or 0 if not reserved.
-		int[] reserved = new int[0];
-		
-		// Note: We assume that all child elements are mtr or mlabeledtr, and
-		// all child elements of those are mtd, which should be true because of 
-		// the fix in normalise.xsl
-		int row=0;
-		for(Node child = mtable.getFirstChild(); child!=null;
-			child = child.getNextSibling())
+
+		// Find the matching close bracket (if any) for each open bracket
+		int[] matching = new int[end], open = new int[end];
+		int depth = 0;
+		for(int i = start; i < end; i++)
 		{
-			if(!(child instanceof Element))
+			char c = text.charAt(i);
+			if(c == '(')
 			{
-				continue;
+				open[depth++] = i;
 			}
-			Element mtr = (Element)child;
-			boolean hasLabel = mtr.getLocalName().equals("mlabeledtr");
+			else if(c == ')' && depth > 0)
+			{
+				matching[open[--depth]] = i;
+			}
+		}
 
-			mtr.setAttribute("x_row", "" + (row+1));
-			
-			// Work out following row's reserved array
-			int[] nextReserved = new int[reserved.length];
-			for(int i=0; i<reserved.length; i++)
+		boolean stripped = false;
+		while(true)
+		{
+			while(end > start && isSpace(text.charAt(end - 1)))
 			{
-				nextReserved[i] = reserved[i] == 0 ? 0 : reserved[i] - 1;
+				end--;
 			}
-			
-			int col = findFreeCol(reserved, 0);
-			for(Node grandchild = mtr.getFirstChild(); grandchild!=null;
-				grandchild = grandchild.getNextSibling())
+			if(end - start < 2 || text.charAt(start) != '(' ||
+				matching[start] != end - 1)
 			{
-				if(!(grandchild instanceof Element))
-				{
-					continue;
-				}
-				if(hasLabel)
-				{
-					// Skip label
-					hasLabel = false;
-					continue;
-				}
-				Element mtd = (Element)grandchild;
-				
-				// Set this entry's position (1-based)
-				mtd.setAttribute("x_col", "" + (col+1));
-				
-				// Get colspan and rowspan
-				int colspan = mtd.hasAttribute("colspan")
-					? Integer.parseInt(mtd.getAttribute("colspan")) : 1;
-				int rowspan = mtd.hasAttribute("rowspan")
-					? Integer.parseInt(mtd.getAttribute("rowspan")) : 1;
-
-			  // Update maximum counts
-			  maxRows = Math.max(maxRows, row + rowspan);
-			  maxCols = Math.max(maxCols, col + colspan);
-			  
-			  // If rowspan, add to reserved list for next row
-			  if(rowspan > 1)
-			  {
-			  	// May need to make array bigger
-			  	int extent = row + rowspan;
-			  	if(nextReserved.length < extent)
-			  	{
-			  		int[] bigger = new int[extent];
-			  		System.arraycopy(nextReserved, 0, bigger, 0, nextReserved.length);
-			  		nextReserved = bigger;
-			  	}
-			  	
-			  	// Put it in the array
-			  	for(int reserveCol=col; reserveCol<extent; reserveCol++)
-			  	{
-			  		// Take into account that we already did this row
-			  		nextReserved[reserveCol] = rowspan-1;
-			  	}
-			  }
-					
-				// Go to next column
-				col += colspan;
-				col = findFreeCol(reserved, col);
+				break;
 			}
-			
-			row++;
-			reserved = nextReserved;
+			start = skipSpace(text, start + 1);
+			end--;
+			stripped = true;
 		}
-	
-		// Store the max count
-		mtable.setAttribute("x_cols", "" + maxCols);
-		mtable.setAttribute("x_rows", "" + maxRows);
+		return stripped ? text.substring(start, end) : text;
 	}
-	
+
 	/**
-	 * Finds the next free column based on the reserved array.
-	 * @param reserved Array indicating that certain columns (with >0 in the
-	 *   value) are reserved
-	 * @param start First position to look in (may be past the end of array)
-	 * @return First valid position
+	 * @param text Text
+	 * @param pos Position
+	 * @return Position of the first non-whitespace character at or after pos
 	 */
-	private static int findFreeCol(int[] reserved, int start)
+	private static int skipSpace(String text, int pos)
 	{
-		int col;
-		for(col = start; col < reserved.length && reserved[col] > 0; col++) ;
-		return col;
+		while(pos < text.length() && isSpace(text.charAt(pos)))
+		{
+			pos++;
+		}
+		return pos;
 	}
-	
-	@SuppressWarnings(value="all")
-	private void display(Node node) throws Exception
+
+	/**
+	 * @param c Character
+	 * @return True if it is whitespace (same as regex \s)
+	 */
+	private static boolean isSpace(char c)
 	{
-		DOMSource in = new DOMSource(node);
-		System.out.println();
-		TransformerFactory.newInstance().newTransformer().transform(in, 
-			new StreamResult(System.out));
-		System.out.println();
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' ||
+			c == '\r';
 	}
 }
@@ -0,0 +1,168 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.image;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Bounded (least recently used) cache of rendered equations, stored as an
+ * alpha mask so that the same equation can be drawn in any colour without
+ * rendering it again.
+ * <p>
+ * This only works for images drawn in a single colour on a transparent
+ * background, so callers must not cache equations that set their own colours.
+ */
+public class AlphaMaskCache
+{
+	/**
+	 * Rendered equation in the form of an alpha mask.
+	 */
+	public static class Mask
+	{
+		private final int width, height, baseline;
+		private final byte[] alpha;
+
+		/**
+		 * Creates from a rendered image, which must be drawn in a single colour.
+		 * @param image Image (ARGB)
+		 * @param baseline Baseline (pixels from bottom)
+		 */
+		public Mask(BufferedImage image, int baseline)
+		{
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+			this.baseline = baseline;
+			int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+			alpha = new byte[pixels.length];
+			for(int i = 0; i < pixels.length; i++)
+			{
+				alpha[i] = (byte)(pixels[i] >>> 24);
+			}
+		}
+
+		private Mask(int width, int height, int baseline, byte[] alpha)
+		{
+			this.width = width;
+			this.height = height;
+			this.baseline = baseline;
+			this.alpha = alpha;
+		}
+
+		/**
+		 * Creates from an image drawn in black. Unlike the constructor, this also
+		 * works if antialiased pixels have been blended with a white background
+		 * (grey pixels count as partly transparent).
+		 * @param image Image drawn in black
+		 * @param baseline Baseline (pixels from bottom)
+		 * @return Mask
+		 */
+		public static Mask fromBlackImage(BufferedImage image, int baseline)
+		{
+			int width = image.getWidth(), height = image.getHeight();
+			int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+			byte[] alpha = new byte[pixels.length];
+			for(int i = 0; i < pixels.length; i++)
+			{
+				int pixel = pixels[i];
+				int lightest = Math.max((pixel >> 16) & 0xff,
+					Math.max((pixel >> 8) & 0xff, pixel & 0xff));
+				alpha[i] = (byte)(((pixel >>> 24) * (255 - lightest) + 127) / 255);
+			}
+			return new Mask(width, height, baseline, alpha);
+		}
+
+		/**
+		 * Draws the mask in a colour.
+		 * @param colour Colour
+		 * @return New ARGB image (fully transparent pixels are 0)
+		 */
+		public BufferedImage tint(Color colour)
+		{
+			int rgb = colour.getRGB() & 0xffffff;
+			int[] pixels = new int[alpha.length];
+			for(int i = 0; i < alpha.length; i++)
+			{
+				int a = alpha[i] & 0xff;
+				if(a != 0)
+				{
+					pixels[i] = (a << 24) | rgb;
+				}
+			}
+			BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB);
+			image.setRGB(0, 0, width, height, pixels, 0, width);
+			return image;
+		}
+
+		/**
+		 * @return Baseline (pixels from bottom)
+		 */
+		public int getBaseline()
+		{
+			return baseline;
+		}
+	}
+
+	private final Map<String, Mask> cache;
+
+	/**
+	 * @param maxEntries Maximum number of entries
+	 */
+	public AlphaMaskCache(final int maxEntries)
+	{
+		cache = new LinkedHashMap<String, Mask>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Mask> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets a mask from the cache.
+	 * @param key Key
+	 * @return Mask or null if not cached
+	 */
+	public synchronized Mask get(String key)
+	{
+		return cache.get(key);
+	}
+
+	/**
+	 * Adds a mask to the cache.
+	 * @param key Key
+	 * @param mask Mask
+	 */
+	public synchronized void put(String key, Mask mask)
+	{
+		cache.put(key, mask);
+	}
+
+	/**
+	 * @return Number of entries in cache
+	 */
+	public synchronized int getEntries()
+	{
+		return cache.size();
+	}
+}
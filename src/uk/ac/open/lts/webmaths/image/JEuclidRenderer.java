@@ -0,0 +1,322 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.image;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import net.sourceforge.jeuclid.LayoutContext;
+import net.sourceforge.jeuclid.context.*;
+
+/**
+ * Shared resources for rendering equations with JEuclid from several threads
+ * at once.
+ * <p>
+ * Rendering runs on a bounded thread pool (by default one thread per processor)
+ * so that a burst of requests doesn't have all threads competing for the CPU.
+ * Each render thread has its own graphics object for layout, and layout
+ * contexts are shared between requests with the same size and colour. (Layout
+ * contexts are never changed after they are created.)
+ * <p>
+ * The renderer also holds a cache of recently rendered equations as alpha
+ * masks, so that repeated requests for the same equation (even in a different
+ * colour) don't need layout or drawing.
+ */
+public class JEuclidRenderer
+{
+	/** Servlet parameter: number of render threads (optional) */
+	public final static String PARAM_IMAGERENDERTHREADS = "image-render-threads";
+
+	/** Servlet parameter: number of requests that can wait for a thread (optional) */
+	public final static String PARAM_IMAGERENDERQUEUE = "image-render-queue";
+
+	/** Servlet parameter: number of equations to keep in cache (optional, 0 = off) */
+	public final static String PARAM_IMAGECACHESIZE = "image-cache-size";
+
+	/** Default queue size */
+	private final static int DEFAULT_QUEUE_SIZE = 100;
+
+	/** Default cache size */
+	private final static int DEFAULT_CACHE_SIZE = 1000;
+
+	/** If there are more than this many layout contexts, the cache is cleared */
+	private final static int MAX_LAYOUT_CONTEXTS = 100;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.JEuclidRenderer";
+
+	private static JEuclidRenderer localRenderer;
+
+	private final ThreadPoolExecutor executor;
+
+	private final AlphaMaskCache cache;
+
+	private final ConcurrentHashMap<String, LayoutContext> layoutContexts =
+		new ConcurrentHashMap<String, LayoutContext>();
+
+	private final ThreadLocal<Graphics2D> layoutGraphics = new ThreadLocal<Graphics2D>()
+	{
+		@Override
+		protected Graphics2D initialValue()
+		{
+			// Create graphics context used for laying out equation
+			BufferedImage silly = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+			return silly.createGraphics();
+		}
+	};
+
+	/**
+	 * Gets the renderer singleton. It is stored in the servlet context if
+	 * supplied, or (for testing only) in a local static.
+	 * @param servletContext Servlet context (null if testing)
+	 * @return Renderer
+	 */
+	public static JEuclidRenderer get(ServletContext servletContext)
+	{
+		if(servletContext != null)
+		{
+			synchronized(servletContext)
+			{
+				JEuclidRenderer renderer =
+					(JEuclidRenderer)servletContext.getAttribute(ATTRIBUTE_NAME);
+				if(renderer == null)
+				{
+					renderer = new JEuclidRenderer(
+						getIntParam(servletContext, PARAM_IMAGERENDERTHREADS,
+							Runtime.getRuntime().availableProcessors(), 1),
+						getIntParam(servletContext, PARAM_IMAGERENDERQUEUE, DEFAULT_QUEUE_SIZE, 1),
+						getIntParam(servletContext, PARAM_IMAGECACHESIZE, DEFAULT_CACHE_SIZE, 0));
+					servletContext.setAttribute(ATTRIBUTE_NAME, renderer);
+				}
+				return renderer;
+			}
+		}
+		else
+		{
+			synchronized(JEuclidRenderer.class)
+			{
+				if(localRenderer == null)
+				{
+					localRenderer = new JEuclidRenderer(
+						Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE,
+						DEFAULT_CACHE_SIZE);
+				}
+				return localRenderer;
+			}
+		}
+	}
+
+	/**
+	 * Stops the render threads, if the renderer was created.
+	 * @param servletContext Servlet context
+	 */
+	public static void cleanup(ServletContext servletContext)
+	{
+		synchronized(servletContext)
+		{
+			JEuclidRenderer renderer =
+				(JEuclidRenderer)servletContext.getAttribute(ATTRIBUTE_NAME);
+			if(renderer != null)
+			{
+				renderer.executor.shutdownNow();
+				servletContext.removeAttribute(ATTRIBUTE_NAME);
+			}
+		}
+	}
+
+	/**
+	 * Gets an integer servlet parameter.
+	 * @param servletContext Servlet context
+	 * @param name Parameter name
+	 * @param defaultValue Value if not set
+	 * @param minimum Minimum allowed value
+	 * @return Value
+	 * @throws IllegalArgumentException If the value is not an integer or too low
+	 */
+	private static int getIntParam(ServletContext servletContext, String name,
+		int defaultValue, int minimum) throws IllegalArgumentException
+	{
+		String value = servletContext.getInitParameter(name);
+		if(value == null)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int result = Integer.parseInt(value);
+			if(result >= minimum)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Incorrect value of " + name +
+			" (must be integer, at least " + minimum + ")");
+	}
+
+	/**
+	 * @param threads Number of render threads
+	 * @param queueSize Number of requests that can wait for a thread
+	 * @param cacheSize Number of equations to cache (0 = none)
+	 */
+	JEuclidRenderer(int threads, int queueSize, int cacheSize)
+	{
+		cache = cacheSize == 0 ? null : new AlphaMaskCache(cacheSize);
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "JEuclid render " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs a render task on the render thread pool and waits for it.
+	 * @param task Task
+	 * @return Result of task
+	 * @throws IOException If the task throws IOException, or the queue is full
+	 */
+	public <T> T render(Callable<T> task) throws IOException
+	{
+		Future<T> future;
+		try
+		{
+			future = executor.submit(task);
+		}
+		catch(RejectedExecutionException e)
+		{
+			throw new IOException("Too many image requests waiting");
+		}
+
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException e)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for image");
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			if(cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return Cache of rendered equations, or null if caching is turned off
+	 */
+	public AlphaMaskCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Gets the graphics object used for layout. Must only be called from a
+	 * render thread.
+	 * @return Graphics for current thread
+	 */
+	public Graphics2D getLayoutGraphics()
+	{
+		return layoutGraphics.get();
+	}
+
+	/**
+	 * Gets the layout context for a given size and colour. The returned context
+	 * is shared and must not be changed.
+	 * @param size Size (1.0 = normal)
+	 * @param colour Colour
+	 * @return Layout context
+	 */
+	public LayoutContext getLayoutContext(float size, Color colour)
+	{
+		String key = size + "/" + colour.getRGB();
+		LayoutContext layout = layoutContexts.get(key);
+		if(layout == null)
+		{
+			layout = createLayoutContext(size, colour);
+			if(layoutContexts.size() >= MAX_LAYOUT_CONTEXTS)
+			{
+				layoutContexts.clear();
+			}
+			LayoutContext existing = layoutContexts.putIfAbsent(key, layout);
+			if(existing != null)
+			{
+				layout = existing;
+			}
+		}
+		return layout;
+	}
+
+	/**
+	 * Creates a new layout context.
+	 * @param size Size (1.0 = normal)
+	 * @param colour Colour
+	 * @return New layout context
+	 */
+	private static LayoutContext createLayoutContext(float size, Color colour)
+	{
+		// Set layout options
+		LayoutContextImpl layout = new LayoutContextImpl(
+			LayoutContextImpl.getDefaultLayoutContext());
+		layout.setParameter(Parameter.ANTIALIAS, Boolean.TRUE);
+		// This size is hardcoded to go well with our default text size
+		// and be one of the sizes that doesn't look too horrible.
+		layout.setParameter(Parameter.MATHSIZE, size * 15f);
+		layout.setParameter(Parameter.SCRIPTSIZEMULTIPLIER, 0.86667f);
+		layout.setParameter(Parameter.MATHCOLOR, colour);
+
+		// These fonts are included with the JEuclid build so ought to work
+		layout.setParameter(Parameter.FONTS_SERIF,
+			Arrays.asList(new String[] {"DejaVu Serif", "Quivira"}));
+		layout.setParameter(Parameter.FONTS_SCRIPT,
+			Arrays.asList(new String[] {"Allura"}));
+		layout.setParameter(Parameter.FONTS_SANSSERIF, "DejaVu Sans");
+		layout.setParameter(Parameter.FONTS_MONOSPACED, "DejaVu Sans Mono");
+		return layout;
+	}
+}
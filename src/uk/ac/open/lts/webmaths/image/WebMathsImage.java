@@ -22,18 +22,19 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.math.BigInteger;
-import java.util.Arrays;
+import java.util.concurrent.Callable;
 import java.util.regex.*;
 
 import javax.imageio.ImageIO;
 import javax.jws.WebService;
 
 import net.sourceforge.jeuclid.DOMBuilder;
-import net.sourceforge.jeuclid.context.*;
+import net.sourceforge.jeuclid.LayoutContext;
 import net.sourceforge.jeuclid.elements.generic.DocumentElement;
 import net.sourceforge.jeuclid.layout.JEuclidView;
 
 import org.w3c.dom.*;
+import org.w3c.dom.ls.*;
 import org.xml.sax.SAXParseException;
 
 import uk.ac.open.lts.webmaths.WebMathsService;
@@ -45,21 +46,6 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 {
 	private static boolean SHOWPERFORMANCE = false;
 
-	private Graphics2D context;
-
-	/**
-	 * Initialises the graphics context (first time).
-	 */
-	private void initContext()
-	{
-		if(context == null)
-		{
-			// Create graphics context used for laying out equation
-			BufferedImage silly = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
-			context = silly.createGraphics();
-		}
-	}
-
 	private static final Pattern REGEX_RGB = Pattern.compile(
 		"^#([0-9a-f]{2})([0-9a-f]{2})([0-9a-f]{2})$");
 
@@ -119,6 +105,17 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 		}
 	}
 
+	@Override
+	public MathsImagesReturn getImages(MathsImagesParams params)
+	{
+		MathsImagesReturn result = new MathsImagesReturn();
+		for(MathsImageParams equation : params.getMathsImageParams())
+		{
+			result.getMathsImageReturn().add(getImage(equation));
+		}
+		return result;
+	}
+
 	/**
 	 * Parses mathml from the input into a DOM document. Split out so that
 	 * subclass can call.
@@ -177,12 +174,11 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 	 * @return Return result
 	 * @throws IOException Any error creating image file
 	 */
-	protected MathsImageReturn getImage(MathsImageParams params, Document doc,
-		MathsImageReturn result, long start) throws IOException
+	protected MathsImageReturn getImage(final MathsImageParams params,
+		final Document doc, final MathsImageReturn result, final long start)
+		throws IOException
 	{
-		initContext();
-
-		Color fg;
+		final Color fg;
 		try
 		{
 			fg = convertRgb(params.getRgb());
@@ -198,6 +194,50 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 			System.err.println("Setup: " + (System.currentTimeMillis() - start));
 		}
 
+		// Layout and drawing happen on the render thread pool.
+		final JEuclidRenderer renderer = JEuclidRenderer.get(getServletContext());
+		return renderer.render(new Callable<MathsImageReturn>()
+		{
+			@Override
+			public MathsImageReturn call() throws IOException
+			{
+				return renderImage(renderer, params, doc, fg, result, start);
+			}
+		});
+	}
+
+	/**
+	 * Renders the image. Called on a render thread.
+	 * @param renderer Renderer
+	 * @param params Request parameters
+	 * @param doc MathML as DOM document
+	 * @param fg Foreground colour
+	 * @param result Initialised result object with blank fields
+	 * @param start Start time of request (milliseconds since epoch)
+	 * @return Return result
+	 * @throws IOException Any error creating image file
+	 */
+	private MathsImageReturn renderImage(JEuclidRenderer renderer,
+		MathsImageParams params, Document doc, Color fg, MathsImageReturn result,
+		long start) throws IOException
+	{
+		// If the equation doesn't set its own colours, it can be cached as an
+		// alpha mask and drawn again in any colour.
+		AlphaMaskCache cache = renderer.getCache();
+		String cacheKey = cache == null ? null : getCacheKey(doc, params.getSize());
+		if(cacheKey != null)
+		{
+			AlphaMaskCache.Mask mask = cache.get(cacheKey);
+			if(mask != null)
+			{
+				if(SHOWPERFORMANCE)
+				{
+					System.err.println("Cached: " + (System.currentTimeMillis() - start));
+				}
+				return saveImage(mask.tint(fg), mask.getBaseline(), result, start);
+			}
+		}
+
 		// Parse XML to JEuclid document
 		DocumentElement document;
 		preprocessForJEuclid(doc);
@@ -207,23 +247,8 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 			System.err.println("Parse: " + (System.currentTimeMillis() - start));
 		}
 
-		// Set layout options
-		LayoutContextImpl layout = new LayoutContextImpl(
-			LayoutContextImpl.getDefaultLayoutContext());
-		layout.setParameter(Parameter.ANTIALIAS, Boolean.TRUE);
-		// This size is hardcoded to go well with our default text size
-		// and be one of the sizes that doesn't look too horrible.
-		layout.setParameter(Parameter.MATHSIZE, params.getSize() * 15f);
-		layout.setParameter(Parameter.SCRIPTSIZEMULTIPLIER, 0.86667f);
-		layout.setParameter(Parameter.MATHCOLOR, fg);
-
-		// These fonts are included with the JEuclid build so ought to work
-		layout.setParameter(Parameter.FONTS_SERIF,
-			Arrays.asList(new String[] {"DejaVu Serif", "Quivira"}));
-		layout.setParameter(Parameter.FONTS_SCRIPT,
-			Arrays.asList(new String[] {"Allura"}));
-		layout.setParameter(Parameter.FONTS_SANSSERIF, "DejaVu Sans");
-		layout.setParameter(Parameter.FONTS_MONOSPACED, "DejaVu Sans Mono");
+		// Get layout options (shared between requests)
+		LayoutContext layout = renderer.getLayoutContext(params.getSize(), fg);
 
 		if(SHOWPERFORMANCE)
 		{
@@ -231,7 +256,8 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 		}
 
 		// Layout equation
-		JEuclidView view = new JEuclidView(document, layout, context);
+		JEuclidView view = new JEuclidView(document, layout,
+			renderer.getLayoutGraphics());
 		float ascent = view.getAscentHeight();
 		float descent = view.getDescentHeight();
 		float width = view.getWidth();
@@ -255,6 +281,26 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 		{
 			System.err.println("Draw: " + (System.currentTimeMillis() - start));
 		}
+		int baseline = image.getHeight() - (int)Math.round(ascent);
+		if(cacheKey != null)
+		{
+			cache.put(cacheKey, new AlphaMaskCache.Mask(image, baseline));
+		}
+		return saveImage(image, baseline, result, start);
+	}
+
+	/**
+	 * Encodes the image and stores it in the result.
+	 * @param image Image
+	 * @param baseline Baseline (pixels from bottom)
+	 * @param result Result object
+	 * @param start Start time of request (milliseconds since epoch)
+	 * @return Result object
+	 * @throws IOException Any error creating image file
+	 */
+	protected MathsImageReturn saveImage(BufferedImage image, int baseline,
+		MathsImageReturn result, long start) throws IOException
+	{
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
 		ImageIO.write(image, "png", output);
 		if(SHOWPERFORMANCE)
@@ -264,8 +310,7 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 
 		// Save results
 		result.setImage(output.toByteArray());
-		result.setBaseline(BigInteger.valueOf(image.getHeight()
-			- (int)Math.round(ascent)));
+		result.setBaseline(BigInteger.valueOf(baseline));
 		result.setOk(true);
 
 		if(SHOWPERFORMANCE)
@@ -275,6 +320,42 @@ public class WebMathsImage extends WebMathsService implements MathsImagePort
 		return result;
 	}
 
+	/** Attributes that mean an equation sets its own colour */
+	private final static String[] COLOUR_ATTRIBUTES =
+	{
+		"mathcolor", "color", "mathbackground", "background", "style"
+	};
+
+	/**
+	 * Gets the key used to cache a rendered equation. This is based on the
+	 * serialised MathML, so that trivial differences in the input (such as
+	 * entities or spacing within tags) don't matter.
+	 * @param doc MathML document
+	 * @param size Size
+	 * @return Cache key, or null if the equation sets its own colours so can't
+	 *   be cached
+	 */
+	static String getCacheKey(Document doc, float size)
+	{
+		NodeList list = doc.getElementsByTagName("*");
+		for(int i=0; i<list.getLength(); i++)
+		{
+			Element element = (Element)list.item(i);
+			for(String attribute : COLOUR_ATTRIBUTES)
+			{
+				if(element.hasAttribute(attribute))
+				{
+					return null;
+				}
+			}
+		}
+		DOMImplementationLS domImplementation =
+			(DOMImplementationLS)doc.getImplementation();
+		LSSerializer lsSerializer = domImplementation.createLSSerializer();
+		lsSerializer.getDomConfig().setParameter("xml-declaration", false);
+		return size + ":" + lsSerializer.writeToString(doc);
+	}
+
 	/**
 	 * Carries out preprocessing that makes JEuclid handle the document better.
 	 * @param doc Document
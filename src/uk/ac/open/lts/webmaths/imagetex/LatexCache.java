@@ -0,0 +1,185 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import java.util.*;
+
+import javax.servlet.ServletContext;
+
+import uk.ac.open.lts.webmaths.image.AlphaMaskCache;
+
+/**
+ * Cache of LaTeX results, so that the same equation doesn't have to go
+ * through latex and dvipng/dvips again.
+ * <p>
+ * PNG results are cached by TeX and resolution as an alpha mask, so they can
+ * be drawn in any colour. EPS results are cached by TeX only.
+ */
+public class LatexCache
+{
+	/** Servlet parameter: number of equations to cache (optional, 0 = off) */
+	public final static String PARAM_LATEXCACHESIZE = "latex-cache-size";
+
+	/** Default cache size */
+	private final static int DEFAULT_CACHE_SIZE = 1000;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.LatexCache";
+
+	private static LatexCache localCache;
+
+	private final AlphaMaskCache masks;
+	private final Map<String, byte[]> eps;
+
+	/**
+	 * Gets the cache singleton. It is stored in the servlet context if
+	 * supplied, or (for testing only) in a local static.
+	 * @param servletContext Servlet context (null if testing)
+	 * @return Cache, or null if caching is turned off
+	 * @throws IllegalArgumentException If the cache size parameter is invalid
+	 */
+	public static LatexCache get(ServletContext servletContext)
+		throws IllegalArgumentException
+	{
+		if(servletContext != null)
+		{
+			synchronized(servletContext)
+			{
+				LatexCache cache = (LatexCache)servletContext.getAttribute(ATTRIBUTE_NAME);
+				if(cache == null)
+				{
+					int size = getSize(servletContext);
+					if(size == 0)
+					{
+						return null;
+					}
+					cache = new LatexCache(size);
+					servletContext.setAttribute(ATTRIBUTE_NAME, cache);
+				}
+				return cache;
+			}
+		}
+		else
+		{
+			synchronized(LatexCache.class)
+			{
+				if(localCache == null)
+				{
+					localCache = new LatexCache(DEFAULT_CACHE_SIZE);
+				}
+				return localCache;
+			}
+		}
+	}
+
+	/**
+	 * @param servletContext Servlet context
+	 * @return Cache size from servlet parameter
+	 * @throws IllegalArgumentException If the value is not valid
+	 */
+	private static int getSize(ServletContext servletContext)
+		throws IllegalArgumentException
+	{
+		String value = servletContext.getInitParameter(PARAM_LATEXCACHESIZE);
+		if(value == null)
+		{
+			return DEFAULT_CACHE_SIZE;
+		}
+		try
+		{
+			int result = Integer.parseInt(value);
+			if(result >= 0)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Incorrect value of " + PARAM_LATEXCACHESIZE +
+			" (must be non-negative integer)");
+	}
+
+	/**
+	 * @param maxEntries Maximum number of entries in each cache (PNG and EPS)
+	 */
+	LatexCache(final int maxEntries)
+	{
+		masks = new AlphaMaskCache(maxEntries);
+		eps = new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the key used to cache a PNG result.
+	 * @param tex TeX equation
+	 * @param dpi Resolution
+	 * @return Key, or null if the equation can't be cached because it might
+	 *   set its own colours
+	 */
+	static String getKey(String tex, int dpi)
+	{
+		if(tex.contains("color"))
+		{
+			return null;
+		}
+		return dpi + ":" + tex;
+	}
+
+	/**
+	 * @param key Key from {@link #getKey(String, int)}
+	 * @return Mask or null if not cached
+	 */
+	public AlphaMaskCache.Mask getMask(String key)
+	{
+		return masks.get(key);
+	}
+
+	/**
+	 * @param key Key from {@link #getKey(String, int)}
+	 * @param mask Mask
+	 */
+	public void putMask(String key, AlphaMaskCache.Mask mask)
+	{
+		masks.put(key, mask);
+	}
+
+	/**
+	 * @param tex TeX equation
+	 * @return EPS data or null if not cached
+	 */
+	public synchronized byte[] getEps(String tex)
+	{
+		return eps.get(tex);
+	}
+
+	/**
+	 * @param tex TeX equation
+	 * @param data EPS data
+	 */
+	public synchronized void putEps(String tex, byte[] data)
+	{
+		eps.put(tex, data);
+	}
+}
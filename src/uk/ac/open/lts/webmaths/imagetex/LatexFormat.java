@@ -0,0 +1,304 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Precompiled LaTeX format (.fmt file) containing the document preamble, so
+ * that LaTeX doesn't have to load the document class and packages for every
+ * equation.
+ * <p>
+ * The format is kept in a folder within the temp directory, along with a stamp
+ * file recording the LaTeX executable, its version, and the preamble. If any of
+ * these change, the format is built again. If the format can't be built, it
+ * isn't used (LaTeX loads the preamble every time, as before).
+ * <p>
+ * To use the format, LaTeX is run with {@link #getArguments()} before the
+ * filename and with {@link #getEnvironment()} added to its environment.
+ */
+public class LatexFormat
+{
+	/** Servlet parameter: set to 'false' to turn off the format (optional) */
+	public final static String PARAM_LATEXFORMAT = "latex-format";
+
+	/** Name of format */
+	final static String NAME = "webmaths";
+
+	/** Folder (within temp directory) that holds the format */
+	final static String FOLDER_NAME = "webmaths-format";
+
+	/** Time allowed to build format (ms) */
+	private final static long BUILD_TIMEOUT = 60000L;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.LatexFormat";
+
+	/** Lock used when registering the format in the servlet context */
+	private final static Object LOCK = new Object();
+
+	private final File folder;
+	private volatile boolean valid;
+
+	/**
+	 * Gets the format for a servlet context, building it if necessary.
+	 * @param servletContext Servlet context (null if testing)
+	 * @param latex Path to LaTeX executable
+	 * @param preamble Document preamble (everything before begin{document})
+	 * @param tempFolder Temp directory
+	 * @return Format, or null if turned off or not available
+	 */
+	@SuppressWarnings("unchecked")
+	public static LatexFormat get(ServletContext servletContext, final String latex,
+		final String preamble, final File tempFolder)
+	{
+		if(servletContext == null || latex.isEmpty() ||
+			"false".equals(servletContext.getInitParameter(PARAM_LATEXFORMAT)))
+		{
+			return null;
+		}
+
+		// Register the build while locked, but build outside the lock as it can
+		// take a while
+		FutureTask<LatexFormat> task;
+		synchronized(LOCK)
+		{
+			task = (FutureTask<LatexFormat>)servletContext.getAttribute(ATTRIBUTE_NAME);
+			if(task == null)
+			{
+				task = new FutureTask<LatexFormat>(new Callable<LatexFormat>()
+				{
+					@Override
+					public LatexFormat call()
+					{
+						return new LatexFormat(latex, preamble,
+							new File(tempFolder, FOLDER_NAME));
+					}
+				});
+				servletContext.setAttribute(ATTRIBUTE_NAME, task);
+			}
+		}
+
+		// Only the first caller actually builds it; others wait for the result
+		task.run();
+		try
+		{
+			LatexFormat format = task.get();
+			return format.isValid() ? format : null;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch(ExecutionException e)
+		{
+			System.err.println("[WEBMATHS] LaTeX format not available: " + e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Prepares the format, building it if it is missing or out of date.
+	 * @param latex Path to LaTeX executable
+	 * @param preamble Document preamble (everything before begin{document})
+	 * @param folder Folder for format files
+	 */
+	LatexFormat(String latex, String preamble, File folder)
+	{
+		this.folder = folder;
+		try
+		{
+			String stamp = getStamp(latex, preamble);
+			File stampFile = new File(folder, NAME + ".stamp");
+			if(new File(folder, NAME + ".fmt").exists() && stampFile.exists() &&
+				stamp.equals(new String(Files.readAllBytes(stampFile.toPath()), "UTF-8")))
+			{
+				valid = true;
+				return;
+			}
+			build(latex, preamble, stamp);
+			valid = true;
+		}
+		catch(IOException e)
+		{
+			System.err.println("[WEBMATHS] LaTeX format not available: " + e.getMessage());
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the stamp text that identifies the current LaTeX and preamble.
+	 * @param latex Path to LaTeX executable
+	 * @param preamble Document preamble
+	 * @return Stamp text
+	 * @throws IOException If LaTeX can't be run
+	 * @throws InterruptedException If interrupted
+	 */
+	private static String getStamp(String latex, String preamble)
+		throws IOException, InterruptedException
+	{
+		File output = File.createTempFile("webmaths-version", ".txt");
+		try
+		{
+			run(new String[] { latex, "--version" }, output.getParentFile(), output);
+			List<String> lines = Files.readAllLines(output.toPath(), Charset.forName("UTF-8"));
+			return "latex=" + latex + "\nversion=" + (lines.isEmpty() ? "" : lines.get(0)) +
+				"\n" + preamble;
+		}
+		finally
+		{
+			output.delete();
+		}
+	}
+
+	/**
+	 * Builds the format in a new folder, then moves it into place.
+	 * @param latex Path to LaTeX executable
+	 * @param preamble Document preamble
+	 * @param stamp Stamp text
+	 * @throws IOException Any error
+	 * @throws InterruptedException If interrupted
+	 */
+	private void build(String latex, String preamble, String stamp)
+		throws IOException, InterruptedException
+	{
+		File buildFolder = new File(folder.getParentFile(),
+			FOLDER_NAME + "-" + UUID.randomUUID());
+		if(!buildFolder.mkdir())
+		{
+			throw new IOException("Error creating folder: " + buildFolder);
+		}
+		try
+		{
+			FileOutputStream out = new FileOutputStream(new File(buildFolder, NAME + ".ltx"));
+			out.write((preamble + "\\dump\n").getBytes("US-ASCII"));
+			out.close();
+
+			File log = new File(buildFolder, "dump.out");
+			run(new String[] { latex, "-ini", "--interaction=batchmode",
+				"-jobname=" + NAME, "&latex", NAME + ".ltx" }, buildFolder, log);
+			File built = new File(buildFolder, NAME + ".fmt");
+			if(!built.exists())
+			{
+				throw new IOException("latex - format not created: " +
+					new String(Files.readAllBytes(log.toPath()), "UTF-8"));
+			}
+
+			// Move into place; stamp last, so it is only there if the format is.
+			if(!folder.exists() && !folder.mkdir() && !folder.exists())
+			{
+				throw new IOException("Error creating folder: " + folder);
+			}
+			File stampFile = new File(folder, NAME + ".stamp");
+			stampFile.delete();
+			Files.move(built.toPath(), new File(folder, NAME + ".fmt").toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+			Files.write(stampFile.toPath(), stamp.getBytes("UTF-8"));
+		}
+		finally
+		{
+			WebMathsImageTex.killFolder(buildFolder);
+		}
+	}
+
+	/**
+	 * Runs a process with a time limit, sending all output to a file.
+	 * @param command Command
+	 * @param cwd Working directory
+	 * @param output Output file
+	 * @throws IOException If the process can't be run or doesn't finish in time
+	 * @throws InterruptedException If interrupted
+	 */
+	private static void run(String[] command, File cwd, File output)
+		throws IOException, InterruptedException
+	{
+		Process process = new ProcessBuilder(command).directory(cwd).
+			redirectErrorStream(true).redirectOutput(output).start();
+		process.getOutputStream().close();
+		if(!process.waitFor(BUILD_TIMEOUT, TimeUnit.MILLISECONDS))
+		{
+			process.destroy();
+			throw new IOException("Timeout running " + command[0]);
+		}
+	}
+
+	/**
+	 * @return True unless the format couldn't be built, or has failed
+	 */
+	public boolean isValid()
+	{
+		return valid;
+	}
+
+	/**
+	 * Marks the format as not working, so it won't be used again.
+	 */
+	public void invalidate()
+	{
+		valid = false;
+	}
+
+	/**
+	 * @return Arguments to add to the LaTeX command line before the filename
+	 */
+	public String[] getArguments()
+	{
+		return new String[] { "&" + NAME };
+	}
+
+	/**
+	 * @return Environment variables so that LaTeX can find the format (the
+	 *   trailing separator keeps the default format path too)
+	 */
+	public Map<String, String> getEnvironment()
+	{
+		return Collections.singletonMap("TEXFORMATS",
+			folder.getAbsolutePath() + File.pathSeparator);
+	}
+
+	/**
+	 * Builds the format from the command line (for example, after installing
+	 * or upgrading LaTeX), so that the first request doesn't have to wait.
+	 * @param args LaTeX executable, temp directory
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length != 2)
+		{
+			System.err.println("Usage: LatexFormat <latex executable> <temp directory>");
+			System.exit(1);
+		}
+		LatexFormat format = new LatexFormat(args[0], WebMathsImageTex.TEX_PREAMBLE,
+			new File(args[1], FOLDER_NAME));
+		if(!format.isValid())
+		{
+			System.exit(1);
+		}
+		System.out.println("Format ready: " + new File(format.folder, NAME + ".fmt"));
+	}
+}
@@ -0,0 +1,250 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import uk.ac.open.lts.webmaths.mathjax.TimeoutReader;
+
+/**
+ * A single long-running LaTeX process which typesets equations one at a time.
+ * <p>
+ * The process is started on a driver file containing the document prolog,
+ * without the end of the document. Once LaTeX runs out of input it reads
+ * further lines from the terminal (stdin), so each equation is sent as a few
+ * lines of TeX that ship it out as its own page, followed by a padding page
+ * (which makes LaTeX actually write the equation page to the DVI file) and a
+ * marker line on stdout. The equation page has its page number (count0) set to
+ * a sequence number, so that dvipng can select it with -p and -l.
+ * <p>
+ * If LaTeX reports an error (a line beginning with '!'), the worker can't be
+ * trusted any more and must be closed.
+ */
+public class LatexWorker
+{
+	/** Name of driver file (the DVI file has the same name with .dvi) */
+	final static String DRIVER_NAME = "worker";
+
+	/** Marker written when the prolog has been loaded */
+	private final static String MARKER_READY = "[webmaths-ready]";
+
+	private final static Pattern REGEX_PAGE_MARKER = Pattern.compile(
+		"^\\[webmaths-page:([0-9]+)\\]$");
+
+	/** Number of characters in padding (must be more than half DVI buffer) */
+	private final static int PADDING_SIZE = 16384;
+
+	/**
+	 * Macros added to the end of the driver file. The markers are built by a
+	 * macro so that the literal text doesn't appear in error context lines.
+	 */
+	private final static String DRIVER_MACROS;
+	static
+	{
+		StringBuilder macros = new StringBuilder();
+		macros.append("\\def\\webmathspadding{xxxxxxxx}\n");
+		for(int size = 8; size < PADDING_SIZE; size *= 2)
+		{
+			macros.append("\\edef\\webmathspadding{\\webmathspadding\\webmathspadding}\n");
+		}
+		macros.append(
+			"\\def\\webmathsmarker#1{\\immediate\\write16{[webmaths-#1]}}\n" +
+			"\\def\\webmathsbegin#1{\\begingroup\\count0=#1\\relax" +
+			"\\setbox0\\hbox\\bgroup$\\displaystyle}\n" +
+			"\\def\\webmathsend#1{$\\egroup\\ht0 0pt\\shipout\\box0 " +
+			"\\count0=-#1\\relax\\shipout\\hbox{\\special{\\webmathspadding}}" +
+			"\\endgroup\\webmathsmarker{page:#1}}\n" +
+			"\\webmathsmarker{ready}\n");
+		DRIVER_MACROS = macros.toString();
+	}
+
+	private final File folder;
+	private final long timeout;
+	private Process process;
+	private TimeoutReader stdout;
+	private OutputStream stdin;
+	private int uses;
+
+	/**
+	 * Starts the worker and waits until it is ready.
+	 * @param command Command used to run LaTeX (the driver filename is added
+	 *   to the end)
+	 * @param environment Extra environment variables (null if none)
+	 * @param prolog LaTeX prolog (everything up to and including
+	 *   begin{document}, or just begin{document} if using a format)
+	 * @param folder Empty folder for this worker's files
+	 * @param timeout Time allowed for start-up or for each equation (ms)
+	 * @throws IOException Any error starting worker
+	 */
+	LatexWorker(String[] command, Map<String, String> environment, String prolog,
+		File folder, long timeout)
+		throws IOException
+	{
+		this.folder = folder;
+		this.timeout = timeout;
+
+		FileOutputStream out = new FileOutputStream(new File(folder, DRIVER_NAME + ".tex"));
+		out.write((prolog + DRIVER_MACROS).getBytes("US-ASCII"));
+		out.close();
+
+		String[] fullCommand = Arrays.copyOf(command, command.length + 1);
+		fullCommand[command.length] = DRIVER_NAME + ".tex";
+		ProcessBuilder builder = new ProcessBuilder(fullCommand).directory(folder).
+			redirectErrorStream(true);
+		if(environment != null)
+		{
+			builder.environment().putAll(environment);
+		}
+		process = builder.start();
+		stdout = new TimeoutReader(process.getInputStream());
+		stdin = process.getOutputStream();
+
+		try
+		{
+			List<String> lines = new LinkedList<String>();
+			long deadline = System.currentTimeMillis() + timeout;
+			while(true)
+			{
+				String line = readLine(deadline, lines);
+				if(line.equals(MARKER_READY))
+				{
+					break;
+				}
+				if(line.startsWith("!"))
+				{
+					throw new IOException("latex worker - error in prolog: " + lines);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Typesets an equation.
+	 * @param tex TeX equation (not including the $ signs)
+	 * @return Page number (count0) of the equation within the DVI file
+	 * @throws IOException If LaTeX reports an error or doesn't respond in time;
+	 *   the worker must be closed
+	 */
+	int typeset(String tex) throws IOException
+	{
+		checkNotClosed();
+		int page = ++uses;
+		stdin.write(("\\webmathsbegin{" + page + "}\n" + tex + "\n\\webmathsend{" +
+			page + "}\n").getBytes("US-ASCII"));
+		stdin.flush();
+
+		List<String> lines = new LinkedList<String>();
+		boolean error = false;
+		long deadline = System.currentTimeMillis() + timeout;
+		while(true)
+		{
+			String line = readLine(deadline, lines);
+			if(line.startsWith("!"))
+			{
+				error = true;
+			}
+			Matcher m = REGEX_PAGE_MARKER.matcher(line);
+			if(m.matches() && Integer.parseInt(m.group(1)) == page)
+			{
+				break;
+			}
+		}
+		if(error)
+		{
+			throw new IOException("latex worker - error: " + lines);
+		}
+		return page;
+	}
+
+	/**
+	 * Reads a line from LaTeX output.
+	 * @param deadline Time by which the line must be read
+	 * @param lines All lines read so far are added to this list
+	 * @return Line
+	 * @throws IOException If there is no line before the deadline
+	 */
+	private String readLine(long deadline, List<String> lines) throws IOException
+	{
+		long remaining = deadline - System.currentTimeMillis();
+		if(remaining <= 0)
+		{
+			throw new IOException("latex worker - timeout: " + lines);
+		}
+		String line = stdout.getNextLine(remaining);
+		lines.add(line);
+		return line;
+	}
+
+	/**
+	 * @return Folder containing the worker's files
+	 */
+	File getFolder()
+	{
+		return folder;
+	}
+
+	/**
+	 * @return Filename of DVI file within folder
+	 */
+	String getDviName()
+	{
+		return DRIVER_NAME + ".dvi";
+	}
+
+	/**
+	 * @return Number of equations sent to this worker
+	 */
+	int getUses()
+	{
+		return uses;
+	}
+
+	private void checkNotClosed()
+	{
+		if(process == null)
+		{
+			throw new IllegalStateException("Already closed: " + this);
+		}
+	}
+
+	/**
+	 * Stops the process and deletes the worker folder.
+	 */
+	void close()
+	{
+		if(process == null)
+		{
+			return;
+		}
+		stdout.requestExit();
+		process.destroy();
+		process = null;
+		stdout.waitForExit();
+		stdout = null;
+		stdin = null;
+		WebMathsImageTex.killFolder(folder);
+	}
+}
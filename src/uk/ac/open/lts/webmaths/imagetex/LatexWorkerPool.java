@@ -0,0 +1,359 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import java.io.*;
+import java.util.*;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Pool of {@link LatexWorker} processes, so that equations can be typeset
+ * without starting LaTeX (and loading the prolog packages) every time.
+ * <p>
+ * Workers are started when needed, up to the pool size. A worker is closed
+ * (and a new one started next time) if it reports an error, doesn't respond
+ * in time, or has been used for the maximum number of equations (because its
+ * DVI file grows with each equation).
+ * <p>
+ * The pool belongs to one LaTeX command line and prolog. If these change (for
+ * example, when the precompiled format stops being used), the old pool is
+ * closed and a new one created.
+ */
+public class LatexWorkerPool
+{
+	/** Servlet parameter: number of LaTeX workers (optional, default 0 = off) */
+	public final static String PARAM_LATEXWORKERS = "latex-workers";
+
+	/** Servlet parameter: time allowed for each equation in ms (optional) */
+	public final static String PARAM_LATEXWORKERTIMEOUT = "latex-worker-timeout";
+
+	/** Default time allowed for each equation */
+	private final static long DEFAULT_TIMEOUT = 10000L;
+
+	/** Number of equations after which a worker is replaced */
+	final static int MAX_USES = 100;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.LatexWorkerPool";
+
+	/**
+	 * Called with the worker's DVI file once an equation has been typeset.
+	 * @param <T> Return type
+	 */
+	public interface PageHandler<T>
+	{
+		/**
+		 * @param folder Folder containing DVI file (may be used for output files,
+		 *   which should be deleted afterwards)
+		 * @param dviName Name of DVI file in folder
+		 * @param page Page number (count0) of the equation
+		 * @return Result
+		 * @throws IOException Any error
+		 * @throws InterruptedException If interrupted
+		 */
+		public T handle(File folder, String dviName, int page)
+			throws IOException, InterruptedException;
+	}
+
+	private final String[] command;
+	private final Map<String, String> environment;
+	private final String prolog;
+	private final File tempFolder;
+	private final int size;
+	private final long timeout;
+
+	private final LinkedList<LatexWorker> available = new LinkedList<LatexWorker>();
+	private int created;
+	private boolean closed;
+
+	/**
+	 * Gets the pool for a servlet context, creating it if necessary. If the
+	 * existing pool was created with a different command, environment or prolog,
+	 * it is closed and replaced.
+	 * @param servletContext Servlet context (null if testing)
+	 * @param command Command used to run LaTeX in scroll mode
+	 * @param environment Extra environment variables (null if none)
+	 * @param prolog LaTeX prolog
+	 * @param tempFolder Folder in which to create worker folders
+	 * @return Pool, or null if workers are not turned on
+	 * @throws IllegalArgumentException If a parameter value is invalid
+	 */
+	public static LatexWorkerPool get(ServletContext servletContext, String[] command,
+		Map<String, String> environment, String prolog, File tempFolder)
+		throws IllegalArgumentException
+	{
+		if(servletContext == null)
+		{
+			return null;
+		}
+		synchronized(servletContext)
+		{
+			LatexWorkerPool pool = (LatexWorkerPool)servletContext.getAttribute(ATTRIBUTE_NAME);
+			if(pool != null && !pool.matches(command, environment, prolog))
+			{
+				// Workers still in use are closed when they are released
+				pool.close();
+				servletContext.removeAttribute(ATTRIBUTE_NAME);
+				pool = null;
+			}
+			if(pool == null)
+			{
+				int workers = (int)getParam(servletContext, PARAM_LATEXWORKERS, 0);
+				if(workers == 0)
+				{
+					return null;
+				}
+				pool = new LatexWorkerPool(command, environment, prolog, tempFolder,
+					workers, getParam(servletContext, PARAM_LATEXWORKERTIMEOUT, DEFAULT_TIMEOUT));
+				servletContext.setAttribute(ATTRIBUTE_NAME, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Closes the pool, if it was created.
+	 * @param servletContext Servlet context
+	 */
+	public static void cleanup(ServletContext servletContext)
+	{
+		synchronized(servletContext)
+		{
+			LatexWorkerPool pool = (LatexWorkerPool)servletContext.getAttribute(ATTRIBUTE_NAME);
+			if(pool != null)
+			{
+				pool.close();
+				servletContext.removeAttribute(ATTRIBUTE_NAME);
+			}
+		}
+	}
+
+	/**
+	 * Gets a non-negative numeric servlet parameter.
+	 * @param servletContext Servlet context
+	 * @param name Parameter name
+	 * @param defaultValue Value if not set
+	 * @return Value
+	 * @throws IllegalArgumentException If the value is not valid
+	 */
+	private static long getParam(ServletContext servletContext, String name,
+		long defaultValue) throws IllegalArgumentException
+	{
+		String value = servletContext.getInitParameter(name);
+		if(value == null)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int result = Integer.parseInt(value);
+			if(result >= 0)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Incorrect value of " + name +
+			" (must be non-negative integer)");
+	}
+
+	/**
+	 * @param command Command used to run LaTeX (the driver filename is added
+	 *   to the end); tests can use a stand-in script
+	 * @param environment Extra environment variables (null if none)
+	 * @param prolog LaTeX prolog
+	 * @param tempFolder Folder in which to create worker folders
+	 * @param size Maximum number of workers
+	 * @param timeout Time allowed for each equation (ms)
+	 */
+	public LatexWorkerPool(String[] command, Map<String, String> environment,
+		String prolog, File tempFolder, int size, long timeout)
+	{
+		this.command = command;
+		this.environment = environment;
+		this.prolog = prolog;
+		this.tempFolder = tempFolder;
+		this.size = size;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param command Command used to run LaTeX
+	 * @param environment Extra environment variables (null if none)
+	 * @param prolog LaTeX prolog
+	 * @return True if this pool starts workers with the same settings
+	 */
+	private boolean matches(String[] command, Map<String, String> environment,
+		String prolog)
+	{
+		return Arrays.equals(this.command, command) &&
+			Objects.equals(this.environment, environment) && this.prolog.equals(prolog);
+	}
+
+	/**
+	 * Typesets an equation using a worker, then calls the handler while the
+	 * worker is still reserved (so that its DVI file doesn't change).
+	 * @param tex TeX equation (not including the $ signs)
+	 * @param handler Handler that converts the page
+	 * @return Result from handler
+	 * @throws IOException If the worker fails (in which case it is replaced), or
+	 *   any error from handler
+	 * @throws InterruptedException If interrupted
+	 */
+	public <T> T typeset(String tex, PageHandler<T> handler)
+		throws IOException, InterruptedException
+	{
+		LatexWorker worker = acquire();
+		boolean ok = false;
+		try
+		{
+			int page = worker.typeset(tex);
+			T result = handler.handle(worker.getFolder(), worker.getDviName(), page);
+			ok = true;
+			return result;
+		}
+		finally
+		{
+			release(worker, ok);
+		}
+	}
+
+	/**
+	 * Gets an available worker, starting one if there are fewer than the
+	 * maximum, or waiting for one otherwise.
+	 * @return Worker
+	 * @throws IOException If a new worker can't be started
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private LatexWorker acquire() throws IOException, InterruptedException
+	{
+		synchronized(available)
+		{
+			while(true)
+			{
+				if(closed)
+				{
+					throw new IOException("latex worker pool closed");
+				}
+				if(!available.isEmpty())
+				{
+					return available.removeFirst();
+				}
+				if(created < size)
+				{
+					created++;
+					break;
+				}
+				available.wait();
+			}
+		}
+
+		// Start the new worker outside the lock, as it takes a while.
+		try
+		{
+			return createWorker();
+		}
+		catch(IOException e)
+		{
+			synchronized(available)
+			{
+				created--;
+				available.notify();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a worker to the pool, or closes it if it isn't reusable.
+	 * @param worker Worker
+	 * @param ok True if the last equation worked
+	 */
+	private void release(LatexWorker worker, boolean ok)
+	{
+		synchronized(available)
+		{
+			if(ok && !closed && worker.getUses() < MAX_USES)
+			{
+				available.addFirst(worker);
+				available.notify();
+				return;
+			}
+			created--;
+			available.notify();
+		}
+		worker.close();
+	}
+
+	/**
+	 * Starts a new worker in its own folder.
+	 * @return Worker
+	 * @throws IOException Any error
+	 */
+	protected LatexWorker createWorker() throws IOException
+	{
+		File folder = new File(tempFolder, "webmaths-worker-" + UUID.randomUUID());
+		if(!folder.mkdir())
+		{
+			throw new IOException("Error creating worker folder: " + folder);
+		}
+		try
+		{
+			return new LatexWorker(command, environment, prolog, folder, timeout);
+		}
+		catch(IOException e)
+		{
+			WebMathsImageTex.killFolder(folder);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Number of workers currently running
+	 */
+	public int getWorkers()
+	{
+		synchronized(available)
+		{
+			return created;
+		}
+	}
+
+	/**
+	 * Closes all available workers. Workers in use are closed when released.
+	 */
+	public void close()
+	{
+		List<LatexWorker> workers;
+		synchronized(available)
+		{
+			closed = true;
+			workers = new ArrayList<LatexWorker>(available);
+			created -= available.size();
+			available.clear();
+			available.notifyAll();
+		}
+		for(LatexWorker worker : workers)
+		{
+			worker.close();
+		}
+	}
+}
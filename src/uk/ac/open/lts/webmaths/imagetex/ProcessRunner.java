@@ -0,0 +1,483 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Runs external processes (latex, dvipng, dvips) with a limit on how many run
+ * at once, so that a burst of requests doesn't start hundreds of processes.
+ * Requests wait (in order) for a free slot, up to a time limit, and processes
+ * that run for too long are killed so that they give their slot back.
+ * <p>
+ * Also keeps timing stats for each program, shown on the status page.
+ */
+public class ProcessRunner
+{
+	/** Servlet parameter: number of processes that can run at once (optional) */
+	public final static String PARAM_LATEXPROCESSES = "latex-processes";
+
+	/** Servlet parameter: time in ms a request can wait to run a process (optional) */
+	public final static String PARAM_LATEXPROCESSWAIT = "latex-process-wait";
+
+	/** Servlet parameter: time in ms a process can run before it is killed (optional) */
+	public final static String PARAM_LATEXPROCESSTIMEOUT = "latex-process-timeout";
+
+	/** Default wait time */
+	private final static int DEFAULT_WAIT = 30000;
+
+	/** Default run time limit */
+	private final static int DEFAULT_TIMEOUT = 60000;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.ProcessRunner";
+
+	private static boolean SHOW_COMMANDS = false;
+
+	private static ProcessRunner localRunner;
+
+	private final int processes;
+	private final long wait;
+	private final long timeout;
+	private final Semaphore slots;
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	/** Stats for each program name (synchronize on map) */
+	private final Map<String, Stats> stats = new TreeMap<String, Stats>();
+
+	/**
+	 * Gets the runner singleton. It is stored in the servlet context if
+	 * supplied, or (for testing only) in a local static.
+	 * @param servletContext Servlet context (null if testing)
+	 * @return Runner
+	 * @throws IllegalArgumentException If a parameter value is invalid
+	 */
+	public static ProcessRunner get(ServletContext servletContext)
+		throws IllegalArgumentException
+	{
+		if(servletContext != null)
+		{
+			synchronized(servletContext)
+			{
+				ProcessRunner runner = (ProcessRunner)servletContext.getAttribute(ATTRIBUTE_NAME);
+				if(runner == null)
+				{
+					runner = new ProcessRunner(
+						getIntParam(servletContext, PARAM_LATEXPROCESSES,
+							Runtime.getRuntime().availableProcessors(), 1),
+						getIntParam(servletContext, PARAM_LATEXPROCESSWAIT, DEFAULT_WAIT, 0),
+						getIntParam(servletContext, PARAM_LATEXPROCESSTIMEOUT, DEFAULT_TIMEOUT, 1));
+					servletContext.setAttribute(ATTRIBUTE_NAME, runner);
+				}
+				return runner;
+			}
+		}
+		else
+		{
+			synchronized(ProcessRunner.class)
+			{
+				if(localRunner == null)
+				{
+					localRunner = new ProcessRunner(
+						Runtime.getRuntime().availableProcessors(), DEFAULT_WAIT, DEFAULT_TIMEOUT);
+				}
+				return localRunner;
+			}
+		}
+	}
+
+	/**
+	 * Gets an integer servlet parameter.
+	 * @param servletContext Servlet context
+	 * @param name Parameter name
+	 * @param defaultValue Value if not set
+	 * @param minimum Minimum allowed value
+	 * @return Value
+	 * @throws IllegalArgumentException If the value is not an integer or too low
+	 */
+	private static int getIntParam(ServletContext servletContext, String name,
+		int defaultValue, int minimum) throws IllegalArgumentException
+	{
+		String value = servletContext.getInitParameter(name);
+		if(value == null)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int result = Integer.parseInt(value);
+			if(result >= minimum)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Incorrect value of " + name +
+			" (must be integer, at least " + minimum + ")");
+	}
+
+	/**
+	 * @param processes Number of processes that can run at once
+	 * @param wait Time a request can wait for a free slot (ms)
+	 * @param timeout Time a process can run before it is killed (ms)
+	 */
+	ProcessRunner(int processes, long wait, long timeout)
+	{
+		this.processes = processes;
+		this.wait = wait;
+		this.timeout = timeout;
+		slots = new Semaphore(processes, true);
+	}
+
+	/**
+	 * Output from a process.
+	 */
+	public static class Output
+	{
+		private final String[] stdout, stderr;
+
+		private Output(String[] stdout, String[] stderr)
+		{
+			this.stdout = stdout;
+			this.stderr = stderr;
+		}
+
+		/**
+		 * @return Lines written to standard output
+		 */
+		public String[] getStdout()
+		{
+			return stdout;
+		}
+
+		/**
+		 * @return Lines written to standard error
+		 */
+		public String[] getStderr()
+		{
+			return stderr;
+		}
+	}
+
+	/**
+	 * Timing stats for one program.
+	 */
+	public static class Stats
+	{
+		private int runs, timeouts, kills;
+		private long runTime, maxRunTime, waitTime, maxWaitTime;
+
+		private Stats()
+		{
+		}
+
+		private Stats(Stats other)
+		{
+			runs = other.runs;
+			timeouts = other.timeouts;
+			kills = other.kills;
+			runTime = other.runTime;
+			maxRunTime = other.maxRunTime;
+			waitTime = other.waitTime;
+			maxWaitTime = other.maxWaitTime;
+		}
+
+		/**
+		 * @return Number of times the program was run
+		 */
+		public int getRuns()
+		{
+			return runs;
+		}
+
+		/**
+		 * @return Number of requests that gave up waiting for a free slot
+		 */
+		public int getTimeouts()
+		{
+			return timeouts;
+		}
+
+		/**
+		 * @return Number of processes killed for running too long
+		 */
+		public int getKills()
+		{
+			return kills;
+		}
+
+		/**
+		 * @return Total time spent running (ms)
+		 */
+		public long getRunTime()
+		{
+			return runTime;
+		}
+
+		/**
+		 * @return Longest single run (ms)
+		 */
+		public long getMaxRunTime()
+		{
+			return maxRunTime;
+		}
+
+		/**
+		 * @return Total time spent waiting for a free slot (ms)
+		 */
+		public long getWaitTime()
+		{
+			return waitTime;
+		}
+
+		/**
+		 * @return Longest single wait (ms)
+		 */
+		public long getMaxWaitTime()
+		{
+			return maxWaitTime;
+		}
+	}
+
+	/**
+	 * Runs a process and waits for it to finish. If the maximum number of
+	 * processes are already running, waits for one to finish first.
+	 * @param command Command and arguments
+	 * @param environment Extra environment variables (null if none)
+	 * @param cwd Working directory
+	 * @return Output from process
+	 * @throws IOException If the process can't be run, there was no free
+	 *   slot within the time limit, or it was killed for running too long
+	 * @throws InterruptedException If interrupted
+	 */
+	public Output run(String[] command, Map<String, String> environment, File cwd)
+		throws IOException, InterruptedException
+	{
+		String name = new File(command[0]).getName();
+		long start = System.currentTimeMillis();
+		waiting.incrementAndGet();
+		boolean acquired;
+		try
+		{
+			acquired = slots.tryAcquire(wait, TimeUnit.MILLISECONDS);
+		}
+		finally
+		{
+			waiting.decrementAndGet();
+		}
+		long started = System.currentTimeMillis();
+		if(!acquired)
+		{
+			synchronized(stats)
+			{
+				getStats(name).timeouts++;
+			}
+			throw new IOException("Timed out waiting to run " + name + " (" +
+				processes + " processes busy)");
+		}
+
+		try
+		{
+			if(SHOW_COMMANDS)
+			{
+				StringBuilder commandString = new StringBuilder();
+				for(String param : command)
+				{
+					commandString.append(param);
+					commandString.append(' ');
+				}
+				System.err.println("[WEBMATHS] Exec: " + commandString.toString().trim());
+			}
+			ProcessBuilder builder = new ProcessBuilder(command).directory(cwd);
+			if(environment != null)
+			{
+				builder.environment().putAll(environment);
+			}
+			Process process = builder.start();
+			EaterThread stderr = new EaterThread(process.getErrorStream());
+			EaterThread stdout = new EaterThread(process.getInputStream());
+			if(!process.waitFor(timeout, TimeUnit.MILLISECONDS))
+			{
+				process.destroyForcibly();
+				synchronized(stats)
+				{
+					getStats(name).kills++;
+				}
+				throw new IOException("Killed " + name + " after running for " +
+					timeout + "ms");
+			}
+			return new Output(stdout.getLines(), stderr.getLines());
+		}
+		finally
+		{
+			slots.release();
+			long finished = System.currentTimeMillis();
+			synchronized(stats)
+			{
+				Stats programStats = getStats(name);
+				programStats.runs++;
+				programStats.runTime += finished - started;
+				programStats.maxRunTime = Math.max(programStats.maxRunTime, finished - started);
+				programStats.waitTime += started - start;
+				programStats.maxWaitTime = Math.max(programStats.maxWaitTime, started - start);
+			}
+		}
+	}
+
+	/**
+	 * @param name Program name
+	 * @return Stats object for program (must be called while synchronized)
+	 */
+	private Stats getStats(String name)
+	{
+		Stats programStats = stats.get(name);
+		if(programStats == null)
+		{
+			programStats = new Stats();
+			stats.put(name, programStats);
+		}
+		return programStats;
+	}
+
+	/**
+	 * @return Copy of current stats for each program, in name order
+	 */
+	public Map<String, Stats> getStats()
+	{
+		Map<String, Stats> result = new TreeMap<String, Stats>();
+		synchronized(stats)
+		{
+			for(Map.Entry<String, Stats> entry : stats.entrySet())
+			{
+				result.put(entry.getKey(), new Stats(entry.getValue()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Maximum number of processes that can run at once
+	 */
+	public int getProcesses()
+	{
+		return processes;
+	}
+
+	/**
+	 * @return Number of processes running now
+	 */
+	public int getRunning()
+	{
+		return processes - slots.availablePermits();
+	}
+
+	/**
+	 * @return Number of requests waiting for a free slot now
+	 */
+	public int getWaiting()
+	{
+		return waiting.get();
+	}
+
+	private static class EaterThread extends Thread
+	{
+		private BufferedReader buffer;
+		private LinkedList<String> lines = new LinkedList<String>();
+		private boolean running;
+
+		public EaterThread(InputStream stream) throws IOException
+		{
+			this.buffer = new BufferedReader(new InputStreamReader(stream, "US-ASCII"));
+			running = true;
+			start();
+		}
+
+		public synchronized String[] getLines() throws InterruptedException,
+			IllegalStateException
+		{
+			synchronized(this)
+			{
+				if(running)
+				{
+					wait(10000);
+				}
+				if(running)
+				{
+					throw new IllegalStateException(
+						"Attempt to getLines when process not finished");
+				}
+			}
+			return lines.toArray(new String[lines.size()]);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(true)
+				{
+					String line = buffer.readLine();
+					if(line == null)
+					{
+						if(SHOW_COMMANDS)
+						{
+							System.err.println("[WEBMATHS] (EOF)");
+						}
+						return;
+					}
+					if(SHOW_COMMANDS)
+					{
+						System.err.println("[WEBMATHS] " + line);
+					}
+					lines.add(line);
+				}
+			}
+			catch(IOException e)
+			{
+				// If there's any kind of error, exit the thread
+			}
+			finally
+			{
+				if(buffer != null)
+				{
+					try
+					{
+						buffer.close();
+					}
+					catch(IOException e)
+					{
+					}
+					buffer = null;
+				}
+				synchronized(this)
+				{
+					running = false;
+					notify();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.LinkedList;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Pool of reusable work folders for LaTeX and dvipng, so that each request
+ * doesn't have to create and delete a folder. Folders are emptied when they
+ * are returned to the pool.
+ * <p>
+ * The folders are kept in a root folder (webmaths-work) within the temp
+ * directory, which is locked while the pool is in use. If another
+ * application has the lock, the next name is tried (webmaths-work-2, etc).
+ * When a pool starts, any folders left in its root (for example, after a
+ * crash) are emptied and reused.
+ * <p>
+ * For best performance the temp directory should be on a memory filesystem
+ * such as /dev/shm.
+ */
+public class TempFolderPool
+{
+	/** Name of root folder (within temp directory) */
+	final static String ROOT_NAME = "webmaths-work";
+
+	/** Name of lock file within root folder */
+	private final static String LOCK_NAME = "lock";
+
+	/** Maximum number of root folders to try */
+	private final static int MAX_ROOTS = 100;
+
+	/** Maximum number of empty folders kept for reuse */
+	final static int MAX_IDLE = 32;
+
+	private final static String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.TempFolderPool";
+
+	private static TempFolderPool localPool;
+
+	private final File root;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final LinkedList<File> idle = new LinkedList<File>();
+	private int next = 1;
+	private boolean closed;
+
+	/**
+	 * Gets the pool for a servlet context, creating it if necessary. It is
+	 * stored in the servlet context if supplied, or (for testing only) in a
+	 * local static.
+	 * @param servletContext Servlet context (null if testing)
+	 * @param tempFolder Temp directory
+	 * @return Pool
+	 * @throws IOException If the pool can't be created
+	 */
+	public static TempFolderPool get(ServletContext servletContext, File tempFolder)
+		throws IOException
+	{
+		if(servletContext != null)
+		{
+			synchronized(servletContext)
+			{
+				TempFolderPool pool = (TempFolderPool)servletContext.getAttribute(ATTRIBUTE_NAME);
+				if(pool == null)
+				{
+					pool = new TempFolderPool(tempFolder);
+					servletContext.setAttribute(ATTRIBUTE_NAME, pool);
+				}
+				return pool;
+			}
+		}
+		else
+		{
+			synchronized(TempFolderPool.class)
+			{
+				if(localPool == null)
+				{
+					localPool = new TempFolderPool(tempFolder);
+				}
+				return localPool;
+			}
+		}
+	}
+
+	/**
+	 * Closes the pool, if it was created.
+	 * @param servletContext Servlet context
+	 */
+	public static void cleanup(ServletContext servletContext)
+	{
+		synchronized(servletContext)
+		{
+			TempFolderPool pool = (TempFolderPool)servletContext.getAttribute(ATTRIBUTE_NAME);
+			if(pool != null)
+			{
+				pool.close();
+				servletContext.removeAttribute(ATTRIBUTE_NAME);
+			}
+		}
+	}
+
+	/**
+	 * Creates the pool, locking a root folder and reclaiming any folders left
+	 * in it.
+	 * @param tempFolder Temp directory
+	 * @throws IOException If no root folder can be locked
+	 */
+	TempFolderPool(File tempFolder) throws IOException
+	{
+		for(int i = 1; i <= MAX_ROOTS; i++)
+		{
+			File candidate = new File(tempFolder, i == 1 ? ROOT_NAME : ROOT_NAME + "-" + i);
+			if(!candidate.isDirectory() && !candidate.mkdir() && !candidate.isDirectory())
+			{
+				continue;
+			}
+			FileChannel channel = new RandomAccessFile(
+				new File(candidate, LOCK_NAME), "rw").getChannel();
+			FileLock candidateLock = null;
+			try
+			{
+				candidateLock = channel.tryLock();
+			}
+			catch(OverlappingFileLockException e)
+			{
+				// Locked by another pool in this JVM
+			}
+			if(candidateLock != null)
+			{
+				root = candidate;
+				lockChannel = channel;
+				lock = candidateLock;
+				reclaim();
+				return;
+			}
+			channel.close();
+		}
+		throw new IOException("Unable to lock a work folder in " + tempFolder);
+	}
+
+	/**
+	 * Empties and reuses folders left in the root folder.
+	 */
+	private void reclaim()
+	{
+		File[] folders = root.listFiles();
+		if(folders == null)
+		{
+			return;
+		}
+		for(File folder : folders)
+		{
+			if(!folder.isDirectory())
+			{
+				continue;
+			}
+			try
+			{
+				next = Math.max(next, Integer.parseInt(folder.getName()) + 1);
+			}
+			catch(NumberFormatException e)
+			{
+			}
+			if(scrub(folder) && idle.size() < MAX_IDLE)
+			{
+				idle.add(folder);
+			}
+			else
+			{
+				delete(folder);
+			}
+		}
+	}
+
+	/**
+	 * Gets an empty folder.
+	 * @return Folder
+	 * @throws IOException If a new folder can't be created
+	 */
+	public synchronized File acquire() throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Work folder pool closed");
+		}
+		if(!idle.isEmpty())
+		{
+			return idle.removeFirst();
+		}
+		File folder = new File(root, "" + (next++));
+		if(!folder.mkdir())
+		{
+			throw new IOException("Error creating work folder: " + folder);
+		}
+		return folder;
+	}
+
+	/**
+	 * Empties a folder and returns it to the pool (or deletes it, if the pool
+	 * has enough spare folders or it couldn't be emptied).
+	 * @param folder Folder from {@link #acquire()}
+	 */
+	public void release(File folder)
+	{
+		boolean clean = scrub(folder);
+		synchronized(this)
+		{
+			if(clean && !closed && idle.size() < MAX_IDLE)
+			{
+				// Most recently used first, as it's more likely to be in cache
+				idle.addFirst(folder);
+				return;
+			}
+		}
+		delete(folder);
+	}
+
+	/**
+	 * Deletes all files in a folder (not recursive as we do not create
+	 * subfolders).
+	 * @param folder Folder
+	 * @return True if the folder is now empty
+	 */
+	private static boolean scrub(File folder)
+	{
+		File[] files = folder.listFiles();
+		if(files == null)
+		{
+			return false;
+		}
+		boolean ok = true;
+		for(File file : files)
+		{
+			if(!file.delete())
+			{
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * Deletes a folder and everything in it, including any subfolders left by
+	 * the programs that used it. Logs an error if it can't be deleted.
+	 * @param folder Folder
+	 */
+	private static void delete(File folder)
+	{
+		File[] files = folder.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				if(file.isDirectory())
+				{
+					delete(file);
+				}
+				else
+				{
+					file.delete();
+				}
+			}
+		}
+		if(!folder.delete() && folder.exists())
+		{
+			System.err.println("[WEBMATHS] Unable to delete work folder: " + folder);
+		}
+	}
+
+	/**
+	 * @return Root folder containing the work folders
+	 */
+	File getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Deletes spare folders and releases the lock on the root folder.
+	 */
+	public void close()
+	{
+		synchronized(this)
+		{
+			closed = true;
+			for(File folder : idle)
+			{
+				folder.delete();
+			}
+			idle.clear();
+		}
+		try
+		{
+			lock.release();
+			lockChannel.close();
+		}
+		catch(IOException e)
+		{
+			// Ignore (the lock goes when the process exits anyway)
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.regex.*;
 
@@ -29,6 +30,7 @@ import javax.annotation.Resource;
 import javax.imageio.ImageIO;
 import javax.jws.WebService;
 import javax.servlet.ServletContext;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.handler.MessageContext;
 
@@ -45,8 +47,6 @@ public class WebMathsImageTex extends WebMathsImage
 	@Resource
 	private WebServiceContext context;
 
-	private final static int MAX_TEMP_FOLDER_ATTEMPTS = 10;
-
 	private final static float BASE_PIXEL_SIZE = 18.0f;
 
 	private static boolean SHOWPERFORMANCE = false, SHOW_COMMANDS = false;
@@ -92,60 +92,233 @@ public class WebMathsImageTex extends WebMathsImage
 
 		try
 		{
-			// Parse MathML
-			Document mathml = parseMathml(params, result, start);
-			if(mathml == null)
+			// Get TeX, or render using JEuclid
+			String tex = getTex(params, result, start);
+			if(tex == null)
 			{
 				return result;
 			}
 
-			Mode renderingMode = getMode(mathml);
+			// Create the PNG
+			texToPng(tex, params.getRgb(), params.getSize(), result);
+
 			if(SHOWPERFORMANCE)
 			{
-				System.err.println("Decide mode: " + (System.currentTimeMillis() - start));
+				System.err.println("End: " + (System.currentTimeMillis() - start));
 			}
+			return result;
+		}
+		catch(Throwable t)
+		{
+			result.setError("MathML/LaTeX unexpected error - " + t.getMessage());
+			t.printStackTrace();
+			return result;
+		}
+	}
 
-			// If we're using the MathML renderer, call that from base class
-			if(renderingMode == Mode.MATHML)
+	/**
+	 * Renders several equations. Equations that need LaTeX are typeset in a
+	 * single LaTeX run and converted with a single dvipng run (one run of each
+	 * for every different size and colour).
+	 * @param params Equations
+	 * @return Results in same order
+	 */
+	@Override
+	public MathsImagesReturn getImages(MathsImagesParams params)
+	{
+		long start = System.currentTimeMillis();
+		MathsImagesReturn results = new MathsImagesReturn();
+
+		// Equations that need LaTeX, grouped by dpi and colour
+		Map<String, List<BatchItem>> batches = new LinkedHashMap<String, List<BatchItem>>();
+		LatexCache cache = LatexCache.get(getServletContext());
+		for(MathsImageParams equation : params.getMathsImageParams())
+		{
+			MathsImageReturn result = new MathsImageReturn();
+			result.setOk(false);
+			result.setError("");
+			result.setImage(EMPTY);
+			results.getMathsImageReturn().add(result);
+
+			try
+			{
+				String tex = getTex(equation, result, start);
+				if(tex == null)
+				{
+					continue;
+				}
+				if(tex.trim().equals(""))
+				{
+					texToPng(tex, equation.getRgb(), equation.getSize(), result);
+					continue;
+				}
+				int dpi = getDpi(equation.getSize());
+				Color fg = convertRgb(equation.getRgb());
+				String cacheKey = cache == null ? null : LatexCache.getKey(tex, dpi);
+				if(cacheKey != null)
+				{
+					AlphaMaskCache.Mask mask = cache.getMask(cacheKey);
+					if(mask != null)
+					{
+						saveImage(mask.tint(fg), mask.getBaseline(), result, start);
+						continue;
+					}
+				}
+				// Cacheable equations are rendered in black, then tinted
+				BatchItem item = new BatchItem(tex, dpi,
+					getTexColour(cacheKey == null ? fg : Color.BLACK), cacheKey, fg,
+					equation, result);
+				String key = item.dpi + " " + item.texFg;
+				List<BatchItem> batch = batches.get(key);
+				if(batch == null)
+				{
+					batch = new ArrayList<BatchItem>();
+					batches.put(key, batch);
+				}
+				batch.add(item);
+			}
+			catch(Throwable t)
 			{
-				return super.getImage(params, mathml, result, start);
+				result.setError("MathML/LaTeX unexpected error - " + t.getMessage());
+				t.printStackTrace();
 			}
+		}
 
-			// Convert MathML to LaTeX
-			String tex;
+		for(List<BatchItem> batch : batches.values())
+		{
 			try
 			{
-				tex = getMathmlToLatex().convert(mathml, renderingMode == Mode.LATEX);
+				texToPngBatch(batch);
 			}
-			catch(UnsupportedMathmlException e)
+			catch(Throwable t)
 			{
-				// Fallback
-				if(SHOWPERFORMANCE)
+				// If anything goes wrong (for example, a LaTeX error in one equation
+				// affects the others), do them one at a time
+				if(SHOW_COMMANDS)
 				{
-					System.err.println("Selecting fallback: " + (System.currentTimeMillis() - start));
+					System.err.println("[WEBMATHS] Batch failed: " + t.getMessage());
 				}
-				return super.getImage(params, mathml, result, start);
+				for(BatchItem item : batch)
+				{
+					try
+					{
+						texToPng(item.tex, item.params.getRgb(), item.params.getSize(), item.result);
+					}
+					catch(Throwable t2)
+					{
+						item.result.setError("MathML/LaTeX unexpected error - " + t2.getMessage());
+						t2.printStackTrace();
+					}
+				}
+				continue;
 			}
-			if(SHOWPERFORMANCE)
+			for(BatchItem item : batch)
 			{
-				System.err.println("Convert to LaTeX: " + (System.currentTimeMillis() - start));
+				if(item.cacheKey == null || !item.result.isOk())
+				{
+					continue;
+				}
+				try
+				{
+					cacheAndTint(cache, item.cacheKey, item.fg, item.result);
+				}
+				catch(Throwable t)
+				{
+					item.result.setOk(false);
+					item.result.setImage(EMPTY);
+					item.result.setError("MathML/LaTeX unexpected error - " + t.getMessage());
+					t.printStackTrace();
+				}
 			}
+		}
 
-			// Create the PNG
-			texToPng(tex, params.getRgb(), params.getSize(), result);
+		if(SHOWPERFORMANCE)
+		{
+			System.err.println("End batch: " + (System.currentTimeMillis() - start));
+		}
+		return results;
+	}
+
+	/**
+	 * Equation waiting to be rendered as part of a batch.
+	 */
+	private static class BatchItem
+	{
+		private final String tex;
+		private final int dpi;
+		private final String texFg;
+		private final String cacheKey;
+		private final Color fg;
+		private final MathsImageParams params;
+		private final MathsImageReturn result;
+
+		private BatchItem(String tex, int dpi, String texFg, String cacheKey, Color fg,
+			MathsImageParams params, MathsImageReturn result)
+		{
+			this.tex = tex;
+			this.dpi = dpi;
+			this.texFg = texFg;
+			this.cacheKey = cacheKey;
+			this.fg = fg;
+			this.params = params;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Parses the MathML and converts it to TeX. If the equation should not be
+	 * rendered with LaTeX, renders it with JEuclid instead.
+	 * @param params Request parameters
+	 * @param result Initialised result object
+	 * @param start Start time of request (milliseconds since epoch)
+	 * @return TeX, or null if result has already been filled in (rendered or
+	 *   error)
+	 * @throws Exception Any error
+	 */
+	private String getTex(MathsImageParams params, MathsImageReturn result,
+		long start) throws Exception
+	{
+		// Parse MathML
+		Document mathml = parseMathml(params, result, start);
+		if(mathml == null)
+		{
+			return null;
+		}
+
+		Mode renderingMode = getMode(mathml);
+		if(SHOWPERFORMANCE)
+		{
+			System.err.println("Decide mode: " + (System.currentTimeMillis() - start));
+		}
+
+		// If we're using the MathML renderer, call that from base class
+		if(renderingMode == Mode.MATHML)
+		{
+			super.getImage(params, mathml, result, start);
+			return null;
+		}
 
+		// Convert MathML to LaTeX
+		String tex;
+		try
+		{
+			tex = getMathmlToLatex().convert(mathml, renderingMode == Mode.LATEX);
+		}
+		catch(UnsupportedMathmlException e)
+		{
+			// Fallback
 			if(SHOWPERFORMANCE)
 			{
-				System.err.println("End: " + (System.currentTimeMillis() - start));
+				System.err.println("Selecting fallback: " + (System.currentTimeMillis() - start));
 			}
-			return result;
+			super.getImage(params, mathml, result, start);
+			return null;
 		}
-		catch(Throwable t)
+		if(SHOWPERFORMANCE)
 		{
-			result.setError("MathML/LaTeX unexpected error - " + t.getMessage());
-			t.printStackTrace();
-			return result;
+			System.err.println("Convert to LaTeX: " + (System.currentTimeMillis() - start));
 		}
+		return tex;
 	}
 
 	@Override
@@ -280,12 +453,15 @@ public class WebMathsImageTex extends WebMathsImage
 
 	/**
 	 * @return Converter used to change MathML to LaTeX
+	 * @throws IOException Error loading XSL
+	 * @throws TransformerConfigurationException Error compiling XSL
 	 */
 	synchronized public MathmlToLatex getMathmlToLatex()
+		throws IOException, TransformerConfigurationException
 	{
 		if(converter == null)
 		{
-			converter = new MathmlToLatex(getFixer());
+			converter = new MathmlToLatex(getServletContext(), getFixer());
 		}
 		return converter;
 	}
@@ -314,6 +490,106 @@ public class WebMathsImageTex extends WebMathsImage
 			return;
 		}
 
+		// Get colour, size parameters
+		int dpi = getDpi(size);
+		Color fg = convertRgb(rgb);
+
+		// Use cached result if available
+		LatexCache cache = LatexCache.get(getServletContext());
+		String key = cache == null ? null : LatexCache.getKey(tex, dpi);
+		if(key != null)
+		{
+			AlphaMaskCache.Mask mask = cache.getMask(key);
+			if(mask != null)
+			{
+				saveImage(mask.tint(fg), mask.getBaseline(), result, System.currentTimeMillis());
+				return;
+			}
+
+			// Render in black so the result can be cached as a mask and tinted
+			renderPng(tex, dpi, getTexColour(Color.BLACK), result);
+			cacheAndTint(cache, key, fg, result);
+		}
+		else
+		{
+			renderPng(tex, dpi, getTexColour(fg), result);
+		}
+	}
+
+	/**
+	 * Stores a PNG result (drawn in black) in the cache, then changes the result
+	 * to the required colour.
+	 * @param cache Cache
+	 * @param key Cache key
+	 * @param fg Required colour
+	 * @param result Result containing black image; will be replaced
+	 * @throws IOException If the PNG can't be read
+	 */
+	private void cacheAndTint(LatexCache cache, String key, Color fg,
+		MathsImageReturn result) throws IOException
+	{
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(result.getImage()));
+		if(image == null)
+		{
+			throw new IOException("dvipng: unable to read PNG");
+		}
+		AlphaMaskCache.Mask mask = AlphaMaskCache.Mask.fromBlackImage(
+			image, result.getBaseline().intValue());
+		cache.putMask(key, mask);
+		saveImage(mask.tint(fg), mask.getBaseline(), result, System.currentTimeMillis());
+	}
+
+	/**
+	 * Converts TeX to an image using LaTeX and dvipng. Value will be placed in
+	 * the result parameter.
+	 * @param tex TeX string (not blank)
+	 * @param dpi Resolution
+	 * @param texFg Foreground colour in dvipng format
+	 * @param result Out parameter; output image goes here
+	 * @throws IOException Any error
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private void renderPng(String tex, final int dpi, final String texFg,
+		final MathsImageReturn result) throws IOException, InterruptedException
+	{
+		// Use a persistent LaTeX worker if available
+		LatexWorkerPool pool = getWorkerPool();
+		if(pool != null)
+		{
+			try
+			{
+				pool.typeset(tex, new LatexWorkerPool.PageHandler<Void>()
+				{
+					@Override
+					public Void handle(File folder, String dviName, int page)
+						throws IOException, InterruptedException
+					{
+						String png = "eq" + page + ".png";
+						try
+						{
+							dviToPng(folder, dviName, new String[] { "-p", "" + page, "-l", "" + page },
+								png, dpi, texFg, result);
+						}
+						finally
+						{
+							new File(folder, png).delete();
+						}
+						return null;
+					}
+				});
+				return;
+			}
+			catch(IOException e)
+			{
+				// If the worker fails (for example, the equation has a LaTeX error),
+				// run LaTeX separately as before; it is more forgiving of errors.
+				if(SHOW_COMMANDS)
+				{
+					System.err.println("[WEBMATHS] Worker failed: " + e.getMessage());
+				}
+			}
+		}
+
 		// Create temp folder and ensure we delete it when finished
 		File tempFolder = createTempFolder();
 		try
@@ -321,41 +597,150 @@ public class WebMathsImageTex extends WebMathsImage
 			// Create DVI file in folder
 			createDvi(tex, tempFolder);
 
-			// Get colour, size parameters
-			int dpi = Math.round((float)(BASE_PIXEL_SIZE * 72.27 / 10.0) * size);
-			Color fg = convertRgb(rgb);
-			float[] components = fg.getRGBColorComponents(null);
-			String texFg = "rgb " + components[0] + " " + components[1] + " " + components[2];
-
 			// Convert DVI to PNG
+			dviToPng(tempFolder, "eq.dvi", new String[] { "-l", "1" }, "eq.png",
+				dpi, texFg, result);
+		}
+		finally
+		{
+			releaseTempFolder(tempFolder);
+		}
+	}
+
+	/**
+	 * Converts a batch of equations (all the same size and colour) to images.
+	 * Values will be placed in the result for each item, but only if all of them
+	 * work.
+	 * @param batch Batch of equations
+	 * @throws IOException Any error
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private void texToPngBatch(List<BatchItem> batch)
+		throws IOException, InterruptedException
+	{
+		// Create temp folder and ensure we delete it when finished
+		File tempFolder = createTempFolder();
+		try
+		{
+			// Create DVI file with one page per equation. The equation* environment
+			// isn't used here because it would leave displays on the main page list,
+			// which LaTeX would eventually ship out as extra pages.
+			StringBuilder body = new StringBuilder();
+			for(BatchItem item : batch)
+			{
+				body.append(TEX_PRE_PAGE);
+				body.append(item.tex);
+				body.append(TEX_POST_PAGE);
+			}
+			runLatex(body.toString(), tempFolder);
+
+			// Convert all pages to PNG
 			String dvipng = getParam("dvipng-executable", "dvipng");
+			BatchItem first = batch.get(0);
 			String[] stdout = runProcess(
-				new String[] {dvipng, "-q", "-D", "" + dpi, "-fg", texFg, "-bg", "Transparent",
-					"--truecolor", "-l", "1", "--depth", "-o", "eq.png", "eq.dvi" }, tempFolder);
+				new String[] {dvipng, "-q", "-D", "" + first.dpi, "-fg", first.texFg,
+					"-bg", "Transparent", "--truecolor", "--depth", "-o", "eq%d.png",
+					"eq.dvi" }, tempFolder).getStdout();
 
-			// Get baseline from stdout value
-			if(stdout.length < 1)
+			// Get baseline for each page from stdout
+			List<BigInteger> baselines = new ArrayList<BigInteger>();
+			for(String line : stdout)
 			{
-				throw new IOException("dvipng: no return");
+				Matcher m = DVIPNG_DEPTH_ANYWHERE.matcher(line);
+				while(m.find())
+				{
+					baselines.add(new BigInteger(m.group(1)));
+				}
 			}
-			String lastLine = stdout[stdout.length - 1];
-			Matcher m = DVIPNG_DEPTH.matcher(lastLine);
-			if(!m.matches())
+			if(baselines.size() != batch.size())
 			{
-				throw new IOException("dvipng: unexpected return: " + lastLine);
+				throw new IOException("dvipng: expected " + batch.size() +
+					" depths, got " + baselines.size());
 			}
-			result.setBaseline(new BigInteger(m.group(1)));
 
-			// Load PNG image and return
-			result.setImage(loadFile(tempFolder, "eq.png"));
-			result.setOk(true);
+			// Load all images before setting any results
+			byte[][] images = new byte[batch.size()][];
+			for(int i = 0; i < batch.size(); i++)
+			{
+				images[i] = loadFile(tempFolder, "eq" + (i + 1) + ".png");
+			}
+			for(int i = 0; i < batch.size(); i++)
+			{
+				MathsImageReturn result = batch.get(i).result;
+				result.setBaseline(baselines.get(i));
+				result.setImage(images[i]);
+				result.setOk(true);
+			}
 		}
 		finally
 		{
-			killFolder(tempFolder);
+			releaseTempFolder(tempFolder);
 		}
 	}
 
+	/**
+	 * @param size Size as float (1.0 = default)
+	 * @return Resolution for dvipng
+	 */
+	private static int getDpi(float size)
+	{
+		return Math.round((float)(BASE_PIXEL_SIZE * 72.27 / 10.0) * size);
+	}
+
+	/**
+	 * @param fg Foreground colour
+	 * @return Colour in dvipng format
+	 */
+	private static String getTexColour(Color fg)
+	{
+		float[] components = fg.getRGBColorComponents(null);
+		return "rgb " + components[0] + " " + components[1] + " " + components[2];
+	}
+
+	/**
+	 * Converts a page of a DVI file to PNG using dvipng. Value will be placed in
+	 * the result parameter.
+	 * @param folder Folder containing DVI file
+	 * @param dviName Name of DVI file
+	 * @param pages dvipng options to select the page
+	 * @param png Name of PNG file to create in folder
+	 * @param dpi Resolution
+	 * @param texFg Foreground colour in dvipng format
+	 * @param result Out parameter; output image goes here
+	 * @throws IOException Any error running dvipng
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private void dviToPng(File folder, String dviName, String[] pages, String png,
+		int dpi, String texFg, MathsImageReturn result)
+		throws IOException, InterruptedException
+	{
+		String dvipng = getParam("dvipng-executable", "dvipng");
+		List<String> command = new ArrayList<String>(Arrays.asList(
+			dvipng, "-q", "-D", "" + dpi, "-fg", texFg, "-bg", "Transparent",
+			"--truecolor"));
+		command.addAll(Arrays.asList(pages));
+		command.addAll(Arrays.asList("--depth", "-o", png, dviName));
+		String[] stdout = runProcess(
+			command.toArray(new String[command.size()]), folder).getStdout();
+
+		// Get baseline from stdout value
+		if(stdout.length < 1)
+		{
+			throw new IOException("dvipng: no return");
+		}
+		String lastLine = stdout[stdout.length - 1];
+		Matcher m = DVIPNG_DEPTH.matcher(lastLine);
+		if(!m.matches())
+		{
+			throw new IOException("dvipng: unexpected return: " + lastLine);
+		}
+		result.setBaseline(new BigInteger(m.group(1)));
+
+		// Load PNG image and return
+		result.setImage(loadFile(folder, png));
+		result.setOk(true);
+	}
+
 	/**
 	 * Converts TeX to an EPS image. Value (or error) will be placed in the result
 	 * parameter.
@@ -374,6 +759,19 @@ public class WebMathsImageTex extends WebMathsImage
 			return;
 		}
 
+		// Use cached result if available
+		LatexCache cache = LatexCache.get(getServletContext());
+		if(cache != null)
+		{
+			byte[] eps = cache.getEps(tex);
+			if(eps != null)
+			{
+				result.setEps(eps);
+				result.setOk(true);
+				return;
+			}
+		}
+
 		// Get latex and dvips executable paths, and temp folder
 		String dvips = getParam("dvips-executable", "dvips");
 
@@ -389,12 +787,17 @@ public class WebMathsImageTex extends WebMathsImage
 				new String[] {dvips, "-l", "=1", "-E", "-o", "eq.eps", "eq.dvi" }, tempFolder);
 
 			// Load image and finish
-			result.setEps(loadFile(tempFolder, "eq.eps"));
+			byte[] eps = loadFile(tempFolder, "eq.eps");
+			if(cache != null)
+			{
+				cache.putEps(tex, eps);
+			}
+			result.setEps(eps);
 			result.setOk(true);
 		}
 		finally
 		{
-			killFolder(tempFolder);
+			releaseTempFolder(tempFolder);
 		}
 	}
 
@@ -408,12 +811,7 @@ public class WebMathsImageTex extends WebMathsImage
 	private byte[] loadFile(File tempFolder, String filename)
 		throws IOException
 	{
-		File file = new File(tempFolder, filename);
-		FileInputStream in = new FileInputStream(file);
-		byte[] image = new byte[(int)file.length()];
-		in.read(image);
-		in.close();
-		return image;
+		return Files.readAllBytes(new File(tempFolder, filename).toPath());
 	}
 
 	/**
@@ -427,10 +825,59 @@ public class WebMathsImageTex extends WebMathsImage
 	private void createDvi(String tex, File tempFolder)
 		throws UnsupportedEncodingException, FileNotFoundException, IOException,
 			InterruptedException
+	{
+		runLatex(TEX_PRE_ITEM + tex + TEX_POST_ITEM, tempFolder);
+	}
+
+	/**
+	 * Runs LaTeX on a document to create eq.dvi.
+	 * @param body Document body (between prolog and epilog)
+	 * @param tempFolder Temp folder
+	 * @throws IOException IO errors
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private void runLatex(String body, File tempFolder)
+		throws IOException, InterruptedException
+	{
+		// Use precompiled format if available
+		LatexFormat format = getLatexFormat(getServletContext());
+		if(format != null)
+		{
+			if(runLatex(TEX_BEGIN_DOCUMENT + body + TEX_EPILOG, format, tempFolder) == null)
+			{
+				return;
+			}
+		}
+		ProcessRunner.Output failed = runLatex(TEX_PROLOG + body + TEX_EPILOG, null, tempFolder);
+		if(failed != null)
+		{
+			// Probably invalid LaTeX, so the format is kept
+			throw new IOException("latex - DVI not created: " +
+				Arrays.toString(failed.getStderr()));
+		}
+		if(format != null)
+		{
+			// It worked without the format but not with it, so the format is at
+			// fault; don't use it again, and close any workers that were started
+			// with it (the next request creates a pool that sends the full prolog)
+			format.invalidate();
+			LatexWorkerPool.cleanup(getServletContext());
+		}
+	}
+
+	/**
+	 * Runs LaTeX on a complete file.
+	 * @param fullTex Content of eq.tex
+	 * @param format Precompiled format (null if none)
+	 * @param tempFolder Temp folder
+	 * @return Null if the DVI file was created, or process output if not
+	 * @throws IOException IO errors
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private ProcessRunner.Output runLatex(String fullTex, LatexFormat format, File tempFolder)
+		throws IOException, InterruptedException
 	{
 		String latex = getParam("latex-executable", "latex");
-		String fullTex = TEX_PROLOG + TEX_PRE_ITEM + tex +
-			TEX_POST_ITEM + TEX_EPILOG;
 		byte[] fullTexBytes = fullTex.getBytes("US-ASCII");
 		File texFile = new File(tempFolder, "eq.tex");
 		FileOutputStream out = new FileOutputStream(texFile);
@@ -444,37 +891,86 @@ public class WebMathsImageTex extends WebMathsImage
 		}
 
 		// Convert it to .dvi
-		runProcess(new String[] {latex, "--interaction=batchmode", "eq.tex"}, tempFolder);
-
 		File dvi = new File(tempFolder, "eq.dvi");
-		if(!dvi.exists())
+		dvi.delete();
+		ProcessRunner.Output output;
+		if(format == null)
+		{
+			output = runProcess(
+				new String[] {latex, "--interaction=batchmode", "eq.tex"}, tempFolder);
+		}
+		else
+		{
+			output = runProcess(new String[] {latex, "--interaction=batchmode",
+				format.getArguments()[0], "eq.tex"}, format.getEnvironment(), tempFolder);
+		}
+		return dvi.exists() ? null : output;
+	}
+
+	/**
+	 * @return Pool of LaTeX workers, or null if not in use
+	 */
+	private LatexWorkerPool getWorkerPool()
+	{
+		ServletContext servletContext = getServletContext();
+		String latex = getParam("latex-executable", "latex");
+		LatexFormat format = getLatexFormat(servletContext);
+		if(format == null)
+		{
+			return LatexWorkerPool.get(servletContext,
+				new String[] { latex, "--interaction=scrollmode" }, null, TEX_PROLOG,
+				new File(getParam("temp-directory", "/tmp")));
+		}
+		else
 		{
-			throw new IOException("latex - DVI not created: " + Arrays.toString(stderrLines));
+			return LatexWorkerPool.get(servletContext,
+				new String[] { latex, "--interaction=scrollmode", format.getArguments()[0] },
+				format.getEnvironment(), TEX_BEGIN_DOCUMENT,
+				new File(getParam("temp-directory", "/tmp")));
 		}
 	}
 
 	/**
-	 * Creates a temp folder using a random name.
+	 * Gets the precompiled LaTeX format, building it if necessary.
+	 * @param servletContext Servlet context (null if testing)
+	 * @return Format, or null if not in use
+	 */
+	public static LatexFormat getLatexFormat(ServletContext servletContext)
+	{
+		return LatexFormat.get(servletContext,
+			getParam(servletContext, "latex-executable", "latex"), TEX_PREAMBLE,
+			new File(getParam(servletContext, "temp-directory", "/tmp")));
+	}
+
+	/**
+	 * Gets an empty temp folder from the pool. Must be returned with
+	 * {@link #releaseTempFolder(File)}.
 	 * @return Folder
 	 * @throws IOException
 	 */
 	private File createTempFolder() throws IOException
 	{
-		String temp = getParam("temp-directory", "/tmp");
-		File tempFolder;
-		int attempts = 0;
-		do
-		{
-			tempFolder = new File(temp, UUID.randomUUID().toString());
-			attempts++;
-			if(attempts > MAX_TEMP_FOLDER_ATTEMPTS)
-			{
-				throw new IOException("Error creating temp folder (" +
-					MAX_TEMP_FOLDER_ATTEMPTS + " attempts failed): " + tempFolder);
-			}
-		}
-		while(!tempFolder.mkdir());
-		return tempFolder;
+		return getTempFolderPool().acquire();
+	}
+
+	/**
+	 * Empties a temp folder and returns it to the pool.
+	 * @param tempFolder Folder from {@link #createTempFolder()}
+	 * @throws IOException If the pool can't be created
+	 */
+	private void releaseTempFolder(File tempFolder) throws IOException
+	{
+		getTempFolderPool().release(tempFolder);
+	}
+
+	/**
+	 * @return Pool of temp folders
+	 * @throws IOException If the pool can't be created
+	 */
+	private TempFolderPool getTempFolderPool() throws IOException
+	{
+		return TempFolderPool.get(getServletContext(),
+			new File(getParam("temp-directory", "/tmp")));
 	}
 
 	/**
@@ -486,7 +982,19 @@ public class WebMathsImageTex extends WebMathsImage
 	 */
 	private String getParam(String param, String defaultValue)
 	{
-		ServletContext servletContext = getServletContext();
+		return getParam(getServletContext(), param, defaultValue);
+	}
+
+	/**
+	 * Gets parameter from servlet context.
+	 * @param servletContext Servlet context (may be null)
+	 * @param param Param name
+	 * @param defaultValue Default if not supplied
+	 * @return Param value
+	 */
+	private static String getParam(ServletContext servletContext, String param,
+		String defaultValue)
+	{
 		String temp = null;
 		if(servletContext != null)
 		{
@@ -502,37 +1010,54 @@ public class WebMathsImageTex extends WebMathsImage
 	/**
 	 * @return Servlet context (or null if not running from servlet)
 	 */
-	private ServletContext getServletContext()
+	@Override
+	protected ServletContext getServletContext()
 	{
+		if(context == null)
+		{
+			return null;
+		}
 		return (ServletContext)context.getMessageContext().get(
 			MessageContext.SERVLET_CONTEXT);
 	}
 
 	// TODO I'm not hugely satisfied by the way this ends up writing two pages
-	private final static String TEX_PROLOG =
+	final static String TEX_PREAMBLE =
 		"\\documentclass[10pt]{article}\n" +
 		// amsthm is needed only for \qedsymbol
 		// gensmyb is needed only for \degree
 		"\\usepackage{amsmath,amssymb,amsthm,gensymb}\n" +
-		"\\usepackage[mathscr]{euscript}\n" +
+		"\\usepackage[mathscr]{euscript}\n";
+	private final static String TEX_BEGIN_DOCUMENT =
 		"\\begin{document}\n";
+	private final static String TEX_PROLOG = TEX_PREAMBLE + TEX_BEGIN_DOCUMENT;
 	private final static String TEX_PRE_ITEM =
 		"\\begin{equation*}\n\\setbox0\n\\hbox{$\\displaystyle\n";
 	private final static String TEX_POST_ITEM =
 		"\n$}\n\\ht 0 0pt\n\\shipout\\box 0\n\\end{equation*}\n";
 	private final static String TEX_EPILOG =
 		"\\end{document}\n";
+	private final static String TEX_PRE_PAGE =
+		"\\setbox0\n\\hbox{$\\displaystyle\n";
+	private final static String TEX_POST_PAGE =
+		"\n$}\n\\ht 0 0pt\n\\shipout\\box 0\n";
 
 	private final static Pattern DVIPNG_DEPTH = Pattern.compile("^ depth=(-?[0-9]+)$");
+	private final static Pattern DVIPNG_DEPTH_ANYWHERE = Pattern.compile("depth=(-?[0-9]+)");
 
 	/**
 	 * Deletes a folder within the temp folder, ignoring errors.
 	 * @param folder Folder to delete
 	 */
-	private static void killFolder(File folder)
+	static void killFolder(File folder)
 	{
 		// Delete all files (not recursive as we do not create subfolders)
 		File[] files = folder.listFiles();
+		if(files == null)
+		{
+			// Already deleted, or not a folder
+			return;
+		}
 		for(File file : files)
 		{
 			file.delete();
@@ -541,106 +1066,33 @@ public class WebMathsImageTex extends WebMathsImage
 		folder.delete();
 	}
 
-	private static String[] stderrLines;
-
-	private static String[] runProcess(String[] command, File cwd)
+	/**
+	 * Runs a process, waiting for a free slot if too many are running.
+	 * @param command Command and arguments
+	 * @param cwd Working directory
+	 * @return Output from process
+	 * @throws IOException If the process can't be run
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private ProcessRunner.Output runProcess(String[] command, File cwd)
 		throws IOException, InterruptedException
 	{
-		StringBuilder commandString = new StringBuilder();
-		for(String param : command)
-		{
-			commandString.append(param);
-			commandString.append(' ');
-		}
-		if(SHOW_COMMANDS)
-		{
-			System.err.println("[WEBMATHS] Exec: " + commandString.toString().trim());
-		}
-		Process process = Runtime.getRuntime().exec(command, null, cwd);
-		EaterThread stderr = new EaterThread(process.getErrorStream());
-		EaterThread stdout = new EaterThread(process.getInputStream());
-		process.waitFor();
-		stderrLines = stderr.getLines();
-		return stdout.getLines();
+		return runProcess(command, null, cwd);
 	}
 
-	private static class EaterThread extends Thread
+	/**
+	 * Runs a process, waiting for a free slot if too many are running.
+	 * @param command Command and arguments
+	 * @param environment Extra environment variables (null if none)
+	 * @param cwd Working directory
+	 * @return Output from process
+	 * @throws IOException If the process can't be run
+	 * @throws InterruptedException If thread is interrupted
+	 */
+	private ProcessRunner.Output runProcess(String[] command,
+		Map<String, String> environment, File cwd)
+		throws IOException, InterruptedException
 	{
-		private BufferedReader buffer;
-		private LinkedList<String> lines = new LinkedList<String>();
-		private boolean running;
-
-		public EaterThread(InputStream stream) throws IOException
-		{
-			this.buffer = new BufferedReader(new InputStreamReader(stream, "US-ASCII"));
-			running = true;
-			start();
-		}
-
-		public synchronized String[] getLines() throws InterruptedException,
-			IllegalStateException
-		{
-			synchronized(this)
-			{
-				if(running)
-				{
-					wait(10000);
-				}
-				if(running)
-				{
-					throw new IllegalStateException(
-						"Attempt to getLines when process not finished");
-				}
-			}
-			return lines.toArray(new String[lines.size()]);
-		}
-
-		@Override
-		public void run()
-		{
-			try
-			{
-				while(true)
-				{
-					String line = buffer.readLine();
-					if(line == null)
-					{
-						if(SHOW_COMMANDS)
-						{
-							System.err.println("[WEBMATHS] (EOF)");
-						}
-						return;
-					}
-					if(SHOW_COMMANDS)
-					{
-						System.err.println("[WEBMATHS] " + line);
-					}
-					lines.add(line);
-				}
-			}
-			catch(IOException e)
-			{
-				// If there's any kind of error, exit the thread
-			}
-			finally
-			{
-				if(buffer != null)
-				{
-					try
-					{
-						buffer.close();
-					}
-					catch(IOException e)
-					{
-					}
-					buffer = null;
-				}
-				synchronized(this)
-				{
-					running = false;
-					notify();
-				}
-			}
-		}
+		return ProcessRunner.get(getServletContext()).run(command, environment, cwd);
 	}
 }
@@ -32,6 +32,7 @@ import org.apache.batik.gvt.renderer.ImageRenderer;
 import org.apache.batik.transcoder.*;
 import org.apache.batik.transcoder.image.PNGTranscoder;
 import org.apache.fop.render.ps.EPSTranscoder;
+import org.apache.fop.svg.PDFTranscoder;
 import org.w3c.dom.*;
 import org.w3c.dom.ls.*;
 
@@ -650,19 +651,67 @@ public class MathJax
 
 	/**
 	 * Gets EPS from an input equation.
+	 * <p>
+	 * The EPS is written directly from the SVG by {@link SvgVectorWriter}; if
+	 * the SVG contains anything it doesn't support, the FOP transcoder is used
+	 * instead.
 	 * @param eq Equation
+	 * @param ex Ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
 	 * @return EPS data
 	 * @throws MathJaxException If there's a MathJax error processing the equation
 	 * @throws IOException Any other problem
 	 */
 	public byte[] getEps(InputEquation eq, double ex, String rgb)
 		throws MathJaxException, IOException
+	{
+		return getVector(eq, ex, rgb, SvgVectorWriter.Format.EPS);
+	}
+
+	/**
+	 * Gets PDF from an input equation. Works the same way as
+	 * {@link #getEps(InputEquation, double, String)}.
+	 * @param eq Equation
+	 * @param ex Ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @return PDF data
+	 * @throws MathJaxException If there's a MathJax error processing the equation
+	 * @throws IOException Any other problem
+	 */
+	public byte[] getPdf(InputEquation eq, double ex, String rgb)
+		throws MathJaxException, IOException
+	{
+		return getVector(eq, ex, rgb, SvgVectorWriter.Format.PDF);
+	}
+
+	/**
+	 * Gets vector format output from an input equation.
+	 * @param eq Equation
+	 * @param ex Ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @param format Format required
+	 * @return Output data
+	 * @throws MathJaxException If there's a MathJax error processing the equation
+	 * @throws IOException Any other problem
+	 */
+	private byte[] getVector(InputEquation eq, double ex, String rgb,
+		SvgVectorWriter.Format format) throws MathJaxException, IOException
 	{
 		String svg = getSvg(eq, true, ex, rgb);
 		svg = makeThin(svg);
 
+		try
+		{
+			return SvgVectorWriter.write(svg, format);
+		}
+		catch(SvgVectorWriter.UnsupportedSvgException e)
+		{
+			// Fall back to FOP transcoder.
+		}
+
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		EPSTranscoder transcoder = new EPSTranscoder();
+		Transcoder transcoder = format == SvgVectorWriter.Format.EPS
+			? new EPSTranscoder() : new PDFTranscoder();
 		// There's no logical reason for this size but by trial and error, we found
 		// that it matched the size of some PNGs.
 		transcoder.addTranscodingHint(EPSTranscoder.KEY_PIXEL_UNIT_TO_MILLIMETER,
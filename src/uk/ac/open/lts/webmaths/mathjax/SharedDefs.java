@@ -0,0 +1,154 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Collects the glyph definitions from a batch of MathJax SVGs so that they
+ * can be sent once, in a single hidden SVG, instead of being repeated in
+ * every equation.
+ * <p>
+ * Glyph IDs are rewritten to a form that doesn't depend on the equation
+ * number (E1-MJMATHI-78 becomes MJX-MJMATHI-78). If two glyphs end up with the
+ * same ID but different content, the later one gets a numeric suffix.
+ * <p>
+ * Results depend on the order in which SVGs are added, so callers should add
+ * them in equation order. This class is not thread-safe.
+ */
+public class SharedDefs
+{
+	/** Prefix used for rewritten glyph IDs */
+	public final static String ID_PREFIX = "MJX-";
+
+	private final static Pattern REGEX_DEFS = Pattern.compile(
+		"<defs(?: [^>]*)?>(.*?)</defs>\\s*|<defs(?: [^>]*)?/>\\s*", Pattern.DOTALL);
+	private final static Pattern REGEX_DEF_ELEMENT = Pattern.compile(
+		"<([a-zA-Z]+)((?: [^>]*?)?) id=\"([^\"]+)\"([^>]*?)(?:/>|>(.*?)</\\1>)", Pattern.DOTALL);
+	private final static Pattern REGEX_HREF = Pattern.compile(
+		"xlink:href=\"#([^\"]+)\"");
+	private final static Pattern REGEX_EQUATION_PREFIX = Pattern.compile(
+		"^E[0-9]+-");
+
+	/** Map from new ID to the glyph element text (sorted by ID) */
+	private final SortedMap<String, String> glyphs = new TreeMap<String, String>();
+
+	/** Map from glyph element text (without ID) to the new ID */
+	private final Map<String, String> contentToId = new HashMap<String, String>();
+
+	/**
+	 * Removes the defs section from an SVG, adding the glyphs to the shared
+	 * set, and rewrites references in the SVG so that they point to the shared
+	 * glyphs.
+	 * @param svg SVG from MathJax
+	 * @return SVG without defs
+	 */
+	public String share(String svg)
+	{
+		Matcher defs = REGEX_DEFS.matcher(svg);
+		if(!defs.find())
+		{
+			return svg;
+		}
+
+		// Add all the glyphs, building up a map from old to new ID.
+		Map<String, String> idMap = new HashMap<String, String>();
+		if(defs.group(1) != null)
+		{
+			Matcher m = REGEX_DEF_ELEMENT.matcher(defs.group(1));
+			while(m.find())
+			{
+				String tag = m.group(1);
+				String attributes = m.group(2) + m.group(4);
+				String content = m.group(5);
+				String key = tag + attributes + (content == null ? "" : ">" + content);
+				String newId = contentToId.get(key);
+				if(newId == null)
+				{
+					newId = getUnusedId(m.group(3));
+					contentToId.put(key, newId);
+					glyphs.put(newId, "<" + tag + m.group(2) + " id=\"" + newId + "\"" +
+						m.group(4) + (content == null ? "/>" : ">" + content + "</" + tag + ">"));
+				}
+				idMap.put(m.group(3), newId);
+			}
+		}
+
+		// Remove the defs and update references.
+		svg = svg.substring(0, defs.start()) + svg.substring(defs.end());
+		Matcher m = REGEX_HREF.matcher(svg);
+		StringBuffer out = new StringBuffer();
+		while(m.find())
+		{
+			String newId = idMap.get(m.group(1));
+			if(newId == null)
+			{
+				newId = m.group(1);
+			}
+			m.appendReplacement(out, Matcher.quoteReplacement("xlink:href=\"#" + newId + "\""));
+		}
+		m.appendTail(out);
+		return out.toString();
+	}
+
+	/**
+	 * Works out the shared ID for a glyph, making sure it hasn't already been
+	 * used for a different glyph.
+	 * @param id Original ID
+	 * @return New ID
+	 */
+	private String getUnusedId(String id)
+	{
+		String base = ID_PREFIX + REGEX_EQUATION_PREFIX.matcher(id).replaceFirst("");
+		String newId = base;
+		for(int i = 2; glyphs.containsKey(newId); i++)
+		{
+			newId = base + "-" + i;
+		}
+		return newId;
+	}
+
+	/**
+	 * @return True if no glyphs have been added
+	 */
+	public boolean isEmpty()
+	{
+		return glyphs.isEmpty();
+	}
+
+	/**
+	 * Gets the shared glyphs as a hidden SVG. This needs to be included in the
+	 * same page as the equation SVGs.
+	 * @return SVG containing all glyph definitions
+	 */
+	public String getDefs()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+			+ "xmlns=\"http://www.w3.org/2000/svg\" style=\"display: none\" "
+			+ "aria-hidden=\"true\"><defs>");
+		for(String glyph : glyphs.values())
+		{
+			out.append(glyph);
+		}
+		out.append("</defs></svg>");
+		return out.toString();
+	}
+}
@@ -0,0 +1,324 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.math.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Reduces the size of SVG produced by {@link MathJax#getSvg}.
+ * <p>
+ * The minifier works on the text of the SVG (which has a known simple format)
+ * rather than parsing it. It:
+ * <ul>
+ * <li>Reduces coordinates in path data and transforms (translate and matrix
+ *   offsets) to {@link #DECIMAL_PLACES}. Scale factors are not changed.</li>
+ * <li>Compacts path data by removing unnecessary separators and repeated
+ *   commands.</li>
+ * <li>Removes x and y attributes that are zero, and identity transforms.</li>
+ * <li>Turns empty elements into self-closing tags.</li>
+ * <li>Removes whitespace between tags (except inside title or text).</li>
+ * </ul>
+ * The root svg element is not changed at all, so the size and baseline
+ * (in the style attribute) are exactly the same as before. The title and its
+ * ID are also left alone as they are used for accessibility.
+ * <p>
+ * Other attributes are not removed even where they look like defaults, because
+ * they are inherited; for example, stroke-width="1" on a glyph path overrides
+ * the stroke-width="0" from the group that uses it.
+ */
+public class SvgMinifier
+{
+	/** Number of decimal places kept in coordinates (in drawing units) */
+	public final static int DECIMAL_PLACES = 1;
+
+	private final static Pattern REGEX_ATTRIBUTE = Pattern.compile(
+		"\\s+([A-Za-z_:][-A-Za-z0-9_:.]*)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+	private final static Pattern REGEX_PATH_TOKEN = Pattern.compile(
+		"([MmLlHhVvCcSsQqTtAaZz])|(-?(?:[0-9]+\\.?[0-9]*|\\.[0-9]+)(?:[eE][-+]?[0-9]+)?)");
+	private final static Pattern REGEX_NUMBER = Pattern.compile(
+		"-?(?:[0-9]+\\.?[0-9]*|\\.[0-9]+)(?:[eE][-+]?[0-9]+)?");
+	private final static Pattern REGEX_TRANSFORM_FUNCTION = Pattern.compile(
+		"([A-Za-z]+)(\\s*\\()([^)]*)\\)");
+	private final static Pattern REGEX_IDENTITY_TRANSFORM = Pattern.compile(
+		"translate\\(0(?:[ ,]0)?\\)|matrix\\(1[ ,]0[ ,]0[ ,]1[ ,]0[ ,]0\\)|scale\\(1(?:[ ,]1)?\\)");
+
+	/** Elements where whitespace is significant */
+	private final static Set<String> TEXT_ELEMENTS = new HashSet<String>(
+		Arrays.asList("title", "desc", "text", "tspan"));
+
+	/**
+	 * Minifies SVG.
+	 * @param svg SVG from MathJax
+	 * @return Minified SVG
+	 */
+	public static String minify(String svg)
+	{
+		StringBuilder out = new StringBuilder(svg.length());
+		LinkedList<String> open = new LinkedList<String>();
+		boolean root = true;
+		int pos = 0;
+		while(pos < svg.length())
+		{
+			int tagStart = svg.indexOf('<', pos);
+			if(tagStart == -1)
+			{
+				tagStart = svg.length();
+			}
+
+			// Text before the tag is removed if it is only whitespace.
+			if(tagStart > pos)
+			{
+				String text = svg.substring(pos, tagStart);
+				if(!text.trim().isEmpty() ||
+					(!open.isEmpty() && TEXT_ELEMENTS.contains(open.getFirst())))
+				{
+					out.append(text);
+				}
+			}
+			if(tagStart == svg.length())
+			{
+				break;
+			}
+
+			int tagEnd = svg.indexOf('>', tagStart);
+			if(tagEnd == -1)
+			{
+				throw new IllegalArgumentException("Unexpected SVG format (unclosed tag)");
+			}
+			pos = tagEnd + 1;
+			String tag = svg.substring(tagStart, pos);
+
+			if(tag.startsWith("</"))
+			{
+				if(!open.isEmpty())
+				{
+					open.removeFirst();
+				}
+				out.append(tag);
+				continue;
+			}
+			if(tag.startsWith("<!") || tag.startsWith("<?"))
+			{
+				out.append(tag);
+				continue;
+			}
+
+			// Start or empty element.
+			boolean empty = tag.endsWith("/>");
+			int nameEnd = tagStart + 1;
+			while(nameEnd < tagEnd && !Character.isWhitespace(svg.charAt(nameEnd)) &&
+				svg.charAt(nameEnd) != '/')
+			{
+				nameEnd++;
+			}
+			String name = svg.substring(tagStart + 1, nameEnd);
+
+			// If the end tag follows immediately, make it an empty element.
+			String endTag = "</" + name + ">";
+			if(!empty && svg.startsWith(endTag, pos))
+			{
+				empty = true;
+				pos += endTag.length();
+			}
+
+			if(root)
+			{
+				// Leave root element alone (it has size and baseline).
+				root = false;
+				out.append(tag);
+			}
+			else
+			{
+				out.append('<');
+				out.append(name);
+				Matcher m = REGEX_ATTRIBUTE.matcher(svg);
+				m.region(nameEnd, tagEnd);
+				while(m.find())
+				{
+					// Single-quoted values are written with double quotes
+					String value = m.group(2) != null ? m.group(2)
+						: m.group(3).replace("\"", "&quot;");
+					appendAttribute(out, m.group(1), value);
+				}
+				out.append(empty ? "/>" : ">");
+			}
+			if(!empty)
+			{
+				open.addFirst(name);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Adds an attribute to the output, minifying it if possible.
+	 * @param out Output buffer
+	 * @param name Attribute name
+	 * @param value Attribute value (still XML-escaped)
+	 */
+	private static void appendAttribute(StringBuilder out, String name, String value)
+	{
+		if(name.equals("d"))
+		{
+			value = compactPath(value);
+		}
+		else if(name.equals("x") || name.equals("y"))
+		{
+			if(!REGEX_NUMBER.matcher(value).matches())
+			{
+				out.append(' ').append(name).append("=\"").append(value).append('"');
+				return;
+			}
+			value = formatNumber(value);
+			if(value.equals("0"))
+			{
+				return;
+			}
+		}
+		else if(name.equals("width") || name.equals("height"))
+		{
+			if(REGEX_NUMBER.matcher(value).matches())
+			{
+				value = formatNumber(value);
+			}
+		}
+		else if(name.equals("transform"))
+		{
+			value = compactTransform(value);
+			if(REGEX_IDENTITY_TRANSFORM.matcher(value).matches())
+			{
+				return;
+			}
+		}
+		out.append(' ').append(name).append("=\"").append(value).append('"');
+	}
+
+	/**
+	 * Rounds the coordinates in a transform attribute. Only translate values and
+	 * the offsets (last two values) of a matrix are coordinates; scale factors
+	 * and other values are left at full precision.
+	 * @param transform Transform attribute value
+	 * @return Transform with coordinates rounded
+	 */
+	static String compactTransform(String transform)
+	{
+		Matcher function = REGEX_TRANSFORM_FUNCTION.matcher(transform);
+		StringBuffer buffer = new StringBuffer();
+		while(function.find())
+		{
+			String name = function.group(1);
+			int firstRounded;
+			if(name.equals("translate"))
+			{
+				firstRounded = 0;
+			}
+			else if(name.equals("matrix"))
+			{
+				firstRounded = 4;
+			}
+			else
+			{
+				continue;
+			}
+
+			Matcher m = REGEX_NUMBER.matcher(function.group(3));
+			StringBuffer args = new StringBuffer();
+			for(int index = 0; m.find(); index++)
+			{
+				m.appendReplacement(args,
+					index >= firstRounded ? formatNumber(m.group()) : m.group());
+			}
+			m.appendTail(args);
+			function.appendReplacement(buffer, Matcher.quoteReplacement(
+				name + function.group(2) + args + ")"));
+		}
+		function.appendTail(buffer);
+		return buffer.toString();
+	}
+
+	/**
+	 * Compacts SVG path data.
+	 * @param path Path data
+	 * @return Equivalent path data using fewer characters
+	 */
+	static String compactPath(String path)
+	{
+		StringBuilder out = new StringBuilder(path.length());
+		Matcher m = REGEX_PATH_TOKEN.matcher(path);
+		char lastCommand = 0;
+		String lastNumber = null;
+		while(m.find())
+		{
+			if(m.group(1) != null)
+			{
+				char command = m.group(1).charAt(0);
+				// A repeated command (other than moveto, where the repeat would mean
+				// lineto) can be left out, as long as it's after some numbers.
+				if(command == lastCommand && lastNumber != null &&
+					command != 'M' && command != 'm' && command != 'Z' && command != 'z')
+				{
+					continue;
+				}
+				out.append(command);
+				lastCommand = command;
+				lastNumber = null;
+			}
+			else
+			{
+				String number = formatNumber(m.group(2));
+				// Separator is only needed if the number would otherwise join on to
+				// the previous one.
+				if(lastNumber != null && !number.startsWith("-") &&
+					!(number.startsWith(".") && lastNumber.indexOf('.') != -1))
+				{
+					out.append(' ');
+				}
+				out.append(number);
+				lastNumber = number;
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Formats a number to the required precision, in shortest form.
+	 * @param number Number as string
+	 * @return Rounded number
+	 */
+	static String formatNumber(String number)
+	{
+		String formatted = new BigDecimal(number).setScale(
+			DECIMAL_PLACES, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+		if(formatted.startsWith("0."))
+		{
+			formatted = formatted.substring(1);
+		}
+		else if(formatted.startsWith("-0."))
+		{
+			formatted = "-" + formatted.substring(2);
+		}
+		else if(formatted.equals("-0"))
+		{
+			formatted = "0";
+		}
+		return formatted;
+	}
+}
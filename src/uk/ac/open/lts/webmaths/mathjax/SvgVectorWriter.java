@@ -0,0 +1,1377 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.Deflater;
+
+import javax.xml.parsers.*;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Writes EPS or PDF directly from the SVG produced by MathJax, without building
+ * a Batik rendering tree.
+ * <p>
+ * Only the subset of SVG that MathJax uses is supported: a single svg element
+ * with a viewBox, g elements with transforms, paths (in defs and referred to
+ * with use, or directly) and rects, with solid colours. Path operators are
+ * written as the SVG is parsed. Each glyph in the defs section is written once
+ * per document (as a PostScript procedure or a PDF form XObject) and then
+ * called wherever it is used.
+ * <p>
+ * If the SVG contains anything else, {@link UnsupportedSvgException} is thrown
+ * so that the caller can fall back to the FOP transcoders.
+ */
+public class SvgVectorWriter
+{
+	/** Output format */
+	public enum Format
+	{
+		/** Encapsulated PostScript */
+		EPS,
+		/** PDF (single page) */
+		PDF
+	}
+
+	/**
+	 * Points per SVG pixel. This uses the same 0.247mm per pixel as the FOP
+	 * transcoder settings in {@link MathJax#getEps(InputEquation, double, String)}.
+	 */
+	public final static double POINTS_PER_PIXEL = 0.247 * 72.0 / 25.4;
+
+	private final static String NS_SVG = "http://www.w3.org/2000/svg";
+	private final static String NS_XLINK = "http://www.w3.org/1999/xlink";
+
+	private final static Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final static Pattern REGEX_PX = Pattern.compile("([0-9.]+)(?:px)?");
+	private final static Pattern REGEX_TRANSFORM = Pattern.compile(
+		"\\s*([a-zA-Z]+)\\s*\\(([^)]*)\\)\\s*,?");
+	private final static Pattern REGEX_COLOUR_HEX = Pattern.compile(
+		"#([0-9a-fA-F]{6}|[0-9a-fA-F]{3})");
+
+	/** Attributes that, if present, mean we can't render the SVG */
+	private final static Set<String> UNSUPPORTED_ATTRIBUTES = new HashSet<String>(
+		Arrays.asList("opacity", "fill-opacity", "stroke-opacity", "fill-rule",
+			"stroke-dasharray", "clip-path", "mask", "filter", "class"));
+
+	private final static SAXParserFactory PARSER_FACTORY;
+	static
+	{
+		PARSER_FACTORY = SAXParserFactory.newInstance();
+		PARSER_FACTORY.setNamespaceAware(true);
+	}
+
+	/**
+	 * Thrown if the SVG uses features this writer doesn't support.
+	 */
+	public static class UnsupportedSvgException extends Exception
+	{
+		UnsupportedSvgException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Writes EPS or PDF from SVG.
+	 * @param svg SVG (with size in pixels)
+	 * @param format Output format
+	 * @return EPS or PDF data
+	 * @throws UnsupportedSvgException If the SVG contains unsupported features
+	 * @throws IOException Any other error
+	 */
+	public static byte[] write(String svg, Format format)
+		throws UnsupportedSvgException, IOException
+	{
+		Output output = format == Format.EPS ? new EpsOutput() : new PdfOutput();
+		SvgHandler handler = new SvgHandler(output);
+		try
+		{
+			SAXParser parser;
+			synchronized(PARSER_FACTORY)
+			{
+				parser = PARSER_FACTORY.newSAXParser();
+			}
+			parser.parse(new InputSource(new StringReader(svg)), handler);
+		}
+		catch(ParserConfigurationException e)
+		{
+			throw new IOException(e);
+		}
+		catch(SAXException e)
+		{
+			if(e.getException() instanceof UnsupportedSvgException)
+			{
+				throw (UnsupportedSvgException)e.getException();
+			}
+			throw new IOException("Invalid SVG", e);
+		}
+		return output.finish();
+	}
+
+	/**
+	 * Inherited style for an element.
+	 */
+	private static class Style implements Cloneable
+	{
+		/** Fill colour (r, g, b from 0-1) or null if none */
+		float[] fill = { 0f, 0f, 0f };
+		/** Stroke colour or null if none */
+		float[] stroke = null;
+		/** Stroke width */
+		double strokeWidth = 1.0;
+
+		@Override
+		protected Style clone()
+		{
+			try
+			{
+				return (Style)super.clone();
+			}
+			catch(CloneNotSupportedException e)
+			{
+				throw new Error(e);
+			}
+		}
+
+		/**
+		 * Applies style attributes from an element.
+		 * @param attributes Map of style attributes
+		 * @return New style (or this one, if no changes)
+		 * @throws UnsupportedSvgException If a value isn't supported
+		 */
+		Style apply(Map<String, String> attributes) throws UnsupportedSvgException
+		{
+			if(attributes.isEmpty())
+			{
+				return this;
+			}
+			Style style = clone();
+			String value = attributes.get("fill");
+			if(value != null)
+			{
+				style.fill = parseColour(value);
+			}
+			value = attributes.get("stroke");
+			if(value != null)
+			{
+				style.stroke = parseColour(value);
+			}
+			value = attributes.get("stroke-width");
+			if(value != null)
+			{
+				style.strokeWidth = parseNumber(value);
+			}
+			return style;
+		}
+
+		/**
+		 * @return True if anything will be filled
+		 */
+		boolean isFilled()
+		{
+			return fill != null;
+		}
+
+		/**
+		 * @return True if anything will be stroked
+		 */
+		boolean isStroked()
+		{
+			return stroke != null && strokeWidth > 0;
+		}
+	}
+
+	/**
+	 * Glyph defined in the defs section.
+	 */
+	private static class Glyph
+	{
+		/** Index of glyph within document */
+		int index;
+		/** Path operators */
+		PathText path;
+		/** Style attributes set on the glyph itself */
+		Map<String, String> attributes;
+	}
+
+	/**
+	 * SAX handler that processes SVG elements and sends output.
+	 */
+	private static class SvgHandler extends DefaultHandler
+	{
+		private final Output output;
+		private final LinkedList<Style> styles = new LinkedList<Style>();
+		private final LinkedList<Boolean> saved = new LinkedList<Boolean>();
+		private final Map<String, Glyph> glyphs = new HashMap<String, Glyph>();
+		private boolean gotRoot, inDefs;
+		private int ignoreDepth;
+
+		SvgHandler(Output output)
+		{
+			this.output = output;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+			Attributes attributes) throws SAXException
+		{
+			try
+			{
+				if(ignoreDepth > 0)
+				{
+					ignoreDepth++;
+					return;
+				}
+				if(!uri.equals(NS_SVG))
+				{
+					throw new UnsupportedSvgException("Element not in SVG namespace: " + qName);
+				}
+
+				if(localName.equals("title") || localName.equals("desc"))
+				{
+					ignoreDepth = 1;
+					return;
+				}
+
+				if(!gotRoot)
+				{
+					if(!localName.equals("svg"))
+					{
+						throw new UnsupportedSvgException("Root element not svg");
+					}
+					gotRoot = true;
+					startRoot(attributes);
+					return;
+				}
+
+				Map<String, String> styleAttributes = getStyleAttributes(attributes);
+				if(inDefs)
+				{
+					if(!localName.equals("path") || attributes.getValue("id") == null)
+					{
+						throw new UnsupportedSvgException("Unsupported defs content: " + localName);
+					}
+					Glyph glyph = new Glyph();
+					glyph.index = glyphs.size();
+					glyph.path = new PathText();
+					parsePath(attributes.getValue("d"), glyph.path);
+					glyph.attributes = styleAttributes;
+					glyphs.put(attributes.getValue("id"), glyph);
+					output.defineGlyph(glyph.index, glyph.path);
+					push(styles.getFirst(), false);
+					return;
+				}
+
+				Style style = styles.getFirst().apply(styleAttributes);
+				double[] matrix = parseTransform(attributes.getValue("transform"));
+				if(localName.equals("defs"))
+				{
+					inDefs = true;
+					push(style, false);
+				}
+				else if(localName.equals("g"))
+				{
+					startGroup(style, matrix);
+				}
+				else if(localName.equals("use"))
+				{
+					String href = attributes.getValue(NS_XLINK, "href");
+					if(href == null)
+					{
+						href = attributes.getValue("href");
+					}
+					Glyph glyph = href != null && href.startsWith("#")
+						? glyphs.get(href.substring(1)) : null;
+					if(glyph == null)
+					{
+						throw new UnsupportedSvgException("Unsupported use reference: " + href);
+					}
+					matrix = multiply(matrix, translate(
+						parseNumber(attributes.getValue("x")),
+						parseNumber(attributes.getValue("y"))));
+					style = style.apply(glyph.attributes);
+					startGroup(style, matrix);
+					output.useGlyph(glyph.index, glyph.path, style);
+				}
+				else if(localName.equals("path"))
+				{
+					startGroup(style, matrix);
+					PathText path = new PathText();
+					parsePath(attributes.getValue("d"), path);
+					output.drawPath(path, style);
+				}
+				else if(localName.equals("rect"))
+				{
+					startGroup(style, matrix);
+					PathText path = new PathText();
+					path.rect(parseNumber(attributes.getValue("x")),
+						parseNumber(attributes.getValue("y")),
+						parseNumber(attributes.getValue("width")),
+						parseNumber(attributes.getValue("height")));
+					output.drawPath(path, style);
+				}
+				else
+				{
+					throw new UnsupportedSvgException("Unsupported element: " + localName);
+				}
+			}
+			catch(UnsupportedSvgException e)
+			{
+				throw new SAXException(e);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName)
+			throws SAXException
+		{
+			if(ignoreDepth > 0)
+			{
+				ignoreDepth--;
+				return;
+			}
+			if(localName.equals("defs") && uri.equals(NS_SVG))
+			{
+				inDefs = false;
+			}
+			styles.removeFirst();
+			if(saved.removeFirst())
+			{
+				output.restore();
+			}
+		}
+
+		/**
+		 * Handles the root svg element, setting up page size and the transform
+		 * from the viewBox.
+		 * @param attributes Attributes
+		 * @throws UnsupportedSvgException If size or viewBox is not as expected
+		 */
+		private void startRoot(Attributes attributes) throws UnsupportedSvgException
+		{
+			double width = parsePixels(attributes.getValue("width"));
+			double height = parsePixels(attributes.getValue("height"));
+			String viewBox = attributes.getValue("viewBox");
+			if(viewBox == null)
+			{
+				throw new UnsupportedSvgException("No viewBox");
+			}
+			String[] parts = viewBox.trim().split("[\\s,]+");
+			if(parts.length != 4)
+			{
+				throw new UnsupportedSvgException("Unexpected viewBox: " + viewBox);
+			}
+			double viewX = parseNumber(parts[0]), viewY = parseNumber(parts[1]),
+				viewWidth = parseNumber(parts[2]), viewHeight = parseNumber(parts[3]);
+
+			// Default preserveAspectRatio (xMidYMid meet).
+			double scale = Math.min(width / viewWidth, height / viewHeight);
+			double offsetX = (width - viewWidth * scale) / 2 - viewX * scale;
+			double offsetY = (height - viewHeight * scale) / 2 - viewY * scale;
+
+			double pageWidth = width * POINTS_PER_PIXEL;
+			double pageHeight = height * POINTS_PER_PIXEL;
+			output.start(pageWidth, pageHeight);
+
+			// Flip Y axis (SVG goes down, PostScript and PDF go up).
+			double k = POINTS_PER_PIXEL;
+			output.transform(new double[] { k * scale, 0, 0, -k * scale,
+				k * offsetX, pageHeight - k * offsetY });
+
+			Style style = new Style().apply(getStyleAttributes(attributes));
+			push(style, false);
+		}
+
+		/**
+		 * Starts a group, saving graphics state and applying a transform if needed.
+		 * @param style Style for group
+		 * @param matrix Transform matrix or null if none
+		 */
+		private void startGroup(Style style, double[] matrix)
+		{
+			if(matrix != null)
+			{
+				output.save();
+				output.transform(matrix);
+			}
+			push(style, matrix != null);
+		}
+
+		/**
+		 * Adds to the style and save stacks.
+		 * @param style Style
+		 * @param save True if graphics state was saved
+		 */
+		private void push(Style style, boolean save)
+		{
+			styles.addFirst(style);
+			saved.addFirst(save);
+		}
+
+		/**
+		 * Gets style-related attributes from the element, checking for any that
+		 * are not supported.
+		 * @param attributes Attributes
+		 * @return Map of style attributes (may be empty)
+		 * @throws UnsupportedSvgException If there is an unsupported attribute
+		 */
+		private static Map<String, String> getStyleAttributes(Attributes attributes)
+			throws UnsupportedSvgException
+		{
+			Map<String, String> result = Collections.emptyMap();
+			for(int i = 0; i < attributes.getLength(); i++)
+			{
+				String name = attributes.getQName(i);
+				if(name.equals("fill") || name.equals("stroke") || name.equals("stroke-width"))
+				{
+					if(result.isEmpty())
+					{
+						result = new HashMap<String, String>();
+					}
+					result.put(name, attributes.getValue(i));
+				}
+				else if(UNSUPPORTED_ATTRIBUTES.contains(name))
+				{
+					throw new UnsupportedSvgException("Unsupported attribute: " + name);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Parses a number attribute.
+	 * @param value Value or null
+	 * @return Number (0 if null)
+	 * @throws UnsupportedSvgException If it isn't a number
+	 */
+	private static double parseNumber(String value) throws UnsupportedSvgException
+	{
+		if(value == null)
+		{
+			return 0.0;
+		}
+		try
+		{
+			return Double.parseDouble(value.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			throw new UnsupportedSvgException("Unsupported number: " + value);
+		}
+	}
+
+	/**
+	 * Parses a size in pixels.
+	 * @param value Value e.g. "12.3px"
+	 * @return Size
+	 * @throws UnsupportedSvgException If it isn't in pixels
+	 */
+	private static double parsePixels(String value) throws UnsupportedSvgException
+	{
+		Matcher m = REGEX_PX.matcher(value == null ? "" : value);
+		if(!m.matches())
+		{
+			throw new UnsupportedSvgException("Size must be in pixels: " + value);
+		}
+		return Double.parseDouble(m.group(1));
+	}
+
+	/**
+	 * Parses a colour value.
+	 * @param value Colour value
+	 * @return Colour as r, g, b from 0-1, or null for none
+	 * @throws UnsupportedSvgException If colour is not supported
+	 */
+	private static float[] parseColour(String value) throws UnsupportedSvgException
+	{
+		value = value.trim();
+		if(value.equals("none"))
+		{
+			return null;
+		}
+		if(value.equals("currentColor") || value.equals("black"))
+		{
+			return new float[] { 0f, 0f, 0f };
+		}
+		if(value.equals("white"))
+		{
+			return new float[] { 1f, 1f, 1f };
+		}
+		Matcher m = REGEX_COLOUR_HEX.matcher(value);
+		if(!m.matches())
+		{
+			throw new UnsupportedSvgException("Unsupported colour: " + value);
+		}
+		String hex = m.group(1);
+		if(hex.length() == 3)
+		{
+			hex = "" + hex.charAt(0) + hex.charAt(0) + hex.charAt(1) + hex.charAt(1) +
+				hex.charAt(2) + hex.charAt(2);
+		}
+		float[] result = new float[3];
+		for(int i = 0; i < 3; i++)
+		{
+			result[i] = Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16) / 255f;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses an SVG transform attribute.
+	 * @param value Transform value or null
+	 * @return Matrix (a, b, c, d, e, f) or null if no transform
+	 * @throws UnsupportedSvgException If transform is not supported
+	 */
+	private static double[] parseTransform(String value) throws UnsupportedSvgException
+	{
+		if(value == null || value.trim().isEmpty())
+		{
+			return null;
+		}
+		double[] matrix = null;
+		Matcher m = REGEX_TRANSFORM.matcher(value);
+		int pos = 0;
+		while(m.find() && m.start() == pos)
+		{
+			pos = m.end();
+			String[] args = m.group(2).trim().split("[\\s,]+");
+			double[] numbers = new double[args.length];
+			for(int i = 0; i < args.length; i++)
+			{
+				numbers[i] = parseNumber(args[i]);
+			}
+			String type = m.group(1);
+			double[] next;
+			if(type.equals("matrix") && numbers.length == 6)
+			{
+				next = numbers;
+			}
+			else if(type.equals("translate") && (numbers.length == 1 || numbers.length == 2))
+			{
+				next = translate(numbers[0], numbers.length == 2 ? numbers[1] : 0.0);
+			}
+			else if(type.equals("scale") && (numbers.length == 1 || numbers.length == 2))
+			{
+				next = new double[] { numbers[0], 0, 0,
+					numbers.length == 2 ? numbers[1] : numbers[0], 0, 0 };
+			}
+			else
+			{
+				throw new UnsupportedSvgException("Unsupported transform: " + value);
+			}
+			matrix = multiply(matrix, next);
+		}
+		if(pos != value.length())
+		{
+			throw new UnsupportedSvgException("Unsupported transform: " + value);
+		}
+		return matrix;
+	}
+
+	/**
+	 * @param x X offset
+	 * @param y Y offset
+	 * @return Translation matrix, or null if zero
+	 */
+	private static double[] translate(double x, double y)
+	{
+		if(x == 0.0 && y == 0.0)
+		{
+			return null;
+		}
+		return new double[] { 1, 0, 0, 1, x, y };
+	}
+
+	/**
+	 * Multiplies two transform matrices (applying second one first, as in SVG
+	 * transform lists).
+	 * @param first First matrix or null for identity
+	 * @param second Second matrix or null for identity
+	 * @return Combined matrix or null for identity
+	 */
+	private static double[] multiply(double[] first, double[] second)
+	{
+		if(first == null)
+		{
+			return second;
+		}
+		if(second == null)
+		{
+			return first;
+		}
+		return new double[]
+		{
+			first[0] * second[0] + first[2] * second[1],
+			first[1] * second[0] + first[3] * second[1],
+			first[0] * second[2] + first[2] * second[3],
+			first[1] * second[2] + first[3] * second[3],
+			first[0] * second[4] + first[2] * second[5] + first[4],
+			first[1] * second[4] + first[3] * second[5] + first[5]
+		};
+	}
+
+	/**
+	 * Parses SVG path data and converts to absolute moveto, lineto, curveto
+	 * and closepath operations. Quadratic curves become cubic curves.
+	 * @param d Path data
+	 * @param path Target for path operations
+	 * @throws UnsupportedSvgException If path data includes arcs or is invalid
+	 */
+	static void parsePath(String d, PathText path) throws UnsupportedSvgException
+	{
+		if(d == null)
+		{
+			throw new UnsupportedSvgException("Path without data");
+		}
+		PathScanner scanner = new PathScanner(d);
+		double x = 0, y = 0, startX = 0, startY = 0;
+		// Last control point, for smooth curves
+		double controlX = 0, controlY = 0;
+		char command = 0, lastCommand = 0;
+		while(scanner.skipSpace())
+		{
+			char c = scanner.peek();
+			if(Character.isLetter(c))
+			{
+				command = c;
+				scanner.next();
+			}
+			else if(command == 0)
+			{
+				throw new UnsupportedSvgException("Path data does not start with command");
+			}
+			else if(command == 'M')
+			{
+				command = 'L';
+			}
+			else if(command == 'm')
+			{
+				command = 'l';
+			}
+
+			boolean relative = Character.isLowerCase(command);
+			double baseX = relative ? x : 0, baseY = relative ? y : 0;
+			char upper = Character.toUpperCase(command);
+			switch(upper)
+			{
+				case 'M':
+					x = baseX + scanner.number();
+					y = baseY + scanner.number();
+					startX = x;
+					startY = y;
+					path.moveTo(x, y);
+					break;
+				case 'L':
+					x = baseX + scanner.number();
+					y = baseY + scanner.number();
+					path.lineTo(x, y);
+					break;
+				case 'H':
+					x = baseX + scanner.number();
+					path.lineTo(x, y);
+					break;
+				case 'V':
+					y = (relative ? y : 0) + scanner.number();
+					path.lineTo(x, y);
+					break;
+				case 'C':
+				case 'S':
+				{
+					double x1, y1;
+					if(upper == 'C')
+					{
+						x1 = baseX + scanner.number();
+						y1 = baseY + scanner.number();
+					}
+					else if(lastCommand == 'C' || lastCommand == 'S')
+					{
+						x1 = 2 * x - controlX;
+						y1 = 2 * y - controlY;
+					}
+					else
+					{
+						x1 = x;
+						y1 = y;
+					}
+					controlX = baseX + scanner.number();
+					controlY = baseY + scanner.number();
+					x = baseX + scanner.number();
+					y = baseY + scanner.number();
+					path.curveTo(x1, y1, controlX, controlY, x, y);
+					break;
+				}
+				case 'Q':
+				case 'T':
+				{
+					double qx, qy;
+					if(upper == 'Q')
+					{
+						qx = baseX + scanner.number();
+						qy = baseY + scanner.number();
+					}
+					else if(lastCommand == 'Q' || lastCommand == 'T')
+					{
+						qx = 2 * x - controlX;
+						qy = 2 * y - controlY;
+					}
+					else
+					{
+						qx = x;
+						qy = y;
+					}
+					double endX = baseX + scanner.number();
+					double endY = baseY + scanner.number();
+					path.curveTo(x + 2.0 / 3.0 * (qx - x), y + 2.0 / 3.0 * (qy - y),
+						endX + 2.0 / 3.0 * (qx - endX), endY + 2.0 / 3.0 * (qy - endY),
+						endX, endY);
+					controlX = qx;
+					controlY = qy;
+					x = endX;
+					y = endY;
+					break;
+				}
+				case 'Z':
+					path.closePath();
+					x = startX;
+					y = startY;
+					// Z takes no parameters so the next thing must be a command.
+					command = 0;
+					break;
+				default:
+					throw new UnsupportedSvgException("Unsupported path command: " + command);
+			}
+			lastCommand = upper;
+		}
+	}
+
+	/**
+	 * Scans through numbers in path data.
+	 */
+	private static class PathScanner
+	{
+		private final String d;
+		private int pos;
+
+		PathScanner(String d)
+		{
+			this.d = d;
+		}
+
+		/**
+		 * Skips whitespace and commas.
+		 * @return True if there is more data
+		 */
+		boolean skipSpace()
+		{
+			while(pos < d.length())
+			{
+				char c = d.charAt(pos);
+				if(c != ' ' && c != ',' && c != '\n' && c != '\r' && c != '\t')
+				{
+					return true;
+				}
+				pos++;
+			}
+			return false;
+		}
+
+		char peek()
+		{
+			return d.charAt(pos);
+		}
+
+		void next()
+		{
+			pos++;
+		}
+
+		/**
+		 * Reads a number.
+		 * @return Number
+		 * @throws UnsupportedSvgException If there isn't a number here
+		 */
+		double number() throws UnsupportedSvgException
+		{
+			if(!skipSpace())
+			{
+				throw new UnsupportedSvgException("Unexpected end of path data");
+			}
+			int start = pos;
+			if(d.charAt(pos) == '-' || d.charAt(pos) == '+')
+			{
+				pos++;
+			}
+			boolean dot = false;
+			while(pos < d.length())
+			{
+				char c = d.charAt(pos);
+				if(c == '.' && !dot)
+				{
+					dot = true;
+				}
+				else if(c == 'e' || c == 'E')
+				{
+					pos++;
+					if(pos < d.length() && (d.charAt(pos) == '-' || d.charAt(pos) == '+'))
+					{
+						pos++;
+					}
+					continue;
+				}
+				else if(c < '0' || c > '9')
+				{
+					break;
+				}
+				pos++;
+			}
+			return parseNumber(d.substring(start, pos));
+		}
+	}
+
+	/**
+	 * Path operators as text, using the PDF operator names (which are also
+	 * defined as PostScript procedures in the EPS prolog). Also keeps track of
+	 * the bounding box.
+	 */
+	static class PathText
+	{
+		private final StringBuilder out = new StringBuilder();
+		private double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE,
+			maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+		void moveTo(double x, double y)
+		{
+			point(x, y);
+			out.append(" m\n");
+		}
+
+		void lineTo(double x, double y)
+		{
+			point(x, y);
+			out.append(" l\n");
+		}
+
+		void curveTo(double x1, double y1, double x2, double y2, double x, double y)
+		{
+			point(x1, y1);
+			out.append(' ');
+			point(x2, y2);
+			out.append(' ');
+			point(x, y);
+			out.append(" c\n");
+		}
+
+		void closePath()
+		{
+			out.append("h\n");
+		}
+
+		void rect(double x, double y, double width, double height)
+		{
+			minX = Math.min(minX, x + width);
+			minY = Math.min(minY, y + height);
+			maxX = Math.max(maxX, x + width);
+			maxY = Math.max(maxY, y + height);
+			point(x, y);
+			out.append(' ');
+			appendNumber(out, width, 3);
+			out.append(' ');
+			appendNumber(out, height, 3);
+			out.append(" re\n");
+		}
+
+		private void point(double x, double y)
+		{
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			appendNumber(out, x, 3);
+			out.append(' ');
+			appendNumber(out, y, 3);
+		}
+
+		/**
+		 * Gets bounding box of all points (including control points), expanded
+		 * by the given margin.
+		 * @param margin Margin
+		 * @return Array of minX, minY, maxX, maxY
+		 */
+		double[] getBounds(double margin)
+		{
+			if(minX > maxX)
+			{
+				return new double[] { 0, 0, 0, 0 };
+			}
+			return new double[] { minX - margin, minY - margin, maxX + margin, maxY + margin };
+		}
+
+		@Override
+		public String toString()
+		{
+			return out.toString();
+		}
+	}
+
+	/**
+	 * Appends a number to a buffer, rounded to the given number of decimal
+	 * places and without trailing zeros.
+	 * @param out Buffer
+	 * @param number Number
+	 * @param places Decimal places
+	 */
+	static void appendNumber(StringBuilder out, double number, int places)
+	{
+		long multiplier = 1;
+		for(int i = 0; i < places; i++)
+		{
+			multiplier *= 10;
+		}
+		long value = Math.round(number * multiplier);
+		if(value < 0)
+		{
+			out.append('-');
+			value = -value;
+		}
+		out.append(value / multiplier);
+		long fraction = value % multiplier;
+		if(fraction != 0)
+		{
+			out.append('.');
+			for(long digit = multiplier / 10; digit > 0 && fraction != 0; digit /= 10)
+			{
+				out.append((char)('0' + fraction / digit));
+				fraction %= digit;
+			}
+		}
+	}
+
+	/**
+	 * Appends a colour (three numbers).
+	 * @param out Buffer
+	 * @param colour Colour
+	 */
+	private static void appendColour(StringBuilder out, float[] colour)
+	{
+		for(int i = 0; i < 3; i++)
+		{
+			appendNumber(out, colour[i], 4);
+			out.append(' ');
+		}
+	}
+
+	/**
+	 * Appends a transform matrix (six numbers).
+	 * @param out Buffer
+	 * @param matrix Matrix
+	 */
+	private static void appendMatrix(StringBuilder out, double[] matrix)
+	{
+		for(int i = 0; i < 6; i++)
+		{
+			appendNumber(out, matrix[i], i < 4 ? 6 : 3);
+			out.append(' ');
+		}
+	}
+
+	/**
+	 * Output format implementation.
+	 */
+	private static abstract class Output
+	{
+		/** Page content */
+		protected final StringBuilder content = new StringBuilder();
+
+		/**
+		 * Starts document.
+		 * @param width Width in points
+		 * @param height Height in points
+		 */
+		abstract void start(double width, double height);
+
+		/** Saves graphics state */
+		abstract void save();
+
+		/** Restores graphics state */
+		abstract void restore();
+
+		/**
+		 * Applies transform to current graphics state.
+		 * @param matrix Transform matrix
+		 */
+		abstract void transform(double[] matrix);
+
+		/**
+		 * Defines a glyph so it can be used later.
+		 * @param index Glyph index
+		 * @param path Glyph path
+		 */
+		abstract void defineGlyph(int index, PathText path);
+
+		/**
+		 * Draws a previously-defined glyph.
+		 * @param index Glyph index
+		 * @param path Glyph path
+		 * @param style Style to draw in
+		 */
+		abstract void useGlyph(int index, PathText path, Style style);
+
+		/**
+		 * Draws a path.
+		 * @param path Path
+		 * @param style Style
+		 */
+		abstract void drawPath(PathText path, Style style);
+
+		/**
+		 * Completes the document.
+		 * @return Output data
+		 * @throws IOException Any error
+		 */
+		abstract byte[] finish() throws IOException;
+
+		/**
+		 * Sets colours and line width in the content.
+		 * @param style Style
+		 * @param strokeColourOp Operator for setting stroke colour
+		 * @param fillColourOp Operator for setting fill colour
+		 */
+		protected void setStyle(Style style, String fillColourOp, String strokeColourOp)
+		{
+			if(style.isStroked())
+			{
+				appendNumber(content, style.strokeWidth, 3);
+				content.append(" w ");
+				appendColour(content, style.stroke);
+				content.append(strokeColourOp).append(' ');
+			}
+			if(style.isFilled())
+			{
+				appendColour(content, style.fill);
+				content.append(fillColourOp).append(' ');
+			}
+		}
+	}
+
+	/**
+	 * Writes EPS.
+	 */
+	private static class EpsOutput extends Output
+	{
+		private final StringBuilder header = new StringBuilder();
+
+		@Override
+		void start(double width, double height)
+		{
+			header.append("%!PS-Adobe-3.0 EPSF-3.0\n");
+			header.append("%%Creator: OU webmaths\n");
+			header.append("%%BoundingBox: 0 0 ")
+				.append((long)Math.ceil(width)).append(' ')
+				.append((long)Math.ceil(height)).append('\n');
+			header.append("%%HiResBoundingBox: 0 0 ");
+			appendNumber(header, width, 3);
+			header.append(' ');
+			appendNumber(header, height, 3);
+			header.append('\n');
+			header.append("%%LanguageLevel: 2\n");
+			header.append("%%EndComments\n");
+			header.append("%%BeginProlog\n");
+			header.append("/WebMathsDict 20 dict def\n");
+			header.append("WebMathsDict begin\n");
+			header.append("/m /moveto load def /l /lineto load def /c /curveto load def\n");
+			header.append("/h /closepath load def /w /setlinewidth load def\n");
+			header.append("/rg /setrgbcolor load def /q /gsave load def /Q /grestore load def\n");
+			header.append("/cm { [ 7 1 roll ] concat } bind def\n");
+			header.append("/re { exch dup neg 3 1 roll 5 3 roll moveto 0 rlineto\n");
+			header.append("  0 exch rlineto 0 rlineto closepath } bind def\n");
+			// Fill, stroke, and both (with separate colours).
+			header.append("/f { fill } bind def /S { stroke } bind def\n");
+			header.append("/B { gsave rg fill grestore rg stroke } bind def\n");
+			header.append("end\n");
+		}
+
+		@Override
+		void save()
+		{
+			content.append("q\n");
+		}
+
+		@Override
+		void restore()
+		{
+			content.append("Q\n");
+		}
+
+		@Override
+		void transform(double[] matrix)
+		{
+			appendMatrix(content, matrix);
+			content.append("cm\n");
+		}
+
+		@Override
+		void defineGlyph(int index, PathText path)
+		{
+			header.append("WebMathsDict /G").append(index).append(" {\nnewpath\n");
+			header.append(path);
+			header.append("} bind put\n");
+		}
+
+		@Override
+		void useGlyph(int index, PathText path, Style style)
+		{
+			paint("G" + index + "\n", style);
+		}
+
+		@Override
+		void drawPath(PathText path, Style style)
+		{
+			paint("newpath\n" + path, style);
+		}
+
+		/**
+		 * Adds a path and paints it.
+		 * @param path Path operators
+		 * @param style Style
+		 */
+		private void paint(String path, Style style)
+		{
+			boolean fill = style.isFilled(), stroke = style.isStroked();
+			if(!fill && !stroke)
+			{
+				return;
+			}
+			if(fill && stroke)
+			{
+				// Colours stay on the operand stack for the B procedure.
+				appendNumber(content, style.strokeWidth, 3);
+				content.append(" w ");
+				appendColour(content, style.stroke);
+				appendColour(content, style.fill);
+				content.append('\n').append(path).append("B\n");
+				return;
+			}
+			setStyle(style, "rg", "rg");
+			content.append('\n').append(path).append(fill ? "f\n" : "S\n");
+		}
+
+		@Override
+		byte[] finish()
+		{
+			StringBuilder out = header;
+			out.append("%%EndProlog\n");
+			out.append("%%Page: 1 1\n");
+			out.append("WebMathsDict begin\n");
+			out.append("q\n");
+			out.append(content);
+			out.append("Q\n");
+			out.append("end\n");
+			out.append("showpage\n");
+			out.append("%%EOF\n");
+			return out.toString().getBytes(LATIN1);
+		}
+	}
+
+	/**
+	 * Writes PDF.
+	 */
+	private static class PdfOutput extends Output
+	{
+		/** Margin around glyph bounding boxes (allows for stroke width) */
+		private final static double GLYPH_MARGIN = 50.0;
+
+		private double width, height;
+		private final Map<String, byte[]> xObjects = new TreeMap<String, byte[]>();
+		private final Map<Integer, PathText> glyphs = new HashMap<Integer, PathText>();
+
+		@Override
+		void start(double width, double height)
+		{
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		void save()
+		{
+			content.append("q\n");
+		}
+
+		@Override
+		void restore()
+		{
+			content.append("Q\n");
+		}
+
+		@Override
+		void transform(double[] matrix)
+		{
+			appendMatrix(content, matrix);
+			content.append("cm\n");
+		}
+
+		@Override
+		void defineGlyph(int index, PathText path)
+		{
+			// Form XObjects include the painting operator, so they are created when
+			// the glyph is first used in each painting mode.
+			glyphs.put(index, path);
+		}
+
+		@Override
+		void useGlyph(int index, PathText path, Style style)
+		{
+			String op = getPaintOperator(style);
+			if(op == null)
+			{
+				return;
+			}
+			String name = "G" + index + op;
+			if(!xObjects.containsKey(name))
+			{
+				double[] bounds = path.getBounds(GLYPH_MARGIN);
+				StringBuilder dict = new StringBuilder();
+				dict.append("/Type /XObject /Subtype /Form /BBox [");
+				for(int i = 0; i < 4; i++)
+				{
+					appendNumber(dict, bounds[i], 3);
+					dict.append(i == 3 ? "]" : " ");
+				}
+				xObjects.put(name, createStream(dict.toString(), path + op + "\n"));
+			}
+			setStyle(style, "rg", "RG");
+			content.append("/").append(name).append(" Do\n");
+		}
+
+		@Override
+		void drawPath(PathText path, Style style)
+		{
+			String op = getPaintOperator(style);
+			if(op == null)
+			{
+				return;
+			}
+			setStyle(style, "rg", "RG");
+			content.append('\n').append(path).append(op).append('\n');
+		}
+
+		/**
+		 * @param style Style
+		 * @return PDF painting operator or null if nothing to paint
+		 */
+		private static String getPaintOperator(Style style)
+		{
+			if(style.isFilled())
+			{
+				return style.isStroked() ? "B" : "f";
+			}
+			return style.isStroked() ? "S" : null;
+		}
+
+		/**
+		 * Creates a compressed stream object (without the obj/endobj wrapper).
+		 * @param dict Extra dictionary entries
+		 * @param data Stream data
+		 * @return Stream object content
+		 */
+		private static byte[] createStream(String dict, String data)
+		{
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			deflater.setInput(data.getBytes(LATIN1));
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			while(!deflater.finished())
+			{
+				int count = deflater.deflate(buffer);
+				compressed.write(buffer, 0, count);
+			}
+			deflater.end();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] start = ("<< " + (dict.isEmpty() ? "" : dict + " ") +
+				"/Filter /FlateDecode /Length " + compressed.size() + " >>\nstream\n")
+				.getBytes(LATIN1);
+			out.write(start, 0, start.length);
+			out.write(compressed.toByteArray(), 0, compressed.size());
+			byte[] end = "\nendstream".getBytes(LATIN1);
+			out.write(end, 0, end.length);
+			return out.toByteArray();
+		}
+
+		@Override
+		byte[] finish() throws IOException
+		{
+			List<byte[]> objects = new ArrayList<byte[]>();
+
+			// Catalog and page tree.
+			objects.add("<< /Type /Catalog /Pages 2 0 R >>".getBytes(LATIN1));
+			objects.add("<< /Type /Pages /Kids [3 0 R] /Count 1 >>".getBytes(LATIN1));
+
+			// Page, with resources referring to XObjects (which start at object 5).
+			StringBuilder page = new StringBuilder();
+			page.append("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ");
+			appendNumber(page, width, 3);
+			page.append(' ');
+			appendNumber(page, height, 3);
+			page.append("] /Resources << /XObject <<");
+			int objectNumber = 5;
+			for(String name : xObjects.keySet())
+			{
+				page.append(" /").append(name).append(' ').append(objectNumber++).append(" 0 R");
+			}
+			page.append(" >> >> /Contents 4 0 R >>");
+			objects.add(page.toString().getBytes(LATIN1));
+			objects.add(createStream("", "q\n" + content + "Q\n"));
+			objects.addAll(xObjects.values());
+
+			// Write out objects and cross-reference table.
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("%PDF-1.4\n%âãÏÓ\n".getBytes(LATIN1));
+			long[] offsets = new long[objects.size()];
+			for(int i = 0; i < objects.size(); i++)
+			{
+				offsets[i] = out.size();
+				out.write(((i + 1) + " 0 obj\n").getBytes(LATIN1));
+				out.write(objects.get(i));
+				out.write("\nendobj\n".getBytes(LATIN1));
+			}
+			long xref = out.size();
+			StringBuilder trailer = new StringBuilder();
+			trailer.append("xref\n0 ").append(objects.size() + 1).append('\n');
+			trailer.append("0000000000 65535 f \n");
+			for(long offset : offsets)
+			{
+				trailer.append(String.format("%010d 00000 n \n", offset));
+			}
+			trailer.append("trailer\n<< /Size ").append(objects.size() + 1)
+				.append(" /Root 1 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+			out.write(trailer.toString().getBytes(LATIN1));
+			return out.toByteArray();
+		}
+	}
+}
@@ -24,7 +24,7 @@ import java.nio.charset.Charset;
 /**
  * Line reader that includes support for timeouts.
  */
-class TimeoutReader implements Runnable
+public class TimeoutReader implements Runnable
 {
 	private final static int MAXIMUM_LINE_LENGTH = 256 * 1024;
 
@@ -35,7 +35,7 @@ class TimeoutReader implements Runnable
 	/**
 	 * @param in Input stream to read
 	 */
-	TimeoutReader(InputStream in)
+	public TimeoutReader(InputStream in)
 	{
 		this.in = in;
 		(new Thread(this, "stdout reader")).start();
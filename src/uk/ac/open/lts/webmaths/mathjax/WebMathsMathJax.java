@@ -48,6 +48,7 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 		types.addAll(params.getOutputs());
 		final float exSize = params.getExSize();
 		final String rgb = params.getRgb();
+		final boolean minify = Boolean.TRUE.equals(params.isMinify());
 		final SourceEquation[] equations = params.getEquations().toArray(
 			new SourceEquation[params.getEquations().size()]);
 
@@ -64,7 +65,8 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 				{
 					try
 					{
-						OutputData out = processEquation(mathJax, types, exSize, rgb, equations[currentIndex]);
+						OutputData out = processEquation(mathJax, types, exSize, rgb, minify,
+							equations[currentIndex]);
 						synchronized(synch)
 						{
 							allOut[currentIndex]= out;
@@ -107,6 +109,20 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 			}
 		}
 
+		// If using shared defs, remove them from each SVG in order.
+		if(Boolean.TRUE.equals(params.isSharedDefs()))
+		{
+			SharedDefs sharedDefs = new SharedDefs();
+			for(OutputData out : allOut)
+			{
+				if(out.getSvg() != null)
+				{
+					out.setSvg(sharedDefs.share(out.getSvg()));
+				}
+			}
+			result.setDefs(sharedDefs.getDefs());
+		}
+
 		// Add everything to the result and return it.
 		for(OutputData out : allOut)
 		{
@@ -121,11 +137,12 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 	 * @param types Required types
 	 * @param exSize Ex size
 	 * @param rgb RGB string
+	 * @param minify True to minify SVG output
 	 * @param equation Equation to convert
 	 * @return Output data for this equation
 	 */
 	private OutputData processEquation(MathJax mathJax,
-		EnumSet<ConversionType> types, float exSize, String rgb,
+		EnumSet<ConversionType> types, float exSize, String rgb, boolean minify,
 		SourceEquation equation)
 	{
 		OutputData out = new OutputData();
@@ -158,13 +175,18 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 			}
 
 			// If SVG was turned on, store it.
+			String outputSvg = null;
 			if(types.contains(SVG_EX))
 			{
-				out.setSvg(exSvg);
+				outputSvg = exSvg;
 			}
 			else if(types.contains(SVG_PX))
 			{
-				out.setSvg(pixelSvg);
+				outputSvg = pixelSvg;
+			}
+			if(outputSvg != null)
+			{
+				out.setSvg(minify ? SvgMinifier.minify(outputSvg) : outputSvg);
 			}
 
 			if(types.contains(PNG))
@@ -201,6 +223,11 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 				out.setEps(mathJax.getEps(eq, exSize, rgb));
 			}
 
+			if(types.contains(PDF))
+			{
+				out.setPdf(mathJax.getPdf(eq, exSize, rgb));
+			}
+
 			out.setOk(true);
 		}
 		catch(MathJaxException e)
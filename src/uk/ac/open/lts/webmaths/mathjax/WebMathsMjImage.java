@@ -68,6 +68,17 @@ public class WebMathsMjImage extends WebMathsService implements MathsImagePort
 		return result;
 	}
 
+	@Override
+	public MathsImagesReturn getImages(MathsImagesParams params)
+	{
+		MathsImagesReturn result = new MathsImagesReturn();
+		for(MathsImageParams equation : params.getMathsImageParams())
+		{
+			result.getMathsImageReturn().add(getImage(equation));
+		}
+		return result;
+	}
+
 	@Override
 	public MathsEpsReturn getEps(MathsEpsParams params)
 	{
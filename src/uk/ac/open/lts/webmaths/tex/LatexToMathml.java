@@ -33,12 +33,9 @@ package uk.ac.open.lts.webmaths.tex;
 
 import java.util.*;
 
-import javax.xml.parsers.*;
-
-import org.w3c.dom.*;
+import uk.ac.open.lts.webmaths.tex.MathmlNode.*;
 
 import static uk.ac.open.lts.webmaths.MapUtil.*;
-import static uk.ac.open.lts.webmaths.WebMathsService.NS;
 
 /**
  * Class ported from some Python code that converts LaTeX to MathML.
@@ -60,16 +57,18 @@ public class LatexToMathml
 
 	/**
 	 * Java interface equivalent for the lambda functions that take one TokenInput
-	 * parameter.
+	 * parameter. The converter is passed in too, so that the functions can be
+	 * shared by all conversions.
 	 */
 	private interface LambdaTokenInput
 	{
 		/**
 		 * Calls the function.
+		 * @param c Converter
 		 * @param slf Input parameter
 		 * @return Return value
 		 */
-		public Element call(TokenInput slf);
+		public Element call(LatexToMathml c, TokenInput slf);
 	}
 
 	/**
@@ -90,40 +89,21 @@ public class LatexToMathml
 //mmlns = 'http://www.w3.org/1998/Math/MathML'
 //#create empty DOM document
 //document = xml.dom.minidom.getDOMImplementation().createDocument(None,None,None)
-	private Document document;
 
 	/**
-	 * Creates a document containing only an error message.
+	 * Creates a result containing only an error message.
 	 * @param error Error message (unescaped text)
-	 * @return Document root
-	 * @throws ParserConfigurationException Any error creating DOM data
+	 * @return Root element
 	 */
 	public static Element createErrorElement(String error)
-		throws ParserConfigurationException
-	{
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
-		Document document = factory.newDocumentBuilder().newDocument();
-		Element root = document.createElementNS(NS, "math");
-		document.appendChild(root);
-		Element xerror = document.createElementNS(NS, "xerror");
+	{
+		Element root = new Element("math");
+		Element xerror = new Element("xerror");
 		root.appendChild(xerror);
-		xerror.appendChild(document.createTextNode(error));
+		xerror.appendChild(new Text(error));
 		return root;
 	}
 
-	/**
-	 * @throws ParserConfigurationException Any error creating DOM data
-	 */
-	public LatexToMathml() throws ParserConfigurationException
-	{
-		// Note: There wasn't a constructor in the original Python version because
-		// it used static methods.
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
-		document = factory.newDocumentBuilder().newDocument();
-	}
-
 //def result_element(tag, num_attrs, *args):
 //node = document.createElementNS(mmlns, tag)
 //
@@ -145,14 +125,14 @@ public class LatexToMathml
 	 * I have left this function the same as in Python which is
 	 * pretty horrible. The arguments must start with numAttrs*2 strings
 	 * as name-value pairs for attributes; after than they can be String
-	 * (converted to a text node and appended) or Node (appended).
+	 * (converted to a text node and appended) or MathmlNode (appended).
 	 * @param tag Tag name
 	 * @param numAttrs Number of attribute name/value pairs included in array
 	 * @param args Arguments
 	 */
 	private Element resultElement(String tag, int numAttrs, Object... args)
 	{
-		Element node = document.createElementNS(NS, tag);
+		Element node = new Element(tag);
 		for(int i=0; i<numAttrs; i++)
 		{
 			if(args[2 * i + 1] != null)
@@ -167,11 +147,11 @@ public class LatexToMathml
 			{
 				if(args[i] instanceof String)
 				{
-					node.appendChild(document.createTextNode((String)args[i]));
+					node.appendChild(new Text((String)args[i]));
 				}
 				else
 				{
-					node.appendChild((Node)args[i]);
+					node.appendChild((MathmlNode)args[i]);
 				}
 			}
 		}
@@ -184,11 +164,11 @@ public class LatexToMathml
 	 * @param parent Parent node
 	 * @param child Child node
 	 */
-	private void resultElementAppend(Node parent, Node child)
+	private void resultElementAppend(Element parent, MathmlNode child)
 	{
 		if(parent != null && child != null)
 		{
-			parent.appendChild((Node)child);
+			parent.appendChild(child);
 		}
 	}
 
@@ -203,7 +183,7 @@ public class LatexToMathml
 	 * @param child Child node to insert
 	 * @param next Node to insert before. If null, will insert at end
 	 */
-	private void resultElementPrepend(Node parent, Node child, Node next)
+	private void resultElementPrepend(Element parent, MathmlNode child, MathmlNode next)
 	{
 		if(next == null)
 		{
@@ -1090,247 +1070,248 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 	});
 
 //g_tex_commands = {
-	private Map<String, LambdaTokenInput> texCommands =
-		new HashMap<String, LambdaTokenInput>();
+	private final static Map<String, LambdaTokenInput> TEX_COMMANDS;
+	static
 	{
+		Map<String, LambdaTokenInput> texCommands = new HashMap<String, LambdaTokenInput>();
 //u"\\frac": v_fraction_to_mathml, \
 		texCommands.put("\\frac", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fractionToMathml(slf);
+				return c.fractionToMathml(slf);
 			}
 		});
 //u"\\dsum": lambda slf: v_sizevariant_to_mathml(slf,u"true",u"\\sum"), \
 		texCommands.put("\\dsum", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "true", "\\sum");
+				return c.sizeVariantToMathml(slf, "true", "\\sum");
 			}
 		});
 //u"\\tsum": lambda slf: v_sizevariant_to_mathml(slf,u"false",u"\\sum"), \
 		texCommands.put("\\tsum", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "false", "\\sum");
+				return c.sizeVariantToMathml(slf, "false", "\\sum");
 			}
 		});
 //u"\\dint": lambda slf: v_sizevariant_to_mathml(slf,u"true",u"\\int"), \
 		texCommands.put("\\dint", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "true", "\\int");
+				return c.sizeVariantToMathml(slf, "true", "\\int");
 			}
 		});
 //u"\\tint": lambda slf: v_sizevariant_to_mathml(slf,u"false",u"\\int"), \
 		texCommands.put("\\tint", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "false", "\\int");
+				return c.sizeVariantToMathml(slf, "false", "\\int");
 			}
 		});
 //u"\\dbinom": lambda slf: v_sizevariant_to_mathml(slf,u"true",u"\\binom"), \
 		texCommands.put("\\dbinom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "true", "\\binom");
+				return c.sizeVariantToMathml(slf, "true", "\\binom");
 			}
 		});
 //u"\\tbinom": lambda slf: v_sizevariant_to_mathml(slf,u"false",u"\\binom"), \
 		texCommands.put("\\tbinom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "false", "\\binom");
+				return c.sizeVariantToMathml(slf, "false", "\\binom");
 			}
 		});
 //u"\\dfrac": lambda slf: result_element(u"mstyle",1, u"displaystyle", u"true", v_fraction_to_mathml(slf)), \
 		texCommands.put("\\dfrac", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return resultElement("mstyle", 1, "displaystyle", "true", fractionToMathml(slf));
+				return c.resultElement("mstyle", 1, "displaystyle", "true", c.fractionToMathml(slf));
 			}
 		});
 //u"\\tfrac": lambda slf: result_element(u"mstyle",2, u"displaystyle", u"false", u"scriptlevel", u"+1",v_fraction_to_mathml(slf)), \
 		texCommands.put("\\tfrac", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// I changed this because I think tfrac should just have displaystyle false, not scriptlevel +1 as well
-				return resultElement("mstyle", 1, "displaystyle", "false", fractionToMathml(slf));
+				return c.resultElement("mstyle", 1, "displaystyle", "false", c.fractionToMathml(slf));
 			}
 		});
 //u"\\binom": v_binom_to_mathml, \
 		texCommands.put("\\binom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return binomToMathml(slf);
+				return c.binomToMathml(slf);
 			}
 		});
 //u"\\sqrt": v_sqrt_to_mathml, \
 		texCommands.put("\\sqrt", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sqrtToMathml(slf);
+				return c.sqrtToMathml(slf);
 			}
 		});
 //u"\\operatorname": v_operatorname_to_mathml, \
 		texCommands.put("\\operatorname", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return operatorNameToMathml(slf);
+				return c.operatorNameToMathml(slf);
 			}
 		});
 //u"\\displaystyle": v_displaystyle_to_mathml, \
 		texCommands.put("\\displaystyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, true, 0);
+				return c.displayStyleToMathml(slf, true, 0);
 			}
 		});
 		texCommands.put("\\textstyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, false, 0);
+				return c.displayStyleToMathml(slf, false, 0);
 			}
 		});
 		texCommands.put("\\scriptstyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, false, 1);
+				return c.displayStyleToMathml(slf, false, 1);
 			}
 		});
 		texCommands.put("\\scriptscriptstyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, false, 2);
+				return c.displayStyleToMathml(slf, false, 2);
 			}
 		});
 		texCommands.put("\\mod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return modOperator(slf, "mod", false, true);
+				return c.modOperator(slf, "mod", false, true);
 			}
 		});
 		texCommands.put("\\bmod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return modOperator(slf, "mod", false, false);
+				return c.modOperator(slf, "mod", false, false);
 			}
 		});
 //u"\\pod": lambda slf: v_parenthesized_operator(slf, None), \
 		texCommands.put("\\pod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return modOperator(slf, null, true, true);
+				return c.modOperator(slf, null, true, true);
 			}
 		});
 //u"\\pmod": lambda slf: v_parenthesized_operator(slf, u"mod"), \
 		texCommands.put("\\pmod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return modOperator(slf, "mod", true, true);
+				return c.modOperator(slf, "mod", true, true);
 			}
 		});
 //u"\\boldsymbol": lambda slf: v_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\boldsymbol", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return boldSymbolToMathml(slf);
+				return c.boldSymbolToMathml(slf);
 			}
 		});
 //u"\\bold": lambda slf: v_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\bold", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "bold");
+				return c.fontToMathml(slf, "bold");
 			}
 		});
 //u"\\Bbb": lambda slf: v_font_to_mathml(slf, u"double-struck"), \
 		texCommands.put("\\Bbb", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "double-struck");
+				return c.fontToMathml(slf, "double-struck");
 			}
 		});
 //u"\\mathbb": lambda slf: v_font_to_mathml(slf, u"double-struck"), \
 		texCommands.put("\\mathbb", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "double-struck");
+				return c.fontToMathml(slf, "double-struck");
 			}
 		});
 //u"\\mathbbmss": lambda slf: v_font_to_mathml(slf, u"double-struck"), \
 		texCommands.put("\\mathbbmss", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "double-struck");
+				return c.fontToMathml(slf, "double-struck");
 			}
 		});
 //u"\\mathbf": lambda slf: v_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\mathbf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "bold");
+				return c.fontToMathml(slf, "bold");
 			}
 		});
 //u"\\mathop": lambda slf: v_font_to_mathml(slf, u"normal"), \
 		texCommands.put("\\mathop", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// sam: mathop should result in italic text, not normal
-				Element result = fontToMathml(slf, "italic");
+				Element result = c.fontToMathml(slf, "italic");
 				result.setAttribute("class", "tex-mathop");
 				return result;
 			}
@@ -1339,376 +1320,376 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texCommands.put("\\mathrm", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "normal");
+				return c.fontToMathml(slf, "normal");
 			}
 		});
 //u"\\mathfrak": lambda slf: v_font_to_mathml(slf, u"fraktur"), \
 		texCommands.put("\\mathfrak", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "fraktur");
+				return c.fontToMathml(slf, "fraktur");
 			}
 		});
 //u"\\mathit": lambda slf: v_font_to_mathml(slf, u"italic"), \
 		texCommands.put("\\mathit", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "italic");
+				return c.fontToMathml(slf, "italic");
 			}
 		});
 //u"\\mathscr": lambda slf: v_font_to_mathml(slf, u"script"), \
 		texCommands.put("\\mathscr", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "script");
+				return c.fontToMathml(slf, "script");
 			}
 		});
 //u"\\mathcal": lambda slf: v_font_to_mathml(slf, u"script"), \
 		texCommands.put("\\mathcal", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "script");
+				return c.fontToMathml(slf, "script");
 			}
 		});
 //u"\\mathsf": lambda slf: v_font_to_mathml(slf, u"sans-serif"), \
 		texCommands.put("\\mathsf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "sans-serif");
+				return c.fontToMathml(slf, "sans-serif");
 			}
 		});
 //u"\\mathtt": lambda slf: v_font_to_mathml(slf, u"monospace"), \
 		texCommands.put("\\mathtt", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "monospace");
+				return c.fontToMathml(slf, "monospace");
 			}
 		});
 //u"\\EuScript": lambda slf: v_font_to_mathml(slf, u"script"), \
 		texCommands.put("\\EuScript", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return fontToMathml(slf, "script");
+				return c.fontToMathml(slf, "script");
 			}
 		});
 //u"\\bf": lambda slf: v_old_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\bf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return oldFontToMathml(slf, "bold");
+				return c.oldFontToMathml(slf, "bold");
 			}
 		});
 //u"\\rm": lambda slf: v_old_font_to_mathml(slf, u"normal"), \
 		texCommands.put("\\rm", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return oldFontToMathml(slf, "normal");
+				return c.oldFontToMathml(slf, "normal");
 			}
 		});
 //u"\\big": lambda slf: v_size_to_mathml(slf, u"2", u"2"), \
 		texCommands.put("\\big", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeToMathml(slf, "2", "2");
+				return c.sizeToMathml(slf, "2", "2");
 			}
 		});
 //u"\\Big": lambda slf: v_size_to_mathml(slf, u"3", u"3"), \
 		texCommands.put("\\Big", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeToMathml(slf, "3", "3");
+				return c.sizeToMathml(slf, "3", "3");
 			}
 		});
 //u"\\bigg": lambda slf: v_size_to_mathml(slf, u"4", u"4"), \
 		texCommands.put("\\bigg", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeToMathml(slf, "4", "4");
+				return c.sizeToMathml(slf, "4", "4");
 			}
 		});
 //u"\\Bigg": lambda slf: v_size_to_mathml(slf, u"5", u"5"), \
 		texCommands.put("\\Bigg", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return sizeToMathml(slf, "5", "5");
+				return c.sizeToMathml(slf, "5", "5");
 			}
 		});
 //u"\\acute": lambda slf: v_accent_to_mathml(slf, u"\u0301"), \
 		texCommands.put("\\acute", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u00b4", false);
+				return c.accentToMathml(slf, "\u00b4", false);
 			}
 		});
 //u"\\grave": lambda slf: v_accent_to_mathml(slf, u"\u0300"), \
 		texCommands.put("\\grave", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u0060", false);
+				return c.accentToMathml(slf, "\u0060", false);
 			}
 		});
 //u"\\tilde": lambda slf: v_accent_to_mathml(slf, u"\u0303"), \
 		texCommands.put("\\tilde", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
 				// The LaTeX \tilde is not stretchy, so override stretchyness.
-				return accentToMathml(slf, "~", true);
+				return c.accentToMathml(slf, "~", true);
 			}
 		});
 //u"\\bar": lambda slf: v_accent_to_mathml(slf, u"\u0304"), \
 		texCommands.put("\\bar", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// NOTE: This used to use U+0304, but that is a combining macron -
 				// using it without a character to combine with results in unexpected
 				// (i.e. crap) results. U+0304 would be correct if it were written
 				// directly after the character it decorates, but as it's in a separate
 				// XML tag, this is not the case.
-				return accentToMathml(slf, "\u00af", false);
+				return c.accentToMathml(slf, "\u00af", false);
 			}
 		});
 //u"\\breve": lambda slf: v_accent_to_mathml(slf, u"\u0306"), \
 		texCommands.put("\\breve", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u02d8", false);
+				return c.accentToMathml(slf, "\u02d8", false);
 			}
 		});
 //u"\\check": lambda slf: v_accent_to_mathml(slf, u"\u030c"), \
 		texCommands.put("\\check", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u02c7", false);
+				return c.accentToMathml(slf, "\u02c7", false);
 			}
 		});
 //u"\\hat": lambda slf: v_accent_to_mathml(slf, u"\u0302"), \
 		texCommands.put("\\hat", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// This used to return 0302, but MathML uses the basic circumflex 005e
 				// as its &Hat; so I figure that is right.
-				return accentToMathml(slf, "\u005e", false);
+				return c.accentToMathml(slf, "\u005e", false);
 			}
 		});
 //u"\\vec": lambda slf: v_accent_to_mathml(slf, u"\u20d7"), \
 		texCommands.put("\\vec", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u2192", false);
+				return c.accentToMathml(slf, "\u2192", false);
 			}
 		});
 //u"\\dot": lambda slf: v_accent_to_mathml(slf, u"\u0307"), \
 		texCommands.put("\\dot", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u02d9", false);
+				return c.accentToMathml(slf, "\u02d9", false);
 			}
 		});
 //u"\\ddot": lambda slf: v_accent_to_mathml(slf, u"\u0308"), \
 		texCommands.put("\\ddot", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u00a8", false);
+				return c.accentToMathml(slf, "\u00a8", false);
 			}
 		});
 //u"\\dddot": lambda slf: v_accent_to_mathml(slf, u"\u20db"), \
 		texCommands.put("\\dddot", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// This is COMBINING THREE DOTS ABOVE but is correct because there is
 				// no non-combining character.
 				// http://lists.w3.org/Archives/Public/www-math/2011May/0001.html
-				return accentToMathml(slf, "\u20db", false);
+				return c.accentToMathml(slf, "\u20db", false);
 			}
 		});
 //u"\\underbrace": lambda slf: v_under_to_mathml(slf, u"\ufe38"), \
 		texCommands.put("\\underbrace", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return underToMathml(slf, "\ufe38", true);
+				return c.underToMathml(slf, "\ufe38", true);
 			}
 		});
 //u"\\overbrace": lambda slf: v_over_to_mathml(slf, u"\ufe37"), \
 		texCommands.put("\\overbrace", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return overToMathml(slf, "\ufe37", true);
+				return c.overToMathml(slf, "\ufe37", true);
 			}
 		});
 //u"\\underline": lambda slf: v_under_to_mathml(slf, u"\u0332"), \
 		texCommands.put("\\underline", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return underToMathml(slf, "\u0332", false);
+				return c.underToMathml(slf, "\u0332", false);
 			}
 		});
 //u"\\overline": lambda slf: v_over_to_mathml(slf, u"\u00af"), \
 		texCommands.put("\\overline", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return overToMathml(slf, "\u00af", false);
+				return c.overToMathml(slf, "\u00af", false);
 			}
 		});
 		texCommands.put("\\overrightarrow", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return overToMathml(slf, "\u27f6", false);
+				return c.overToMathml(slf, "\u27f6", false);
 			}
 		});
 //u"\\widetilde": lambda slf: v_over_to_mathml(slf, u"\u0303"), \
 		texCommands.put("\\widetilde", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return overToMathml(slf, "~", false);
+				return c.overToMathml(slf, "~", false);
 			}
 		});
 //u"\\widehat": lambda slf: v_over_to_mathml(slf, u"\u0302"), \
 		texCommands.put("\\widehat", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return overToMathml(slf, "\u005e", false);
+				return c.overToMathml(slf, "\u005e", false);
 			}
 		});
 //u"\\not": lambda slf: v_combining_to_mathml(slf, u"\u0338"), \
 		texCommands.put("\\not", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return combiningToMathml(slf, "\u0338");
+				return c.combiningToMathml(slf, "\u0338");
 			}
 		});
 //u"\\left": lambda slf: v_delimiter_to_mathml(slf, u"\\right", u"1", None), \
 		texCommands.put("\\left", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\right", "1", null);
+				return c.delimiterToMathml(slf, "\\right", "1", null);
 			}
 		});
 //u"\\bigl": lambda slf: v_delimiter_to_mathml(slf, u"\\bigr", u"2", u"2"), \
 		texCommands.put("\\bigl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\bigr", "2", "2");
+				return c.delimiterToMathml(slf, "\\bigr", "2", "2");
 			}
 		});
 //u"\\Bigl": lambda slf: v_delimiter_to_mathml(slf, u"\\Bigr", u"3", u"3"), \
 		texCommands.put("\\Bigl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\Bigr", "3", "3");
+				return c.delimiterToMathml(slf, "\\Bigr", "3", "3");
 			}
 		});
 //u"\\biggl": lambda slf: v_delimiter_to_mathml(slf, u"\\biggr", u"4", u"4"), \
 		texCommands.put("\\biggl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\biggr", "4", "4");
+				return c.delimiterToMathml(slf, "\\biggr", "4", "4");
 			}
 		});
 //u"\\Biggl": lambda slf: v_delimiter_to_mathml(slf, u"\\Biggr", u"5", u"5"), \
 		texCommands.put("\\Biggl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\Biggr", "5", "5");
+				return c.delimiterToMathml(slf, "\\Biggr", "5", "5");
 			}
 		});
 //u"\\char": v_char_escape_to_mathml, \
 		texCommands.put("\\char", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return charEscapeToMathml(slf);
+				return c.charEscapeToMathml(slf);
 			}
 		});
 //u"\\!": lambda slf: None, \
 		texCommands.put("\\!", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput input)
+			public Element call(LatexToMathml c, TokenInput input)
 			{
 				return null;
 			}
@@ -1717,137 +1698,139 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texCommands.put("\\text", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return c.textToMathml(slf, null);
 			}
 		});
 //u"\\textnormal": v_text_to_mathml, \
 		texCommands.put("\\textnormal", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return c.textToMathml(slf, null);
 			}
 		});
 //u"\\textrm": v_text_to_mathml, \
 		texCommands.put("\\textrm", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return c.textToMathml(slf, null);
 			}
 		});
 //u"\\textsl": v_text_to_mathml, \
 		texCommands.put("\\textsl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, "italic");
+				return c.textToMathml(slf, "italic");
 			}
 		});
 //u"\\textit": v_text_to_mathml, \
 		texCommands.put("\\textit", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, "italic");
+				return c.textToMathml(slf, "italic");
 			}
 		});
 //u"\\texttt": v_text_to_mathml, \
 		texCommands.put("\\texttt", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, "monospace");
+				return c.textToMathml(slf, "monospace");
 			}
 		});
 //u"\\textbf": v_text_to_mathml, \
 		texCommands.put("\\textbf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, "bold");
+				return c.textToMathml(slf, "bold");
 			}
 		});
 //u"\\hbox": v_text_to_mathml, \
 		texCommands.put("\\hbox", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return c.textToMathml(slf, null);
 			}
 		});
 //u"\\mbox": v_text_to_mathml, \
 		texCommands.put("\\mbox", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return c.textToMathml(slf, null);
 			}
 		});
 //u"\\begin": v_latex_block_to_mathml, \
 		texCommands.put("\\begin", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return latexBlockToMathml(slf);
+				return c.latexBlockToMathml(slf);
 			}
 		});
 		// Add \substack command
 		texCommands.put("\\substack", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return substackToMathml(slf);
+				return c.substackToMathml(slf);
 			}
 		});
 		// Add \stackrel command
 		texCommands.put("\\stackrel", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return stackrelToMathml(slf);
+				return c.stackrelToMathml(slf);
 			}
 		});
 		// Add \strut command
 		texCommands.put("\\strut", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return resultElement("mrow", 0);
+				return c.resultElement("mrow", 0);
 			}
 		});
 		texCommands.put("\\!", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return resultElement("mspace", 1, "width", "negativethinmathspace");
+				return c.resultElement("mspace", 1, "width", "negativethinmathspace");
 			}
 		});
 		// Add \phantom command.
 		texCommands.put("\\phantom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return resultElement("mphantom", 0, pieceToMathml(slf));
+				return c.resultElement("mphantom", 0, c.pieceToMathml(slf));
 			}
 		});
 //}
+
+		TEX_COMMANDS = Collections.unmodifiableMap(texCommands);
 	}
 
 //def v_fraction_to_mathml(slf):
@@ -1951,10 +1934,10 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			return resultElement(element, 0, child);
 		}
 		List<Element> grandchildren = new LinkedList<Element>();
-		for(Node grandchild = child.getFirstChild(); grandchild != null;
+		for(MathmlNode grandchild = child.getFirstChild(); grandchild != null;
 			grandchild = grandchild.getNextSibling())
 		{
-			if(grandchild.getNodeType() == Node.ELEMENT_NODE)
+			if(grandchild instanceof Element)
 			{
 				grandchildren.add((Element)grandchild);
 			}
@@ -2167,13 +2150,13 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		if(parent.getTagName().matches("mi|mo|mn"))
 		{
 			// We only style single characters
-			Node child = parent.getFirstChild();
+			MathmlNode child = parent.getFirstChild();
 			if(child.getNextSibling() != null)
 			{
 				return;
 			}
 
-			if(child.getNodeType() == Node.TEXT_NODE)
+			if(child instanceof Text)
 			{
 				String letter = child.getNodeValue();
 				String fontName;
@@ -2190,7 +2173,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		}
 		else
 		{
-			for(Node child = parent.getFirstChild(); child!=null; child=child.getNextSibling())
+			for(MathmlNode child = parent.getFirstChild(); child!=null; child=child.getNextSibling())
 			{
 				if(child instanceof Element)
 				{
@@ -2405,10 +2388,10 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		{
 			// This code makes assumptions about the XML (not having any whitespace,
 			// only <mtr> and <mtd>) which are true because we just generated it.
-			Node firstRow = mtable.getFirstChild();
+			Element firstRow = (Element)mtable.getFirstChild();
 			if(firstRow != null)
 			{
-				int count = firstRow.getChildNodes().getLength();
+				int count = firstRow.getChildCount();
 				for(int i=0; i<count; i++)
 				{
 					if(align)
@@ -2646,15 +2629,16 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 	 * type of code nicer, too.
 	 */
 //g_tex_environments = {u"smallmatrix": lambda slf: v_matrix_to_mathml(slf, u"(", u")"), \
-	private final Map<String, LambdaTokenInput> texEnvironments =
-		new HashMap<String, LambdaTokenInput>();
+	private final static Map<String, LambdaTokenInput> TEX_ENVIRONMENTS;
+	static
 	{
+		Map<String, LambdaTokenInput> texEnvironments = new HashMap<String, LambdaTokenInput>();
 		texEnvironments.put("smallmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return matrixToMathml(slf, "(", ")", false, null);
+				return c.matrixToMathml(slf, "(", ")", false, null);
 			}
 		});
 //u"pmatrix": lambda slf: v_matrix_to_mathml(slf, u"(", u")"), \
@@ -2664,63 +2648,63 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texEnvironments.put("bmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return matrixToMathml(slf, "[", "]", false, null);
+				return c.matrixToMathml(slf, "[", "]", false, null);
 			}
 		});
 //u"Bmatrix": lambda slf: v_matrix_to_mathml(slf, u"{", u"}"), \
 		texEnvironments.put("Bmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return matrixToMathml(slf, "{", "}", false, null);
+				return c.matrixToMathml(slf, "{", "}", false, null);
 			}
 		});
 //u"vmatrix": lambda slf: v_matrix_to_mathml(slf, u"|", u"|"), \
 		texEnvironments.put("vmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return matrixToMathml(slf, "|", "|", false, null);
+				return c.matrixToMathml(slf, "|", "|", false, null);
 			}
 		});
 //u"Vmatrix": lambda slf: v_matrix_to_mathml(slf, u"\u2016", u"\u2016"), \
 		texEnvironments.put("Vmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return matrixToMathml(slf, "\u2016", "\u2016", true, null);
+				return c.matrixToMathml(slf, "\u2016", "\u2016", true, null);
 			}
 		});
 //u"cases": lambda slf: v_matrix_to_mathml(slf, u"{", None), \
 		texEnvironments.put("cases", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return matrixToMathml(slf, "{", null, false, "left");
+				return c.matrixToMathml(slf, "{", null, false, "left");
 			}
 		});
 //u"array": v_array_to_mathml, \
 		texEnvironments.put("array", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return arrayToMathml(slf, false, false);
+				return c.arrayToMathml(slf, false, false);
 			}
 		});
 		// sam add: support align, align*
 		texEnvironments.put("align*", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return arrayToMathml(slf, true, true);
+				return c.arrayToMathml(slf, true, true);
 			}
 		});
 		texEnvironments.put("align", texEnvironments.get("align*"));
@@ -2729,23 +2713,25 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texEnvironments.put("displaymath", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
-				return displayMathToMathml(slf);
+				return c.displayMathToMathml(slf);
 			}
 		});
 		// Default (null) environment
 		texEnvironments.put(null, new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml c, TokenInput slf)
 			{
 				// Keep going until we get to a \\end token
-				Element result = subExprChainToMathml(slf, END_TOKENS);
-				finishLatexBlock(slf);
+				Element result = c.subExprChainToMathml(slf, END_TOKENS);
+				c.finishLatexBlock(slf);
 				return result;
 			}
 		});
+
+		TEX_ENVIRONMENTS = Collections.unmodifiableMap(texEnvironments);
 	}
 
 //def v_latex_block_to_mathml(slf):
@@ -2775,10 +2761,10 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			}
 		}
 
-		if(texEnvironments.containsKey(cmd))
+		if(TEX_ENVIRONMENTS.containsKey(cmd))
 		{
 			slf.nextToken();
-			result = texEnvironments.get(cmd).call(slf);
+			result = TEX_ENVIRONMENTS.get(cmd).call(this, slf);
 		}
 //else:
 // return result_element(u"merror", 0, result_element(u"mtext", 0, 'Invalid command: '+repr(v_cmd)) )
@@ -2789,7 +2775,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			slf.nextToken();
 			Element error = resultElement("xerroronly", 0,
 				"Unsupported environment: " + cmd);
-			result = texEnvironments.get(null).call(slf);
+			result = TEX_ENVIRONMENTS.get(null).call(this, slf);
 			result = resultElement("mrow", 0, error, result);
 		}
 
@@ -3158,10 +3144,10 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 //elif (v_token in g_tex_commands):
 // slf.tokens_index += 1
 // v_result = g_tex_commands[v_token](slf)
-		else if(texCommands.containsKey(token))
+		else if(TEX_COMMANDS.containsKey(token))
 		{
 			slf.nextToken();
-			result = texCommands.get(token).call(slf);
+			result = TEX_COMMANDS.get(token).call(this, slf);
 		}
 		// sam added: ignore unknown TeX commands instead of treating them as numbers
 		else if(token != null && token.matches("\\\\[a-zA-Z]+"))
@@ -3545,7 +3531,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 					// Original code didn't stop it returning null. This basically only
 					// happens if the equation is 'silly' TeX, but it causes exceptions and
 					// is generally problematic.
-					result = document.createElementNS(NS, "mspace");
+					result = new Element("mspace");
 				}
 				wrappedResult = null;
 				mfrac = null;
@@ -3661,7 +3647,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			// Original code didn't stop it returning null. This basically only
 			// happens if the equation is 'silly' TeX, but it causes exceptions and
 			// is generally problematic.
-			return document.createElementNS(NS, "mspace");
+			return new Element("mspace");
 		}
 		else
 		{
@@ -3823,11 +3809,11 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			display ? "true" : "false", root);
 
 		// If root was an mrow, don't really need that now we have an mstyle
-		if(root.getTagName().equals("mrow") && root.getAttributes().getLength() == 0)
+		if(root.getTagName().equals("mrow") && root.getAttributeCount() == 0)
 		{
 			while(true)
 			{
-				Node child = root.getFirstChild();
+				MathmlNode child = root.getFirstChild();
 				if(child == null)
 				{
 					break;
@@ -3868,10 +3854,9 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 
 	private static void addRequiredWhitespace(Element parent)
 	{
-		Document doc = parent.getOwnerDocument();
-		for(Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+		for(MathmlNode n = parent.getFirstChild(); n != null; n = n.getNextSibling())
 		{
-			if(n.getNodeType() != Node.ELEMENT_NODE)
+			if(!(n instanceof Element))
 			{
 				continue;
 			}
@@ -3887,7 +3872,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 					if(!MROW_EQUIVALENTS.contains(parent.getLocalName()))
 					{
 						// Create row and stick this text in it
-						Element newRow = doc.createElementNS(NS, "mrow");
+						Element newRow = new Element("mrow");
 						parent.insertBefore(newRow, e);
 						parent.removeChild(e);
 						newRow.appendChild(e);
@@ -3900,7 +3885,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 					while(thisText.startsWith(" "))
 					{
 						thisText = thisText.substring(1);
-						Element newSpace = doc.createElementNS(NS, "mspace");
+						Element newSpace = new Element("mspace");
 						newSpace.setAttribute("width", "mediummathspace");
 						e.getParentNode().insertBefore(newSpace, e);
 					}
@@ -3909,14 +3894,14 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 					while(thisText.endsWith(" "))
 					{
 						thisText = thisText.substring(0, thisText.length() - 1);
-						Element newSpace = doc.createElementNS(NS, "mspace");
+						Element newSpace = new Element("mspace");
 						newSpace.setAttribute("width", "mediummathspace");
 						e.getParentNode().insertBefore(newSpace, e.getNextSibling());
 					}
 
 					// Finally, update the actual mtext contents
 					e.removeChild(e.getFirstChild());
-					e.appendChild(doc.createTextNode(thisText));
+					e.appendChild(new Text(thisText));
 				}
 			}
 			else
@@ -3933,17 +3918,17 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		if(MROW_EQUIVALENTS.contains(parent.getLocalName()))
 		{
 			// ...with only one child...
-			if(parent.getChildNodes().getLength() == 1)
+			if(parent.getChildCount() == 1)
 			{
 				// ...where that child is an mrow with no attributes?
 				Element child = (Element)parent.getFirstChild();
 				if(child.getLocalName().equals("mrow") &&
-					child.getAttributes().getLength() == 0)
+					child.getAttributeCount() == 0)
 				{
 					// Mrow is unnecessary. Remove all its children and add them to parent
-					for(Node sub = child.getFirstChild(); sub != null; )
+					for(MathmlNode sub = child.getFirstChild(); sub != null; )
 					{
-						Node next = sub.getNextSibling();
+						MathmlNode next = sub.getNextSibling();
 						child.removeChild(sub);
 						parent.appendChild(sub);
 						sub = next;
@@ -3958,9 +3943,9 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		}
 
 		// Nothing found, then just recurse normally
-		for(Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+		for(MathmlNode n = parent.getFirstChild(); n != null; n = n.getNextSibling())
 		{
-			if(n.getNodeType() != Node.ELEMENT_NODE)
+			if(!(n instanceof Element))
 			{
 				continue;
 			}
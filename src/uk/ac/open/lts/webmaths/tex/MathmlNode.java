@@ -0,0 +1,550 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import static uk.ac.open.lts.webmaths.WebMathsService.NS;
+
+/**
+ * Minimal MathML tree used while converting TeX to MathML. This replaces a
+ * W3C DOM, which was much more expensive to build and serialise than the
+ * result warranted. The method names follow the DOM methods that the
+ * converter used.
+ * <p>
+ * All elements are in the MathML namespace. The tree is written with
+ * {@link Element#toXml()}, which produces the same output as the previous
+ * LSSerializer code, except that the fake &lt;xerror&gt; and
+ * &lt;xerroronly&gt; elements are written directly as comments.
+ */
+abstract class MathmlNode
+{
+	private Element parent;
+	private MathmlNode previous, next;
+
+	/**
+	 * @return Parent element or null if none
+	 */
+	public Element getParentNode()
+	{
+		return parent;
+	}
+
+	/**
+	 * @return Next sibling or null if none
+	 */
+	public MathmlNode getNextSibling()
+	{
+		return next;
+	}
+
+	/**
+	 * @return Previous sibling or null if none
+	 */
+	public MathmlNode getPreviousSibling()
+	{
+		return previous;
+	}
+
+	/**
+	 * @return Text value (null for elements, as in DOM)
+	 */
+	public String getNodeValue()
+	{
+		return null;
+	}
+
+	/**
+	 * Writes the node as XML.
+	 * @param out Output buffer
+	 * @throws IllegalArgumentException If the node contains characters that
+	 *   are not allowed in XML
+	 */
+	abstract void write(StringBuilder out) throws IllegalArgumentException;
+
+	/**
+	 * Element node.
+	 */
+	static final class Element extends MathmlNode
+	{
+		private final String tag;
+		private MathmlNode first, last;
+		private int childCount;
+
+		/** Attribute names and values, sorted by name (as Xerces writes them) */
+		private String[] attributes;
+		private int attributeCount;
+
+		/**
+		 * @param tag Tag name
+		 */
+		Element(String tag)
+		{
+			this.tag = tag;
+		}
+
+		/**
+		 * @return Tag name
+		 */
+		public String getTagName()
+		{
+			return tag;
+		}
+
+		/**
+		 * @return Tag name (same as {@link #getTagName()})
+		 */
+		public String getLocalName()
+		{
+			return tag;
+		}
+
+		/**
+		 * @return First child or null if none
+		 */
+		public MathmlNode getFirstChild()
+		{
+			return first;
+		}
+
+		/**
+		 * @return Last child or null if none
+		 */
+		public MathmlNode getLastChild()
+		{
+			return last;
+		}
+
+		/**
+		 * @return Number of child nodes
+		 */
+		public int getChildCount()
+		{
+			return childCount;
+		}
+
+		/**
+		 * Adds a child at the end. If the child is already in the tree, it is
+		 * moved.
+		 * @param child New child
+		 * @return Child
+		 */
+		public MathmlNode appendChild(MathmlNode child)
+		{
+			return insertBefore(child, null);
+		}
+
+		/**
+		 * Inserts a child. If the child is already in the tree, it is moved.
+		 * @param child New child
+		 * @param before Existing child to insert before, or null to add at end
+		 * @return Child
+		 * @throws IllegalArgumentException If before is not a child of this
+		 *   element
+		 */
+		public MathmlNode insertBefore(MathmlNode child, MathmlNode before)
+			throws IllegalArgumentException
+		{
+			if(before != null && before.getParentNode() != this)
+			{
+				throw new IllegalArgumentException("Not a child of <" + tag + ">");
+			}
+			if(child == before)
+			{
+				return child;
+			}
+			if(child.parent != null)
+			{
+				child.parent.removeChild(child);
+			}
+			child.parent = this;
+			child.next = before;
+			child.previous = before == null ? last : before.previous;
+			if(child.previous == null)
+			{
+				first = child;
+			}
+			else
+			{
+				child.previous.next = child;
+			}
+			if(before == null)
+			{
+				last = child;
+			}
+			else
+			{
+				before.previous = child;
+			}
+			childCount++;
+			return child;
+		}
+
+		/**
+		 * Removes a child.
+		 * @param child Child to remove
+		 * @return Child
+		 * @throws IllegalArgumentException If it is not a child of this element
+		 */
+		public MathmlNode removeChild(MathmlNode child) throws IllegalArgumentException
+		{
+			if(child.parent != this)
+			{
+				throw new IllegalArgumentException("Not a child of <" + tag + ">");
+			}
+			if(child.previous == null)
+			{
+				first = child.next;
+			}
+			else
+			{
+				child.previous.next = child.next;
+			}
+			if(child.next == null)
+			{
+				last = child.previous;
+			}
+			else
+			{
+				child.next.previous = child.previous;
+			}
+			child.parent = null;
+			child.previous = null;
+			child.next = null;
+			childCount--;
+			return child;
+		}
+
+		/**
+		 * @param name Attribute name
+		 * @return Index in attributes array (of name), or -(insertion point) - 1
+		 *   if not present, as {@link java.util.Arrays#binarySearch}
+		 */
+		private int findAttribute(String name)
+		{
+			int low = 0, high = attributeCount - 1;
+			while(low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				int compare = attributes[mid * 2].compareTo(name);
+				if(compare < 0)
+				{
+					low = mid + 1;
+				}
+				else if(compare > 0)
+				{
+					high = mid - 1;
+				}
+				else
+				{
+					return mid * 2;
+				}
+			}
+			return -(low * 2) - 1;
+		}
+
+		/**
+		 * @param name Attribute name
+		 * @return Value, or empty string if not set (as in DOM)
+		 */
+		public String getAttribute(String name)
+		{
+			int index = findAttribute(name);
+			return index < 0 ? "" : attributes[index + 1];
+		}
+
+		/**
+		 * @param name Attribute name
+		 * @param value Value
+		 */
+		public void setAttribute(String name, String value)
+		{
+			int index = findAttribute(name);
+			if(index >= 0)
+			{
+				attributes[index + 1] = value;
+				return;
+			}
+			index = -index - 1;
+			if(attributes == null)
+			{
+				attributes = new String[4];
+			}
+			else if(attributeCount * 2 == attributes.length)
+			{
+				String[] larger = new String[attributes.length * 2];
+				System.arraycopy(attributes, 0, larger, 0, attributes.length);
+				attributes = larger;
+			}
+			System.arraycopy(attributes, index, attributes, index + 2,
+				attributeCount * 2 - index);
+			attributes[index] = name;
+			attributes[index + 1] = value;
+			attributeCount++;
+		}
+
+		/**
+		 * @param name Attribute name (does nothing if not set)
+		 */
+		public void removeAttribute(String name)
+		{
+			int index = findAttribute(name);
+			if(index < 0)
+			{
+				return;
+			}
+			attributeCount--;
+			System.arraycopy(attributes, index + 2, attributes, index,
+				attributeCount * 2 - index);
+			attributes[attributeCount * 2] = null;
+			attributes[attributeCount * 2 + 1] = null;
+		}
+
+		/**
+		 * @return Number of attributes
+		 */
+		public int getAttributeCount()
+		{
+			return attributeCount;
+		}
+
+		/**
+		 * Writes this element as the root of an XML string, including the
+		 * MathML namespace declaration.
+		 * @return XML string
+		 * @throws IllegalArgumentException If the tree contains characters that
+		 *   are not allowed in XML
+		 */
+		public String toXml() throws IllegalArgumentException
+		{
+			StringBuilder out = new StringBuilder(1024);
+			write(out, true);
+			return out.toString();
+		}
+
+		@Override
+		void write(StringBuilder out) throws IllegalArgumentException
+		{
+			write(out, false);
+		}
+
+		/**
+		 * Writes the element.
+		 * @param out Output buffer
+		 * @param root True to include namespace declaration
+		 * @throws IllegalArgumentException If there are characters that are not
+		 *   allowed in XML
+		 */
+		private void write(StringBuilder out, boolean root)
+			throws IllegalArgumentException
+		{
+			// Error elements become a comment, with mspace unless 'only'. (The
+			// mspace is in case the error occurred inside something like an
+			// <mfrac> where MathML is expecting a specific number of parameters.)
+			boolean errorOnly = tag.equals("xerroronly");
+			if(errorOnly || tag.equals("xerror"))
+			{
+				if(!errorOnly)
+				{
+					out.append("<mspace/>");
+				}
+				out.append("<!-- ");
+				for(MathmlNode child = first; child != null; child = child.next)
+				{
+					String text = child.getNodeValue();
+					if(text != null)
+					{
+						checkChars(text);
+						out.append(text);
+					}
+				}
+				out.append(" -->");
+				return;
+			}
+
+			out.append('<').append(tag);
+			if(root)
+			{
+				out.append(" xmlns=\"").append(NS).append('"');
+			}
+			for(int i = 0; i < attributeCount * 2; i += 2)
+			{
+				out.append(' ').append(attributes[i]).append("=\"");
+				escape(out, attributes[i + 1], true);
+				out.append('"');
+			}
+			if(first == null)
+			{
+				out.append("/>");
+				return;
+			}
+			out.append('>');
+			for(MathmlNode child = first; child != null; child = child.next)
+			{
+				child.write(out);
+			}
+			out.append("</").append(tag).append('>');
+		}
+	}
+
+	/**
+	 * Text node.
+	 */
+	static final class Text extends MathmlNode
+	{
+		private final String value;
+
+		/**
+		 * @param value Text
+		 */
+		Text(String value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		public String getNodeValue()
+		{
+			return value;
+		}
+
+		@Override
+		void write(StringBuilder out) throws IllegalArgumentException
+		{
+			escape(out, value, false);
+		}
+	}
+
+	/**
+	 * Writes text with XML escaping. Characters are escaped the same way as
+	 * the Xerces LSSerializer does it.
+	 * @param out Output buffer
+	 * @param text Text to write
+	 * @param attribute True if this is an attribute value
+	 * @throws IllegalArgumentException If there are characters that are not
+	 *   allowed in XML
+	 */
+	static void escape(StringBuilder out, String text, boolean attribute)
+		throws IllegalArgumentException
+	{
+		int length = text.length();
+		for(int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			switch(c)
+			{
+			case '&':
+				out.append("&amp;");
+				break;
+			case '<':
+				out.append("&lt;");
+				break;
+			case '>':
+				if(attribute)
+				{
+					out.append(c);
+				}
+				else
+				{
+					out.append("&gt;");
+				}
+				break;
+			case '"':
+				if(attribute)
+				{
+					out.append("&quot;");
+				}
+				else
+				{
+					out.append(c);
+				}
+				break;
+			case '\r':
+				out.append("&#xd;");
+				break;
+			case '\n':
+			case '\t':
+				if(attribute)
+				{
+					out.append("&#x").append(Integer.toHexString(c)).append(';');
+				}
+				else
+				{
+					out.append(c);
+				}
+				break;
+			default:
+				if(c >= 0x20 && c < 0xd800)
+				{
+					out.append(c);
+				}
+				else if(Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(text.charAt(i + 1)))
+				{
+					out.append("&#x").append(Integer.toHexString(
+						Character.toCodePoint(c, text.charAt(i + 1)))).append(';');
+					i++;
+				}
+				else if(c >= 0xe000 && c < 0xfffe)
+				{
+					out.append(c);
+				}
+				else
+				{
+					throw invalidChar(c);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Checks that text contains only characters allowed in XML.
+	 * @param text Text
+	 * @throws IllegalArgumentException If not
+	 */
+	private static void checkChars(String text) throws IllegalArgumentException
+	{
+		int length = text.length();
+		for(int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			if(c >= 0x20 && c < 0xd800 || c >= 0xe000 && c < 0xfffe ||
+				c == '\t' || c == '\n' || c == '\r')
+			{
+				continue;
+			}
+			if(Character.isHighSurrogate(c) && i + 1 < length &&
+				Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				i++;
+				continue;
+			}
+			throw invalidChar(c);
+		}
+	}
+
+	/**
+	 * @param c Character
+	 * @return Exception for a character not allowed in XML
+	 */
+	private static IllegalArgumentException invalidChar(char c)
+	{
+		return new IllegalArgumentException(String.format(
+			"Invalid XML character U+%04X", (int)c));
+	}
+}
@@ -4,11 +4,15 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 
+import javax.servlet.ServletContext;
 import javax.xml.transform.*;
-import javax.xml.transform.dom.*;
-import javax.xml.transform.stream.*;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.*;
 
-import org.w3c.dom.*;
+import org.w3c.dom.Document;
+import org.xml.sax.*;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.*;
 
 import uk.ac.open.lts.webmaths.*;
 import static uk.ac.open.lts.webmaths.MapUtil.*;
@@ -26,17 +30,34 @@ public class MathmlToLatex
 {
 	private TransformerPool convertXsl, normaliseXsl;
 
-	private static boolean DEBUG_DUMP_XML = false;
-
 	/**
 	 * Constructs (requires entity fixer).
+	 * @param servletContext Servlet context used to share compiled XSL (null
+	 *   if testing)
 	 * @param fixer Entity fixer
+	 * @throws IOException Error loading XSL
+	 * @throws TransformerConfigurationException Error compiling XSL
 	 */
-	public MathmlToLatex(MathmlEntityFixer fixer)
+	public MathmlToLatex(ServletContext servletContext, MathmlEntityFixer fixer)
+		throws IOException, TransformerConfigurationException
 	{
-		convertXsl = new TransformerPool(fixer, MathmlToLatex.class, "latex.xsl");
-		normaliseXsl = new TransformerPool(fixer, WebMathsService.class,
-			"normalise.xsl", "latex");
+		convertXsl = TransformerPool.get(servletContext, fixer,
+			MathmlToLatex.class, "latex.xsl", null);
+		normaliseXsl = TransformerPool.get(servletContext, fixer,
+			WebMathsService.class, "normalise.xsl", "latex");
+	}
+
+	/**
+	 * Compiles the XSL and fills the transformer pools, so that they are ready
+	 * before the first request.
+	 * @param servletContext Servlet context
+	 * @throws IOException Error loading XSL
+	 * @throws TransformerConfigurationException Error compiling XSL
+	 */
+	public static void prepareXsl(ServletContext servletContext)
+		throws IOException, TransformerConfigurationException
+	{
+		new MathmlToLatex(servletContext, MathmlEntityFixer.getFixer(servletContext));
 	}
 
 	/**
@@ -51,90 +72,51 @@ public class MathmlToLatex
 	 */
 	public String convert(Document mathml, boolean ignoreUnsupported)
 		throws TransformerException, IOException, UnsupportedMathmlException {
-		// Normalise MathML
-		DOMSource in = new DOMSource(mathml);
-		DOMResult out = new DOMResult();
+		// Set up pipeline: normalise XSL, escape TeX characters, latex XSL,
+		// then collect the text result
+		TextCollector collector = new TextCollector();
+		TransformerHandler convert = convertXsl.newTransformerHandler();
+		convert.setResult(new SAXResult(collector));
+		EscapeFilter escape = new EscapeFilter(convert, ignoreUnsupported);
+		SAXResult escapeResult = new SAXResult(escape);
+		escapeResult.setLexicalHandler(escape);
+
+		// Run it
 		Transformer t = normaliseXsl.reserve();
 		try
 		{
-			t.transform(in, out);
+			t.setErrorListener(QUIET_ERRORS);
+			t.transform(new DOMSource(mathml), escapeResult);
 		}
-		finally
-		{
-			normaliseXsl.release(t);
-		}
-
-		// Escape special characters and convert Unicode
-		Document intermediate = (Document)out.getNode();
-		escapeTex(intermediate.getDocumentElement(), ignoreUnsupported);
-
-		if(DEBUG_DUMP_XML)
-		{
-			dumpXml(intermediate);
-		}
-
-		// Now convert to LaTeX
-		in = new DOMSource(intermediate);
-		out = new DOMResult();
-		t = convertXsl.reserve();
-		try
+		catch(TransformerException e)
 		{
-			t.transform(in, out);
+			if(escape.unsupported != null)
+			{
+				throw escape.unsupported;
+			}
+			throw e;
 		}
 		finally
 		{
-			convertXsl.release(t);
-		}
-
-		// Get text from DOM
-		StringBuilder text = new StringBuilder();
-		Document after = (Document)out.getNode();
-		for(Node child = after.getDocumentElement().getFirstChild();
-			child != null; child = child.getNextSibling())
-		{
-			if(child instanceof Text)
-			{
-				text.append(child.getNodeValue());
-			}
+			normaliseXsl.release(t);
 		}
-		String result = text.toString();
+		String result = collector.getText();
 
 		// Detect text mode
 		TextModeInfo textModeInfo = new TextModeInfo(result);
 		result = textModeInfo.getActualTex();
 
 		// If it contains any unsupported elements, either throw exception or
-		// else strip out
-		if (ignoreUnsupported)
-		{
-			result = result.replaceAll("\\\\UNSUPPORTED\\{[^}]*\\}", "");
-		}
-		else if(result.contains("\\UNSUPPORTED"))
+		// else strip out (below)
+		if(!ignoreUnsupported && result.contains("\\UNSUPPORTED"))
 		{
 			String message = result.replaceAll(
 				"^.*?\\\\UNSUPPORTED\\{([^}]*)\\}.*$", "$1");
 			throw new UnsupportedMathmlException(message);
 		}
 
-		// Add space before each \ command except inside \text commands
-		Matcher m = SPACE_BEFORE_BACKSLASH.matcher(result);
-		StringBuffer buffer = new StringBuffer();
-		while(m.find())
-		{
-			if (textModeInfo.isText(m.start()))
-			{
-				m.appendReplacement(buffer, "$0");
-			}
-			else
-			{
-				m.appendReplacement(buffer, "$1 $2");
-			}
-		}
-		m.appendTail(buffer);
-		result = buffer.toString();
-
-		// In situation like \symbol ^2 or \symbol _2, remove the space
-		result = result.replaceAll("(\\\\[A-Za-z]+) ([_^])", "$1$2");
+		// Fix spaces around commands
+		result = fixSpaces(result, textModeInfo, ignoreUnsupported);
 
 		// Whitespace at edges and surrounding brackets
 		result = trimSurroundingBraces(result);
@@ -142,6 +124,10 @@ public class MathmlToLatex
 		return result;
 	}
 
+	/**
+	 * Removes the text mode markers from the XSL output and keeps a sorted
+	 * index of the text mode ranges.
+	 */
 	private static class TextModeInfo
 	{
 		private String tex;
@@ -149,32 +135,23 @@ public class MathmlToLatex
 		private final static String TEXT_START = "\u2022TEXT-START\u2022";
 		private final static String TEXT_END = "\u2022TEXT-END\u2022";
 
-		private static class Range
-		{
-			int from, length;
-			Range(int from, int length)
-			{
-				this.from = from;
-				this.length = length;
-			}
-		}
-
-		private LinkedList<Range> ranges = new LinkedList<Range>();
+		/** Start and end (exclusive) of each range, in order */
+		private int[] starts = new int[8], ends = new int[8];
+		private int count;
 
 		TextModeInfo(String input)
 		{
-			StringBuilder out = new StringBuilder();
-			int pos = 0;
+			int pos = input.indexOf(TEXT_START);
+			if(pos == -1)
+			{
+				tex = input;
+				return;
+			}
+			StringBuilder out = new StringBuilder(input.length());
+			out.append(input, 0, pos);
 			while(true)
 			{
-				int found = input.indexOf(TEXT_START, pos);
-				if(found == -1)
-				{
-					out.append(input.substring(pos));
-					break;
-				}
-				out.append(input.substring(pos, found));
-				pos = found + TEXT_START.length();
+				pos += TEXT_START.length();
 				int from = out.length();
 
 				int end = input.indexOf(TEXT_END, pos);
@@ -182,28 +159,56 @@ public class MathmlToLatex
 				{
 					end = input.length();
 				}
-				out.append(input.substring(pos, end));
-				ranges.add(new Range(from, end - pos));
+				out.append(input, pos, end);
+				addRange(from, out.length());
 
 				pos = end + TEXT_END.length();
 				if(pos >= input.length())
 				{
 					break;
 				}
+				int found = input.indexOf(TEXT_START, pos);
+				if(found == -1)
+				{
+					out.append(input, pos, input.length());
+					break;
+				}
+				out.append(input, pos, found);
+				pos = found;
 			}
 			tex = out.toString();
 		}
 
+		private void addRange(int from, int to)
+		{
+			if(count == starts.length)
+			{
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = from;
+			ends[count] = to;
+			count++;
+		}
+
 		boolean isText(int pos)
 		{
-			for(Range range : ranges)
+			// Find the last range starting at or before pos
+			int low = 0, high = count - 1, found = -1;
+			while(low <= high)
 			{
-				if(range.from <= pos && range.from + range.length > pos)
+				int mid = (low + high) >>> 1;
+				if(starts[mid] <= pos)
+				{
+					found = mid;
+					low = mid + 1;
+				}
+				else
 				{
-					return true;
+					high = mid - 1;
 				}
 			}
-			return false;
+			return found != -1 && pos < ends[found];
 		}
 
 		String getActualTex()
@@ -212,226 +217,672 @@ public class MathmlToLatex
 		}
 	}
 
-	private final static Pattern SPACE_BEFORE_BACKSLASH = Pattern.compile(
-		"([A-Za-z0-9])(\\\\)");
+	private final static String UNSUPPORTED = "\\UNSUPPORTED{";
 
-	private final static Pattern TEX_TRIMMER = Pattern.compile(
-		"^ *(.*?(\\\\*))( *)$");
+	/** States for {@link #appendTracked(StringBuilder, char, int)} */
+	private final static int COMMAND_NONE = 0, COMMAND_BACKSLASH = 1,
+		COMMAND_LETTERS = 2, COMMAND_SPACE = 3;
 
 	/**
-	 * @param tex Input string e.g. "{{ {1}+{x} }} "
-	 * @return Output string e.g. "{1}+{x}"
+	 * Fixes spaces in the TeX in a single pass. This adds a space before each
+	 * \ command that follows a letter or digit (except inside \text commands),
+	 * and removes the space in situations like \symbol ^2 or \symbol _2. It
+	 * also strips \UNSUPPORTED{...} if required.
+	 * @param tex TeX without text mode markers
+	 * @param textModeInfo Text mode ranges
+	 * @param ignoreUnsupported True to strip \UNSUPPORTED{...}
+	 * @return Fixed TeX
 	 */
-	static String trimSurroundingBraces(String tex)
+	private static String fixSpaces(String tex, TextModeInfo textModeInfo,
+		boolean ignoreUnsupported)
 	{
-		Matcher m = TEX_TRIMMER.matcher(tex);
-		if(!m.matches())
-		{
-			throw new Error("This is expected to always match");
-		}
-		tex = m.group(1);
-		// Special case: if there are spaces at the end, immediately
-		// preceded by an odd number of backslashes, then we need to keep one of
-		// the spaces.
-		if(m.group(3).length() > 0 && ((m.group(2).length() & 1) == 1))
-		{
-			tex += " ";
-		}
+		int length = tex.length();
+		StringBuilder out = new StringBuilder(length + 16);
+		boolean stripUnsupported = ignoreUnsupported, afterLetterOrDigit = false;
+		int state = COMMAND_NONE;
 
-		// If it has surrounding brackets...
-		if(tex.matches("^\\{.*\\}$"))
+		// Position in the string after \UNSUPPORTED is stripped; this is what
+		// gets checked against the text mode ranges
+		int pos = 0;
+		for(int i = 0; i < length; i++)
 		{
-			// Check to make sure the opening one is never closed before that final
-			// one.
-			int level = 0;
-			String inner = tex.substring(1, tex.length() - 1);
-			for(int pos=0; pos<inner.length(); pos++)
+			char c = tex.charAt(i);
+			if(c == '\\')
 			{
-				char c = inner.charAt(pos);
-				switch(c)
+				if(stripUnsupported && tex.startsWith(UNSUPPORTED, i))
 				{
-				case '{' :
-					level++;
-					break;
-				case '}' :
-					level--;
-					if(level < 0)
+					int end = tex.indexOf('}', i + UNSUPPORTED.length());
+					if(end != -1)
 					{
-						// It got closed, cannot trim
-						return tex;
+						i = end;
+						continue;
 					}
-					break;
-				case '\\' :
-					// Skip the next character - this will handle \{ and \} and also \\
-					pos++;
-					break;
+					// No closing bracket, so none of the later ones can match either
+					stripUnsupported = false;
+				}
+				if(afterLetterOrDigit && !textModeInfo.isText(pos - 1))
+				{
+					state = appendTracked(out, ' ', state);
 				}
 			}
-
-			// OK, it didn't get closed, so lose outer braces and recurse to the inner
-			return trimSurroundingBraces(inner);
+			afterLetterOrDigit = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') ||
+				(c >= '0' && c <= '9');
+			state = appendTracked(out, c, state);
+			pos++;
 		}
-		return tex;
+		return out.toString();
 	}
 
-	private void dumpXml(Document doc) throws TransformerException
+	/**
+	 * Appends a character to the output. If the character is _ or ^ and the
+	 * output ends with a \command followed by a single space, the space is
+	 * removed.
+	 * @param out Output buffer
+	 * @param c Character
+	 * @param state Current state (COMMAND_xx constant)
+	 * @return New state
+	 */
+	private static int appendTracked(StringBuilder out, char c, int state)
 	{
-		DOMSource in = new DOMSource(doc);
-		StringWriter writer = new StringWriter();
-		StreamResult outw = new StreamResult(writer);
-		Transformer t = TransformerFactory.newInstance().newTransformer();
-		t.transform(in, outw);
-		String result = writer.toString();
-		System.err.println(result);
+		int next = COMMAND_NONE;
+		if(c == '\\')
+		{
+			next = COMMAND_BACKSLASH;
+		}
+		else if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'))
+		{
+			if(state == COMMAND_BACKSLASH || state == COMMAND_LETTERS)
+			{
+				next = COMMAND_LETTERS;
+			}
+		}
+		else if(c == ' ')
+		{
+			if(state == COMMAND_LETTERS)
+			{
+				next = COMMAND_SPACE;
+			}
+		}
+		else if((c == '_' || c == '^') && state == COMMAND_SPACE)
+		{
+			out.setLength(out.length() - 1);
+		}
+		out.append(c);
+		return next;
 	}
 
 	/**
-	 * Escapes all TeX special characters and replaces Unicode characters with
-	 * TeX.
-	 * @param n Root node (recursive)
-	 * @param ignoreUnsupported If true, replaces unsupported chars with '?'
-	 * @throws UnsupportedMathmlException If any characters are not unknown
+	 * @param tex Input string e.g. "{{ {1}+{x} }} "
+	 * @return Output string e.g. "{1}+{x}"
 	 */
-	private void escapeTex(Node n, boolean ignoreUnsupported)
-		throws UnsupportedMathmlException
+	static String trimSurroundingBraces(String tex)
 	{
-		if (n instanceof Text)
+		// Line breaks are not expected in the XSL output
+		for(int i = 0; i < tex.length(); i++)
 		{
-			String before = n.getNodeValue();
-			Collection<Node> after = replaceChars(before, ignoreUnsupported, n.getOwnerDocument());
-			if(after != null)
+			switch(tex.charAt(i))
 			{
-				for(Node add : after)
-				{
-					n.getParentNode().insertBefore(add, n);
-				}
-				n.getParentNode().removeChild(n);
+			case '\n':
+			case '\r':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				throw new Error("Unexpected line break in TeX");
 			}
 		}
-		else if(n instanceof Element)
+
+		int start = 0, end = tex.length();
+		int[] closing = null;
+		while(true)
 		{
-			// Don't do annotations
-			if(((Element)n).getTagName().equals("annotation"))
+			while(start < end && tex.charAt(start) == ' ')
 			{
-				return;
+				start++;
 			}
-			for(Node child = n.getFirstChild(); child != null; child = child.getNextSibling())
+			int trimmed = end;
+			while(trimmed > start && tex.charAt(trimmed - 1) == ' ')
+			{
+				trimmed--;
+			}
+			// Special case: if there are spaces at the end, immediately
+			// preceded by an odd number of backslashes, then we need to keep one of
+			// the spaces.
+			if(trimmed < end)
+			{
+				int backslashes = 0;
+				while(trimmed - backslashes > start &&
+					tex.charAt(trimmed - backslashes - 1) == '\\')
+				{
+					backslashes++;
+				}
+				if((backslashes & 1) == 1)
+				{
+					return tex.substring(start, trimmed + 1);
+				}
+			}
+			end = trimmed;
+
+			// If it has surrounding brackets...
+			if(end - start < 2 || tex.charAt(start) != '{' || tex.charAt(end - 1) != '}')
 			{
-				escapeTex(child, ignoreUnsupported);
+				return tex.substring(start, end);
 			}
+
+			// Check to make sure the opening one is never closed before that final
+			// one.
+			if(closing == null)
+			{
+				closing = findClosingBraces(tex);
+			}
+			if(closing[start] < end - 1)
+			{
+				return tex.substring(start, end);
+			}
+
+			// OK, it didn't get closed, so lose outer braces and repeat on the inner
+			start++;
+			end--;
 		}
 	}
 
-	private Collection<Node> replaceChars(String in, boolean ignoreUnsupported, Document d)
-		throws UnsupportedMathmlException
+	/**
+	 * Finds the closing brace for each opening brace. Escaped characters
+	 * (including \{, \} and \\) are skipped.
+	 * @param tex TeX string
+	 * @return Array containing, at the position of each opening brace, the
+	 *   position of its closing brace (or the string length if not closed)
+	 */
+	private static int[] findClosingBraces(String tex)
 	{
-		LinkedList<Node> nodes = new LinkedList<Node>();
-		StringBuilder out = new StringBuilder();
-		boolean changed = false;
-
-		outerloop: for(int i=0; i<in.length(); i++)
+		int length = tex.length();
+		int[] closing = new int[length], open = new int[16];
+		int depth = 0;
+		for(int pos = 0; pos < length; pos++)
 		{
-			for(int chars = MAX_REPLACE_CHARS; chars > 0; chars--)
+			switch(tex.charAt(pos))
 			{
-				if(i+chars > in.length())
+			case '{' :
+				if(depth == open.length)
 				{
-					continue;
+					open = Arrays.copyOf(open, depth * 2);
 				}
-				String original = in.substring(i, i+chars);
-				String replace;
-				boolean textMode = false, mathMode = false;
-				replace = BOTH_REPLACE_CHARS.get(original);
-				if(replace != null)
+				open[depth++] = pos;
+				break;
+			case '}' :
+				if(depth > 0)
 				{
-					mathMode = true;
-					textMode = true;
+					closing[open[--depth]] = pos;
 				}
-				if(replace == null)
+				break;
+			case '\\' :
+				// Skip the next character
+				pos++;
+				break;
+			}
+		}
+		while(depth > 0)
+		{
+			closing[open[--depth]] = length;
+		}
+		return closing;
+	}
+
+	/**
+	 * Error listener that doesn't print to stderr (unsupported characters are
+	 * reported by exception).
+	 */
+	private final static ErrorListener QUIET_ERRORS = new ErrorListener()
+	{
+		@Override
+		public void warning(TransformerException exception)
+		{
+		}
+
+		@Override
+		public void error(TransformerException exception) throws TransformerException
+		{
+			throw exception;
+		}
+
+		@Override
+		public void fatalError(TransformerException exception) throws TransformerException
+		{
+			throw exception;
+		}
+	};
+
+	/**
+	 * Collects text output by the latex XSL. Only text directly inside the
+	 * root (&lt;result&gt;) element is included.
+	 */
+	private static class TextCollector extends DefaultHandler
+	{
+		private final StringBuilder text = new StringBuilder();
+		private int depth;
+		private boolean gotRoot;
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+			Attributes attributes)
+		{
+			depth++;
+			gotRoot = true;
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName)
+		{
+			depth--;
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length)
+		{
+			if(depth == 1)
+			{
+				text.append(ch, start, length);
+			}
+		}
+
+		/**
+		 * @return Text from result
+		 * @throws TransformerException If there was no root element
+		 */
+		String getText() throws TransformerException
+		{
+			if(!gotRoot)
+			{
+				throw new TransformerException("No result element from latex.xsl");
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * SAX filter that escapes all TeX special characters and replaces Unicode
+	 * characters with TeX, by wrapping them in &lt;w:esc&gt; elements. Text
+	 * inside &lt;annotation&gt; is not changed.
+	 */
+	private static class EscapeFilter extends XMLFilterImpl implements LexicalHandler
+	{
+		private final static String ESC_NS = "http://ns.open.ac.uk/lts/webmaths";
+
+		private final LexicalHandler lexical;
+		private final boolean ignoreUnsupported;
+
+		/** Text not yet processed (so that adjacent text is processed together) */
+		private final StringBuilder pending = new StringBuilder();
+
+		/** Buffer used when processing text */
+		private char[] buffer = new char[256];
+
+		/** Attributes for esc elements (reused) */
+		private final AttributesImpl escAttributes = new AttributesImpl();
+
+		/** Depth within an annotation element, 0 if not in one */
+		private int annotationDepth;
+
+		/** Exception if there were unsupported characters */
+		private UnsupportedMathmlException unsupported;
+
+		/**
+		 * @param next Next stage of pipeline
+		 * @param ignoreUnsupported If true, replaces unsupported chars with '?'
+		 */
+		EscapeFilter(TransformerHandler next, boolean ignoreUnsupported)
+		{
+			setContentHandler(next);
+			this.lexical = next;
+			this.ignoreUnsupported = ignoreUnsupported;
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length)
+		{
+			pending.append(ch, start, length);
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName,
+			Attributes atts) throws SAXException
+		{
+			flush();
+			if(annotationDepth > 0 || qName.equals("annotation"))
+			{
+				annotationDepth++;
+			}
+			super.startElement(uri, localName, qName, atts);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName)
+			throws SAXException
+		{
+			flush();
+			if(annotationDepth > 0)
+			{
+				annotationDepth--;
+			}
+			super.endElement(uri, localName, qName);
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) throws SAXException
+		{
+			flush();
+			super.startPrefixMapping(prefix, uri);
+		}
+
+		@Override
+		public void endPrefixMapping(String prefix) throws SAXException
+		{
+			flush();
+			super.endPrefixMapping(prefix);
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length)
+			throws SAXException
+		{
+			flush();
+			super.ignorableWhitespace(ch, start, length);
+		}
+
+		@Override
+		public void processingInstruction(String target, String data)
+			throws SAXException
+		{
+			flush();
+			super.processingInstruction(target, data);
+		}
+
+		@Override
+		public void endDocument() throws SAXException
+		{
+			flush();
+			super.endDocument();
+		}
+
+		@Override
+		public void comment(char[] ch, int start, int length) throws SAXException
+		{
+			flush();
+			lexical.comment(ch, start, length);
+		}
+
+		@Override
+		public void startCDATA() throws SAXException
+		{
+			flush();
+			lexical.startCDATA();
+		}
+
+		@Override
+		public void endCDATA() throws SAXException
+		{
+			flush();
+			lexical.endCDATA();
+		}
+
+		@Override
+		public void startDTD(String name, String publicId, String systemId)
+			throws SAXException
+		{
+			lexical.startDTD(name, publicId, systemId);
+		}
+
+		@Override
+		public void endDTD() throws SAXException
+		{
+			lexical.endDTD();
+		}
+
+		@Override
+		public void startEntity(String name) throws SAXException
+		{
+			flush();
+			lexical.startEntity(name);
+		}
+
+		@Override
+		public void endEntity(String name) throws SAXException
+		{
+			flush();
+			lexical.endEntity(name);
+		}
+
+		/**
+		 * Processes and passes on any pending text.
+		 * @throws SAXException If there are unsupported characters (the
+		 *   exception is kept in {@link #unsupported})
+		 */
+		private void flush() throws SAXException
+		{
+			int length = pending.length();
+			if(length == 0)
+			{
+				return;
+			}
+			if(buffer.length < length)
+			{
+				buffer = new char[Math.max(length, buffer.length * 2)];
+			}
+			pending.getChars(0, length, buffer, 0);
+			pending.setLength(0);
+			if(annotationDepth > 0)
+			{
+				// Don't do annotations
+				super.characters(buffer, 0, length);
+				return;
+			}
+			try
+			{
+				replaceChars(buffer, length);
+			}
+			catch(UnsupportedMathmlException e)
+			{
+				unsupported = e;
+				throw new SAXException(e);
+			}
+		}
+
+		/**
+		 * Passes on text, replacing characters that need escaping with
+		 * &lt;w:esc&gt; elements. Where replacements overlap, the longest wins.
+		 * @param in Text buffer
+		 * @param length Length of text in buffer
+		 * @throws SAXException Any error
+		 * @throws UnsupportedMathmlException If there are unsupported
+		 *   characters (and not ignoring them)
+		 */
+		private void replaceChars(char[] in, int length)
+			throws SAXException, UnsupportedMathmlException
+		{
+			int unchanged = 0;
+			for(int i = 0; i < length; )
+			{
+				// Find longest replacement starting here
+				ReplaceNode match = null;
+				int matchEnd = i;
+				ReplaceNode node = REPLACE_TRIE;
+				for(int j = i; j < length; j++)
 				{
-					replace = MATH_REPLACE_CHARS.get(original);
-					if(replace != null)
+					node = node.get(in[j]);
+					if(node == null)
 					{
-						mathMode = true;
+						break;
 					}
-				}
-				if(replace == null)
-				{
-					replace = TEXT_REPLACE_CHARS.get(original);
-					if(replace != null)
+					if(node.tex != null)
 					{
-						textMode = true;
+						match = node;
+						matchEnd = j + 1;
 					}
 				}
-				if(replace != null)
+				if(match != null)
 				{
-					addEscape(original, replace, nodes, out, d, textMode, mathMode);
-					changed = true;
-					i += (chars - 1);
-					continue outerloop;
+					addEscape(in, unchanged, i, matchEnd, match.tex,
+						match.textMode, match.mathMode);
+					i = matchEnd;
+					unchanged = i;
+					continue;
 				}
-				else if(chars == 1)
+
+				char c = in[i];
+				if(c > 0x7f && !ALLOWED_CHARACTERS.get(c)) // Permit combining NOT
 				{
-					char c = original.charAt(0);
-					if(c > 0x7f && !ALLOWED_CHARACTERS.contains(original)) // Permit combining NOT
+					if(ignoreUnsupported)
 					{
-						if(ignoreUnsupported)
-						{
-							// If unsupported, use ? character
-							addEscape(original, "?", nodes, out, d, true, true);
-							changed = true;
-						}
-						else
-						{
-							throw new UnsupportedMathmlException(
-								"MathML contains unknown special character: " + original);
-						}
+						// If unsupported, use ? character
+						addEscape(in, unchanged, i, i + 1, "?", true, true);
+						unchanged = i + 1;
 					}
 					else
 					{
-						out.append(original);
+						throw new UnsupportedMathmlException(
+							"MathML contains unknown special character: " + c);
 					}
 				}
+				i++;
+			}
+			if(unchanged < length)
+			{
+				super.characters(in, unchanged, length - unchanged);
 			}
 		}
 
-		if(changed)
-		{
-			addEscape(null, null, nodes, out, d, true, true);
-			return nodes;
-		}
-		else
+		/**
+		 * Passes on unchanged text followed by an escape element.
+		 * @param in Text buffer
+		 * @param unchanged Start of unchanged text
+		 * @param start Start of escaped text (end of unchanged text)
+		 * @param end End of escaped text
+		 * @param escape TeX for escaped text
+		 * @param textMode True if the TeX can be used in text mode
+		 * @param mathMode True if the TeX can be used in maths mode
+		 * @throws SAXException Any error
+		 */
+		private void addEscape(char[] in, int unchanged, int start, int end,
+			String escape, boolean textMode, boolean mathMode) throws SAXException
 		{
-			return null;
+			if(start > unchanged)
+			{
+				super.characters(in, unchanged, start - unchanged);
+			}
+
+			escAttributes.clear();
+			escAttributes.addAttribute("", "tex", "tex", "CDATA", escape);
+			if(textMode)
+			{
+				escAttributes.addAttribute("", "textmode", "textmode", "CDATA", "y");
+			}
+			if(mathMode)
+			{
+				escAttributes.addAttribute("", "mathmode", "mathmode", "CDATA", "y");
+			}
+			super.startPrefixMapping("", ESC_NS);
+			super.startElement(ESC_NS, "esc", "esc", escAttributes);
+			super.characters(in, start, end - start);
+			super.endElement(ESC_NS, "esc", "esc");
+			super.endPrefixMapping("");
 		}
 	}
 
-	private static void addEscape(String original, String escape,
-		LinkedList<Node> nodes, StringBuilder out, Document d,
-		boolean textMode, boolean mathMode)
+	/**
+	 * Node in a trie of the replacement tables (below), so that the longest
+	 * replacement at each position can be found in one scan.
+	 */
+	private static class ReplaceNode
 	{
-		// Add text node for previous text
-		if(out.length() > 0)
+		/** Characters leading to child nodes (sorted), and the nodes */
+		private char[] keys = new char[0];
+		private ReplaceNode[] children = new ReplaceNode[0];
+
+		/** Child nodes for ASCII characters (root node only, for speed) */
+		private ReplaceNode[] ascii;
+
+		/** TeX replacement, or null if no replacement ends here */
+		private String tex;
+		private boolean textMode, mathMode;
+
+		/**
+		 * @param c Next character
+		 * @return Child node or null if none
+		 */
+		ReplaceNode get(char c)
 		{
-			nodes.add(d.createTextNode(out.toString()));
-			out.setLength(0);
+			if(ascii != null && c < 128)
+			{
+				return ascii[c];
+			}
+			int index = Arrays.binarySearch(keys, c);
+			return index < 0 ? null : children[index];
 		}
 
-		// Add escape (unless null == finishing off)
-		if(escape != null)
+		/**
+		 * @param c Next character
+		 * @return Child node, created if necessary
+		 */
+		private ReplaceNode add(char c)
 		{
-			Element esc = d.createElementNS(
-				"http://ns.open.ac.uk/lts/webmaths", "esc");
-			esc.appendChild(d.createTextNode(original));
-			esc.setAttribute("tex", escape);
-			if(textMode)
+			int index = Arrays.binarySearch(keys, c);
+			if(index >= 0)
 			{
-				esc.setAttribute("textmode", "y");
+				return children[index];
 			}
-			if(mathMode)
+			index = -index - 1;
+			ReplaceNode child = new ReplaceNode();
+			char[] newKeys = new char[keys.length + 1];
+			ReplaceNode[] newChildren = new ReplaceNode[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			newKeys[index] = c;
+			newChildren[index] = child;
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+			keys = newKeys;
+			children = newChildren;
+			return child;
+		}
+
+		/**
+		 * Adds all replacements from a table, replacing any existing ones.
+		 * @param table Table of replacements
+		 * @param textMode True if the replacements can be used in text mode
+		 * @param mathMode True if the replacements can be used in maths mode
+		 */
+		private void addAll(Map<String, String> table, boolean textMode, boolean mathMode)
+		{
+			for(Map.Entry<String, String> entry : table.entrySet())
 			{
-				esc.setAttribute("mathmode", "y");
+				ReplaceNode node = this;
+				for(char c : entry.getKey().toCharArray())
+				{
+					node = node.add(c);
+				}
+				node.tex = entry.getValue();
+				node.textMode = textMode;
+				node.mathMode = mathMode;
 			}
-			nodes.add(esc);
+		}
+
+		/**
+		 * Builds the trie from the replacement tables.
+		 * @return Root node
+		 */
+		static ReplaceNode build()
+		{
+			ReplaceNode root = new ReplaceNode();
+			// Later tables take priority
+			root.addAll(TEXT_REPLACE_CHARS, true, false);
+			root.addAll(MATH_REPLACE_CHARS, false, true);
+			root.addAll(BOTH_REPLACE_CHARS, true, true);
+			ReplaceNode[] ascii = new ReplaceNode[128];
+			for(char c = 0; c < 128; c++)
+			{
+				ascii[c] = root.get(c);
+			}
+			root.ascii = ascii;
+			return root;
 		}
 	}
 
@@ -439,31 +890,44 @@ public class MathmlToLatex
 	 * Non-ASCII characters which are permitted through to the XSL stage (they
 	 * will be decoded into ASCII during the XSL).
 	 */
-	private final static Set<String> ALLOWED_CHARACTERS = new HashSet<String>(
-		Arrays.asList(new String[]
+	private final static BitSet ALLOWED_CHARACTERS = makeCharSet(new char[]
 	{
 		// Combining NOT
-		"\u0338",
+		'\u0338',
 		// Accents (all calls to accentToMathml in LatexToMathml.java)
-		"\u00b4",
-		"\u00af",
-		"\u02d8",
-		"\u02c7",
-		"\u2192",
-		"\u02d9",
-		"\u00a8",
-		"\u20db",
+		'\u00b4',
+		'\u00af',
+		'\u02d8',
+		'\u02c7',
+		'\u2192',
+		'\u02d9',
+		'\u00a8',
+		'\u20db',
 		// Under or over characters (underToMathml, overToMathml)
-		"\ufe38",
-		"\ufe37",
-		"\u0332",
-		"\u00af",
-		"\u02dc",
+		'\ufe38',
+		'\ufe37',
+		'\u0332',
+		'\u00af',
+		'\u02dc',
 		// QED symbol (hollow square)
-		"\u2b1c",
-	}));
+		'\u2b1c',
+	});
+
+	/**
+	 * @param chars Characters
+	 * @return Set of characters
+	 */
+	private static BitSet makeCharSet(char[] chars)
+	{
+		BitSet set = new BitSet();
+		for(char c : chars)
+		{
+			set.set(c);
+		}
+		return set;
+	}
+
 
-	private final static int MAX_REPLACE_CHARS = 3;
 	private final static Map<String, String> TEXT_REPLACE_CHARS = makeMap(new String[]
 	{
 		"^", "\\textasciicircum ",
@@ -886,4 +1350,7 @@ public class MathmlToLatex
 		"\u03b6", "\\zeta ",
 		"\u2062", "", // InvisibleTimes; ignored
 	});
+
+	/** Trie of all three replacement tables */
+	private final static ReplaceNode REPLACE_TRIE = ReplaceNode.build();
 }
@@ -31,16 +31,9 @@
  */
 package uk.ac.open.lts.webmaths.tex;
 
-import java.io.StringReader;
 import java.util.*;
 import java.util.regex.*;
 
-import javax.xml.parsers.*;
-
-import org.w3c.dom.*;
-import org.w3c.dom.ls.*;
-import org.xml.sax.InputSource;
-
 /**
  * Handles tokenising of TeX input and related tasks.
  * @author Steve Cheng
@@ -55,16 +48,7 @@ public class TokenInput
 //  #the unicode character 201d is character the plastex replaces the '' character with
 
 //  tokenize_strict_re = re.compile(ur"""(\\begin|\\operatorname|\\mathrm|\\mathop|\\end)\s*\{\s*([A-Z a-z]+)\s*\}|(\\[a-zA-Z]+|\\[\\#\%\{\},:;!])|(\s+)|([0-9\.])|([\$!"#%&'\u2019\u201d()*+,-.\/:;<=>?\[\]^_`\{\|\}~])|([a-zA-Z@])""")
-	private final static Pattern STRICT_RE = Pattern.compile(
-		"(\\\\begin|\\\\operatorname|\\\\mathrm|\\\\mathop|\\\\end)\\s*" +
-			"\\{\\s*([A-Z a-z]+)\\s*\\}|" +
-		"(\\\\[a-zA-Z]+|" +
-		"\\\\[ \\\\#\\%\\{\\},:;!$])|" +
-		"(\\s+)|" +
-		"([0-9\\.])|" +
-		"([\\$!\"#%&'\u2019\u201d()*+,-.\\/:;<=>?\\[\\]^_`\\{\\|\\}~])|" +
-		"([a-zA-Z@])|" +
-		"(\\\\&)");
+	// The strict regular expression is implemented by StrictLexer (below).
 
 //  tokenize_text_re = re.compile(ur"""[\${}\\]|\\[a-zA-Z]+|[^{}\$]+""")
 	private final static Pattern TEXT_RE = Pattern.compile(
@@ -79,17 +63,19 @@ public class TokenInput
 		"\\text", "\\textnormal", "\\hbox", "\\mbox"
 	}));
 
-	private final static Pattern WHITESPACE_RE = Pattern.compile("^\\s+");
-
-	/**
-	 * Pattern for handling special temporary error tags from resulting XML.
-	 */
-	private final static Pattern XERROR_RE = Pattern.compile(
-		"<xerror(only)?>(.*?)</xerror(only)?>");
+	/** Single-character tokens for ASCII characters, so they aren't created each time */
+	private final static String[] ASCII_TOKENS = new String[128];
+	static
+	{
+		for(char c = 0; c < ASCII_TOKENS.length; c++)
+		{
+			ASCII_TOKENS[c] = String.valueOf(c).intern();
+		}
+	}
 
 	private String source;
-	private LinkedList<String> tokens;
-	private ListIterator<String> tokensIterator;
+	private ArrayList<String> tokens;
+	private int tokensIndex;
 
 	// Used to store useful information while parsing
 	private Map<String, LinkedList<Object>> treeProperties;
@@ -107,9 +93,292 @@ public class TokenInput
 //  self.tokenize_latex_math(tex)
 //  self.tokens.append(None)
 		this.source = tex;
-		this.tokens = new LinkedList<String>();
+		this.tokens = new ArrayList<String>(tex.length() / 2 + 1);
 		tokenizeLatexMath(tex);
-		tokensIterator = tokens.listIterator();
+		tokensIndex = 0;
+	}
+
+	/**
+	 * Hand-written lexer that does the same as tokenize_strict_re in the Python
+	 * version, scanning characters directly instead of using a regular
+	 * expression. After a successful match, the fields describe the token.
+	 * <p>
+	 * The token types (in order of priority) are:
+	 * <ul>
+	 * <li>ENVIRONMENT: \begin, \end, \operatorname, \mathrm or \mathop followed
+	 *   by a name in braces, e.g. \begin{cases}</li>
+	 * <li>COMMAND: \ followed by letters, or by one of the characters
+	 *   <code> \#%{},:;!$</code></li>
+	 * <li>SPACE: any amount of whitespace</li>
+	 * <li>NUMBER: a digit or .</li>
+	 * <li>PUNCTUATION: one punctuation character</li>
+	 * <li>LETTER: one letter, or @</li>
+	 * <li>AMPERSAND: \&amp;</li>
+	 * </ul>
+	 */
+	private static class StrictLexer
+	{
+		final static int ENVIRONMENT = 1, COMMAND = 2, SPACE = 3, NUMBER = 4,
+			PUNCTUATION = 5, LETTER = 6, AMPERSAND = 7;
+
+		/** Commands that can be followed by a name in braces */
+		private final static String[] ENVIRONMENT_COMMANDS =
+		{
+			"\\begin", "\\operatorname", "\\mathrm", "\\mathop", "\\end"
+		};
+
+		/** Characters that can follow \ as a single-character command */
+		private final static String COMMAND_SYMBOLS = " \\#%{},:;!$";
+
+		/** Punctuation characters */
+		private final static String PUNCTUATION_CHARS =
+			"$!\"#%&'\u2019\u201d()*+,-./:;<=>?[]^_`{|}~";
+
+		private final String tex;
+		private final int length;
+
+		/** Type of token */
+		int kind;
+		/** Start and end position of token */
+		int start, end;
+		/** End of command, for ENVIRONMENT tokens */
+		int commandEnd;
+		/** Start and end of name, for ENVIRONMENT tokens */
+		int nameStart, nameEnd;
+
+		/**
+		 * @param tex String to scan
+		 */
+		StrictLexer(String tex)
+		{
+			this.tex = tex;
+			this.length = tex.length();
+		}
+
+		/**
+		 * Finds the first token at or after a position.
+		 * @param pos Position
+		 * @return True if found
+		 */
+		boolean find(int pos)
+		{
+			for(int i = pos; i < length; i++)
+			{
+				if(lookingAt(i))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Checks for a token at a position.
+		 * @param pos Position
+		 * @return True if there is a token starting at this position
+		 */
+		boolean lookingAt(int pos)
+		{
+			start = pos;
+			char c = tex.charAt(pos);
+			if(c == '\\')
+			{
+				if(environmentAt(pos))
+				{
+					return true;
+				}
+				int after = pos + 1;
+				while(after < length && isLetter(tex.charAt(after)))
+				{
+					after++;
+				}
+				if(after > pos + 1)
+				{
+					return found(COMMAND, after);
+				}
+				if(after < length)
+				{
+					char next = tex.charAt(after);
+					if(COMMAND_SYMBOLS.indexOf(next) != -1)
+					{
+						return found(COMMAND, after + 1);
+					}
+					if(next == '&')
+					{
+						return found(AMPERSAND, after + 1);
+					}
+				}
+				return false;
+			}
+			if(isSpace(c))
+			{
+				int after = pos + 1;
+				while(after < length && isSpace(tex.charAt(after)))
+				{
+					after++;
+				}
+				return found(SPACE, after);
+			}
+			if((c >= '0' && c <= '9') || c == '.')
+			{
+				return found(NUMBER, pos + 1);
+			}
+			if(PUNCTUATION_CHARS.indexOf(c) != -1)
+			{
+				return found(PUNCTUATION, pos + 1);
+			}
+			if(isLetter(c) || c == '@')
+			{
+				return found(LETTER, pos + 1);
+			}
+			return false;
+		}
+
+		/**
+		 * Records a token.
+		 * @param kind Type
+		 * @param end End position
+		 * @return True
+		 */
+		private boolean found(int kind, int end)
+		{
+			this.kind = kind;
+			this.end = end;
+			return true;
+		}
+
+		/**
+		 * Checks for an ENVIRONMENT token. This is equivalent to the regular
+		 * expression <code>(command)\s*\{\s*([A-Z a-z]+)\s*\}</code>, including
+		 * the way it backtracks when the name contains only spaces.
+		 * @param pos Position of backslash
+		 * @return True if found
+		 */
+		private boolean environmentAt(int pos)
+		{
+			for(String command : ENVIRONMENT_COMMANDS)
+			{
+				if(!tex.startsWith(command, pos))
+				{
+					continue;
+				}
+				int after = skipSpace(pos + command.length());
+				if(after >= length || tex.charAt(after) != '{')
+				{
+					return false;
+				}
+				int open = after + 1;
+				int name = skipSpace(open);
+				if(name >= length)
+				{
+					return false;
+				}
+				char c = tex.charAt(name);
+				if(isLetter(c))
+				{
+					// Name is letters and spaces, then optional whitespace and }
+					int nameEnd = name + 1;
+					while(nameEnd < length &&
+						(isLetter(tex.charAt(nameEnd)) || tex.charAt(nameEnd) == ' '))
+					{
+						nameEnd++;
+					}
+					int close = skipSpace(nameEnd);
+					if(close >= length || tex.charAt(close) != '}')
+					{
+						return false;
+					}
+					return foundEnvironment(pos + command.length(), name, nameEnd, close);
+				}
+				if(c == '}')
+				{
+					// Only whitespace in the braces: the name is the last single space
+					// (which is what the regular expression ends up with after
+					// backtracking) and there must be at least one
+					for(int space = name - 1; space >= open; space--)
+					{
+						if(tex.charAt(space) == ' ')
+						{
+							return foundEnvironment(pos + command.length(), space, space + 1, name);
+						}
+					}
+				}
+				return false;
+			}
+			return false;
+		}
+
+		/**
+		 * Records an ENVIRONMENT token.
+		 * @param commandEnd End of command
+		 * @param nameStart Start of name
+		 * @param nameEnd End of name
+		 * @param close Position of closing brace
+		 * @return True
+		 */
+		private boolean foundEnvironment(int commandEnd, int nameStart, int nameEnd,
+			int close)
+		{
+			this.commandEnd = commandEnd;
+			this.nameStart = nameStart;
+			this.nameEnd = nameEnd;
+			return found(ENVIRONMENT, close + 1);
+		}
+
+		/**
+		 * @param pos Position
+		 * @return Position of first non-whitespace character at or after pos
+		 */
+		private int skipSpace(int pos)
+		{
+			while(pos < length && isSpace(tex.charAt(pos)))
+			{
+				pos++;
+			}
+			return pos;
+		}
+
+		/**
+		 * @param c Character
+		 * @return True if it is an ASCII letter
+		 */
+		private static boolean isLetter(char c)
+		{
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+		}
+	}
+
+	/**
+	 * @param c Character
+	 * @return True if the character is whitespace (same as \s in a regex)
+	 */
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Gets a single-character token.
+	 * @param tex String
+	 * @param pos Position of character
+	 * @return Token containing the character (and the next one, if it is a
+	 *   surrogate pair)
+	 */
+	private static String charToken(String tex, int pos)
+	{
+		char c = tex.charAt(pos);
+		if(c < ASCII_TOKENS.length)
+		{
+			return ASCII_TOKENS[c];
+		}
+		// Check for two-surrogate unicode - note I change this logic to do it
+		// properly rather than only supporting one range or whatever,
+		// hopefully that is correct.
+		if(Character.isHighSurrogate(c) && pos + 1 < tex.length())
+		{
+			return tex.substring(pos, pos + 2);
+		}
+		return tex.substring(pos, pos + 1);
 	}
 
 	private void tokenizeLatexMath(String tex)
@@ -131,18 +400,34 @@ public class TokenInput
 			tex = tex.substring(0, tex.length()-1);
 		}
 
+		// One lexer/matcher of each type is reused for the whole string. Matches
+		// are anchored at the current position (lookingAt) because that's nearly
+		// always where the next token is; only if there is no token there do we
+		// search ahead. If a search finds nothing, there is no point searching
+		// again from a later position, so the rest is passed through as single
+		// characters.
+		int length = tex.length();
+		StrictLexer strict = new StrictLexer(tex);
+		Matcher text = TEXT_RE.matcher(tex);
+		int strictNoneFrom = length, textNoneFrom = length;
+
 //    while pos<len(tex):
-		while(pos < tex.length())
+		while(pos < length)
 		{
 //      if not in_text_mode:
 			if(inTextMode == 0)
 			{
-				Matcher m;
-				boolean matched;
-
 //        m = self.tokenize_strict_re.match(tex, pos)
-				m = STRICT_RE.matcher(tex);
-				matched = m.find(pos);
+				StrictLexer m = strict;
+				boolean matched = false;
+				if(pos < strictNoneFrom)
+				{
+					matched = m.lookingAt(pos) || m.find(pos);
+					if(!matched)
+					{
+						strictNoneFrom = pos;
+					}
+				}
 
 //        #if no match then pass through as a single char token
 //        if m is None:
@@ -155,19 +440,9 @@ public class TokenInput
 				// If no match then pass through as a single char token
 				if(!matched)
 				{
-					// Check for two-surrogate unicode - note I change this logic to do it
-					// properly rather than only supporting one range or whatever,
-					// hopefully that is correct.
-					if(Character.isHighSurrogate(tex.charAt(pos)))
-					{
-						tokens.add(tex.substring(pos, pos + 2));
-						pos += 2;
-					}
-					else
-					{
-						tokens.add(tex.substring(pos, pos + 1));
-						pos += 1;
-					}
+					String token = charToken(tex, pos);
+					tokens.add(token);
+					pos += token.length();
 				}
 //        else:
 				else
@@ -175,38 +450,36 @@ public class TokenInput
 //        if m.end()==pos:
 //        print "matched nothing!"
 //        return
-					if(m.end() == pos)
-					{
-						// Matched nothing (I don't know why this had a print but figure
-						// it was only for debugging)
-						return;
-					}
+					// (Tokens can't be empty, so it never matches nothing.)
 //        pos = m.end()
-					pos = m.end();
+					int start = m.start;
+					pos = m.end;
+					String command = m.kind == StrictLexer.COMMAND
+						? tex.substring(start, pos).intern() : null;
 //      if m.group(1) is not None:# e.g. \begin{fred}
 //        #self.tokens.extend(m.group((1,2))) #should work but doesn't always
 //        self.tokens.extend([m.group(1),m.group(2)])
-					if(m.group(1) != null)
+					if(m.kind == StrictLexer.ENVIRONMENT)
 					{
 						// e.g. \begin{fred}
-						tokens.add(m.group(1));
-						tokens.add(m.group(2));
+						tokens.add(tex.substring(start, m.commandEnd).intern());
+						tokens.add(tex.substring(m.nameStart, m.nameEnd));
 					}
 //      elif m.group(3) == u"\\sp":
 //        self.tokens.append(u"^")
-					else if("\\sp".equals(m.group(3)))
+					else if("\\sp".equals(command))
 					{
 						tokens.add("^");
 					}
 //      elif m.group(3) == u"\\sb":
 //        self.tokens.append(u"_")
-					else if("\\sb".equals(m.group(3)))
+					else if("\\sb".equals(command))
 					{
 						tokens.add("_");
 					}
 //      elif m.group(0) == u"$":
 //        in_text_mode = 1
-					else if("$".equals(m.group(0)))
+					else if(m.kind == StrictLexer.PUNCTUATION && tex.charAt(start) == '$')
 					{
 						inTextMode = 1;
 						// sam: I added this because when in text mode it expects a
@@ -217,7 +490,7 @@ public class TokenInput
 					}
 //      elif m.group(4) is not None:
 //        continue
-					else if(m.group(4) != null)
+					else if(m.kind == StrictLexer.SPACE)
 					{
 						continue;
 					}
@@ -231,45 +504,44 @@ public class TokenInput
 //        self.tokens.append(s)
 //        if se:
 //          self.tokens.append(ur'\,')
-					else if(m.group(5) != null)
+					else if(m.kind == StrictLexer.NUMBER)
 					{
-						// sanitise numbers by removing \, added for readability
-						String s = m.group(5);
-						// check for trailing \, and do not clobber this
-						boolean se = s.endsWith("\\,");
-						s = s.replace("\\,", "");
-						s = s.replaceAll("\\s", "");
-						tokens.add(s);
-						if(se)
-						{
-							tokens.add("\\,");
-						}
+						// Numbers are a single character with the current regex, so the
+						// sanitising in the Python version (removing \, and spaces)
+						// has nothing to do.
+						tokens.add(charToken(tex, start));
 					}
 //      elif m.group(3) in self.tokenize_text_commands:
 //        in_text_mode = 2;
 //        brace_level.append(0)
-					else if(TEXT_COMMANDS.contains(m.group(3)))
+					else if(command != null && TEXT_COMMANDS.contains(command))
 					{
 						inTextMode = 2;
 						braceLevel.add(0);
 						// sam: It didn't add the token for the command before, but I think
 						// we need to?!
-						tokens.add(m.group(0));
+						tokens.add(command);
 						// sam: If there is whitespace after the \text command but before
 						// any opening brace, we need to skip it, or code like
 						// \text   {frog} fails.
-						Matcher ws = WHITESPACE_RE.matcher(tex);
-						ws.region(pos, tex.length());
-						if(ws.find())
+						while(pos < length && isSpace(tex.charAt(pos)))
 						{
-							pos = ws.end();
+							pos++;
 						}
 					}
 //      else:
 //        self.tokens.append(m.group(0))
+					else if(command != null)
+					{
+						tokens.add(command);
+					}
+					else if(pos == start + 1)
+					{
+						tokens.add(charToken(tex, start));
+					}
 					else
 					{
-						tokens.add(m.group(0));
+						tokens.add(tex.substring(start, pos));
 					}
 				}
 			}
@@ -278,8 +550,22 @@ public class TokenInput
 			{
 				// parse text mode
 //      m = self.tokenize_text_re.match(tex, pos)
-				Matcher m = TEXT_RE.matcher(tex);
-				boolean matched = m.find(pos);
+				Matcher m = text;
+				boolean matched = false;
+				if(pos < textNoneFrom)
+				{
+					m.region(pos, length);
+					matched = m.lookingAt();
+					if(!matched)
+					{
+						m.region(pos, length);
+						matched = m.find();
+					}
+					if(!matched)
+					{
+						textNoneFrom = pos;
+					}
+				}
 
 //      if m is None:#should never happen, but just in case.
 //        if tex[pos]==u'\ud835':#check for two byte unicode
@@ -291,19 +577,9 @@ public class TokenInput
 				if (!matched)
 				{
 					// should never happen, but just in case.
-					// Check for two-surrogate unicode - note I change this logic to do it
-					// properly rather than only supporting one range or whatever,
-					// hopefully that is correct.
-					if(Character.isHighSurrogate(tex.charAt(pos)))
-					{
-						tokens.add(tex.substring(pos, pos + 2));
-						pos += 2;
-					}
-					else
-					{
-						tokens.add(tex.substring(pos, pos + 1));
-						pos += 1;
-					}
+					String token = charToken(tex, pos);
+					tokens.add(token);
+					pos += token.length();
 				}
 //      else:
 				else
@@ -320,8 +596,9 @@ public class TokenInput
 
 //      pos = m.end()
 //      txt=m.group(0)
+					int start = m.start();
 					pos = m.end();
-					String txt = m.group(0);
+					String txt = pos == start + 1 ? charToken(tex, start) : m.group();
 
 //      if txt == u"$":
 //        in_text_mode = 0
@@ -385,79 +662,19 @@ public class TokenInput
 //        return '<merror><mtext>Could not translate %s to mathML</mtext></merror>'%repr(self.source)
 		// I didn't bother reproducing the first part because there is no way that
 		// tokens can be set to none/null (that I can see).
-		String result;
+		// The result may contain fake <xerror> tags, which are written as an
+		// mspace and comment.
 		try
 		{
 			LatexToMathml converter = new LatexToMathml();
-			Element root = converter.convert(this, display);
-			result = saveXml(root);
+			return converter.convert(this, display).toXml();
 		}
 		catch(Throwable t)
 		{
-			try
-			{
-				result = saveXml(LatexToMathml.createErrorElement(
-					"TeX to MathML conversion failure: " + t.getClass()
-					+ (t.getMessage() == null ? "" : " " + t.getMessage())));
-			}
-			catch(ParserConfigurationException e)
-			{
-				throw new Error(e);
-			}
-		}
-
-		// Result may contain fake <xerror> tags. Convert these to mspace and comment.
-		StringBuffer out = new StringBuffer();
-		Matcher m = XERROR_RE.matcher(result);
-		while(m.find())
-		{
-			String replacement;
-
-			// If it's not 'error only' then we add an mspace. (This is in case the
-			// error item occurred inside something like an <mfrac> where MathML is
-			// expecting a specific number of parameters.)
-			if(m.group(1) != null)
-			{
-				replacement = "<!-- ";
-			}
-			else
-			{
-				replacement = "<mspace/><!-- ";
-			}
-
-			// To get the replacement text, we need to actually parse it as XML
-			// again (just this single entity)
-			String unescaped;
-			try
-			{
-				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-				Document d = builder.parse(new InputSource(new StringReader(m.group())));
-				unescaped = ((Text)d.getDocumentElement().getFirstChild()).getNodeValue();
-			}
-			catch(Throwable t)
-			{
-				throw new Error("Error parsing error value", t);
-			}
-
-			replacement += unescaped;
-			replacement += " -->";
-			m.appendReplacement(out, Matcher.quoteReplacement(replacement));
+			return LatexToMathml.createErrorElement(
+				"TeX to MathML conversion failure: " + t.getClass()
+				+ (t.getMessage() == null ? "" : " " + t.getMessage())).toXml();
 		}
-		m.appendTail(out);
-		return out.toString();
-	}
-
-	/**
-	* Utility method: converts DOM element to string.
-	* @param e Element to convert
-	* @return String
-	*/
-	static String saveXml(Element e)
-	{
-		Document document = e.getOwnerDocument();
-		DOMImplementationLS domImplLS = (DOMImplementationLS)document.getImplementation();
-		LSSerializer serializer = domImplLS.createLSSerializer();
-		return serializer.writeToString(e).replaceFirst("^<\\?xml.*\n", "");
 	}
 
 	/**
@@ -469,11 +686,11 @@ public class TokenInput
 	*/
 	public String nextToken()
 	{
-		if(!tokensIterator.hasNext())
+		if(tokensIndex >= tokens.size())
 		{
 			return null;
 		}
-		String result = tokensIterator.next();
+		String result = tokens.get(tokensIndex++);
 		if(debug)
 		{
 			System.err.println("TOKEN [" + result + "]");
@@ -489,13 +706,11 @@ public class TokenInput
 	*/
 	public String peekToken()
 	{
-		if(!tokensIterator.hasNext())
+		if(tokensIndex >= tokens.size())
 		{
 			return null;
 		}
-		String result = tokensIterator.next();
-		tokensIterator.previous();
-		return result;
+		return tokens.get(tokensIndex);
 	}
 
 	/**
@@ -507,31 +722,12 @@ public class TokenInput
 	*/
 	public String peekToken(int offset)
 	{
-		if(!tokensIterator.hasNext())
+		int index = tokensIndex + offset;
+		if(index >= tokens.size())
 		{
 			return null;
 		}
-		String result = tokensIterator.next();
-		for(int i=1; i<=offset; i++)
-		{
-			if(!tokensIterator.hasNext())
-			{
-				// If we find a null at any point, we reached end of list, so stop and
-				// rewind the same amount...
-				for(int j=0; j<i; j++)
-				{
-					tokensIterator.previous();
-				}
-				// ...then return the null
-				return null;
-			}
-			result = tokensIterator.next();
-		}
-		for(int i=0; i<=offset; i++)
-		{
-			tokensIterator.previous();
-		}
-		return result;
+		return tokens.get(index);
 	}
 
 	/**
@@ -541,8 +737,8 @@ public class TokenInput
 	 */
 	public void backAndOverwriteToken(String value)
 	{
-		tokensIterator.previous();
-		tokensIterator.set(value);
+		tokensIndex--;
+		tokens.set(tokensIndex, value);
 		if(debug)
 		{
 			System.err.println("TOKEN [" + value + "] back");
@@ -557,14 +753,7 @@ public class TokenInput
 	 */
 	public void insertTokensBeforeCurrent(String... tokens)
 	{
-		for(String token : tokens)
-		{
-			tokensIterator.add(token);
-		}
-		for(int i=0; i<tokens.length; i++)
-		{
-			tokensIterator.previous();
-		}
+		this.tokens.addAll(tokensIndex, Arrays.asList(tokens));
 	}
 
 	/**
@@ -66,17 +66,17 @@ public class WebMathsTex extends WebMathsService implements MathsTexPort
 		result.setError("");
 		result.setTex("");
 
-		// Set up the converter if we didn't already
-		synchronized(this)
+		try
 		{
-			if(texConverter == null)
+			// Set up the converter if we didn't already
+			synchronized(this)
 			{
-				texConverter = new MathmlToLatex(getFixer());
+				if(texConverter == null)
+				{
+					texConverter = new MathmlToLatex(getServletContext(), getFixer());
+				}
 			}
-		}
 
-		try
-		{
 			// Parse MathML
 			Document doc = parseMathml(params.getMathml());
 			// Convert MathML to TeX
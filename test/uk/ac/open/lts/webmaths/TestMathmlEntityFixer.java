@@ -19,9 +19,13 @@ Copyright 2011 The Open University
 package uk.ac.open.lts.webmaths;
 
 import static uk.ac.open.lts.webmaths.MathmlEntityFixer.getWithHexEntities;
+
+import java.io.*;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import org.w3c.dom.Document;
 
 public class TestMathmlEntityFixer extends TestCase
 {
@@ -89,6 +93,18 @@ public class TestMathmlEntityFixer extends TestCase
 	{
 		MathmlEntityFixer fixer = new MathmlEntityFixer();
 		assertEquals("and therefore", fixer.toSpeech("and \u2234"));
+		assertEquals("a b c", fixer.toSpeech(" \n a\t\tb  \r\nc\f"));
+		assertEquals("", fixer.toSpeech("  "));
+
+		// Longest sequence is used
+		assertEquals("not less-than-or-equal, slant less-than-or-equal, slant",
+			fixer.toSpeech("\u2a7d\u0338 \u2a7d"));
+
+		// Entities count as characters; unknown characters become entities
+		assertEquals("therefore A, script letter A &#x1d49b;",
+			fixer.toSpeech("&#8756; \ud835\udc9c \ud835\udc9b"));
+		assertEquals("therefore &#x41; &# &#xz;",
+			fixer.toSpeech("&#X2234; &#x41; &# &#xz;"));
 	}
 
 	@Test
@@ -106,4 +122,113 @@ public class TestMathmlEntityFixer extends TestCase
 		String testString = "&amp;<![CDATA[\n\n&\n\n]]>&amp;";
 		assertEquals(testString, fixer.fix(testString));
 	}
+
+	@Test
+	public void testFix() throws Exception
+	{
+		MathmlEntityFixer fixer = new MathmlEntityFixer();
+		String testString = "<mi>x</mi><mo>&#x2061;</mo>";
+		assertSame(testString, fixer.fix(testString));
+		assertEquals("\u03b1 < $\\", fixer.fix("&alpha; < &dollar;&bsol;"));
+
+		// Not an entity if the semicolon is inside a comment
+		testString = "&alpha<!-- ; -->";
+		assertEquals(testString, fixer.fix(testString));
+
+		try
+		{
+			fixer.fix("&alpha;&frog;");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertEquals("Unknown entity &frog;", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReader() throws Exception
+	{
+		MathmlEntityFixer fixer = new MathmlEntityFixer();
+		String testString = "xx<mi>&alpha;</mi><!-- &frog; -->&nvlt;&af;&amp;";
+		assertEquals(fixer.fix(testString.substring(2)),
+			readAll(fixer.getReader(testString, 2)));
+		assertEquals("", readAll(fixer.getReader("", 0)));
+
+		try
+		{
+			readAll(fixer.getReader("&alpha;&frog;", 0));
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertEquals("Unknown entity &frog;", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParseMathmlDoctype() throws Exception
+	{
+		// Doctype is skipped, so the DTD isn't loaded and entities still work
+		Document doc = WebMathsService.parseMathml(null,
+			"  <!DOCTYPE math PUBLIC \"-//W3C//DTD MathML 2.0//EN\" "
+			+ "\"http://www.w3.org/Math/DTD/mathml2/mathml2.dtd\">\n"
+			+ "<math xmlns=\"" + WebMathsService.NS + "\"><mi>&alpha;</mi></math>");
+		assertEquals("math", doc.getDocumentElement().getLocalName());
+		assertEquals(WebMathsService.NS, doc.getDocumentElement().getNamespaceURI());
+		assertEquals("\u03b1", doc.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testParseMathmlErrors() throws Exception
+	{
+		// XML error before the unknown entity: the entity is still reported
+		try
+		{
+			WebMathsService.parseMathml(null, "<math><mi>x</mo><mi>&frog;</mi></math>");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertEquals("Unknown entity &frog;", e.getMessage());
+		}
+
+		// Unknown entity reached while parsing
+		try
+		{
+			WebMathsService.parseMathml(null, "<math><mi>&frog;</mi></math>");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertEquals("Unknown entity &frog;", e.getMessage());
+		}
+
+		// Other XML errors are reported as before
+		try
+		{
+			WebMathsService.parseMathml(null, "<math><mi>&alpha;</mo></math>");
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertEquals("Invalid XML", e.getMessage());
+		}
+	}
+
+	private static String readAll(Reader reader) throws Exception
+	{
+		// Read in small pieces to split entities across reads
+		StringBuilder out = new StringBuilder();
+		char[] buffer = new char[3];
+		while(true)
+		{
+			int read = reader.read(buffer, 0, buffer.length);
+			if(read == -1)
+			{
+				return out.toString();
+			}
+			out.append(buffer, 0, read);
+		}
+	}
 }
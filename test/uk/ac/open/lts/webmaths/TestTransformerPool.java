@@ -0,0 +1,103 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import javax.xml.transform.*;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.*;
+
+public class TestTransformerPool
+{
+	private Templates templates;
+
+	@Before
+	public void before() throws Exception
+	{
+		templates = TransformerFactory.newInstance().newTemplates(new StreamSource(
+			new StringReader("<xsl:stylesheet version='1.0' "
+			+ "xmlns:xsl='http://www.w3.org/1999/XSL/Transform'/>")));
+	}
+
+	@Test
+	public void testReuse() throws Exception
+	{
+		TransformerPool pool = new TransformerPool("test", templates, "x", 2, 0);
+		pool.prewarm(5);
+		assertEquals(2, pool.getIdle());
+		assertEquals(2, pool.getCreations());
+
+		// Most recently released transformer is used first
+		Transformer a = pool.reserve(), b = pool.reserve(), c = pool.reserve();
+		assertEquals("x", c.getParameter("TYPE"));
+		assertEquals(3, pool.getCreations());
+		assertEquals(3, pool.getInUse());
+		assertEquals(0, pool.getIdle());
+		pool.release(a);
+		assertSame(a, pool.reserve());
+		pool.release(a);
+		pool.release(b);
+		pool.release(c);
+
+		// Pool only keeps two
+		assertEquals(0, pool.getInUse());
+		assertEquals(2, pool.getIdle());
+		assertEquals(1, pool.getDiscards());
+		assertEquals(4, pool.getBorrows());
+		assertTrue(pool.getMaxBorrowTime() >= 0);
+		assertTrue(pool.getBorrowTime() >= pool.getMaxBorrowTime());
+	}
+
+	@Test
+	public void testTrim() throws Exception
+	{
+		TransformerPool pool = new TransformerPool("test", templates, null, 4, 50);
+		Transformer a = pool.reserve(), b = pool.reserve();
+		pool.release(a);
+		Thread.sleep(100);
+		pool.release(b);
+
+		// Transformer a has not been used for too long
+		assertEquals(1, pool.getIdle());
+		assertEquals(1, pool.getTrims());
+		assertSame(b, pool.reserve());
+	}
+
+	@Test
+	public void testShared() throws Exception
+	{
+		MathmlEntityFixer fixer = MathmlEntityFixer.getFixer(null);
+		TransformerPool pool = TransformerPool.get(null, fixer,
+			WebMathsService.class, "normalise.xsl", "latex");
+		assertSame(pool, TransformerPool.get(null, fixer,
+			WebMathsService.class, "normalise.xsl", "latex"));
+		assertNotSame(pool, TransformerPool.get(null, fixer,
+			WebMathsService.class, "normalise.xsl", "english"));
+		assertSame(pool, TransformerPool.getPools(null).get(
+			"uk.ac.open.lts.webmaths.WebMathsService/normalise.xsl (latex)"));
+
+		// The same name relative to another class is a different file
+		assertNotSame(pool, TransformerPool.get(null, fixer,
+			TransformerPool.class, "normalise.xsl", "latex"));
+	}
+}
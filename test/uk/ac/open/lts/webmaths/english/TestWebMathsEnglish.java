@@ -43,6 +43,16 @@ public class TestWebMathsEnglish extends TestCase
 	public void testOuterBrackets() throws Exception
 	{
 		assertEnglish("1 over z", "<mfrac><mn>1</mn><mi>z</mi></mfrac>");
+		assertEnglish("1 over z", "<mrow><mo>(</mo><mrow><mo>(</mo>" +
+			"<mfrac><mn>1</mn><mi>z</mi></mfrac><mo>)</mo></mrow><mo>)</mo></mrow>");
+
+		// Brackets that don't match each other are kept
+		assertEnglish("( a ) + ( b )", "<mrow><mo>(</mo><mi>a</mi><mo>)</mo></mrow>" +
+			"<mo>+</mo><mrow><mo>(</mo><mi>b</mi><mo>)</mo></mrow>");
+		assertEquals("(a)(", WebMathsEnglish.stripOuterBrackets("(a)("));
+		assertEquals("(a))", WebMathsEnglish.stripOuterBrackets("(a))"));
+		assertEquals("", WebMathsEnglish.stripOuterBrackets(" ( ( ) ) "));
+		assertEquals("(a) (b)", WebMathsEnglish.stripOuterBrackets("\n((a) (b))"));
 	}
 
 	@Test
@@ -138,6 +148,42 @@ public class TestWebMathsEnglish extends TestCase
 		assertEnglish("not right arrow-curved", "<mo>&#x2933;&#x338;</mo>");
 	}
 
+	@Test
+	public void testFenced() throws Exception
+	{
+		assertEnglish("[ a ; b ; c ]", "<mfenced open='[' close=']' separators=';'>" +
+			"<mi>a</mi><mi>b</mi><mi>c</mi></mfenced>");
+	}
+
+	@Test
+	public void testSubSup() throws Exception
+	{
+		assertEnglish("x subscript 1 squared",
+			"<msubsup><mi>x</mi><mn>1</mn><mn>2</mn></msubsup>");
+	}
+
+	@Test
+	public void testTables() throws Exception
+	{
+		// Missing mtr and mtd are assumed
+		assertEnglish("2 by 2 grid. Row 1 : 1 blank Row 2 : 23",
+			"<mtable><mn>1</mn><mtr><mn>2</mn><mn>3</mn></mtr></mtable>");
+
+		// Labelled and empty rows
+		assertEnglish("2 by 1 grid. Row 1 (1) : 12 Row 2 : blank blank",
+			"<mtable><mlabeledtr><mtext>(1)</mtext><mtd><mn>1</mn></mtd>" +
+			"<mtd><mn>2</mn></mtd></mlabeledtr><mtr></mtr></mtable>");
+	}
+
+	@Test
+	public void testNotMathml() throws Exception
+	{
+		MathsEnglishParams params = new MathsEnglishParams();
+		params.setMathml("<math><mn>1</mn></math>");
+		MathsEnglishReturn result = english.getEnglish(params);
+		assertFalse(result.ok);
+	}
+
 	private void assertEnglish(String expected, String mathml) throws Exception
 	{
 		MathsEnglishParams params = new MathsEnglishParams();
@@ -2,6 +2,9 @@ package uk.ac.open.lts.webmaths.image;
 
 import static org.junit.Assert.*;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 import org.junit.*;
 import org.w3c.dom.Document;
 import org.w3c.dom.ls.*;
@@ -40,6 +43,111 @@ public class TestWebMathsImage
 		assertEquals("", image.getImage(params).error);
 	}
 
+	@Test
+	public void testParallel() throws Exception
+	{
+		// Render some different equations in series, then all at once in
+		// parallel; results should be the same.
+		final List<MathsImageParams> allParams = new ArrayList<MathsImageParams>();
+		String[] colours = { "#000000", "#ff0000" };
+		for(int i = 0; i < 16; i++)
+		{
+			MathsImageParams params = new MathsImageParams();
+			params.mathml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+				+ "<mfrac><mi>x</mi><mn>" + i + "</mn></mfrac></math>";
+			params.rgb = colours[i % 2];
+			params.size = 1.0f + (i % 3) * 0.5f;
+			allParams.add(params);
+		}
+		List<byte[]> serial = new ArrayList<byte[]>();
+		for(MathsImageParams params : allParams)
+		{
+			serial.add(image.getImage(params).image);
+		}
+
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		List<Future<byte[]>> parallel = new ArrayList<Future<byte[]>>();
+		for(final MathsImageParams params : allParams)
+		{
+			parallel.add(threads.submit(new Callable<byte[]>()
+			{
+				@Override
+				public byte[] call() throws Exception
+				{
+					return new WebMathsImage().getImage(params).image;
+				}
+			}));
+		}
+		for(int i = 0; i < serial.size(); i++)
+		{
+			assertArrayEquals(serial.get(i), parallel.get(i).get());
+		}
+		threads.shutdown();
+	}
+
+	@Test
+	public void testGetImages() throws Exception
+	{
+		// Results should be the same as rendering one at a time, including errors.
+		MathsImagesParams batch = new MathsImagesParams();
+		for(int i = 0; i < 4; i++)
+		{
+			MathsImageParams params = new MathsImageParams();
+			params.mathml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+				+ "<msup><mi>x</mi><mn>" + i + "</mn></msup></math>";
+			params.rgb = i == 2 ? "#nonsense" : "#000000";
+			params.size = 1.0f;
+			batch.getMathsImageParams().add(params);
+		}
+		List<MathsImageReturn> results = image.getImages(batch).getMathsImageReturn();
+		assertEquals(4, results.size());
+		for(int i = 0; i < 4; i++)
+		{
+			MathsImageReturn single = image.getImage(batch.getMathsImageParams().get(i));
+			assertEquals(single.ok, results.get(i).ok);
+			assertEquals(single.error, results.get(i).error);
+			assertArrayEquals(single.image, results.get(i).image);
+		}
+		assertFalse(results.get(2).ok);
+	}
+
+	@Test
+	public void testCache() throws Exception
+	{
+		// First render goes directly in red, second in black from the cache,
+		// third in red from the cache. Should be identical to the first.
+		MathsImageParams params = new MathsImageParams();
+		params.mathml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+			+ "<msqrt><mi>y</mi><mo>+</mo><mn>42</mn></msqrt></math>";
+		params.rgb = "#ff0000";
+		params.size = 1.25f;
+		MathsImageReturn direct = image.getImage(params);
+		params.rgb = "#000000";
+		MathsImageReturn black = image.getImage(params);
+		params.rgb = "#ff0000";
+		MathsImageReturn cached = image.getImage(params);
+		assertFalse(Arrays.equals(direct.image, black.image));
+		assertArrayEquals(direct.image, cached.image);
+		assertEquals(direct.baseline, cached.baseline);
+	}
+
+	@Test
+	public void testGetCacheKey() throws Exception
+	{
+		Document doc = image.parseMathml("<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+			+ "<mi>x</mi></math>");
+		Document same = image.parseMathml("<math   xmlns='http://www.w3.org/1998/Math/MathML'"
+			+ "><mi>&#x78;</mi></math>");
+		assertEquals(WebMathsImage.getCacheKey(doc, 1.0f),
+			WebMathsImage.getCacheKey(same, 1.0f));
+		assertFalse(WebMathsImage.getCacheKey(doc, 1.0f).equals(
+			WebMathsImage.getCacheKey(doc, 2.0f)));
+
+		Document coloured = image.parseMathml("<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+			+ "<mi mathcolor=\"red\">x</mi></math>");
+		assertNull(WebMathsImage.getCacheKey(coloured, 1.0f));
+	}
+
 	@Test
 	public void testPreprocessForJEuclid() throws Exception
 	{
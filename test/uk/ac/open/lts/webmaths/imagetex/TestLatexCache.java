@@ -0,0 +1,81 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import uk.ac.open.lts.webmaths.image.AlphaMaskCache;
+
+/**
+ * Tests the LaTeX result cache.
+ */
+public class TestLatexCache
+{
+	@Test
+	public void testGetKey()
+	{
+		assertEquals("100:x^2", LatexCache.getKey("x^2", 100));
+		assertFalse(LatexCache.getKey("x^2", 100).equals(LatexCache.getKey("x^2", 200)));
+
+		// Equations that set their own colour are not cached.
+		assertNull(LatexCache.getKey("\\color{red} x", 100));
+		assertNull(LatexCache.getKey("\\textcolor{red}{x}", 100));
+	}
+
+	@Test
+	public void testMask()
+	{
+		LatexCache cache = new LatexCache(2);
+		assertNull(cache.getMask("100:x"));
+
+		// Opaque grey on white counts as partly transparent.
+		BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, 0xff000000);
+		image.setRGB(1, 0, 0xff808080);
+		cache.putMask("100:x", AlphaMaskCache.Mask.fromBlackImage(image, 3));
+
+		AlphaMaskCache.Mask mask = cache.getMask("100:x");
+		assertEquals(3, mask.getBaseline());
+		BufferedImage tinted = mask.tint(Color.RED);
+		assertEquals(0xffff0000, tinted.getRGB(0, 0));
+		assertEquals(0x7f, tinted.getRGB(1, 0) >>> 24);
+		assertEquals(0xff0000, tinted.getRGB(1, 0) & 0xffffff);
+	}
+
+	@Test
+	public void testEps()
+	{
+		LatexCache cache = new LatexCache(2);
+		byte[] a = new byte[] { 1 }, b = new byte[] { 2 }, c = new byte[] { 3 };
+		cache.putEps("a", a);
+		cache.putEps("b", b);
+		assertSame(a, cache.getEps("a"));
+
+		// Least recently used (b) is dropped.
+		cache.putEps("c", c);
+		assertNull(cache.getEps("b"));
+		assertSame(a, cache.getEps("a"));
+		assertSame(c, cache.getEps("c"));
+	}
+}
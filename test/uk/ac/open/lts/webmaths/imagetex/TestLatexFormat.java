@@ -0,0 +1,124 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.List;
+
+import org.junit.*;
+
+/**
+ * Tests the format using a stand-in script instead of LaTeX.
+ */
+public class TestLatexFormat
+{
+	private File tempFolder, script, formatFolder;
+
+	@Before
+	public void before() throws IOException
+	{
+		tempFolder = Files.createTempDirectory("webmaths-test").toFile();
+		script = new File(tempFolder, "fakeformat.sh");
+		Files.copy(getClass().getResourceAsStream("fakeformat.sh"), script.toPath());
+		script.setExecutable(true);
+		formatFolder = new File(tempFolder, LatexFormat.FOLDER_NAME);
+	}
+
+	@After
+	public void after()
+	{
+		if(formatFolder.exists())
+		{
+			WebMathsImageTex.killFolder(formatFolder);
+		}
+		WebMathsImageTex.killFolder(tempFolder);
+	}
+
+	/**
+	 * @return Number of times the format has been dumped
+	 */
+	private int getDumps() throws IOException
+	{
+		File log = new File(tempFolder, "runs.log");
+		if(!log.exists())
+		{
+			return 0;
+		}
+		int dumps = 0;
+		List<String> lines = Files.readAllLines(log.toPath(), Charset.forName("UTF-8"));
+		for(String line : lines)
+		{
+			if(line.startsWith("-ini"))
+			{
+				dumps++;
+			}
+		}
+		return dumps;
+	}
+
+	@Test
+	public void testBuild() throws Exception
+	{
+		LatexFormat format = new LatexFormat(script.getPath(), "\\documentclass{article}\n",
+			formatFolder);
+		assertTrue(format.isValid());
+		assertEquals(1, getDumps());
+		assertEquals("\\documentclass{article}\n\\dump\n", new String(Files.readAllBytes(
+			new File(formatFolder, "webmaths.fmt").toPath()), "UTF-8"));
+		assertArrayEquals(new String[] { "&webmaths" }, format.getArguments());
+		assertEquals(formatFolder.getAbsolutePath() + File.pathSeparator,
+			format.getEnvironment().get("TEXFORMATS"));
+
+		// Same settings: not built again.
+		format = new LatexFormat(script.getPath(), "\\documentclass{article}\n",
+			formatFolder);
+		assertTrue(format.isValid());
+		assertEquals(1, getDumps());
+
+		// Different preamble or executable: built again.
+		format = new LatexFormat(script.getPath(), "\\documentclass{book}\n",
+			formatFolder);
+		assertTrue(format.isValid());
+		assertEquals(2, getDumps());
+		format = new LatexFormat(new File(tempFolder, "./fakeformat.sh").getPath(),
+			"\\documentclass{book}\n",
+			formatFolder);
+		assertTrue(format.isValid());
+		assertEquals(3, getDumps());
+
+		format.invalidate();
+		assertFalse(format.isValid());
+	}
+
+	@Test
+	public void testFailure() throws Exception
+	{
+		LatexFormat format = new LatexFormat(script.getPath(), "\\fail\n", formatFolder);
+		assertFalse(format.isValid());
+		assertFalse(new File(formatFolder, "webmaths.fmt").exists());
+
+		format = new LatexFormat(new File(tempFolder, "missing").getPath(),
+			"\\documentclass{article}\n", formatFolder);
+		assertFalse(format.isValid());
+	}
+}
@@ -0,0 +1,268 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import javax.servlet.ServletContext;
+
+import org.junit.*;
+
+/**
+ * Tests the worker pool using a stand-in script instead of LaTeX.
+ */
+public class TestLatexWorkerPool
+{
+	private File tempFolder;
+	private LatexWorkerPool pool;
+
+	/** Handler that records the folder and returns the page number */
+	private static class RecordingHandler implements LatexWorkerPool.PageHandler<Integer>
+	{
+		File folder;
+
+		@Override
+		public Integer handle(File folder, String dviName, int page)
+		{
+			assertEquals("worker.dvi", dviName);
+			assertTrue(new File(folder, "worker.tex").exists());
+			this.folder = folder;
+			return page;
+		}
+	}
+
+	/**
+	 * Creates a minimal servlet context with attributes and parameters.
+	 * @param params Init parameters
+	 * @return Servlet context
+	 */
+	static ServletContext createServletContext(final Map<String, String> params)
+	{
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		return (ServletContext)Proxy.newProxyInstance(
+			ServletContext.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+			new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args)
+				{
+					String name = method.getName();
+					if(name.equals("getInitParameter"))
+					{
+						return params.get(args[0]);
+					}
+					else if(name.equals("getAttribute"))
+					{
+						return attributes.get(args[0]);
+					}
+					else if(name.equals("setAttribute"))
+					{
+						attributes.put((String)args[0], args[1]);
+					}
+					else if(name.equals("removeAttribute"))
+					{
+						attributes.remove(args[0]);
+					}
+					else if(name.equals("hashCode"))
+					{
+						return System.identityHashCode(proxy);
+					}
+					else if(name.equals("equals"))
+					{
+						return proxy == args[0];
+					}
+					return null;
+				}
+			});
+	}
+
+	@Before
+	public void before() throws IOException
+	{
+		tempFolder = Files.createTempDirectory("webmaths-test").toFile();
+		File script = new File(tempFolder, "fakelatex.sh");
+		Files.copy(getClass().getResourceAsStream("fakelatex.sh"), script.toPath());
+		pool = new LatexWorkerPool(new String[] { "sh", script.getPath() }, null,
+			"\\documentclass{article}\n\\begin{document}\n", tempFolder, 2, 1000);
+	}
+
+	@After
+	public void after()
+	{
+		pool.close();
+		WebMathsImageTex.killFolder(tempFolder);
+	}
+
+	@Test
+	public void testTypeset() throws Exception
+	{
+		RecordingHandler handler = new RecordingHandler();
+		assertEquals(1, (int)pool.typeset("x^2", handler));
+		File folder = handler.folder;
+		assertEquals(2, (int)pool.typeset("\\frac{1}{2}", handler));
+		assertEquals(folder, handler.folder);
+		assertEquals(1, pool.getWorkers());
+
+		// Worker is replaced after the maximum number of uses.
+		for(int i = 3; i <= LatexWorkerPool.MAX_USES; i++)
+		{
+			assertEquals(i, (int)pool.typeset("x", handler));
+		}
+		assertEquals(0, pool.getWorkers());
+		assertFalse(folder.exists());
+		assertEquals(1, (int)pool.typeset("x", handler));
+	}
+
+	@Test
+	public void testError() throws Exception
+	{
+		RecordingHandler handler = new RecordingHandler();
+		pool.typeset("x", handler);
+		File folder = handler.folder;
+		try
+		{
+			pool.typeset("\\error", handler);
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertTrue(e.getMessage().contains("! Undefined control sequence."));
+		}
+		assertEquals(0, pool.getWorkers());
+		assertFalse(folder.exists());
+
+		// Next request starts a new worker.
+		assertEquals(1, (int)pool.typeset("x", handler));
+		assertFalse(folder.equals(handler.folder));
+	}
+
+	@Test
+	public void testTimeout() throws Exception
+	{
+		RecordingHandler handler = new RecordingHandler();
+		long start = System.currentTimeMillis();
+		try
+		{
+			pool.typeset("\\hang", handler);
+			fail();
+		}
+		catch(IOException e)
+		{
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(0, pool.getWorkers());
+		assertEquals(1, (int)pool.typeset("x", handler));
+	}
+
+	@Test
+	public void testParallel() throws Exception
+	{
+		final int[] results = new int[8];
+		Thread[] threads = new Thread[results.length];
+		for(int i = 0; i < threads.length; i++)
+		{
+			final int index = i;
+			threads[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						results[index] = pool.typeset("x", new RecordingHandler());
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		int total = 0;
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i].join();
+			assertTrue(results[i] > 0);
+			total += results[i];
+		}
+		// Only two workers, so pages are numbered 1..n in each.
+		assertTrue(pool.getWorkers() <= 2);
+		assertTrue(total >= 1 + 2 + 3 + 4 + 1 + 2 + 3 + 4);
+	}
+
+	@Test
+	public void testFormatChange() throws Exception
+	{
+		ServletContext servletContext = createServletContext(
+			Collections.singletonMap(LatexWorkerPool.PARAM_LATEXWORKERS, "1"));
+		String script = new File(tempFolder, "fakelatex.sh").getPath();
+		String prolog = "\\documentclass{article}\n\\begin{document}\n";
+
+		// Pool using a format
+		LatexWorkerPool formatPool = LatexWorkerPool.get(servletContext,
+			new String[] { "sh", script, "&webmaths" },
+			Collections.singletonMap("TEXFORMATS", "/formats:"), "\\begin{document}\n",
+			tempFolder);
+		RecordingHandler handler = new RecordingHandler();
+		formatPool.typeset("x", handler);
+		assertEquals("&webmaths worker.tex /formats:", readArgs(handler.folder));
+		assertSame(formatPool, LatexWorkerPool.get(servletContext,
+			new String[] { "sh", script, "&webmaths" },
+			Collections.singletonMap("TEXFORMATS", "/formats:"), "\\begin{document}\n",
+			tempFolder));
+
+		// Format no longer in use, so the pool is replaced
+		LatexWorkerPool plainPool = LatexWorkerPool.get(servletContext,
+			new String[] { "sh", script }, null, prolog, tempFolder);
+		assertNotSame(formatPool, plainPool);
+		assertEquals(0, formatPool.getWorkers());
+		try
+		{
+			formatPool.typeset("x", handler);
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertEquals("latex worker pool closed", e.getMessage());
+		}
+
+		plainPool.typeset("x", handler);
+		assertEquals("worker.tex ", readArgs(handler.folder));
+		assertTrue(new String(Files.readAllBytes(new File(handler.folder, "worker.tex").toPath()),
+			"US-ASCII").startsWith(prolog));
+		LatexWorkerPool.cleanup(servletContext);
+		assertEquals(0, plainPool.getWorkers());
+	}
+
+	/**
+	 * @param folder Worker folder
+	 * @return Arguments and format path recorded by the stand-in script
+	 */
+	private static String readArgs(File folder) throws IOException
+	{
+		return new String(Files.readAllBytes(new File(folder, "args.txt").toPath()),
+			"US-ASCII").replaceAll("\n$", "");
+	}
+}
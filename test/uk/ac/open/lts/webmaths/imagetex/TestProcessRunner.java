@@ -0,0 +1,123 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the process limiter using shell commands.
+ */
+public class TestProcessRunner
+{
+	private final static File CWD = new File(System.getProperty("java.io.tmpdir"));
+
+	@Test
+	public void testOutput() throws Exception
+	{
+		ProcessRunner runner = new ProcessRunner(2, 1000, 10000);
+		ProcessRunner.Output output = runner.run(new String[] { "sh", "-c",
+			"echo one; echo two >&2; echo $WEBMATHS_TEST" },
+			Collections.singletonMap("WEBMATHS_TEST", "three"), CWD);
+		assertEquals(Arrays.asList("one", "three"), Arrays.asList(output.getStdout()));
+		assertEquals(Arrays.asList("two"), Arrays.asList(output.getStderr()));
+
+		ProcessRunner.Stats stats = runner.getStats().get("sh");
+		assertEquals(1, stats.getRuns());
+		assertEquals(0, stats.getTimeouts());
+		assertEquals(0, runner.getRunning());
+	}
+
+	@Test
+	public void testWaitTimeout() throws Exception
+	{
+		final ProcessRunner runner = new ProcessRunner(1, 100, 10000);
+		Thread slow = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					runner.run(new String[] { "sh", "-c", "sleep 1" }, null, CWD);
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		slow.start();
+		while(runner.getRunning() == 0)
+		{
+			Thread.sleep(10);
+		}
+
+		// Only one process allowed, so this gives up after 100ms.
+		try
+		{
+			runner.run(new String[] { "sh", "-c", "true" }, null, CWD);
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertTrue(e.getMessage().startsWith("Timed out waiting to run sh"));
+		}
+		slow.join();
+
+		ProcessRunner.Stats stats = runner.getStats().get("sh");
+		assertEquals(1, stats.getRuns());
+		assertEquals(1, stats.getTimeouts());
+		assertTrue(stats.getMaxRunTime() >= 900);
+
+		// Now the slot is free again.
+		runner.run(new String[] { "sh", "-c", "true" }, null, CWD);
+		assertEquals(2, runner.getStats().get("sh").getRuns());
+	}
+
+	@Test
+	public void testRunTimeout() throws Exception
+	{
+		ProcessRunner runner = new ProcessRunner(1, 100, 200);
+		long start = System.currentTimeMillis();
+		try
+		{
+			runner.run(new String[] { "sh", "-c", "exec sleep 10" }, null, CWD);
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertTrue(e.getMessage().startsWith("Killed sh"));
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+
+		ProcessRunner.Stats stats = runner.getStats().get("sh");
+		assertEquals(1, stats.getRuns());
+		assertEquals(1, stats.getKills());
+		assertEquals(0, runner.getRunning());
+
+		// The slot was given back, so another process can run.
+		runner.run(new String[] { "sh", "-c", "true" }, null, CWD);
+		assertEquals(0, runner.getStats().get("sh").getTimeouts());
+	}
+}
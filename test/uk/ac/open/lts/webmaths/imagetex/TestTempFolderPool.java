@@ -0,0 +1,154 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.imagetex;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.*;
+
+public class TestTempFolderPool
+{
+	private File tempFolder;
+	private List<TempFolderPool> pools = new ArrayList<TempFolderPool>();
+
+	@Before
+	public void before() throws IOException
+	{
+		tempFolder = Files.createTempDirectory("webmaths-test").toFile();
+	}
+
+	@After
+	public void after()
+	{
+		for(TempFolderPool pool : pools)
+		{
+			pool.close();
+			if(!pool.getRoot().exists())
+			{
+				continue;
+			}
+			for(File folder : pool.getRoot().listFiles())
+			{
+				if(folder.isDirectory())
+				{
+					WebMathsImageTex.killFolder(folder);
+				}
+			}
+			WebMathsImageTex.killFolder(pool.getRoot());
+		}
+		WebMathsImageTex.killFolder(tempFolder);
+	}
+
+	private TempFolderPool createPool() throws IOException
+	{
+		TempFolderPool pool = new TempFolderPool(tempFolder);
+		pools.add(pool);
+		return pool;
+	}
+
+	@Test
+	public void testReuse() throws Exception
+	{
+		TempFolderPool pool = createPool();
+		File folder = pool.acquire();
+		assertTrue(folder.isDirectory());
+		assertEquals(0, folder.list().length);
+		File other = pool.acquire();
+		assertFalse(folder.equals(other));
+
+		// Released folder is emptied and reused
+		Files.write(new File(folder, "eq.tex").toPath(), new byte[] { 1, 2, 3 });
+		pool.release(folder);
+		assertTrue(folder.isDirectory());
+		assertEquals(0, folder.list().length);
+		assertEquals(folder, pool.acquire());
+		pool.release(folder);
+		pool.release(other);
+
+		// Spare folders beyond the limit are deleted
+		List<File> folders = new ArrayList<File>();
+		for(int i = 0; i < TempFolderPool.MAX_IDLE + 5; i++)
+		{
+			folders.add(pool.acquire());
+		}
+		for(File f : folders)
+		{
+			pool.release(f);
+		}
+		int remaining = 0;
+		for(File f : folders)
+		{
+			if(f.exists())
+			{
+				remaining++;
+			}
+		}
+		assertEquals(TempFolderPool.MAX_IDLE, remaining);
+	}
+
+	@Test
+	public void testScrubFailure() throws Exception
+	{
+		// A non-empty subfolder can't be removed when the folder is emptied
+		TempFolderPool pool = createPool();
+		File folder = pool.acquire();
+		File sub = new File(folder, "sub");
+		assertTrue(sub.mkdir());
+		Files.write(new File(sub, "eq.ps").toPath(), new byte[] { 1, 2, 3 });
+		Files.write(new File(folder, "eq.tex").toPath(), new byte[] { 1, 2, 3 });
+
+		// So the folder isn't reused, and is deleted rather than left on disk
+		pool.release(folder);
+		assertFalse(folder.exists());
+		assertFalse(folder.equals(pool.acquire()));
+	}
+
+	@Test
+	public void testReclaim() throws Exception
+	{
+		// Leave a folder with a file in it, as if a request crashed
+		TempFolderPool pool = createPool();
+		File folder = pool.acquire();
+		Files.write(new File(folder, "eq.png").toPath(), new byte[] { 1, 2, 3 });
+		pool.close();
+
+		TempFolderPool next = createPool();
+		assertEquals(pool.getRoot(), next.getRoot());
+		File reclaimed = next.acquire();
+		assertEquals(folder, reclaimed);
+		assertEquals(0, reclaimed.list().length);
+
+		// New folders don't clash with the reclaimed one
+		assertFalse(folder.equals(next.acquire()));
+	}
+
+	@Test
+	public void testLocked() throws Exception
+	{
+		// A second pool in the same temp folder uses a different root
+		TempFolderPool pool = createPool();
+		TempFolderPool other = createPool();
+		assertFalse(pool.getRoot().equals(other.getRoot()));
+		assertFalse(pool.acquire().getParentFile().equals(other.acquire().getParentFile()));
+	}
+}
@@ -0,0 +1,16 @@
+#!/bin/sh
+# Stand-in for LaTeX used by TestLatexFormat. Each run is recorded in runs.log
+# next to this script. Dumping a format fails if the preamble contains 'fail'.
+echo "$@" >> "$(dirname "$0")/runs.log"
+case "$1" in
+	--version)
+		echo "Fake TeX 3.14"
+		;;
+	-ini)
+		if grep -q 'fail' webmaths.ltx; then
+			echo "! Fake error."
+			exit 1
+		fi
+		cp webmaths.ltx webmaths.fmt
+		;;
+esac
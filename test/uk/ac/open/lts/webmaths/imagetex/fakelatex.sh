@@ -0,0 +1,31 @@
+#!/bin/sh
+# Stand-in for LaTeX used by TestLatexWorkerPool. It follows the worker
+# protocol without typesetting anything: equations containing \error give a
+# LaTeX-style error, and \hang makes it stop responding. The arguments and
+# format path are written to args.txt so tests can check how it was started.
+echo "$* $TEXFORMATS" > args.txt
+# The driver file is the last argument (format arguments come before it).
+for driver; do :; done
+if grep -q 'webmathsmarker' "$driver"; then
+	echo "This is a stand-in for latex"
+	echo "[webmaths-ready]"
+else
+	echo "! Bad driver file."
+	exit 1
+fi
+while read -r line; do
+	case "$line" in
+		*'\error'*)
+			echo "! Undefined control sequence."
+			;;
+		*'\hang'*)
+			# Loop without starting a child process, so it stops when killed
+			while :; do :; done
+			;;
+		'\webmathsend{'*)
+			page=${line#*\{}
+			page=${page%\}}
+			echo "[webmaths-page:$page]"
+			;;
+	esac
+done
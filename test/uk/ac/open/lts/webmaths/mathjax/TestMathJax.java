@@ -350,6 +350,17 @@ public class TestMathJax
 		assertEquals("%!PS-Adobe", header);
 	}
 
+	@Test
+	public void testGetPdf() throws Exception
+	{
+		InputEquation eq = new InputTexDisplayEquation("x", null);
+		mockExecutable.expect(eq, SVG_X, MATHML_X);
+		byte[] pdf = mathJax.getPdf(eq, 7.26667, null);
+		String header = new String(Arrays.copyOfRange(pdf, 0, 5),
+			Charset.forName("ISO-8859-1"));
+		assertEquals("%PDF-", header);
+	}
+
 	@Test
 	public void testGetExBaselineFromSvg() throws Exception
 	{
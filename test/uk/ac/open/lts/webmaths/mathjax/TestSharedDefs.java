@@ -0,0 +1,88 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestSharedDefs
+{
+	private final static String SVG_XY =
+		"<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"2ex\">"
+		+ "<title id=\"MathJax-SVG-1-Title\">x y</title>\n"
+		+ "<defs aria-hidden=\"true\">\n"
+		+ "<path stroke-width=\"1\" id=\"E1-MJMATHI-78\" d=\"M1 2Z\"/>\n"
+		+ "<path stroke-width=\"1\" id=\"E1-MJMATHI-79\" d=\"M3 4Z\"></path>\n"
+		+ "</defs>\n"
+		+ "<g><use xlink:href=\"#E1-MJMATHI-78\"/><use xlink:href=\"#E1-MJMATHI-79\"/></g>"
+		+ "</svg>";
+
+	private final static String SVG_X_OTHER_FONT =
+		"<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"1ex\">"
+		+ "<defs aria-hidden=\"true\">\n"
+		+ "<path stroke-width=\"1\" id=\"E2-MJMATHI-78\" d=\"M5 6Z\"/>\n"
+		+ "</defs>\n"
+		+ "<g><use xlink:href=\"#E2-MJMATHI-78\"/></g>"
+		+ "</svg>";
+
+	@Test
+	public void testShare()
+	{
+		SharedDefs defs = new SharedDefs();
+		assertTrue(defs.isEmpty());
+
+		// Defs are removed and references updated.
+		assertEquals(
+			"<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"2ex\">"
+			+ "<title id=\"MathJax-SVG-1-Title\">x y</title>\n"
+			+ "<g><use xlink:href=\"#MJX-MJMATHI-78\"/><use xlink:href=\"#MJX-MJMATHI-79\"/></g>"
+			+ "</svg>", defs.share(SVG_XY));
+		assertFalse(defs.isEmpty());
+
+		// Doing the same one again doesn't add any more glyphs.
+		String before = defs.getDefs();
+		defs.share(SVG_XY.replace("E1-", "E7-"));
+		assertEquals(before, defs.getDefs());
+
+		// Same ID with different data gets a suffix.
+		assertEquals(
+			"<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"1ex\">"
+			+ "<g><use xlink:href=\"#MJX-MJMATHI-78-2\"/></g>"
+			+ "</svg>", defs.share(SVG_X_OTHER_FONT));
+
+		assertEquals(
+			"<svg xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+			+ "xmlns=\"http://www.w3.org/2000/svg\" style=\"display: none\" "
+			+ "aria-hidden=\"true\"><defs>"
+			+ "<path stroke-width=\"1\" id=\"MJX-MJMATHI-78\" d=\"M1 2Z\"/>"
+			+ "<path stroke-width=\"1\" id=\"MJX-MJMATHI-78-2\" d=\"M5 6Z\"/>"
+			+ "<path stroke-width=\"1\" id=\"MJX-MJMATHI-79\" d=\"M3 4Z\"></path>"
+			+ "</defs></svg>", defs.getDefs());
+	}
+
+	@Test
+	public void testShareNoDefs()
+	{
+		SharedDefs defs = new SharedDefs();
+		String svg = "<svg><g/></svg>";
+		assertEquals(svg, defs.share(svg));
+		assertTrue(defs.isEmpty());
+	}
+}
@@ -0,0 +1,127 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestSvgMinifier
+{
+	@Test
+	public void testFormatNumber()
+	{
+		assertEquals("12", SvgMinifier.formatNumber("12"));
+		assertEquals("12", SvgMinifier.formatNumber("12.000"));
+		assertEquals("12.3", SvgMinifier.formatNumber("12.3456"));
+		assertEquals(".5", SvgMinifier.formatNumber("0.45"));
+		assertEquals("-.5", SvgMinifier.formatNumber("-0.5"));
+		assertEquals("0", SvgMinifier.formatNumber("-0.01"));
+		assertEquals("1200", SvgMinifier.formatNumber("1200"));
+	}
+
+	@Test
+	public void testCompactPath()
+	{
+		assertEquals("M52 289Q59 331 106 386T222 442-11 3Z",
+			SvgMinifier.compactPath("M 52 289 Q 59 331 106 386 T 222 442 T -11 3 Z"));
+		assertEquals("M.5.5L1.2-3 4 5M1 1", SvgMinifier.compactPath(
+			"M0.5 0.5L1.2499 -3L4 5M1 1"));
+	}
+
+	@Test
+	public void testCompactTransform()
+	{
+		assertEquals("translate(12.3,-4)",
+			SvgMinifier.compactTransform("translate(12.345,-4.0)"));
+		assertEquals("scale(0.707)", SvgMinifier.compactTransform("scale(0.707)"));
+		assertEquals("matrix(0.707 0 0 -0.707 12.3 6.8)",
+			SvgMinifier.compactTransform("matrix(0.707 0 0 -0.707 12.345 6.789)"));
+		assertEquals("translate(1.4,0) scale(1.44)",
+			SvgMinifier.compactTransform("translate(1.44,0) scale(1.44)"));
+	}
+
+	@Test
+	public void testMinify()
+	{
+		String svg = "<svg width=\"1.33ex\" style=\"vertical-align: -0.338ex;\">\n"
+			+ "<title id=\"MathJax-SVG-1-Title\">x  y</title>\n"
+			+ "<defs aria-hidden=\"true\">\n"
+			+ "<path stroke-width=\"10\" id=\"E1-X\" d=\"M 1 2 L 3.04 4 Z\"></path>\n"
+			+ "</defs>\n"
+			+ "<g stroke-width=\"0\" transform=\"matrix(1 0 0 -1 0 0)\">\n"
+			+ " <use xlink:href=\"#E1-X\" x=\"0\" y=\"0\"></use>\n"
+			+ " <use xlink:href=\"#E1-X\" x=\"12.3456\" y=\"0\"/>\n"
+			+ " <g transform=\"translate(0,0)\"><rect x=\"0\" y=\"220.77\" "
+			+ "width=\"500.44\" height=\"60\" stroke=\"none\"></rect></g>\n"
+			+ "</g>\n"
+			+ "</svg>";
+		assertEquals("<svg width=\"1.33ex\" style=\"vertical-align: -0.338ex;\">"
+			+ "<title id=\"MathJax-SVG-1-Title\">x  y</title>"
+			+ "<defs aria-hidden=\"true\">"
+			+ "<path stroke-width=\"10\" id=\"E1-X\" d=\"M1 2L3 4Z\"/>"
+			+ "</defs>"
+			+ "<g stroke-width=\"0\" transform=\"matrix(1 0 0 -1 0 0)\">"
+			+ "<use xlink:href=\"#E1-X\"/>"
+			+ "<use xlink:href=\"#E1-X\" x=\"12.3\"/>"
+			+ "<g><rect y=\"220.8\" width=\"500.4\" height=\"60\" stroke=\"none\"/></g>"
+			+ "</g>"
+			+ "</svg>", SvgMinifier.minify(svg));
+	}
+
+	@Test
+	public void testMinifyAttributes()
+	{
+		// Names with digits, single quotes, and spaces around equals
+		String svg = "<svg><line stroke-linecap=\"square\" stroke-width=\"40\" "
+			+ "y2=\"28\" y1=\"750\" x2=\"500\" x1=\"28\"></line>"
+			+ "<rect x='5.04' y = '0' title='a \"b\"'/></svg>";
+		assertEquals("<svg><line stroke-linecap=\"square\" stroke-width=\"40\" "
+			+ "y2=\"28\" y1=\"750\" x2=\"500\" x1=\"28\"/>"
+			+ "<rect x=\"5\" title=\"a &quot;b&quot;\"/></svg>", SvgMinifier.minify(svg));
+	}
+
+	@Test
+	public void testMinifyScale()
+	{
+		// Scale factors are kept exactly; only offsets are rounded
+		String svg = "<svg><g transform=\"translate(500.44,-150) scale(0.707)\">"
+			+ "<use transform=\"matrix(0.707 0 0 -0.707 12.345 6.789)\"/>"
+			+ "<use transform=\"scale(1)\"/></g></svg>";
+		assertEquals("<svg><g transform=\"translate(500.4,-150) scale(0.707)\">"
+			+ "<use transform=\"matrix(0.707 0 0 -0.707 12.3 6.8)\"/>"
+			+ "<use/></g></svg>", SvgMinifier.minify(svg));
+	}
+
+	@Test
+	public void testMinifyMathJaxSvg()
+	{
+		String minified = SvgMinifier.minify(TestMathJax.SVG_X);
+		assertTrue(minified.length() < TestMathJax.SVG_X.length());
+
+		// Root element, title and glyph ID are unchanged.
+		String root = TestMathJax.SVG_X.substring(0, TestMathJax.SVG_X.indexOf('>') + 1);
+		assertTrue(minified.startsWith(root +
+			"<title id=\"MathJax-SVG-1-Title\">x</title><defs aria-hidden=\"true\">"
+			+ "<path stroke-width=\"1\" id=\"E1-MJMATHI-78\" d=\"M52 289Q59 331 106 386T222 "));
+		assertTrue(minified.endsWith("<use xlink:href=\"#E1-MJMATHI-78\"/></g></svg>"));
+		assertTrue(minified.contains("Q91 39 97 36T113 29 132 26Q"));
+		assertTrue(minified.contains("T333-11Q263-11 227 52"));
+	}
+}
@@ -0,0 +1,160 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.regex.*;
+
+import org.junit.Test;
+
+import uk.ac.open.lts.webmaths.mathjax.SvgVectorWriter.*;
+
+public class TestSvgVectorWriter
+{
+	private final static Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	/** SVG_X converted to pixels, with the glyph used twice */
+	private final static String SVG_XX = TestMathJax.SVG_X
+		.replace("1.33ex", "13.3px").replace("1.676ex", "16.76px")
+		.replace(" <use xlink:href=\"#E1-MJMATHI-78\" x=\"0\" y=\"0\"></use>\n",
+			" <use xlink:href=\"#E1-MJMATHI-78\" x=\"0\" y=\"0\"></use>\n"
+			+ " <g transform=\"translate(572,0)\"><use xlink:href=\"#E1-MJMATHI-78\"/></g>\n"
+			+ " <rect stroke=\"none\" width=\"500\" height=\"60\" x=\"0\" y=\"220\"></rect>\n");
+
+	@Test
+	public void testParsePath() throws Exception
+	{
+		SvgVectorWriter.PathText path = new SvgVectorWriter.PathText();
+		SvgVectorWriter.parsePath("M10 20L30 40H50V60h10v-10l-5,5Z", path);
+		assertEquals("10 20 m\n30 40 l\n50 40 l\n50 60 l\n60 60 l\n60 50 l\n55 55 l\nh\n",
+			path.toString());
+
+		// Quadratic curves are converted to cubic; T reflects previous control point.
+		path = new SvgVectorWriter.PathText();
+		SvgVectorWriter.parsePath("M0 0Q30 30 60 0T120 0", path);
+		assertEquals("0 0 m\n20 20 40 20 60 0 c\n80 -20 100 -20 120 0 c\n",
+			path.toString());
+
+		// Implicit lineto after moveto, and relative moveto.
+		path = new SvgVectorWriter.PathText();
+		SvgVectorWriter.parsePath("m1 1 2 2z", path);
+		assertEquals("1 1 m\n3 3 l\nh\n", path.toString());
+
+		try
+		{
+			SvgVectorWriter.parsePath("M0 0A10 10 0 0 1 20 20", new SvgVectorWriter.PathText());
+			fail();
+		}
+		catch(UnsupportedSvgException e)
+		{
+		}
+	}
+
+	@Test
+	public void testAppendNumber()
+	{
+		StringBuilder out = new StringBuilder();
+		SvgVectorWriter.appendNumber(out, 12.0, 3);
+		out.append(' ');
+		SvgVectorWriter.appendNumber(out, -0.12345, 3);
+		out.append(' ');
+		SvgVectorWriter.appendNumber(out, 3.05, 3);
+		out.append(' ');
+		SvgVectorWriter.appendNumber(out, 0.0001, 3);
+		assertEquals("12 -0.123 3.05 0", out.toString());
+	}
+
+	@Test
+	public void testEps() throws Exception
+	{
+		String eps = new String(SvgVectorWriter.write(SVG_XX, Format.EPS), LATIN1);
+		assertTrue(eps.startsWith("%!PS-Adobe-3.0 EPSF-3.0\n"));
+		assertTrue(eps.contains("%%BoundingBox: 0 0 10 12\n"));
+		assertTrue(eps.endsWith("showpage\n%%EOF\n"));
+
+		// Glyph is defined once, then used twice.
+		assertEquals(1, count(eps, "/G0 \\{"));
+		assertEquals(2, count(eps, "\nG0\n"));
+		assertTrue(eps.contains("0 220 500 60 re\nf\n"));
+	}
+
+	@Test
+	public void testPdf() throws Exception
+	{
+		String pdf = new String(SvgVectorWriter.write(SVG_XX, Format.PDF), LATIN1);
+		assertTrue(pdf.startsWith("%PDF-1.4\n"));
+		assertTrue(pdf.endsWith("%%EOF\n"));
+		assertTrue(pdf.contains("/MediaBox [0 0 9.312 11.735]"));
+
+		// One XObject for the glyph, used twice.
+		assertEquals(1, count(pdf, "/Subtype /Form"));
+		assertTrue(pdf.contains("/XObject << /G0B 5 0 R >>"));
+
+		// Check the cross-reference table points to the right places.
+		Matcher m = Pattern.compile("startxref\n([0-9]+)\n").matcher(pdf);
+		assertTrue(m.find());
+		int xref = Integer.parseInt(m.group(1));
+		assertTrue(pdf.startsWith("xref\n0 6\n", xref));
+		m = Pattern.compile("([0-9]{10}) 00000 n \n").matcher(pdf);
+		int object = 1;
+		while(m.find())
+		{
+			assertTrue(pdf.startsWith(object + " 0 obj\n", Integer.parseInt(m.group(1))));
+			object++;
+		}
+		assertEquals(6, object);
+	}
+
+	@Test
+	public void testUnsupported() throws Exception
+	{
+		String[] unsupported =
+		{
+			SVG_XX.replace("<rect", "<text>?</text><rect"),
+			SVG_XX.replace("translate(572,0)", "rotate(45)"),
+			SVG_XX.replace("#E1-MJMATHI-78\"/>", "#E1-MJMATHI-79\"/>"),
+			SVG_XX.replace("13.3px", "1.33ex"),
+			SVG_XX.replace("stroke=\"none\"", "stroke=\"none\" fill-opacity=\"0.5\"")
+		};
+		for(String svg : unsupported)
+		{
+			try
+			{
+				SvgVectorWriter.write(svg, Format.EPS);
+				fail(svg);
+			}
+			catch(UnsupportedSvgException e)
+			{
+			}
+		}
+	}
+
+	private static int count(String text, String regex)
+	{
+		Matcher m = Pattern.compile(regex).matcher(text);
+		int count = 0;
+		while(m.find())
+		{
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2017 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.open.lts.webmaths.tex.MathmlNode.*;
+
+public class TestMathmlNode
+{
+	private final static String MATH = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">";
+
+	@Test
+	public void testToXml()
+	{
+		Element frog = new Element("frog");
+		frog.setAttribute("sound", "ribbit");
+		frog.appendChild(new Element("tadpole"));
+		frog.appendChild(new Text("Ribbit!"));
+		assertEquals("<frog xmlns=\"http://www.w3.org/1998/Math/MathML\" sound=\"ribbit\">"
+			+ "<tadpole/>Ribbit!</frog>", frog.toXml());
+
+		// Element with empty text is not written as an empty tag
+		Element math = new Element("math");
+		Element mn = new Element("mn");
+		mn.appendChild(new Text(""));
+		math.appendChild(mn);
+		assertEquals(MATH + "<mn></mn></math>", math.toXml());
+	}
+
+	@Test
+	public void testChildren()
+	{
+		Element parent = new Element("mrow");
+		Element a = new Element("a"), b = new Element("b"), c = new Element("c");
+		parent.appendChild(b);
+		parent.insertBefore(a, b);
+		parent.insertBefore(c, null);
+		assertEquals(3, parent.getChildCount());
+		assertSame(a, parent.getFirstChild());
+		assertSame(c, parent.getLastChild());
+		assertSame(b, a.getNextSibling());
+		assertSame(b, c.getPreviousSibling());
+		assertSame(parent, b.getParentNode());
+
+		parent.removeChild(b);
+		assertEquals(2, parent.getChildCount());
+		assertSame(c, a.getNextSibling());
+		assertNull(b.getParentNode());
+
+		// Appending a node that is already somewhere else moves it
+		Element other = new Element("mstyle");
+		other.appendChild(a);
+		assertEquals(1, parent.getChildCount());
+		assertSame(c, parent.getFirstChild());
+		assertSame(other, a.getParentNode());
+
+		try
+		{
+			parent.removeChild(a);
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testAttributes()
+	{
+		Element e = new Element("mi");
+		assertEquals("", e.getAttribute("mathvariant"));
+		e.setAttribute("zz", "1");
+		e.setAttribute("mathvariant", "bold");
+		e.setAttribute("aa", "2");
+		e.setAttribute("zz", "3");
+		assertEquals(3, e.getAttributeCount());
+		assertEquals("bold", e.getAttribute("mathvariant"));
+
+		// Written in name order
+		Element math = new Element("math");
+		math.appendChild(e);
+		assertEquals(MATH + "<mi aa=\"2\" mathvariant=\"bold\" zz=\"3\"/></math>",
+			math.toXml());
+
+		e.removeAttribute("mathvariant");
+		e.removeAttribute("frog");
+		assertEquals(2, e.getAttributeCount());
+		assertEquals(MATH + "<mi aa=\"2\" zz=\"3\"/></math>", math.toXml());
+	}
+
+	@Test
+	public void testEscaping()
+	{
+		String tricky = "a\"b'c<d>e&f\rg\nh\ti\ud835\udc9cj ";
+		Element math = new Element("math");
+		Element mi = new Element("mi");
+		mi.setAttribute("x", tricky);
+		mi.appendChild(new Text(tricky));
+		math.appendChild(mi);
+		assertEquals(MATH + "<mi x=\"a&quot;b'c&lt;d>e&amp;f&#xd;g&#xa;h&#x9;i&#x1d49c;j \">"
+			+ "a\"b'c&lt;d&gt;e&amp;f&#xd;g\nh\ti&#x1d49c;j </mi></math>", math.toXml());
+
+		for(String invalid : new String[] { "\u0001", "\ud835", "\udc9c", "\uffff" })
+		{
+			mi.removeChild(mi.getFirstChild());
+			mi.appendChild(new Text(invalid));
+			try
+			{
+				math.toXml();
+				fail();
+			}
+			catch(IllegalArgumentException e)
+			{
+			}
+		}
+	}
+
+	@Test
+	public void testErrors()
+	{
+		Element math = new Element("math");
+		Element error = new Element("xerror");
+		error.appendChild(new Text("Unsupported \\char "));
+		error.appendChild(new Text("<1>"));
+		math.appendChild(error);
+		Element errorOnly = new Element("xerroronly");
+		errorOnly.appendChild(new Text("Oops & stuff"));
+		math.appendChild(errorOnly);
+		assertEquals(MATH + "<mspace/><!-- Unsupported \\char <1> --><!-- Oops & stuff --></math>",
+			math.toXml());
+	}
+}
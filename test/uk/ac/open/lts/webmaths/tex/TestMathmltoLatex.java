@@ -399,6 +399,13 @@ public class TestMathmltoLatex
 		assertEquals("ws\\\\", MathmlToLatex.trimSurroundingBraces("ws\\\\    "));
 		assertEquals("ws\\\\\\ ", MathmlToLatex.trimSurroundingBraces("ws\\\\\\      "));
 		assertEquals("ws\\\\\\\\", MathmlToLatex.trimSurroundingBraces("ws\\\\\\\\    "));
+
+		// Outer braces only go if the first one is closed by the last one
+		assertEquals("{a}{b}", MathmlToLatex.trimSurroundingBraces("{{a}{b}}"));
+		assertEquals("{a", MathmlToLatex.trimSurroundingBraces("{ {{a} } "));
+		assertEquals("a\\}", MathmlToLatex.trimSurroundingBraces("{a\\}}"));
+		assertEquals("a\\", MathmlToLatex.trimSurroundingBraces("{a\\}"));
+		assertEquals("", MathmlToLatex.trimSurroundingBraces("{ { } }"));
 	}
 
 	@Test
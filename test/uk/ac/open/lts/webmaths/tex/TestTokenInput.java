@@ -18,15 +18,14 @@ Copyright 2011 The Open University
 */
 package uk.ac.open.lts.webmaths.tex;
 
-import java.io.StringReader;
-
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.regex.*;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
-import org.w3c.dom.*;
-import org.xml.sax.InputSource;
 
 public class TestTokenInput extends TestCase
 {
@@ -163,21 +162,27 @@ public class TestTokenInput extends TestCase
 		assertEquals("\\,", tokens.nextToken());
 	}
 
-	private Element parse(String xml) throws Exception
+	@Test
+	public void testErrorComments()
 	{
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
-		Document d = factory.newDocumentBuilder().
-			parse(new InputSource(new StringReader(xml)));
-		return d.getDocumentElement();
+		// Fake error elements are written as comments (with mspace unless 'only')
+		assertEquals("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><semantics>"
+			+ "<mstyle displaystyle=\"false\"><mspace/><!-- Unknown TeX command: \\frog -->"
+			+ "</mstyle><annotation encoding=\"application/x-tex\">\\frog</annotation>"
+			+ "</semantics></math>",
+			new TokenInput("\\frog").toMathml(false));
+		assertTrue(new TokenInput("\\begin{frog}x\\end{frog}").toMathml(false).contains(
+			"<mstyle displaystyle=\"false\"><!-- Unsupported environment: frog --><mi>x</mi>"));
 	}
 
 	@Test
-	public void testSaveXml() throws Exception
+	public void testInvalidCharacter()
 	{
-		Element frog = parse("<frog sound='ribbit'><tadpole/>Ribbit!</frog>");
-		assertEquals("<frog sound=\"ribbit\"><tadpole/>Ribbit!</frog>",
-			TokenInput.saveXml(frog));
+		// Characters not allowed in XML give an error result, not an exception
+		assertEquals("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mspace/>"
+			+ "<!-- TeX to MathML conversion failure: class java.lang.IllegalArgumentException "
+			+ "Invalid XML character U+0001 --></math>",
+			new TokenInput("x\u0001").toMathml(false));
 	}
 
 	@Test
@@ -212,4 +217,220 @@ public class TestTokenInput extends TestCase
 		assertEquals("3", tokens.nextToken());
 		assertEquals(null, tokens.nextToken());
 	}
+
+	@Test
+	public void testInsertTokens()
+	{
+		TokenInput tokens = new TokenInput("1*2");
+		assertEquals("1", tokens.nextToken());
+		tokens.insertTokensBeforeCurrent("a", "b");
+		assertEquals("b", tokens.peekToken(1));
+		assertEquals("a", tokens.nextToken());
+		assertEquals("b", tokens.nextToken());
+		assertEquals("*", tokens.nextToken());
+		assertEquals("2", tokens.nextToken());
+		assertEquals(null, tokens.nextToken());
+	}
+
+	@Test
+	public void testSurrogatePair()
+	{
+		TokenInput tokens = new TokenInput("\ud835\udc9c");
+		assertEquals("\ud835\udc9c", tokens.nextToken());
+		assertEquals(null, tokens.nextToken());
+	}
+
+	@Test
+	public void testLongUnmatched()
+	{
+		// Characters that aren't part of any token each become a single token;
+		// this used to take time proportional to the square of the length.
+		StringBuilder tex = new StringBuilder();
+		for(int i = 0; i < 100000; i++)
+		{
+			tex.append('\u4e2d');
+		}
+		TokenInput tokens = new TokenInput(tex.toString());
+		for(int i = 0; i < 100000; i++)
+		{
+			assertEquals("\u4e2d", tokens.nextToken());
+		}
+		assertEquals(null, tokens.nextToken());
+	}
+
+	/** Regular expression used before the hand-written lexer, for comparison */
+	private final static Pattern STRICT_RE = Pattern.compile(
+		"(\\\\begin|\\\\operatorname|\\\\mathrm|\\\\mathop|\\\\end)\\s*" +
+			"\\{\\s*([A-Z a-z]+)\\s*\\}|" +
+		"(\\\\[a-zA-Z]+|" +
+		"\\\\[ \\\\#\\%\\{\\},:;!$])|" +
+		"(\\s+)|" +
+		"([0-9\\.])|" +
+		"([\\$!\"#%&'\u2019\u201d()*+,-.\\/:;<=>?\\[\\]^_`\\{\\|\\}~])|" +
+		"([a-zA-Z@])|" +
+		"(\\\\&)");
+
+	private final static Pattern TEXT_RE = Pattern.compile(
+		"[\\${}]|" +
+		"\\\\[a-zA-Z]+\\s?|" +
+		"[^{}\\$\\\\]+");
+
+	private final static Set<String> TEXT_COMMANDS = new HashSet<String>(Arrays.asList(
+		"\\textrm", "\\textsl", "\\textit", "\\texttt", "\\textbf",
+		"\\text", "\\textnormal", "\\hbox", "\\mbox"));
+
+	/**
+	 * Tokenises using the regular expressions (the way TokenInput used to work).
+	 * @param tex TeX
+	 * @return Tokens
+	 */
+	private static List<String> regexTokens(String tex)
+	{
+		List<String> tokens = new ArrayList<String>();
+		int inTextMode = 0;
+		LinkedList<Integer> braceLevel = new LinkedList<Integer>();
+		int pos = 0;
+		if(tex.startsWith("$") && tex.endsWith("$"))
+		{
+			tex = tex.substring(0, tex.length() - 1);
+		}
+		while(pos < tex.length())
+		{
+			Matcher m = (inTextMode == 0 ? STRICT_RE : TEXT_RE).matcher(tex);
+			if(!m.find(pos))
+			{
+				int length = Character.isHighSurrogate(tex.charAt(pos)) ? 2 : 1;
+				tokens.add(tex.substring(pos, pos + length));
+				pos += length;
+				continue;
+			}
+			pos = m.end();
+			if(inTextMode == 0)
+			{
+				if(m.group(1) != null)
+				{
+					tokens.add(m.group(1));
+					tokens.add(m.group(2));
+				}
+				else if("\\sp".equals(m.group(3)))
+				{
+					tokens.add("^");
+				}
+				else if("\\sb".equals(m.group(3)))
+				{
+					tokens.add("_");
+				}
+				else if("$".equals(m.group(0)))
+				{
+					inTextMode = 1;
+					braceLevel.add(0);
+					tokens.add("$");
+				}
+				else if(m.group(4) != null)
+				{
+					continue;
+				}
+				else if(TEXT_COMMANDS.contains(m.group(3)))
+				{
+					inTextMode = 2;
+					braceLevel.add(0);
+					tokens.add(m.group(0));
+					Matcher ws = Pattern.compile("^\\s+").matcher(tex);
+					ws.region(pos, tex.length());
+					if(ws.find())
+					{
+						pos = ws.end();
+					}
+				}
+				else
+				{
+					tokens.add(m.group(0));
+				}
+			}
+			else
+			{
+				String txt = m.group(0);
+				if(txt.equals("$"))
+				{
+					inTextMode = 0;
+				}
+				else if(txt.equals("{"))
+				{
+					braceLevel.addLast(braceLevel.removeLast() + 1);
+				}
+				else if(txt.equals("}"))
+				{
+					braceLevel.addLast(braceLevel.removeLast() - 1);
+					if(braceLevel.getLast() <= 0)
+					{
+						inTextMode = 0;
+						braceLevel.removeLast();
+					}
+				}
+				tokens.add(txt.replace('~', '\u00a0'));
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Checks that TokenInput gives the same tokens as the regular expressions.
+	 * @param tex TeX
+	 */
+	private static void assertSameTokens(String tex)
+	{
+		List<String> actual = new ArrayList<String>();
+		TokenInput tokens = new TokenInput(tex);
+		for(String token = tokens.nextToken(); token != null; token = tokens.nextToken())
+		{
+			actual.add(token);
+		}
+		assertEquals(tex, regexTokens(tex), actual);
+	}
+
+	@Test
+	public void testLexerEdgeCases()
+	{
+		String[] cases =
+		{
+			"\\begin{cases}x\\end{cases}", "\\begin  {  matrix x }", "\\begin{\t\tab\t}",
+			"\\begin{ }", "\\begin{ \t }", "\\begin{\t}", "\\begin{}", "\\begin{a", "\\begin",
+			"\\beginning{x}", "\\mathrm{d}x", "\\mathop {lim} ", "\\operatorname{sin}",
+			"\\end{ a b }", "\\end{a1}", "\\sp2\\sb3", "\\ \\\\\\#\\%\\{\\}\\,\\:\\;\\!\\$",
+			"\\&&", "\\'x\\|y", "\u00e9+\u00e9", "a\u00e9", "\u2019\u201d", "@a.1",
+			"$x$y$", "\\text {a~b} c", "\\mbox{\\frog {x}}y", "\\hbox", "\\\\",
+			"x\\", "\\\u00e9", "\ud835\udc9c+x"
+		};
+		for(String tex : cases)
+		{
+			assertSameTokens(tex);
+		}
+	}
+
+	@Test
+	public void testLexerSamples() throws Exception
+	{
+		// Get local file and use it to navigate to forum samples
+		URL classUrl = getClass().getResource("tex.samples");
+		File localFile = new File(classUrl.toURI());
+		File forumFile = new File(localFile.getParentFile().getParentFile().getParentFile().
+			getParentFile().getParentFile().getParentFile().getParentFile().getParentFile(),
+			"misc/forum.tex.samples");
+		for(File file : new File[] { localFile, forumFile })
+		{
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8")))
+			{
+				while(true)
+				{
+					String line = reader.readLine();
+					if(line == null)
+					{
+						break;
+					}
+					assertSameTokens(line);
+				}
+			}
+		}
+	}
 }